@@ -20,11 +20,15 @@ import java.net.SocketException;
 
 import org.mortbay.util.ByteArrayISO8859Writer;
 import org.mortbay.util.ByteBufferOutputStream;
+import org.mortbay.util.GatheringOutputStream;
 import org.mortbay.util.OutputObserver;
 
 /* ------------------------------------------------------------ */
 /** Buffered Output Stream.
  * Uses ByteBufferOutputStream to allow pre and post writes.
+ * If the buffered stream is a GatheringOutputStream, then the
+ * header is not prewritten to the buffer, but is written with
+ * the buffer by a single gathering write.
  * @version $Revision$
  * @author Greg Wilkins (gregw)
  */
@@ -195,14 +199,25 @@ public class BufferedOutputStream
             wrapBuffer();
             
             // Add headers
-            if (_httpMessageWriter.size()>0)
+            int header=_httpMessageWriter.size();
+            if (header>0 && _out instanceof GatheringOutputStream)
             {
-                prewrite(_httpMessageWriter.getBuf(),0,_httpMessageWriter.size());
+                // write headers and buffer together
+                ((GatheringOutputStream)_out).write(_httpMessageWriter.getBuf(),0,header,
+                                                    _buf,preReserve(),size());
                 _httpMessageWriter.resetWriter();
             }
+            else
+            {
+                if (header>0)
+                {
+                    prewrite(_httpMessageWriter.getBuf(),0,header);
+                    _httpMessageWriter.resetWriter();
+                }
             
-            if (size()>0)
-                writeTo(_out);
+                if (size()>0)
+                    writeTo(_out);
+            }
         }
         catch (IOException e)
         {
@@ -123,11 +123,18 @@ public class ChunkingInputStream extends InputStream
     }
     
     /* ------------------------------------------------------------ */
+    /** 
+     * @return The content bytes that can be read without blocking. Zero
+     * is returned between chunks, as any bytes available are chunk
+     * framing that may be followed by a wait for the next chunk.
+     */
     public int available()
         throws IOException
     {
+        if (_chunkSize<=0)
+            return 0;
         int len = _in.available();
-        if (len<=_chunkSize || _chunkSize==0)
+        if (len<=_chunkSize)
             return len;
         return _chunkSize;
     }
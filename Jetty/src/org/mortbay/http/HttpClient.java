@@ -0,0 +1,1176 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.util.ByteArrayISO8859Writer;
+import org.mortbay.util.ByteArrayPool;
+import org.mortbay.util.IO;
+import org.mortbay.util.LifeCycle;
+import org.mortbay.util.LineInput;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.StringUtil;
+import org.mortbay.util.StripedCounter;
+
+/* ------------------------------------------------------------ */
+/** HTTP/1.1 Client.
+ * A simple blocking HTTP/1.1 client that keeps a pool of persistent
+ * connections for each destination host and port, so that a TCP
+ * connection is not opened for every request.  It is used by the
+ * ProxyHandler and ProxyServlet to make upstream requests.
+ * <p>
+ * Responses are parsed with {@link LineInput} and {@link HttpFields}
+ * and the content is read with a {@link HttpInputStream}, so
+ * Content-Length, chunked and EOF delimited content are all handled.
+ * A connection is returned to its pool once the content of its last
+ * response has been read to EOF or the response has been closed.
+ * <p>
+ * The number of connections to each destination is limited by
+ * maxConnectionsPerAddress, and a request waits up to
+ * connectTimeoutMs for a connection to become free.  Idle connections
+ * are closed after idleTimeoutMs.  If pipelineDepth is greater than
+ * one, GET and HEAD requests without content may be pipelined on a
+ * busy connection when no idle connection is available.  A request
+ * without content that fails because a persistent connection was
+ * closed by the server before the response was received is retried
+ * once on a new connection, if the method is idempotent.
+ * <p>
+ * Only plain HTTP is supported.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class HttpClient implements LifeCycle
+{
+    private static Log log = LogFactory.getLog(HttpClient.class);
+
+    /* ------------------------------------------------------------ */
+    private final static byte[] __CHUNK_EOF={(byte)'0',(byte)'\015',(byte)'\012',(byte)'\015',(byte)'\012'};
+    private final static byte[] __CRLF={(byte)'\015',(byte)'\012'};
+
+    /* ------------------------------------------------------------ */
+    private int _maxConnectionsPerAddress=16;
+    private int _idleTimeoutMs=30000;
+    private int _connectTimeoutMs=10000;
+    private int _timeoutMs=30000;
+    private int _bufferSize=4096;
+    private int _pipelineDepth=1;
+    private boolean _tcpNoDelay=true;
+
+    private transient Map _destinations=new HashMap();
+    private transient Thread _sweeper;
+    private transient volatile boolean _started;
+    private transient StripedCounter _requests=new StripedCounter();
+    private transient StripedCounter _connectionsOpened=new StripedCounter();
+
+    /* ------------------------------------------------------------ */
+    public int getMaxConnectionsPerAddress()
+    {
+        return _maxConnectionsPerAddress;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param max The maximum number of connections that may be open to
+     * each destination host and port.
+     */
+    public void setMaxConnectionsPerAddress(int max)
+    {
+        if (max<=0)
+            throw new IllegalArgumentException("maxConnectionsPerAddress="+max);
+        _maxConnectionsPerAddress=max;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getIdleTimeoutMs()
+    {
+        return _idleTimeoutMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param ms The time in milliseconds after which an idle pooled
+     * connection is closed. If 0, connections are not pooled. This
+     * should be less than the idle timeout of the upstream servers, as
+     * a request with content is not retried if its connection has been
+     * closed by the server.
+     */
+    public void setIdleTimeoutMs(int ms)
+    {
+        _idleTimeoutMs=ms;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getConnectTimeoutMs()
+    {
+        return _connectTimeoutMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param ms The time in milliseconds to wait for a connection to be
+     * established or to become free, or 0 to wait for ever.
+     */
+    public void setConnectTimeoutMs(int ms)
+    {
+        _connectTimeoutMs=ms;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getTimeoutMs()
+    {
+        return _timeoutMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param ms The socket read timeout in milliseconds, or 0 for no
+     * timeout.
+     */
+    public void setTimeoutMs(int ms)
+    {
+        _timeoutMs=ms;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getBufferSize()
+    {
+        return _bufferSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The size of the input and output buffers of each
+     * connection.
+     */
+    public void setBufferSize(int size)
+    {
+        _bufferSize=size;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getPipelineDepth()
+    {
+        return _pipelineDepth;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param depth The maximum number of requests that may be
+     * outstanding on a connection. 1 disables pipelining.
+     */
+    public void setPipelineDepth(int depth)
+    {
+        if (depth<=0)
+            throw new IllegalArgumentException("pipelineDepth="+depth);
+        _pipelineDepth=depth;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean getTcpNoDelay()
+    {
+        return _tcpNoDelay;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setTcpNoDelay(boolean tcpNoDelay)
+    {
+        _tcpNoDelay=tcpNoDelay;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of requests sent since start.
+     */
+    public long getRequests()
+    {
+        return _requests.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of connections opened since start.
+     */
+    public long getConnectionsOpened()
+    {
+        return _connectionsOpened.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of connections currently open.
+     */
+    public int getConnections()
+    {
+        int connections=0;
+        synchronized(this)
+        {
+            Iterator iter=_destinations.values().iterator();
+            while (iter.hasNext())
+            {
+                Destination destination=(Destination)iter.next();
+                synchronized(destination)
+                {
+                    connections+=destination._connections;
+                }
+            }
+        }
+        return connections;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of idle connections currently pooled.
+     */
+    public int getIdleConnections()
+    {
+        int idle=0;
+        synchronized(this)
+        {
+            Iterator iter=_destinations.values().iterator();
+            while (iter.hasNext())
+            {
+                Destination destination=(Destination)iter.next();
+                synchronized(destination)
+                {
+                    idle+=destination._idle.size();
+                }
+            }
+        }
+        return idle;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isStarted()
+    {
+        return _started;
+    }
+
+    /* ------------------------------------------------------------ */
+    public synchronized void start()
+        throws Exception
+    {
+        if (_started)
+            return;
+        _started=true;
+        _requests.reset();
+        _connectionsOpened.reset();
+        _sweeper=new Sweeper();
+        _sweeper.start();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Stop the client.
+     * Idle connections are closed, and busy connections are closed
+     * when their responses are complete.
+     */
+    public void stop()
+        throws InterruptedException
+    {
+        Thread sweeper=null;
+        synchronized(this)
+        {
+            if (!_started)
+                return;
+            _started=false;
+            sweeper=_sweeper;
+            _sweeper=null;
+
+            Iterator iter=_destinations.values().iterator();
+            while (iter.hasNext())
+            {
+                Destination destination=(Destination)iter.next();
+                destination.closeIdle(Long.MAX_VALUE);
+            }
+            _destinations.clear();
+        }
+        if (sweeper!=null)
+        {
+            sweeper.interrupt();
+            sweeper.join();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Send a request.
+     * The request is sent on a pooled connection to the host and port
+     * and the response head is read.  The content of the response must
+     * be read to EOF or the response closed, so that the connection can
+     * be reused.
+     * @param method The request method.
+     * @param host The host to connect to.
+     * @param port The port to connect to.
+     * @param uri The request URI, which is absolute if a proxy is the
+     * destination.
+     * @param fields The request header fields, which must not include
+     * Transfer-Encoding or Connection.  A Host field is added if there
+     * is none.
+     * @param content The request content or null.  If there is no
+     * Content-Length field, the content is sent chunked.
+     * @return The response.
+     * @exception IOException
+     */
+    public Response send(String method,
+                         String host,
+                         int port,
+                         String uri,
+                         HttpFields fields,
+                         InputStream content)
+        throws IOException
+    {
+        if (!isStarted())
+            throw new IllegalStateException("Not started");
+
+        // Build the request head
+        long length=-1;
+        byte[] head;
+        ByteArrayISO8859Writer writer=new ByteArrayISO8859Writer(_bufferSize);
+        try
+        {
+            writer.write(method);
+            writer.write(' ');
+            writer.write(uri);
+            writer.write(' ');
+            writer.write(HttpMessage.__HTTP_1_1);
+            writer.write(HttpFields.__CRLF);
+            if (fields.get(HttpFields.__Host)==null)
+            {
+                writer.write(HttpFields.__Host);
+                writer.write(": ");
+                writer.write(host);
+                if (port!=80)
+                {
+                    writer.write(':');
+                    writer.write(Integer.toString(port));
+                }
+                writer.write(HttpFields.__CRLF);
+            }
+            if (content!=null)
+            {
+                length=fields.getIntField(HttpFields.__ContentLength);
+                if (length<0)
+                {
+                    writer.write(HttpFields.__TransferEncoding);
+                    writer.write(": ");
+                    writer.write(HttpFields.__Chunked);
+                    writer.write(HttpFields.__CRLF);
+                }
+            }
+            fields.write(writer);
+            head=writer.getByteArray();
+        }
+        finally
+        {
+            writer.destroy();
+        }
+
+        boolean head_method=HttpRequest.__HEAD.equals(method);
+        boolean pipeline=content==null &&
+            (head_method || HttpRequest.__GET.equals(method));
+        boolean idempotent=content==null &&
+            (pipeline ||
+             HttpRequest.__OPTIONS.equals(method) ||
+             HttpRequest.__TRACE.equals(method) ||
+             HttpRequest.__PUT.equals(method) ||
+             HttpRequest.__DELETE.equals(method));
+
+        _requests.increment();
+        Destination destination=getDestination(host,port);
+        boolean fresh=false;
+        while (true)
+        {
+            Connection connection=destination.acquire(pipeline,fresh);
+            try
+            {
+                return connection.exchange(head,content,length,head_method);
+            }
+            catch(RetryException e)
+            {
+                if (!idempotent || fresh)
+                    throw (IOException)e.getCause();
+                LogSupport.ignore(log,e);
+                fresh=true;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private synchronized Destination getDestination(String host, int port)
+    {
+        String key=host+":"+port;
+        Destination destination=(Destination)_destinations.get(key);
+        if (destination==null)
+        {
+            destination=new Destination(host,port);
+            _destinations.put(key,destination);
+        }
+        return destination;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Close expired idle connections and remove unused destinations.
+     */
+    private synchronized void sweep(long now)
+    {
+        Iterator iter=_destinations.values().iterator();
+        while (iter.hasNext())
+        {
+            Destination destination=(Destination)iter.next();
+            if (destination.closeIdle(now-_idleTimeoutMs))
+                iter.remove();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The connections to a host and port.
+     * The idle list is used as a stack, so that the most recently
+     * used connections are reused and the others can expire.
+     */
+    private class Destination
+    {
+        String _host;
+        int _port;
+        ArrayList _idle=new ArrayList();
+        ArrayList _busy=new ArrayList();
+        int _connections;
+        int _waiting;
+
+        /* ------------------------------------------------------------ */
+        Destination(String host, int port)
+        {
+            _host=host;
+            _port=port;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Acquire a connection for an exchange.
+         * @param pipeline True if the exchange may be pipelined.
+         * @param fresh True if a new connection is required.
+         */
+        Connection acquire(boolean pipeline, boolean fresh)
+            throws IOException
+        {
+            long end=_connectTimeoutMs>0
+                ?(System.currentTimeMillis()+_connectTimeoutMs):0;
+
+            synchronized(this)
+            {
+                while (true)
+                {
+                    if (!fresh)
+                    {
+                        long expired=System.currentTimeMillis()-_idleTimeoutMs;
+                        while (_idle.size()>0)
+                        {
+                            Connection connection=(Connection)_idle.remove(_idle.size()-1);
+                            if (connection._idleSince>expired)
+                            {
+                                take(connection,pipeline);
+                                return connection;
+                            }
+                            connection.close();
+                            _connections--;
+                        }
+
+                        if (pipeline && _pipelineDepth>1)
+                        {
+                            for (int i=0;i<_busy.size();i++)
+                            {
+                                Connection connection=(Connection)_busy.get(i);
+                                if (connection._pipeline &&
+                                    connection._pending<_pipelineDepth &&
+                                    connection.isPersistent())
+                                {
+                                    connection._pending++;
+                                    return connection;
+                                }
+                            }
+                        }
+                    }
+
+                    if (_connections<_maxConnectionsPerAddress)
+                    {
+                        _connections++;
+                        break;
+                    }
+
+                    // A fresh connection may replace the oldest idle one.
+                    if (fresh && _idle.size()>0)
+                    {
+                        ((Connection)_idle.remove(0)).close();
+                        break;
+                    }
+
+                    long wait=0;
+                    if (end>0)
+                    {
+                        wait=end-System.currentTimeMillis();
+                        if (wait<=0)
+                            throw new InterruptedIOException("No connection available to "+this);
+                    }
+                    try
+                    {
+                        _waiting++;
+                        wait(wait);
+                    }
+                    catch(InterruptedException e)
+                    {
+                        throw new InterruptedIOException(e.toString());
+                    }
+                    finally
+                    {
+                        _waiting--;
+                    }
+                }
+            }
+
+            // Open a new connection outside of the lock
+            Connection connection=null;
+            try
+            {
+                connection=new Connection(this);
+            }
+            finally
+            {
+                synchronized(this)
+                {
+                    if (connection==null)
+                    {
+                        _connections--;
+                        notify();
+                    }
+                    else
+                        take(connection,pipeline);
+                }
+            }
+            _connectionsOpened.increment();
+            return connection;
+        }
+
+        /* ------------------------------------------------------------ */
+        private void take(Connection connection, boolean pipeline)
+        {
+            connection._pending=1;
+            connection._pipeline=pipeline;
+            _busy.add(connection);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Release a connection at the end of an exchange.
+         */
+        synchronized void release(Connection connection)
+        {
+            if (--connection._pending>0)
+                return;
+            _busy.remove(connection);
+            if (connection.isPersistent() && _idleTimeoutMs>0 && isStarted())
+            {
+                connection._idleSince=System.currentTimeMillis();
+                _idle.add(connection);
+            }
+            else
+            {
+                connection.close();
+                _connections--;
+            }
+            notify();
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Close idle connections.
+         * @param expired Connections idle since before this time are
+         * closed.
+         * @return True if the destination has no connections.
+         */
+        synchronized boolean closeIdle(long expired)
+        {
+            while (_idle.size()>0)
+            {
+                Connection connection=(Connection)_idle.get(0);
+                if (connection._idleSince>expired)
+                    break;
+                _idle.remove(0);
+                connection.close();
+                _connections--;
+                notify();
+            }
+            return _connections==0 && _waiting==0;
+        }
+
+        /* ------------------------------------------------------------ */
+        public String toString()
+        {
+            return _host+":"+_port;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A connection to a destination.
+     * Requests are written in turn under the write lock and the
+     * responses are read in the same order, each exchange waiting for
+     * the response before it to complete.
+     */
+    private class Connection
+    {
+        Destination _destination;
+        Socket _socket;
+        OutputStream _out;
+        HttpInputStream _in;
+        LineInput _lineIn;
+        Object _writeLock=new Object();
+
+        // Guarded by the write lock
+        int _sent;
+
+        // Guarded by the connection
+        int _received;
+        boolean _persistent=true;
+        boolean _closed;
+
+        // Guarded by the destination
+        int _pending;
+        boolean _pipeline;
+        long _idleSince;
+
+        /* ------------------------------------------------------------ */
+        Connection(Destination destination)
+            throws IOException
+        {
+            _destination=destination;
+            _socket=new Socket();
+            try
+            {
+                _socket.setTcpNoDelay(_tcpNoDelay);
+                _socket.setSoTimeout(_timeoutMs);
+                _socket.connect(new InetSocketAddress(destination._host,destination._port),
+                                _connectTimeoutMs);
+                _out=new BufferedOutputStream(_socket.getOutputStream(),_bufferSize);
+                _in=new HttpInputStream(_socket.getInputStream(),_bufferSize);
+                _lineIn=(LineInput)_in.getInputStream();
+            }
+            catch(IOException e)
+            {
+                try{_socket.close();}
+                catch(IOException e2){LogSupport.ignore(log,e2);}
+                throw e;
+            }
+            if (log.isDebugEnabled())log.debug("Opened "+this);
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized boolean isPersistent()
+        {
+            return _persistent && !_closed;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Send a request and read the response head.
+         * @exception RetryException if the connection was closed before
+         * any of the response was received.
+         */
+        Response exchange(byte[] head,
+                          InputStream content,
+                          long length,
+                          boolean head_method)
+            throws IOException
+        {
+            int turn;
+            boolean reused;
+
+            // Write the request
+            synchronized(_writeLock)
+            {
+                turn=_sent++;
+                try
+                {
+                    synchronized(this)
+                    {
+                        reused=turn>0;
+                        if (_closed)
+                            throw new SocketException("Closed");
+                    }
+
+                    _out.write(head);
+                    if (content!=null)
+                    {
+                        if (length>=0)
+                            IO.relay(content,_out,length);
+                        else
+                            writeChunked(content);
+                    }
+                    _out.flush();
+                }
+                catch(IOException e)
+                {
+                    abort();
+                    if (content==null)
+                        throw new RetryException(e);
+                    throw e;
+                }
+            }
+
+            // Wait for our turn to read
+            boolean received=false;
+            try
+            {
+                synchronized(this)
+                {
+                    long end=_timeoutMs>0?(System.currentTimeMillis()+_timeoutMs):0;
+                    while (_received!=turn && !_closed)
+                    {
+                        long wait=0;
+                        if (end>0)
+                        {
+                            wait=end-System.currentTimeMillis();
+                            if (wait<=0)
+                                throw new InterruptedIOException("Pipeline timeout");
+                        }
+                        try{wait(wait);}
+                        catch(InterruptedException e)
+                        {
+                            throw new InterruptedIOException(e.toString());
+                        }
+                    }
+                    if (_closed)
+                        throw new RetryException(new SocketException("Closed"));
+                }
+
+                // Read the status line, skipping any 1xx responses
+                _in.resetStream();
+                String version;
+                int status;
+                String reason;
+                HttpFields fields=new HttpFields();
+                while (true)
+                {
+                    String line=_lineIn.readLine();
+                    while (line!=null && line.length()==0)
+                        line=_lineIn.readLine();
+                    if (line==null)
+                    {
+                        if (reused)
+                            throw new RetryException(new SocketException("Closed"));
+                        throw new IOException("EOF");
+                    }
+                    received=true;
+
+                    int s0=line.indexOf(' ');
+                    int s1=s0>0?line.indexOf(' ',s0+1):-1;
+                    if (s0<0)
+                        throw new IOException("Bad status: "+line);
+                    version=line.substring(0,s0);
+                    try
+                    {
+                        status=Integer.parseInt(s1>0?line.substring(s0+1,s1):line.substring(s0+1).trim());
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        throw new IOException("Bad status: "+line);
+                    }
+                    reason=s1>0?line.substring(s1+1):null;
+
+                    fields.read(_lineIn);
+                    if (status>=200 || status==101)
+                        break;
+                    fields.clear();
+                }
+
+                // Work out how the content is delimited
+                boolean persistent;
+                String connection=fields.get(HttpFields.__Connection);
+                if (HttpMessage.__HTTP_1_1.equalsIgnoreCase(version))
+                    persistent=connection==null ||
+                        StringUtil.asciiToLowerCase(connection).indexOf(HttpFields.__Close)<0;
+                else
+                    persistent=connection!=null &&
+                        StringUtil.asciiToLowerCase(connection).indexOf(HttpFields.__KeepAlive)>=0;
+
+                boolean empty=false;
+                String transfer_encoding=fields.get(HttpFields.__TransferEncoding);
+                if (head_method || status==204 || status==304)
+                    empty=true;
+                else if (status==101)
+                    persistent=false;
+                else if (transfer_encoding!=null &&
+                         !HttpFields.__Identity.equalsIgnoreCase(transfer_encoding))
+                    _in.setChunking();
+                else
+                {
+                    long content_length=-1;
+                    try
+                    {
+                        String value=fields.get(HttpFields.__ContentLength);
+                        if (value!=null)
+                            content_length=Long.parseLong(value.trim());
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        LogSupport.ignore(log,e);
+                    }
+
+                    if (content_length==0)
+                        empty=true;
+                    else if (content_length>0 && content_length<Integer.MAX_VALUE)
+                        _in.setContentLength((int)content_length);
+                    else
+                        persistent=false;
+                }
+
+                return new Response(this,version,status,reason,fields,persistent,empty);
+            }
+            catch(RetryException e)
+            {
+                abort();
+                throw e;
+            }
+            catch(IOException e)
+            {
+                abort();
+                if (!received && reused && e instanceof SocketException)
+                    throw new RetryException(e);
+                throw e;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private void writeChunked(InputStream content)
+            throws IOException
+        {
+            byte[] buf=ByteArrayPool.getByteArray(_bufferSize);
+            try
+            {
+                int len;
+                while ((len=content.read(buf))>=0)
+                {
+                    if (len==0)
+                        continue;
+                    _out.write(Integer.toHexString(len).getBytes(StringUtil.__ISO_8859_1));
+                    _out.write(__CRLF);
+                    _out.write(buf,0,len);
+                    _out.write(__CRLF);
+                    if (content.available()<=0)
+                        _out.flush();
+                }
+                _out.write(__CHUNK_EOF);
+            }
+            finally
+            {
+                ByteArrayPool.returnByteArray(buf);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Complete an exchange.
+         * @param persistent False if the connection may not be reused.
+         */
+        void complete(boolean persistent)
+        {
+            synchronized(this)
+            {
+                _received++;
+                if (!persistent)
+                    _persistent=false;
+                notifyAll();
+            }
+            if (!persistent)
+                close();
+            _destination.release(this);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Abort an exchange that failed.
+         */
+        private void abort()
+        {
+            synchronized(this)
+            {
+                _persistent=false;
+            }
+            close();
+            _destination.release(this);
+        }
+
+        /* ------------------------------------------------------------ */
+        void close()
+        {
+            synchronized(this)
+            {
+                if (_closed)
+                    return;
+                _closed=true;
+                notifyAll();
+            }
+            if (log.isDebugEnabled())log.debug("Closed "+this);
+            try{_socket.close();}
+            catch(IOException e){LogSupport.ignore(log,e);}
+        }
+
+        /* ------------------------------------------------------------ */
+        public String toString()
+        {
+            return "HttpClient.Connection@"+Integer.toHexString(hashCode())+"->"+_destination;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A response to a request sent by the client.
+     * The content must be read to EOF or the response closed.
+     */
+    public static class Response
+    {
+        private Connection _connection;
+        private String _version;
+        private int _status;
+        private String _reason;
+        private HttpFields _fields;
+        private boolean _persistent;
+        private boolean _complete;
+        private InputStream _content;
+
+        /* ------------------------------------------------------------ */
+        private Response(Connection connection,
+                         String version,
+                         int status,
+                         String reason,
+                         HttpFields fields,
+                         boolean persistent,
+                         boolean empty)
+        {
+            _connection=connection;
+            _version=version;
+            _status=status;
+            _reason=reason;
+            _fields=fields;
+            _persistent=persistent;
+            _content=new Content(connection._in);
+            if (empty)
+                complete(_persistent);
+        }
+
+        /* ------------------------------------------------------------ */
+        public String getVersion()
+        {
+            return _version;
+        }
+
+        /* ------------------------------------------------------------ */
+        public int getStatus()
+        {
+            return _status;
+        }
+
+        /* ------------------------------------------------------------ */
+        public String getReason()
+        {
+            return _reason;
+        }
+
+        /* ------------------------------------------------------------ */
+        public HttpFields getFields()
+        {
+            return _fields;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The response content, which returns EOF at the end
+         * of the content.
+         */
+        public InputStream getInputStream()
+        {
+            return _content;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The trailer fields of chunked content, which are
+         * available once the content has been read to EOF.
+         */
+        public HttpFields getTrailer()
+        {
+            synchronized(this)
+            {
+                if (!_complete || !_connection._in.isChunking())
+                    return null;
+                return _connection._in.getTrailer();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Close the response.
+         * If the content has not been read to EOF, the connection is
+         * closed rather than reused.
+         */
+        public void close()
+        {
+            complete(false);
+        }
+
+        /* ------------------------------------------------------------ */
+        private synchronized void complete(boolean persistent)
+        {
+            if (_complete)
+                return;
+            _complete=true;
+            _connection.complete(persistent&&_persistent);
+        }
+
+        /* ------------------------------------------------------------ */
+        public String toString()
+        {
+            return _version+" "+_status+" "+_reason+" "+_connection;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** The response content.
+         * Completes the response at EOF.
+         */
+        private class Content extends InputStream
+        {
+            private InputStream _in;
+
+            Content(InputStream in)
+            {
+                _in=in;
+            }
+
+            public int read()
+                throws IOException
+            {
+                if (_complete)
+                    return -1;
+                int b=-1;
+                try
+                {
+                    b=_in.read();
+                }
+                catch(IOException e)
+                {
+                    complete(false);
+                    throw e;
+                }
+                if (b<0)
+                    complete(true);
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len)
+                throws IOException
+            {
+                if (_complete)
+                    return -1;
+                int n=-1;
+                try
+                {
+                    n=_in.read(b,off,len);
+                }
+                catch(IOException e)
+                {
+                    complete(false);
+                    throw e;
+                }
+                if (n<0)
+                    complete(true);
+                return n;
+            }
+
+            public int available()
+                throws IOException
+            {
+                if (_complete)
+                    return 0;
+                return _in.available();
+            }
+
+            public void close()
+            {
+                Response.this.close();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A failure that occurred before any of the response was
+     * received, so the request may be retried.
+     */
+    private static class RetryException extends IOException
+    {
+        private IOException _cause;
+
+        RetryException(IOException cause)
+        {
+            super(cause.toString());
+            _cause=cause;
+        }
+
+        public Throwable getCause()
+        {
+            return _cause;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Closes expired idle connections.
+     */
+    private class Sweeper extends Thread
+    {
+        Sweeper()
+        {
+            super("HttpClient-Sweeper");
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            try
+            {
+                while (isStarted())
+                {
+                    long period=_idleTimeoutMs/2;
+                    if (period<100)
+                        period=100;
+                    if (period>10000)
+                        period=10000;
+                    sleep(period);
+                    sweep(System.currentTimeMillis());
+                }
+            }
+            catch(InterruptedException e)
+            {
+                LogSupport.ignore(log,e);
+            }
+        }
+    }
+}
@@ -513,7 +513,7 @@ public class HttpConnection
                 throw new HttpException(HttpResponse.__417_Expectation_Failed);
         }
         else if (__2068_Continues &&
-                 _inputStream.available()<=0 &&
+                 _inputStream.getInputStream().available()<=0 &&
                  (HttpRequest.__PUT.equals(_request.getMethod()) ||
                   HttpRequest.__POST.equals(_request.getMethod())))
         {
@@ -937,7 +937,7 @@ public class HttpConnection
             
             // Common fields on the response
             _response.setVersion(HttpMessage.__HTTP_1_1);
-            _response.setField(HttpFields.__Date,_request.getTimeStampStr());
+            _response.setDateField();
             if (!Version.isParanoid())
                 _response.setField(HttpFields.__Server,Version.getDetail());
             
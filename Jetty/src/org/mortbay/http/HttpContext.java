@@ -2117,6 +2117,16 @@ public class HttpContext extends Container
     {
         return _resources.getResource(pathInContext);
     }
+    /**
+     * @param pathInContext
+     * @param resource
+     * @return
+     * @throws IOException
+     */
+    public Resource getGzipResource(String pathInContext, Resource resource) throws IOException
+    {
+        return _resources.getGzipResource(pathInContext,resource);
+    }
     /**
      * @return
      */
@@ -2160,6 +2170,103 @@ public class HttpContext extends Container
     {
         _resources.setMaxCacheSize(maxCacheSize);
     }
+    /**
+     * @return
+     */
+    public int getMaxOffHeapFileSize()
+    {
+        return _resources.getMaxOffHeapFileSize();
+    }
+    /**
+     * @param maxOffHeapFileSize
+     */
+    public void setMaxOffHeapFileSize(int maxOffHeapFileSize)
+    {
+        _resources.setMaxOffHeapFileSize(maxOffHeapFileSize);
+    }
+    /**
+     * @return
+     */
+    public int getMaxOffHeapCacheSize()
+    {
+        return _resources.getMaxOffHeapCacheSize();
+    }
+    /**
+     * @param maxOffHeapCacheSize
+     */
+    public void setMaxOffHeapCacheSize(int maxOffHeapCacheSize)
+    {
+        _resources.setMaxOffHeapCacheSize(maxOffHeapCacheSize);
+    }
+    /**
+     * @return
+     */
+    public int getMinMappedFileSize()
+    {
+        return _resources.getMinMappedFileSize();
+    }
+    /**
+     * @param minMappedFileSize
+     */
+    public void setMinMappedFileSize(int minMappedFileSize)
+    {
+        _resources.setMinMappedFileSize(minMappedFileSize);
+    }
+    /**
+     * @return
+     */
+    public int getOffHeapCacheSize()
+    {
+        return _resources.getOffHeapCacheSize();
+    }
+    /**
+     * @return
+     */
+    public String getEvictionPolicy()
+    {
+        return _resources.getEvictionPolicy();
+    }
+    /**
+     * @param policy
+     */
+    public void setEvictionPolicy(String policy)
+    {
+        _resources.setEvictionPolicy(policy);
+    }
+    /**
+     * @return
+     */
+    public int getCacheSize()
+    {
+        return _resources.getCacheSize();
+    }
+    /**
+     * @return
+     */
+    public long getCacheHits()
+    {
+        return _resources.getCacheHits();
+    }
+    /**
+     * @return
+     */
+    public long getCacheMisses()
+    {
+        return _resources.getCacheMisses();
+    }
+    /**
+     * @return
+     */
+    public long getCacheEvictions()
+    {
+        return _resources.getCacheEvictions();
+    }
+    /**
+     */
+    public void resetCacheStats()
+    {
+        _resources.resetCacheStats();
+    }
     /**
      * @param mimeMap
      */
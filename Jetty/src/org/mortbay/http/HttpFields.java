@@ -16,11 +16,10 @@
 package org.mortbay.http;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
@@ -39,6 +38,7 @@ import javax.servlet.http.Cookie;
 
 import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
+import org.mortbay.util.ByteArrayISO8859Writer;
 import org.mortbay.util.DateCache;
 import org.mortbay.util.LazyList;
 import org.mortbay.util.LineInput;
@@ -150,7 +150,10 @@ public class HttpFields
         __SoapAction ="SOAPAction";
 
     /* ------------------------------------------------------------ */
-    /** Private class to hold Field name info
+    /** Private class to hold Field name info.
+     * The infos of the first __maxCacheSize names are cached and have
+     * an ordinal hashCode that indexes the fields of a HttpFields.
+     * Other names have the hashCode __maxCacheSize and are not indexed.
      */
     private static final class FieldInfo
     {
@@ -167,14 +170,14 @@ public class HttpFields
                 _name=name;
                 _lname=StringUtil.asciiToLowerCase(name);
                 _inlineValues=inline;
-                
-                _hashCode=__hashCode++;
+                _hashCode=__maxCacheSize;
                 
                 if (__hashCode < __maxCacheSize)
                 {
                     FieldInfo oldInfo = (FieldInfo)__info.get(name);
                     if (oldInfo == null)
                     {
+                        _hashCode=__hashCode++;
                         __info.put(name, this);
                         if (!name.equals(_lname))
                             __info.put(_lname, this);
@@ -202,8 +205,8 @@ public class HttpFields
             FieldInfo fi = (FieldInfo)o;
             return
                 fi==this ||
-                fi._hashCode==_hashCode ||
-                fi._name.equals(_name);
+                fi._hashCode==_hashCode && _hashCode<__maxCacheSize ||
+                fi._lname.equals(_lname);
         }
     }
 
@@ -211,6 +214,7 @@ public class HttpFields
     private static final StringMap __info = new StringMap(true);
     private static final StringMap __values = new StringMap(true);
     private static final int __maxCacheSize=128;
+    private static final int __bytesCapacity=512;
     
     /* ------------------------------------------------------------ */
     static
@@ -283,15 +287,31 @@ public class HttpFields
     }
     
     /* ------------------------------------------------------------ */
-    private static FieldInfo getFieldInfo(char[] name,int offset,int length)
+    private static FieldInfo getFieldInfo(byte[] name,int offset,int length)
     {
         Map.Entry entry = __info.getEntry(name,offset,length);
         if (entry==null)
-            return new FieldInfo(new String(name,offset,length),false);
+            return new FieldInfo(toString(name,offset,length),false);
 
         return (FieldInfo) entry.getValue();
     }
     
+    /* ------------------------------------------------------------ */
+    /** Convert ISO-8859-1 bytes to a String.
+     */
+    private static String toString(byte[] buf,int offset,int length)
+    {
+        try
+        {
+            return new String(buf,offset,length,StringUtil.__ISO_8859_1);
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            LogSupport.ignore(log,e);
+            return new String(buf,offset,length);
+        }
+    }
+    
     /* ------------------------------------------------------------ */
     /** Fields Values.
      */    
@@ -465,6 +485,9 @@ public class HttpFields
     {
         FieldInfo _info;
         String _value;
+        byte[] _bytes;
+        int _offset;
+        int _length;
         Field _next;
         Field _prev;
         int _version;
@@ -480,22 +503,36 @@ public class HttpFields
         }
         
         /* ------------------------------------------------------------ */
-        Field(FieldInfo info, char[] buf, int offset, int length, int version)
+        Field(FieldInfo info, byte[] buf, int offset, int length, int version)
         {
-            Map.Entry valueEntry=__values.getEntry(buf,offset,length);
-            String value=null;
-            if (valueEntry!=null)
-                value=(String)valueEntry.getKey();
-            else
-                value=new String(buf,offset,length);
-            
             _info=info;
-            _value=value;
+            _bytes=buf;
+            _offset=offset;
+            _length=length;
             _next=null;
             _prev=null;
             _version=version;
         }
         
+        /* ------------------------------------------------------------ */
+        /** Get the value.
+         * A value read as bytes is converted to a String when first
+         * asked for.
+         */
+        String getValue()
+        {
+            if (_value==null && _bytes!=null)
+            {
+                Map.Entry valueEntry=__values.getEntry(_bytes,_offset,_length);
+                if (valueEntry!=null)
+                    _value=(String)valueEntry.getKey();
+                else
+                    _value=HttpFields.toString(_bytes,_offset,_length);
+                _bytes=null;
+            }
+            return _value;
+        }
+        
         /* ------------------------------------------------------------ */
         public boolean equals(Object o)
         {
@@ -521,6 +558,7 @@ public class HttpFields
         {
             _info=null;
             _value=null;
+            _bytes=null;
             _next=null;
             _prev=null;
             _version=-1;
@@ -530,27 +568,35 @@ public class HttpFields
         void reset(String value,int version)
         {
             _value=value;
+            _bytes=null;
             _version=version;
         }
         
         /* ------------------------------------------------------------ */
         /** Reassign a value to this field.
-         * Checks if the value is the same as that in the char array, if so
-         * then just reuse existing value.
+         * @return True if the previous value is the same as that in the
+         * byte array and has been reused. Otherwise the caller must
+         * assign the bytes of the value. 
          */
-        void reset(char[] buf, int offset, int length, int version)
-        {  
+        boolean reuse(byte[] buf, int offset, int length, int version)
+        {
             _version=version;
-            if (!StringUtil.equals(_value,buf,offset,length))
+            if (_value!=null && StringUtil.equals(_value,buf,offset,length))
             {
-                Map.Entry valueEntry=__values.getEntry(buf,offset,length);
-                String value=null;
-                if (valueEntry!=null)
-                    value=(String)valueEntry.getKey();
-                else
-                    value=new String(buf,offset,length);
-                _value=value;
+                _bytes=null;
+                return true;
             }
+            return false;
+        }
+        
+        /* ------------------------------------------------------------ */
+        void reset(byte[] buf, int offset, int length, int version)
+        {
+            _value=null;
+            _bytes=buf;
+            _offset=offset;
+            _length=length;
+            _version=version;
         }
 
         
@@ -569,7 +615,7 @@ public class HttpFields
                 Field f=this;
                 while (true)
                 {
-                    writer.write(QuotedStringTokenizer.quote(f._value,", \t"));
+                    writer.write(QuotedStringTokenizer.quote(f.getValue(),", \t"));
                     f=f._next;
                     if (f==null)
                         break;
@@ -581,7 +627,10 @@ public class HttpFields
             {
                 writer.write(_info._name);
                 writer.write(__COLON);
-                writer.write(_value);
+                if (_value==null && _bytes!=null && writer instanceof ByteArrayISO8859Writer)
+                    ((ByteArrayISO8859Writer)writer).write(_bytes,_offset,_length);
+                else
+                    writer.write(getValue());
                 writer.write(__CRLF);
             }
         }
@@ -597,7 +646,7 @@ public class HttpFields
         {
             return ("["+
                 (_prev==null?"":"<-")+
-                getDisplayName()+"="+_value+
+                getDisplayName()+"="+getValue()+
                 (_next==null?"":"->")+
                 "]");
         }
@@ -629,9 +678,12 @@ public class HttpFields
     
     
     /* -------------------------------------------------------------- */
-    private ArrayList _fields=new ArrayList(15);
-    private int[] _index=new int[__maxCacheSize];
+    private Field[] _fields=new Field[16];
+    private int _size;
+    private Field[] _index=new Field[__maxCacheSize];
     private int _version;
+    private byte[] _bytes;
+    private int _bytesSize;
     private SimpleDateFormat _dateReceive[]; 
     private StringBuffer _dateBuffer;
     private HttpCal _calendar;
@@ -641,14 +693,13 @@ public class HttpFields
      */
     public HttpFields()
     {
-        Arrays.fill(_index,-1);
     }
 
     
     /* ------------------------------------------------------------ */
     public int size()
     {
-        return _fields.size();
+        return _size;
     }
     
     /* -------------------------------------------------------------- */
@@ -667,9 +718,9 @@ public class HttpFields
                 {
                     if (field!=null)
                         return true;
-                    while (i<_fields.size())
+                    while (i<_size)
                     {
-                        Field f=(Field)_fields.get(i++);
+                        Field f=_fields[i++];
                         if (f!=null && f._version==_version && f._prev==null)
                         {
                             field=f;
@@ -694,10 +745,25 @@ public class HttpFields
     }
     
     /* ------------------------------------------------------------ */
+    /** Get a valid field by name.
+     * Unlike getFieldInfo(String), a FieldInfo is not created for a
+     * name that is not cached.
+     */
     Field getField(String name)
     {       
-        FieldInfo info=getFieldInfo(name);
-        return getField(info,true);
+        FieldInfo info=(FieldInfo)__info.get(name);
+        if (info!=null)
+            return getField(info,true);
+
+        for (int i=0;i<_size;i++)
+        {
+            Field field=_fields[i];
+            if (field._version==_version &&
+                field._info._hashCode>=__maxCacheSize &&
+                field._info._name.equalsIgnoreCase(name))
+                return field;
+        }
+        return null;
     }
         
     /* ------------------------------------------------------------ */
@@ -705,32 +771,43 @@ public class HttpFields
     {
         int hi=info.hashCode();
         
-        if (hi<_index.length)
+        if (hi<__maxCacheSize)
         {
-            if (_index[hi]>=0)
-            {
-                Field field=(Field)(_fields.get(_index[hi]));
-                
-                return (field!=null && (!getValid||field._version==_version))?field:null;
-            }
+            Field field=_index[hi];
+            return (field!=null && (!getValid||field._version==_version))?field:null;
         }
-        else
-        {    
-            for (int i=0;i<_fields.size();i++)
-            {
-                Field field=(Field)_fields.get(i);
-                if (info.equals(field._info) && (!getValid||field._version==_version))
-                    return field;
-            }
+
+        for (int i=0;i<_size;i++)
+        {
+            Field field=_fields[i];
+            if (info.equals(field._info) && (!getValid||field._version==_version))
+                return field;
         }
         return null;
     }    
     
+    /* ------------------------------------------------------------ */
+    /** Add a new field.
+     * The field is indexed if it is the first field of its name.
+     */
+    private void addField(Field field)
+    {
+        if (_size==_fields.length)
+        {
+            Field[] fields=new Field[_size*2];
+            System.arraycopy(_fields,0,fields,0,_size);
+            _fields=fields;
+        }
+        _fields[_size++]=field;
+        int hi=field._info.hashCode();
+        if (field._prev==null && hi<__maxCacheSize)
+            _index[hi]=field;
+    }
+    
     /* ------------------------------------------------------------ */
     public boolean containsKey(String name)
     {
-        FieldInfo info=getFieldInfo(name);
-        return getField(info,true)!=null;
+        return getField(name)!=null;
     }
     
     /* -------------------------------------------------------------- */
@@ -741,10 +818,9 @@ public class HttpFields
      */
     public String get(String name)
     {
-        FieldInfo info=getFieldInfo(name);
-        Field field=getField(info,true);
+        Field field=getField(name);
         if (field!=null)
-            return field._value;
+            return field.getValue();
         return null;
     }
     
@@ -755,8 +831,7 @@ public class HttpFields
      */
     public Enumeration getValues(String name)
     {
-        FieldInfo info=getFieldInfo(name);
-        final Field field=getField(info,true);
+        final Field field=getField(name);
 
         if (field!=null)
         {            
@@ -778,7 +853,7 @@ public class HttpFields
                             throw new NoSuchElementException();
                         Field n=f;
                         do f=f._next; while (f!=null && f._version!=_version);
-                        return n._value;
+                        return n.getValue();
                     }
                 };
         }
@@ -844,7 +919,7 @@ public class HttpFields
         // Look for value to replace.
         if (field!=null)
         {
-            String old=(field._version==_version)?field._value:null;
+            String old=(field._version==_version)?field.getValue():null;
             field.reset(value,_version);
 
             field=field._next;
@@ -859,15 +934,44 @@ public class HttpFields
         {
             // new value;
             field=new Field(info,value,_version);
-            int hi=info.hashCode();
-            if (hi<_index.length)
-                _index[hi]=_fields.size();
-            _fields.add(field);
+            addField(field);
             return null;
         }
     }
     
         
+    /* -------------------------------------------------------------- */
+    /** Set a field from ISO-8859-1 bytes.
+     * The bytes are not copied and are written to a
+     * ByteArrayISO8859Writer without being converted to a String.
+     * @param name the name of the field
+     * @param value the value of the field, which must not be changed
+     * while the field is set. If null the field is cleared.
+     */
+    public void put(String name,byte[] value)
+    {
+        if (value==null)
+        {
+            remove(name);
+            return;
+        }
+        
+        FieldInfo info=getFieldInfo(name);
+        Field field=getField(info,false);
+        if (field!=null)
+        {
+            field.reset(value,0,value.length,_version);
+            field=field._next;
+            while(field!=null)
+            {
+                field.clear();
+                field=field._next;
+            }
+        }
+        else
+            addField(new Field(info,value,0,value.length,_version));
+    }
+    
     /* -------------------------------------------------------------- */
     /** Set a field.
      * @param name the name of the field
@@ -941,10 +1045,7 @@ public class HttpFields
                 field._prev=last;
                 last._next=field;    
             }
-            else if (info.hashCode()<_index.length)
-                _index[info.hashCode()]=_fields.size();
-            
-            _fields.add(field);
+            addField(field);
         }
     }
     
@@ -955,12 +1056,11 @@ public class HttpFields
     public String remove(String name)
     {
         String old=null;
-        FieldInfo info=getFieldInfo(name);
-        Field field=getField(info,true);
+        Field field=getField(name);
 
         if (field!=null)
         {
-            old=field._value;
+            old=field.getValue();
             while(field!=null)
             {
                 field.clear();
@@ -1116,125 +1216,202 @@ public class HttpFields
 
     /* -------------------------------------------------------------- */
     /** Read HttpHeaders from inputStream.
+     * The headers are parsed from the bytes in the buffer of the
+     * LineInput, which are taken to be ISO-8859-1 encoded. Known field
+     * names are looked up without creating a String and the bytes of
+     * the values are saved, so that a String is only created for the
+     * value of a field that is asked for.
      */
     public void read(LineInput in)
         throws IOException
     {  
         Field last=null;
-        char[] buf=null;
+        byte[] buf=null;
+        int offset=0;
         int size=0;
-        org.mortbay.util.LineInput.LineBuffer line_buffer;
-        synchronized(in)
+        LineInput.ByteLineBuffer line_buffer;
+        line:
+        while ((line_buffer=in.readByteLineBuffer())!=null)
         {
-            line:
-            while ((line_buffer=in.readLineBuffer())!=null)
+            buf=line_buffer.buffer;
+            offset=line_buffer.offset;
+            size=offset+line_buffer.size;
+            if (size==offset)
+                break;
+            
+            // setup loop state machine
+            int i1=-1;
+            int i2=-1;
+            int name_l=0;
+            int i=offset;
+            byte c=buf[offset];
+            
+            // Check for continuity line
+            if (c!=' ' && c!='\t')
             {
-                // check space in the lowercase buffer
-                buf=line_buffer.buffer;
-                size=line_buffer.size;
-                if (size==0)
-                    break;
-                
-                // setup loop state machine
-                int i1=-1;
-                int i2=-1;
-                int name_l=0;
-                int i=0;
-                char c=buf[0];
-                
-                // Check for continuity line
-                if (c!=' ' && c!='\t')
-                {
-                    i2=0;
-                    // reading name upto :
-                    for (i=1;i<size;i++)
-                    {
-                        c=buf[i];
-                        if (c==':')
-                        {
-                            name_l=i2+1; 
-                            break;
-                        }
-                        
-                        if (c!=' '&&c!='\t')
-                            i2=i;
-                    }
-                }   
-
-                // skip whitespace after : or start of continuity line
-                for (i++;i<size;i++)
+                i2=offset;
+                // reading name upto :
+                for (i=offset+1;i<size;i++)
                 {
                     c=buf[i];
-                    if (c!=' ' && c!='\t')
+                    if (c==':')
                     {
-                        i1=i;
-                        i2=i-1;
+                        name_l=i2+1-offset; 
                         break;
                     }
-                }
-                
-                // Reverse Parse the "name : value" to last char of value
-                for (i=size;i-->i1 && i>=0;)
-                {
-                    c=buf[i];
-                    if (c!=' ' && c!='\t')
-                    {
+                    
+                    if (c!=' '&&c!='\t')
                         i2=i;
-                        break;
-                    }
-                }
-
-                // If no name, it is a continuation line
-                if (name_l<=0)
-                {
-                    if (i1>0 && last!=null)
-                        last._value=last._value+' '+new String(buf,i1,i2-i1+1);
-                    continue;
                 }
+            }   
 
-                // create the field.
-                FieldInfo info = getFieldInfo(buf,0,name_l);
-                Field field=getField(info,false);
-                last=null;
-                if (field!=null)
-                {
-                    while(field!=null && field._version==_version)
-                    {
-                        last=field;
-                        field=field._next;
-                    }
-                }
-                
-                if (field!=null)
+            // skip whitespace after : or start of continuity line
+            for (i++;i<size;i++)
+            {
+                c=buf[i];
+                if (c!=' ' && c!='\t')
                 {
-                    if (i1>=0)
-                        field.reset(buf,i1,i2-i1+1,_version);
-                    else
-                        field.reset("",_version);
+                    i1=i;
+                    i2=i-1;
+                    break;
                 }
-                else
+            }
+            
+            // Reverse Parse the "name : value" to last char of value
+            for (i=size;i-->i1 && i>=offset;)
+            {
+                c=buf[i];
+                if (c!=' ' && c!='\t')
                 {
-                    // create the field
-                    if (i1>=0)
-                        field=new Field(info,buf,i1,i2-i1+1,_version);
-                    else
-                        field=new Field(info,"",_version);
-                    
-                    // look for chain to add too
-                    if(last!=null)
-                    {
-                        field._prev=last;
-                        last._next=field; 
-                          
-                    }
-                    else if (info.hashCode()<_index.length)
-                        _index[info.hashCode()]=_fields.size(); 
-                    _fields.add(field);
+                    i2=i;
+                    break;
                 }
-                
-                last=field;
             }
+
+            // If no name, it is a continuation line
+            if (name_l<=0)
+            {
+                if (i1>offset && last!=null)
+                    last.reset(last.getValue()+' '+toString(buf,i1,i2-i1+1),_version);
+                continue;
+            }
+
+            // create the field.
+            FieldInfo info = getFieldInfo(buf,offset,name_l);
+            last=add(info,buf,i1,i1<0?0:i2-i1+1);
+        }
+    }
+    
+    /* -------------------------------------------------------------- */
+    /** Get a key for a field name.
+     * The key may be passed to {@link #add(Object,byte[],int,int)} by
+     * protocols that code common field names, so that the name need not
+     * be looked up for every field added.
+     * @param name the name of the field
+     * @return An opaque key for the field name.
+     */
+    public static Object getFieldKey(String name)
+    {
+        return getFieldInfo(name);
+    }
+    
+    /* -------------------------------------------------------------- */
+    /** Add a field from ISO-8859-1 bytes.
+     * The bytes of the value are copied, and a String is only created
+     * for the value if it is asked for.
+     * @param key A key from {@link #getFieldKey(String)}
+     * @param buf the buffer holding the value
+     * @param offset the offset of the value
+     * @param length the length of the value
+     */
+    public void add(Object key,byte[] buf,int offset,int length)
+    {
+        add((FieldInfo)key,buf,offset,length);
+    }
+    
+    /* -------------------------------------------------------------- */
+    /** Add a field from ISO-8859-1 bytes.
+     * A known name is looked up without creating a String. The bytes of
+     * the value are copied, and a String is only created for the value
+     * if it is asked for.
+     * @param name the buffer holding the name
+     * @param nameOffset the offset of the name
+     * @param nameLength the length of the name
+     * @param buf the buffer holding the value
+     * @param offset the offset of the value
+     * @param length the length of the value
+     */
+    public void add(byte[] name,int nameOffset,int nameLength,
+                    byte[] buf,int offset,int length)
+    {
+        add(getFieldInfo(name,nameOffset,nameLength),buf,offset,length);
+    }
+    
+    /* -------------------------------------------------------------- */
+    private Field add(FieldInfo info,byte[] buf,int offset,int length)
+    {
+        Field field=getField(info,false);
+        Field last=null;
+        while(field!=null && field._version==_version)
+        {
+            last=field;
+            field=field._next;
+        }
+        
+        if (field!=null)
+        {
+            if (length<=0)
+                field.reset("",_version);
+            else if (!field.reuse(buf,offset,length,_version))
+            {
+                int o=save(buf,offset,length);
+                field.reset(_bytes,o,length,_version);
+            }
+        }
+        else
+        {
+            // create the field
+            if (length>0)
+            {
+                int o=save(buf,offset,length);
+                field=new Field(info,_bytes,o,length,_version);
+            }
+            else
+                field=new Field(info,"",_version);
+            
+            // look for chain to add too
+            if(last!=null)
+            {
+                field._prev=last;
+                last._next=field; 
+            }
+            addField(field);
+        }
+        return field;
+    }
+    
+    /* -------------------------------------------------------------- */
+    /** Save the bytes of a field value.
+     * The bytes are copied to the end of the value buffer, which is
+     * reused after the fields are cleared.  If the buffer is full, a
+     * larger buffer is allocated, so that the bytes of fields already
+     * read are not moved.
+     * @return The offset of the bytes within the value buffer.
+     */
+    private int save(byte[] buf,int offset,int length)
+    {
+        if (_bytes==null || _bytesSize+length>_bytes.length)
+        {
+            int capacity=_bytes==null?__bytesCapacity:_bytes.length*2;
+            while (capacity<length)
+                capacity*=2;
+            _bytes=new byte[capacity];
+            _bytesSize=0;
         }
+        int o=_bytesSize;
+        System.arraycopy(buf,offset,_bytes,o,length);
+        _bytesSize+=length;
+        return o;
     }
 
     
@@ -1246,12 +1423,8 @@ public class HttpFields
     {
         synchronized(writer)
         {
-            for (int i=0;i<_fields.size();i++)
-            {
-                Field field=(Field)_fields.get(i);
-                if (field!=null)
-                    field.write(writer,_version);
-            }
+            for (int i=0;i<_size;i++)
+                _fields[i].write(writer,_version);
             writer.write(__CRLF);
         }
     }
@@ -1277,15 +1450,12 @@ public class HttpFields
     public void clear()
     {
         _version++;
+        _bytesSize=0;
         if (_version>1000)
         {
             _version=0;
-            for (int i=_fields.size();i-->0;)
-            {
-                Field field=(Field)_fields.get(i);
-                if (field!=null)
-                    field.clear();
-            }
+            for (int i=_size;i-->0;)
+                _fields[i].clear();
         }
     }
     
@@ -1295,14 +1465,12 @@ public class HttpFields
      */
     public void destroy()
     {   
-        for (int i=_fields.size();i-->0;)
-        {
-            Field field=(Field)_fields.get(i);
-            if (field!=null)
-                field.destroy();
-        }
+        for (int i=_size;i-->0;)
+            _fields[i].destroy();
         _fields=null;
+        _size=0;
         _index=null;
+        _bytes=null;
         _dateBuffer=null;
         _calendar=null;
         _dateReceive=null;
@@ -1558,8 +1726,8 @@ public class HttpFields
         protected int _i;
         
         Entry(int i) {_i=i;}
-        public String getKey() {return ((Field)_fields.get(_i)).getDisplayName();}
-        public String getValue() {return ((Field)_fields.get(_i))._value;}
+        public String getKey() {return _fields[_i].getDisplayName();}
+        public String getValue() {return _fields[_i].getValue();}
     }
 
     /* ------------------------------------------------------------ */
@@ -1567,7 +1735,7 @@ public class HttpFields
     private class EntryIterator implements Iterator
     {
         protected int _i=0;
-        public boolean hasNext() {return (_i<_fields.size());}
+        public boolean hasNext() {return (_i<_size);}
         public Object next() throws NoSuchElementException {return new Entry(_i++);}
         public void remove() { throw new UnsupportedOperationException();}
     }
@@ -148,7 +148,9 @@ public class HttpInputStream extends FilterInputStream
     	{
         try
         {
-            if (available()<=0)
+            // Check the raw stream, as a chunked body that has already
+            // been sent is not available until its chunk header is read.
+            if (_realIn.available()<=0)
             {
                 _expectContinues.write(HttpResponse.__Continue);
                 _expectContinues.flush();
@@ -15,6 +15,7 @@
 
 package org.mortbay.http;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,6 +26,7 @@ import java.util.ArrayList;
 import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
 import org.mortbay.util.ByteArrayPool;
+import org.mortbay.util.FileTransferOutputStream;
 import org.mortbay.util.IO;
 import org.mortbay.util.LogSupport;
 import org.mortbay.util.OutputObserver;
@@ -555,6 +557,70 @@ public class HttpOutputStream extends OutputStream
         IO.copy(in,this,len);
     }
 
+    /* ------------------------------------------------------------ */
+    /** Write file content.
+     * If the backing stream is a FileTransferOutputStream and the
+     * content is not chunked, the response is committed and the file
+     * content is transferred directly to the backing stream without
+     * being copied through the buffer.
+     * @param file The file to write content from.
+     * @param position The position within the file of the content.
+     * @param length The length of the content.
+     * @return True if the content has been written, false if it has not
+     * and must be written by other means.
+     * @exception IOException 
+     */
+    public boolean write(File file, long position, int length)
+        throws IOException
+    {
+        if (!(_realOut instanceof FileTransferOutputStream))
+            return false;
+        
+        length=prepareDirectOutput(length);
+        if (length<0)
+            return false;
+        if (length>0)
+            ((FileTransferOutputStream)_realOut).transferFrom(file,position,length);
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Prepare to write content directly to the backing stream.
+     * If the content is not chunked, the response is committed, any
+     * buffered content is flushed and the content is counted as written,
+     * so that the caller may write it directly to the stream returned by
+     * {@link #getOutputStream()}.
+     * @param length The length of the content.
+     * @return The number of bytes that must be written to the backing
+     * stream, which may be 0 if output is nulled (eg for HEAD requests),
+     * or -1 if the content must be written to this stream.
+     * @exception IOException 
+     */
+    public int prepareDirectOutput(int length)
+        throws IOException
+    {
+        if (_out==null)
+            throw new IOException("closed");
+        
+        checkOutput();
+        if (!_written)
+        {
+            _written=true;
+            notify(OutputObserver.__FIRST_WRITE);
+        }
+        
+        if (!_nulled)
+        {
+            // Commit the header and any buffered content.
+            _bufferedOut.flush();
+            if (isChunking())
+                return -1;
+        }
+        
+        length=prepareOutput(length);
+        return _nulled?0:length;
+    }
+
     /* ------------------------------------------------------------ */
     private Writer getISO8859Writer()
         throws IOException
@@ -887,7 +887,10 @@ public class HttpRequest extends HttpMessage
                             // save lots of memory by streaming this!!!!
                             IO.copy(in, bout, max);
                             
-                            if (bout.size()==__maxFormContentSize && in.available()>0)
+                            // Probe for more content, as available() is zero
+                            // between chunks of a chunked form.
+                            if (__maxFormContentSize>0 &&
+                                bout.size()==__maxFormContentSize && in.read()>=0)
                                 throw new IllegalStateException("Form too large");
                             
                             // Add form params to query params
@@ -27,6 +27,7 @@ import javax.servlet.http.Cookie;
 
 import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
+import org.mortbay.util.ByteArrayISO8859Writer;
 import org.mortbay.util.LogSupport;
 import org.mortbay.util.StringUtil;
 import org.mortbay.util.TypeUtil;
@@ -144,6 +145,7 @@ public class HttpResponse extends HttpMessage
     private int _status= __200_OK;
     private String _reason;
     private HttpContext _httpContext;
+    private byte[] _headerBlock;
     
     /* ------------------------------------------------------------ */
     /** Constructor. 
@@ -213,9 +215,10 @@ public class HttpResponse extends HttpMessage
             ((HttpOutputStream)getOutputStream()).resetBuffer();
             _status= __200_OK;
             _reason=null;
+            _headerBlock=null;
             super.reset();
 
-            setField(HttpFields.__Date,getRequest().getTimeStampStr());
+            setDateField();
             if (!Version.isParanoid())
                 setField(HttpFields.__Server,Version.getDetail());
         }
@@ -227,6 +230,22 @@ public class HttpResponse extends HttpMessage
     }
     
     
+    /* ------------------------------------------------------------ */
+    /** Set the Date field to the time stamp of the request.
+     * The date is set as the bytes formatted by HttpFields.__dateCache,
+     * which are shared by all responses within the same second.
+     */
+    void setDateField()
+    {
+        if (_state!=__MSG_EDITABLE)
+            return;
+        long timeStamp=getRequest().getTimeStamp();
+        if (timeStamp>0)
+            _header.put(HttpFields.__Date,HttpFields.__dateCache.formatBytes(timeStamp));
+        else
+            _header.remove(HttpFields.__Date);
+    }
+    
     /* ------------------------------------------------------------ */
     /**
      * @deprecated use getHttpRequest()
@@ -285,10 +304,46 @@ public class HttpResponse extends HttpMessage
 	    	r=r.substring(0,512);
             writer.write(r);
             writer.write(HttpFields.__CRLF);
+            if (_headerBlock!=null)
+            {
+                if (writer instanceof ByteArrayISO8859Writer)
+                    ((ByteArrayISO8859Writer)writer).write(_headerBlock,0,_headerBlock.length);
+                else
+                {
+                    for (int i=0;i<_headerBlock.length;i++)
+                        writer.write(_headerBlock[i]&0xff);
+                }
+            }
             _header.write(writer);
         }
         _state=__MSG_SENDING;
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The pre-encoded header block or null.
+     */
+    public byte[] getHeaderBlock()
+    {
+        return _headerBlock;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set a pre-encoded header block.
+     * The block is written after the status line and before the header
+     * fields, so that invariant fields (eg those of a cached static
+     * resource) need not be set and encoded for every response.
+     * The block must contain complete ISO-8859-1 encoded header lines,
+     * each terminated by CRLF, and the caller must not also set the
+     * fields it contains.  The block is cleared by reset and by
+     * sendError.
+     * @param block The encoded header lines or null.
+     */
+    public void setHeaderBlock(byte[] block)
+    {
+        if (!isCommitted())
+            _headerBlock=block;
+    }
     
     /* -------------------------------------------------------------- */
     public int getStatus()
@@ -344,6 +399,7 @@ public class HttpResponse extends HttpMessage
         throws IOException
     {        
         setStatus(code,message);
+        _headerBlock=null;
         
         // Generate normal error page.
         HttpRequest request=getHttpRequest();
@@ -449,6 +505,7 @@ public class HttpResponse extends HttpMessage
         super.recycle(connection);
         _status=__200_OK;
         _reason=null;
+        _headerBlock=null;
         _httpContext=null;
     }
     
@@ -459,6 +516,7 @@ public class HttpResponse extends HttpMessage
     public void destroy()
     {
         _reason=null;
+        _headerBlock=null;
         super.destroy();
     }
 
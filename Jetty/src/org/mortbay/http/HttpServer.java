@@ -37,12 +37,14 @@ import org.mortbay.http.handler.NotFoundHandler;
 import org.mortbay.http.handler.ResourceHandler;
 import org.mortbay.util.Container;
 import org.mortbay.util.EventProvider;
+import org.mortbay.util.Histogram;
 import org.mortbay.util.InetAddrPort;
 import org.mortbay.util.LifeCycle;
 import org.mortbay.util.LogSupport;
 import org.mortbay.util.MultiException;
 import org.mortbay.util.Resource;
 import org.mortbay.util.StringMap;
+import org.mortbay.util.StripedCounter;
 import org.mortbay.util.ThreadPool;
 import org.mortbay.util.URI;
 
@@ -138,6 +140,7 @@ public class HttpServer extends Container
     {
         setAnonymous(anonymous);
         _virtualHostMap.setIgnoreCase(true);
+        statsInit();
     }
     
     /* ------------------------------------------------------------ */
@@ -151,7 +154,7 @@ public class HttpServer extends Container
         _virtualHostMap.clear();
         setContexts(contexts);
         setListeners(listeners);
-        _statsLock=new Object[0];
+        statsInit();
     }
  
     
@@ -1062,35 +1065,37 @@ public class HttpServer extends Container
 
     /* ------------------------------------------------------------ */
     private boolean _statsOn=false;
-    private transient Object _statsLock=new Object[0];
     
     private transient long _statsStartedAt=0;
     
-    private transient int _connections;                  // total number of connections made to server
+    private transient StripedCounter _connectionsOpen;   // number of connections currently open
     
-    private transient int _connectionsOpen;              // number of connections currently open
-    private transient int _connectionsOpenMin;           // min number of connections open simultaneously
-    private transient int _connectionsOpenMax;           // max number of connections open simultaneously
-    
-    private transient long _connectionsDurationMin;      // min duration of a connection
-    private transient long _connectionsDurationMax;      // max duration of a connection
-    private transient long _connectionsDurationTotal;    // total duration of all coneection
+    private transient Histogram _connectionsDuration;    // duration of connections
+    private transient Histogram _connectionsRequests;    // requests per connection
 
-    private transient int _errors;                       // total bad requests to the server
-    private transient int _requests;                     // total requests made to the server
+    private transient StripedCounter _errors;            // total bad requests to the server
 
-    private transient int _requestsActive;               // number of requests currently being handled
-    private transient int _requestsActiveMin;            // min number of connections handled simultaneously
-    private transient int _requestsActiveMax;            // max number of connections handled simultaneously
+    private transient StripedCounter _requestsActive;    // number of requests currently being handled
     
-    private transient int _connectionsRequestsMin;       // min requests per connection
-    private transient int _connectionsRequestsMax;       // max requests per connection
-
-    private transient long _requestsDurationMin;         // min request duration
-    private transient long _requestsDurationMax;         // max request duration
-    private transient long _requestsDurationTotal;       // total request duration
+    private transient Histogram _requestsDuration;       // duration of successful requests
     
     
+    /* ------------------------------------------------------------ */
+    /** Create the statistics counters.
+     * The counters are striped and the durations are recorded in
+     * histograms, so that threads updating statistics seldom contend.
+     * The open connections and active requests counters also track
+     * their maximum and minimum.
+     */
+    private void statsInit()
+    {
+        _connectionsOpen=new StripedCounter(true);
+        _connectionsDuration=new Histogram();
+        _connectionsRequests=new Histogram();
+        _errors=new StripedCounter();
+        _requestsActive=new StripedCounter(true);
+        _requestsDuration=new Histogram();
+    }
     
     /* ------------------------------------------------------------ */
     /** Reset statistics.
@@ -1099,29 +1104,16 @@ public class HttpServer extends Container
     {
         _statsStartedAt=System.currentTimeMillis();
 
-        _connections=0;
+        _connectionsOpen.reset();
         
-        _connectionsOpenMin=_connectionsOpen;
-        _connectionsOpenMax=_connectionsOpen;
-        _connectionsOpen=0;
-        
-        _connectionsDurationMin=0;
-        _connectionsDurationMax=0;
-        _connectionsDurationTotal=0;
+        _connectionsDuration.reset();
+        _connectionsRequests.reset();
 
-        _errors=0;
-        _requests=0;
+        _errors.reset();
 
-        _requestsActiveMin=_requestsActive;
-        _requestsActiveMax=_requestsActive;
-        _requestsActive=0;
+        _requestsActive.reset();
         
-        _connectionsRequestsMin=0;
-        _connectionsRequestsMax=0;
-
-        _requestsDurationMin=0;
-        _requestsDurationMax=0;
-        _requestsDurationTotal=0;
+        _requestsDuration.reset();
     }
     
     /* ------------------------------------------------------------ */
@@ -1157,7 +1149,7 @@ public class HttpServer extends Container
      */
     public long getConnectionsDurationMin()
     {
-        return _connectionsDurationMin;
+        return _connectionsDuration.getMin();
     }
 
     /* ------------------------------------------------------------ */
@@ -1166,7 +1158,7 @@ public class HttpServer extends Container
      */
     public long getConnectionsDurationTotal()
     {
-        return _connectionsDurationTotal;
+        return _connectionsDuration.getTotal();
     }
 
     /* ------------------------------------------------------------ */
@@ -1175,7 +1167,9 @@ public class HttpServer extends Container
      */
     public int getConnectionsOpenMin()
     {
-        return _connectionsOpenMin;
+        // Connections opened before statsReset may close after it
+        long min=_connectionsOpen.getMin();
+        return min<0?0:(int)min;
     }
 
     /* ------------------------------------------------------------ */
@@ -1184,7 +1178,7 @@ public class HttpServer extends Container
      */
     public int getConnectionsRequestsMin()
     {
-        return _connectionsRequestsMin;
+        return (int)_connectionsRequests.getMin();
     }
 
     /* ------------------------------------------------------------ */
@@ -1193,7 +1187,9 @@ public class HttpServer extends Container
      */
     public int getRequestsActiveMin()
     {
-        return _requestsActiveMin;
+        // Requests started before statsReset may end after it
+        long min=_requestsActive.getMin();
+        return min<0?0:(int)min;
     }
 
     /* ------------------------------------------------------------ */
@@ -1202,7 +1198,7 @@ public class HttpServer extends Container
      */
     public long getRequestsDurationMin()
     {
-        return _requestsDurationMin;
+        return _requestsDuration.getMin();
     }
 
     /* ------------------------------------------------------------ */
@@ -1211,7 +1207,7 @@ public class HttpServer extends Container
      */
     public long getRequestsDurationTotal()
     {
-        return _requestsDurationTotal;
+        return _requestsDuration.getTotal();
     }
 
     /* ------------------------------------------------------------ */
@@ -1219,49 +1215,53 @@ public class HttpServer extends Container
      * @return Number of connections accepted by the server since
      * statsReset() called. Undefined if setStatsOn(false).
      */
-    public int getConnections() {return _connections;}
+    public int getConnections() {return (int)_connectionsDuration.getCount();}
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Number of connections currently open that were opened
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public int getConnectionsOpen() {return _connectionsOpen;}
+    public int getConnectionsOpen()
+    {
+        long open=_connectionsOpen.get();
+        return open<0?0:(int)open;
+    }
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Maximum number of connections opened simultaneously
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public int getConnectionsOpenMax() {return _connectionsOpenMax;}
+    public int getConnectionsOpenMax() {return (int)_connectionsOpen.getMax();}
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Average duration in milliseconds of open connections
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public long getConnectionsDurationAve() {return _connections==0?0:(_connectionsDurationTotal/_connections);}
+    public long getConnectionsDurationAve() {return _connectionsDuration.getMean();}
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Maximum duration in milliseconds of an open connection
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public long getConnectionsDurationMax() {return _connectionsDurationMax;}
+    public long getConnectionsDurationMax() {return _connectionsDuration.getMax();}
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Average number of requests per connection
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public int getConnectionsRequestsAve() {return _connections==0?0:(_requests/_connections);}
+    public int getConnectionsRequestsAve() {return (int)_connectionsRequests.getMean();}
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Maximum number of requests per connection
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public int getConnectionsRequestsMax() {return _connectionsRequestsMax;}
+    public int getConnectionsRequestsMax() {return (int)_connectionsRequests.getMax();}
 
 
     /* ------------------------------------------------------------ */
@@ -1269,111 +1269,109 @@ public class HttpServer extends Container
      * @return Number of errors generated while handling requests.
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public int getErrors() {return _errors;}
+    public int getErrors() {return (int)_errors.get();}
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Number of requests
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public int getRequests() {return _requests;}
+    public int getRequests() {return (int)(_requestsDuration.getCount()+_errors.get());}
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Number of requests currently active.
      * Undefined if setStatsOn(false).
      */
-    public int getRequestsActive() {return _requestsActive;}
+    public int getRequestsActive()
+    {
+        long active=_requestsActive.get();
+        return active<0?0:(int)active;
+    }
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Maximum number of active requests
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public int getRequestsActiveMax() {return _requestsActiveMax;}
+    public int getRequestsActiveMax() {return (int)_requestsActive.getMax();}
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Average duration of request handling in milliseconds 
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public long getRequestsDurationAve() {return _requests==0?0:(_requestsDurationTotal/_requests);}
+    public long getRequestsDurationAve() {return _requestsDuration.getMean();}
 
     /* ------------------------------------------------------------ */
     /** 
      * @return Get maximum duration in milliseconds of request handling
      * since statsReset() called. Undefined if setStatsOn(false).
      */
-    public long getRequestsDurationMax() {return _requestsDurationMax;}
+    public long getRequestsDurationMax() {return _requestsDuration.getMax();}
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @param percentile The percentile between 0.0 and 100.0
+     * @return Duration in milliseconds (to within 1/16) within which the
+     * percentile of requests were handled 
+     * since statsReset() called. Undefined if setStatsOn(false).
+     */
+    public long getRequestsDurationPercentile(double percentile)
+    {
+        return _requestsDuration.getPercentile(percentile);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return Median duration of request handling in milliseconds 
+     * since statsReset() called. Undefined if setStatsOn(false).
+     */
+    public long getRequestsDurationP50() {return _requestsDuration.getPercentile(50.0);}
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return 99th percentile duration of request handling in milliseconds 
+     * since statsReset() called. Undefined if setStatsOn(false).
+     */
+    public long getRequestsDurationP99() {return _requestsDuration.getPercentile(99.0);}
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return 99.9th percentile duration of request handling in milliseconds 
+     * since statsReset() called. Undefined if setStatsOn(false).
+     */
+    public long getRequestsDurationP999() {return _requestsDuration.getPercentile(99.9);}
     
     /* ------------------------------------------------------------ */
     void statsOpenConnection()
     {
-        synchronized(_statsLock)
-        {
-            _connectionsOpen++;
-            if (_connectionsOpen > _connectionsOpenMax)
-                _connectionsOpenMax=_connectionsOpen;
-        }
+        _connectionsOpen.increment();
     }
     
     /* ------------------------------------------------------------ */
     void statsGotRequest()
     {
-        synchronized(_statsLock)
-        {
-            _requestsActive++;
-            if (_requestsActive > _requestsActiveMax)
-                _requestsActiveMax=_requestsActive;
-        }
+        _requestsActive.increment();
     }
     
     /* ------------------------------------------------------------ */
     void statsEndRequest(long duration,boolean ok)
     {
-        synchronized(_statsLock)
-        {
-            _requests++;
-            _requestsActive--;
-            if (_requestsActive<0)
-                _requestsActive=0;
-            if (_requestsActive < _requestsActiveMin)
-                _requestsActiveMin=_requestsActive;
+        _requestsActive.decrement();
             
-            if (ok)
-            {
-                _requestsDurationTotal+=duration;
-                if (_requestsDurationMin==0 || duration<_requestsDurationMin)
-                    _requestsDurationMin=duration;
-                if (duration>_requestsDurationMax)
-                    _requestsDurationMax=duration;
-            }
-            else
-                _errors++;
-        }
+        if (ok)
+            _requestsDuration.record(duration);
+        else
+            _errors.increment();
     }
     
     /* ------------------------------------------------------------ */
     void statsCloseConnection(long duration,int requests)
     {
-        synchronized(_statsLock)
-        {
-            _connections++;
-            _connectionsOpen--;
-            _connectionsDurationTotal+=duration;
-            if (_connectionsOpen<0)
-                _connectionsOpen=0;
-            if (_connectionsOpen<_connectionsOpenMin)
-                _connectionsOpenMin=_connectionsOpen;
-            if (_connectionsDurationMin==0 || duration<_connectionsDurationMin)
-                _connectionsDurationMin=duration;
-            if (duration>_connectionsDurationMax)
-                _connectionsDurationMax=duration;
-            if (_connectionsRequestsMin==0 || requests<_connectionsRequestsMin)
-                _connectionsRequestsMin=requests;
-            if (requests>_connectionsRequestsMax)
-                _connectionsRequestsMax=requests;
-        }
+        _connectionsOpen.decrement();
+        _connectionsDuration.record(duration);
+        _connectionsRequests.record(requests);
     }
 
 
@@ -48,6 +48,8 @@ public class HttpTunnel
     private OutputStream _sOut;
     private InputStream _in;
     private OutputStream _out;
+    protected volatile long _bytesIn;
+    protected volatile long _bytesOut;
 
     /* ------------------------------------------------------------ */
     /** Constructor. 
@@ -97,7 +99,7 @@ public class HttpTunnel
             _thread= Thread.currentThread();
             copy.start();
 
-            copydata(_sIn, _out);
+            copydata(_sIn, _out, false);
         }
         catch (Exception e)
         {
@@ -128,7 +130,7 @@ public class HttpTunnel
     }
 
     /* ------------------------------------------------------------ */
-    private void copydata(InputStream in, OutputStream out) throws java.io.IOException
+    private void copydata(InputStream in, OutputStream out, boolean fromClient) throws java.io.IOException
     {
         long timestamp= 0;
         long byteCount = 0;
@@ -141,6 +143,10 @@ public class HttpTunnel
                 if (byteCount == -1) {
                     return;
                 }
+                if (fromClient)
+                    _bytesIn+=byteCount;
+                else
+                    _bytesOut+=byteCount;
             }
             catch (InterruptedIOException e)
             {
@@ -229,7 +235,7 @@ public class HttpTunnel
         {
             try
             {
-                copydata(_in, _sOut);
+                copydata(_in, _sOut, true);
             }
             catch (Exception e)
             {
@@ -270,6 +276,24 @@ public class HttpTunnel
         return _socket;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes received from the client and sent through the tunnel.
+     */
+    public long getBytesIn()
+    {
+        return _bytesIn;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes received through the tunnel and sent to the client.
+     */
+    public long getBytesOut()
+    {
+        return _bytesOut;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @return Returns the timeoutMs.
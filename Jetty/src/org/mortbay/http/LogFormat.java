@@ -0,0 +1,610 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http;
+
+import javax.servlet.http.Cookie;
+
+import org.mortbay.util.DateCache;
+import org.mortbay.util.StringUtil;
+import org.mortbay.util.URI;
+
+/* ------------------------------------------------------------ */
+/** Compiled Request Log Format.
+ * A request log line format in the style of the Apache LogFormat
+ * directive, compiled once so that each request is formatted by
+ * writing its fields directly as bytes into a buffer reused by the
+ * calling thread.  The supported directives are:<PRE>
+ *   %a %h      Remote address
+ *   %l         Remote logname, always "-"
+ *   %u         Authenticated user
+ *   %t         Time the request was received, in [] as formatted by
+ *              the DateCache of the log
+ *   %r         First line of the request
+ *   %m         Request method
+ *   %U         Request path, without the query
+ *   %q         Query string, prefixed with ?, or empty
+ *   %H         Request protocol
+ *   %v         Server name
+ *   %p         Server port
+ *   %s         Response status
+ *   %b         Bytes sent, or "-" if none
+ *   %B         Bytes sent
+ *   %D         Time taken to handle the request in microseconds,
+ *              at the millisecond resolution of the request time stamp
+ *   %T         Time taken to handle the request in seconds
+ *   %{ms}T     Time taken to handle the request in milliseconds
+ *   %{Name}i   Value of a request header
+ *   %{Name}o   Value of a response header
+ *   %{Name}C   Value of a request cookie
+ *   %%         The % character
+ * </PRE>
+ * A missing value is written as "-".  If the format starts with '{',
+ * the line is taken to be JSON and values are escaped as JSON strings.
+ * Otherwise quotes, backslashes, control characters and non ASCII
+ * characters are escaped as in Apache logs.  Either way the bytes
+ * written are ASCII.
+ *
+ * @see NCSARequestLog#setLogFormat(String)
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class LogFormat
+{
+    /* ------------------------------------------------------------ */
+    public final static String __COMMON="%h %l %u %t \"%r\" %s %b";
+    public final static String __COMBINED=__COMMON+" \"%{Referer}i\" \"%{User-Agent}i\"";
+    public final static String __JSON=
+        "{\"host\":\"%h\",\"user\":\"%u\",\"time\":\"%t\",\"method\":\"%m\","+
+        "\"uri\":\"%U%q\",\"protocol\":\"%H\",\"status\":%s,\"bytes\":%B,"+
+        "\"latency\":%{ms}T,\"referer\":\"%{Referer}i\",\"agent\":\"%{User-Agent}i\"}";
+
+    /* ------------------------------------------------------------ */
+    private final static int
+        LITERAL=0,
+        REMOTE_ADDR=1,
+        LOGNAME=2,
+        USER=3,
+        TIME=4,
+        REQUEST_LINE=5,
+        METHOD=6,
+        PATH=7,
+        QUERY=8,
+        PROTOCOL=9,
+        SERVER_NAME=10,
+        SERVER_PORT=11,
+        STATUS=12,
+        BYTES_CLF=13,
+        BYTES=14,
+        LATENCY_US=15,
+        LATENCY_S=16,
+        LATENCY_MS=17,
+        REQUEST_HEADER=18,
+        RESPONSE_HEADER=19,
+        COOKIE=20;
+
+    private final static byte[] __DASH={(byte)'-'};
+    private final static byte[] __HEX="0123456789abcdef".getBytes();
+    private final static byte[] __EOL=StringUtil.__LINE_SEPARATOR.getBytes();
+    private final static ThreadLocal __buffer=new ThreadLocal();
+
+    /* ------------------------------------------------------------ */
+    private String _format;
+    private boolean _json;
+    private int[] _codes;
+    private Object[] _args;
+    private DateCache _dateCache;
+    private boolean _preferProxiedForAddress;
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * @param format The format, which may be one of the __COMMON,
+     * __COMBINED or __JSON constants.
+     * @exception IllegalArgumentException If the format contains an
+     * unknown directive.
+     */
+    public LogFormat(String format)
+    {
+        _format=format;
+        _json=format.startsWith("{");
+
+        int[] codes=new int[format.length()+1];
+        Object[] args=new Object[format.length()+1];
+        int n=0;
+        StringBuffer literal=new StringBuffer();
+        for (int i=0;i<format.length();i++)
+        {
+            char c=format.charAt(i);
+            if (c!='%' || i+1==format.length())
+            {
+                literal.append(c);
+                continue;
+            }
+
+            c=format.charAt(++i);
+            if (c=='%')
+            {
+                literal.append(c);
+                continue;
+            }
+
+            String arg=null;
+            if (c=='{')
+            {
+                int e=format.indexOf('}',i);
+                if (e<0 || e+1==format.length())
+                    throw new IllegalArgumentException("Bad directive at "+i+" in "+format);
+                arg=format.substring(i+1,e);
+                i=e+1;
+                c=format.charAt(i);
+            }
+
+            int code=directive(c,arg);
+            if (code<0)
+                throw new IllegalArgumentException("Unknown directive %"+(arg==null?"":("{"+arg+"}"))+c+" in "+format);
+
+            if (literal.length()>0)
+            {
+                codes[n]=LITERAL;
+                args[n++]=literal.toString().getBytes();
+                literal.setLength(0);
+            }
+            codes[n]=code;
+            args[n++]=arg;
+        }
+        if (literal.length()>0)
+        {
+            codes[n]=LITERAL;
+            args[n++]=literal.toString().getBytes();
+        }
+
+        _codes=new int[n];
+        _args=new Object[n];
+        System.arraycopy(codes,0,_codes,0,n);
+        System.arraycopy(args,0,_args,0,n);
+    }
+
+    /* ------------------------------------------------------------ */
+    private static int directive(char c, String arg)
+    {
+        if (arg!=null)
+        {
+            switch(c)
+            {
+              case 'i': return REQUEST_HEADER;
+              case 'o': return RESPONSE_HEADER;
+              case 'C': return COOKIE;
+              case 'T':
+                  if ("ms".equals(arg)) return LATENCY_MS;
+                  if ("us".equals(arg)) return LATENCY_US;
+                  if ("s".equals(arg)) return LATENCY_S;
+                  return -1;
+              default: return -1;
+            }
+        }
+
+        switch(c)
+        {
+          case 'a':
+          case 'h': return REMOTE_ADDR;
+          case 'l': return LOGNAME;
+          case 'u': return USER;
+          case 't': return TIME;
+          case 'r': return REQUEST_LINE;
+          case 'm': return METHOD;
+          case 'U': return PATH;
+          case 'q': return QUERY;
+          case 'H': return PROTOCOL;
+          case 'v': return SERVER_NAME;
+          case 'p': return SERVER_PORT;
+          case 's': return STATUS;
+          case 'b': return BYTES_CLF;
+          case 'B': return BYTES;
+          case 'D': return LATENCY_US;
+          case 'T': return LATENCY_S;
+          default: return -1;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public String getFormat()
+    {
+        return _format;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if values are escaped as JSON strings.
+     */
+    public boolean isJSON()
+    {
+        return _json;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param dateCache The DateCache used to format %t.
+     */
+    public void setDateCache(DateCache dateCache)
+    {
+        _dateCache=dateCache;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param value If true, %h and %a are the X-Forwarded-For address,
+     * if present.
+     */
+    public void setPreferProxiedForAddress(boolean value)
+    {
+        _preferProxiedForAddress=value;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Format a log line.
+     * The line, with a line separator, is written into a buffer that
+     * belongs to the calling thread, which is reused by the next call
+     * by the same thread.
+     * @param request The request
+     * @param response The response
+     * @param responseLength The bytes written to the response, or -1
+     * if not known.
+     * @return The buffer holding the formatted line.
+     */
+    public Buffer format(HttpRequest request,
+                         HttpResponse response,
+                         int responseLength)
+    {
+        Buffer buf=(Buffer)__buffer.get();
+        if (buf==null)
+        {
+            buf=new Buffer();
+            __buffer.set(buf);
+        }
+        buf._size=0;
+
+        for (int i=0;i<_codes.length;i++)
+        {
+            Object arg=_args[i];
+            switch(_codes[i])
+            {
+              case LITERAL:
+                  buf.write((byte[])arg);
+                  break;
+
+              case REMOTE_ADDR:
+              {
+                  String addr=null;
+                  if (_preferProxiedForAddress)
+                      addr=request.getField(HttpFields.__XForwardedFor);
+                  if (addr==null)
+                      addr=request.getRemoteAddr();
+                  value(buf,addr);
+                  break;
+              }
+
+              case LOGNAME:
+                  buf.write(__DASH);
+                  break;
+
+              case USER:
+                  value(buf,request.getAuthUser());
+                  break;
+
+              case TIME:
+                  if (!_json)
+                      buf.write('[');
+                  if (_dateCache!=null)
+                      value(buf,_dateCache.format(request.getTimeStamp()));
+                  else
+                      buf.number(request.getTimeStamp());
+                  if (!_json)
+                      buf.write(']');
+                  break;
+
+              case REQUEST_LINE:
+                  value(buf,request.getMethod());
+                  buf.write(' ');
+                  uri(buf,request.getURI());
+                  buf.write(' ');
+                  value(buf,request.getVersion());
+                  break;
+
+              case METHOD:
+                  value(buf,request.getMethod());
+                  break;
+
+              case PATH:
+                  value(buf,request.getPath());
+                  break;
+
+              case QUERY:
+              {
+                  String query=request.getQuery();
+                  if (query!=null && query.length()>0)
+                  {
+                      buf.write('?');
+                      value(buf,query);
+                  }
+                  break;
+              }
+
+              case PROTOCOL:
+                  value(buf,request.getVersion());
+                  break;
+
+              case SERVER_NAME:
+                  value(buf,request.getHost());
+                  break;
+
+              case SERVER_PORT:
+                  buf.number(request.getPort());
+                  break;
+
+              case STATUS:
+                  buf.number(response.getStatus());
+                  break;
+
+              case BYTES_CLF:
+                  if (responseLength>0)
+                      buf.number(responseLength);
+                  else
+                      buf.write(__DASH);
+                  break;
+
+              case BYTES:
+                  buf.number(responseLength>0?responseLength:0);
+                  break;
+
+              case LATENCY_US:
+                  buf.number((System.currentTimeMillis()-request.getTimeStamp())*1000);
+                  break;
+
+              case LATENCY_S:
+                  buf.number((System.currentTimeMillis()-request.getTimeStamp())/1000);
+                  break;
+
+              case LATENCY_MS:
+                  buf.number(System.currentTimeMillis()-request.getTimeStamp());
+                  break;
+
+              case REQUEST_HEADER:
+                  value(buf,request.getField((String)arg));
+                  break;
+
+              case RESPONSE_HEADER:
+                  value(buf,response.getField((String)arg));
+                  break;
+
+              case COOKIE:
+              {
+                  String value=null;
+                  Cookie[] cookies=request.getCookies();
+                  for (int c=0;cookies!=null && c<cookies.length;c++)
+                  {
+                      if (arg.equals(cookies[c].getName()))
+                      {
+                          value=cookies[c].getValue();
+                          break;
+                      }
+                  }
+                  value(buf,value);
+                  break;
+              }
+            }
+        }
+
+        buf.write(__EOL);
+        return buf;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Write an escaped URI.
+     * The URI is written from its parts, as URI.toString() would
+     * build a new String if the URI has been modified.
+     */
+    private void uri(Buffer buf,URI uri)
+    {
+        if (uri==null)
+        {
+            buf.write(__DASH);
+            return;
+        }
+
+        String scheme=uri.getScheme();
+        if (scheme!=null)
+        {
+            value(buf,scheme);
+            buf.write(':');
+            buf.write('/');
+            buf.write('/');
+            value(buf,uri.getHost());
+            if (uri.getPort()>0)
+            {
+                buf.write(':');
+                buf.number(uri.getPort());
+            }
+        }
+        value(buf,uri.getEncodedPath());
+        String query=uri.getQuery();
+        if (query!=null && query.length()>0)
+        {
+            buf.write('?');
+            value(buf,query);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Write an escaped value.
+     */
+    private void value(Buffer buf,String value)
+    {
+        if (value==null)
+        {
+            buf.write(__DASH);
+            return;
+        }
+
+        int length=value.length();
+        buf.ensure(length);
+        for (int i=0;i<length;i++)
+        {
+            char c=value.charAt(i);
+            if (c>=0x20 && c<0x7f && c!='"' && c!='\\')
+                buf._bytes[buf._size++]=(byte)c;
+            else if (_json)
+            {
+                buf.write('\\');
+                switch(c)
+                {
+                  case '"': buf.write('"'); break;
+                  case '\\': buf.write('\\'); break;
+                  case '\n': buf.write('n'); break;
+                  case '\r': buf.write('r'); break;
+                  case '\t': buf.write('t'); break;
+                  default:
+                      buf.write('u');
+                      buf.hex(c>>8);
+                      buf.hex(c);
+                }
+                buf.ensure(length-i);
+            }
+            else
+            {
+                if (c=='"' || c=='\\')
+                {
+                    buf.write('\\');
+                    buf.write(c);
+                }
+                else if (c<0x80)
+                    buf.escape(c);
+                else if (c<0x800)
+                {
+                    buf.escape(0xc0|(c>>6));
+                    buf.escape(0x80|(c&0x3f));
+                }
+                else
+                {
+                    buf.escape(0xe0|(c>>12));
+                    buf.escape(0x80|((c>>6)&0x3f));
+                    buf.escape(0x80|(c&0x3f));
+                }
+                buf.ensure(length-i);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        return _format;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A reusable byte buffer holding a formatted line.
+     */
+    public static class Buffer
+    {
+        byte[] _bytes=new byte[256];
+        int _size;
+
+        /* ------------------------------------------------------------ */
+        public byte[] getBytes()
+        {
+            return _bytes;
+        }
+
+        /* ------------------------------------------------------------ */
+        public int size()
+        {
+            return _size;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return A copy of the formatted line.
+         */
+        public byte[] toByteArray()
+        {
+            byte[] bytes=new byte[_size];
+            System.arraycopy(_bytes,0,bytes,0,_size);
+            return bytes;
+        }
+
+        /* ------------------------------------------------------------ */
+        public String toString()
+        {
+            return new String(_bytes,0,_size);
+        }
+
+        /* ------------------------------------------------------------ */
+        void ensure(int n)
+        {
+            if (_size+n>_bytes.length)
+            {
+                byte[] bytes=new byte[(_size+n)*3/2];
+                System.arraycopy(_bytes,0,bytes,0,_size);
+                _bytes=bytes;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        void write(int c)
+        {
+            ensure(1);
+            _bytes[_size++]=(byte)c;
+        }
+
+        /* ------------------------------------------------------------ */
+        void write(byte[] b)
+        {
+            ensure(b.length);
+            System.arraycopy(b,0,_bytes,_size,b.length);
+            _size+=b.length;
+        }
+
+        /* ------------------------------------------------------------ */
+        void number(long n)
+        {
+            ensure(20);
+            if (n<0)
+            {
+                _bytes[_size++]=(byte)'-';
+                n=-n;
+            }
+            long d=1;
+            while (d<=n/10)
+                d*=10;
+            for (;d>0;d/=10)
+                _bytes[_size++]=(byte)('0'+(n/d)%10);
+        }
+
+        /* ------------------------------------------------------------ */
+        void hex(int c)
+        {
+            write(__HEX[(c>>4)&0xf]);
+            write(__HEX[c&0xf]);
+        }
+
+        /* ------------------------------------------------------------ */
+        void escape(int b)
+        {
+            write('\\');
+            write('x');
+            hex(b);
+        }
+    }
+}
@@ -29,12 +29,26 @@ import org.mortbay.log.LogFactory;
 import org.mortbay.util.DateCache;
 import org.mortbay.util.LogSupport;
 import org.mortbay.util.RolloverFileOutputStream;
+import org.mortbay.util.StringBufferWriter;
 import org.mortbay.util.StringUtil;
 
 
 /* ------------------------------------------------------------ */
 /** NCSA HTTP Request Log.
  * NCSA common or NCSA extended (combined) request log.
+ * <p>
+ * By default, each log line is written and flushed by the thread
+ * handling the request.  If a queue size is set, log lines are
+ * formatted by the request thread and queued for a background thread,
+ * which writes them in batches, so that request threads do not wait
+ * for the log file.  If the queue is full, a request thread either
+ * waits for space or drops the log line and counts it, depending on
+ * the overflow policy.
+ * <p>
+ * If a log format is set, it replaces the NCSA format and the
+ * extended, cookie and latency options, and log lines are formatted
+ * as bytes without creating Strings.
+ * @see LogFormat
  * @version $Id$
  * @author Tony Thompson
  * @author Greg Wilkins
@@ -43,6 +57,9 @@ public class NCSARequestLog implements RequestLog
 {
     private static Log log = LogFactory.getLog(NCSARequestLog.class);
 
+    public static final String __BLOCK="BLOCK";
+    public static final String __DISCARD="DISCARD";
+
     private String _filename;
     private boolean _extended;
     private boolean _append;
@@ -55,12 +72,21 @@ public class NCSARequestLog implements RequestLog
     private String[] _ignorePaths;
     private boolean _logLatency=false;
     private boolean _logCookies=false;
+    private int _queueSize=0;
+    private String _overflowPolicy=__BLOCK;
+    private String _logFormat;
     
     private transient OutputStream _out;
     private transient OutputStream _fileOut;
     private transient DateCache _logDateCache;
     private transient PathMap _ignorePathMap;
     private transient Writer _writer;
+    private transient LogFormat _format;
+    private transient Object[] _queue;
+    private transient int _queueHead;
+    private transient volatile int _queued;
+    private transient volatile long _dropped;
+    private transient volatile Thread _queueThread;
     
     /* ------------------------------------------------------------ */
     /** Constructor.
@@ -280,6 +306,98 @@ public class NCSARequestLog implements RequestLog
         _logLatency = logLatency;
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The log format, or null for the NCSA format.
+     */
+    public String getLogFormat()
+    {
+        return _logFormat;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the log format.
+     * Takes effect when the log is started.
+     * @param format A format as described by {@link LogFormat}, such as
+     * {@link LogFormat#__COMBINED} or {@link LogFormat#__JSON}, or null
+     * for the NCSA format.
+     * @exception IllegalArgumentException If the format is not valid.
+     */
+    public void setLogFormat(String format)
+    {
+        if (format!=null && format.length()==0)
+            format=null;
+        if (format!=null)
+            new LogFormat(format);
+        _logFormat=format;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size of the queue of log lines, or 0 if log lines
+     * are written by the request thread.
+     */
+    public int getQueueSize()
+    {
+        return _queueSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the queue size.
+     * If the size is greater than 0, log lines are queued for a
+     * background thread to write.  Takes effect when the log is
+     * started.
+     * @param queueSize The size of the queue of log lines, or 0 for
+     * log lines to be written by the request thread.
+     */
+    public void setQueueSize(int queueSize)
+    {
+        _queueSize=queueSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The policy applied to log lines when the queue is full.
+     */
+    public String getOverflowPolicy()
+    {
+        return _overflowPolicy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the overflow policy.
+     * @param policy BLOCK for a request thread to wait for space in a
+     * full queue, or DISCARD for the log line to be dropped and counted.
+     */
+    public void setOverflowPolicy(String policy)
+    {
+        if (__BLOCK.equalsIgnoreCase(policy))
+            _overflowPolicy=__BLOCK;
+        else if (__DISCARD.equalsIgnoreCase(policy))
+            _overflowPolicy=__DISCARD;
+        else
+            throw new IllegalArgumentException("Unknown overflow policy: "+policy);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of log lines waiting in the queue.
+     */
+    public int getQueued()
+    {
+        return _queued;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of log lines dropped because the queue was
+     * full, since the log was started.
+     */
+    public long getDropped()
+    {
+        return _dropped;
+    }
+    
     /* ------------------------------------------------------------ */
     /**
     * Prefer to log the proxied-for IP address (if present in
@@ -322,6 +440,26 @@ public class NCSARequestLog implements RequestLog
             _ignorePathMap=null;
 
         _writer=new OutputStreamWriter(_out);
+
+        if (_logFormat!=null)
+        {
+            _format=new LogFormat(_logFormat);
+            _format.setDateCache(_logDateCache);
+            _format.setPreferProxiedForAddress(_preferProxiedForAddress);
+        }
+        else
+            _format=null;
+
+        if (_queueSize>0)
+        {
+            _queue=new Object[_queueSize];
+            _queueHead=0;
+            _queued=0;
+            _dropped=0;
+            _queueThread=new Thread(new QueueWriter(),"NCSARequestLog");
+            _queueThread.setDaemon(true);
+            _queueThread.start();
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -333,6 +471,30 @@ public class NCSARequestLog implements RequestLog
     /* ------------------------------------------------------------ */
     public void stop()
     {
+        Thread thread=_queueThread;
+        if (thread!=null)
+        {
+            synchronized(_queue)
+            {
+                _queueThread=null;
+                _queue.notifyAll();
+            }
+            // The writer drains the queue before it exits, so wait for
+            // it to finish before the output is closed.
+            boolean interrupted=false;
+            while (thread.isAlive())
+            {
+                try{thread.join();}
+                catch(InterruptedException e)
+                {
+                    LogSupport.ignore(log,e);
+                    interrupted=true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        
         try{if (_writer!=null)_writer.flush();} catch (IOException e){LogSupport.ignore(log,e);}
         if (_out!=null && _closeOut)
             try{_out.close();}catch(IOException e){LogSupport.ignore(log,e);}
@@ -340,6 +502,7 @@ public class NCSARequestLog implements RequestLog
         _fileOut=null;
         _closeOut=false;
         _logDateCache=null;
+        _format=null;
         _writer=null;
     }
     
@@ -363,6 +526,27 @@ public class NCSARequestLog implements RequestLog
             if (_fileOut==null)
                 return;
 
+            LogFormat format=_format;
+            if (format!=null)
+            {
+                LogFormat.Buffer line=format.format(request,response,responseLength);
+                if (_queueThread!=null)
+                    queue(line.toByteArray());
+                else
+                {
+                    Writer writer=_writer;
+                    OutputStream out=_out;
+                    if (writer==null || out==null)
+                        return;
+                    synchronized(writer)
+                    {
+                        out.write(line.getBytes(),0,line.size());
+                        out.flush();
+                    }
+                }
+                return;
+            }
+
             StringBuffer buf = new StringBuffer(160);
             
             String addr = null;
@@ -413,42 +597,54 @@ public class NCSARequestLog implements RequestLog
             else
                 buf.append(" - ");
 
-            String log =buf.toString();
-            synchronized(_writer)
+            if (_extended)
             {
-                _writer.write(log);
-                if (_extended)
-                {
-                    logExtended(request,response,_writer);
-                    if (!_logCookies)
-                        _writer.write(" -");
-                }
+                logExtended(request,response,new StringBufferWriter(buf));
+                if (!_logCookies)
+                    buf.append(" -");
+            }
                 
-                if (_logCookies)
+            if (_logCookies)
+            {
+                Cookie[] cookies = request.getCookies();
+                if (cookies==null || cookies.length==0)
+                    buf.append(" -");
+                else
                 {
-                    Cookie[] cookies = request.getCookies();
-                    if (cookies==null || cookies.length==0)
-                        _writer.write(" -");
-                    else
+                    buf.append(" \"");
+                    for (int i=0;i<cookies.length;i++)
                     {
-                        _writer.write(" \"");
-                        for (int i=0;i<cookies.length;i++)
-                        {
-                            if (i!=0)
-                                _writer.write(';');
-                            _writer.write(cookies[i].getName());
-                            _writer.write('=');
-                            _writer.write(cookies[i].getValue());
-                        }
-                        _writer.write("\"");
+                        if (i!=0)
+                            buf.append(';');
+                        buf.append(cookies[i].getName());
+                        buf.append('=');
+                        buf.append(cookies[i].getValue());
                     }
+                    buf.append("\"");
                 }
+            }
                 
-                if (_logLatency)
-                    _writer.write(" "+(System.currentTimeMillis()-request.getTimeStamp()));
+            if (_logLatency)
+            {
+                buf.append(' ');
+                buf.append(System.currentTimeMillis()-request.getTimeStamp());
+            }
                 
-                _writer.write(StringUtil.__LINE_SEPARATOR);
-                _writer.flush();
+            buf.append(StringUtil.__LINE_SEPARATOR);
+            String log=buf.toString();
+
+            if (_queueThread!=null)
+                queue(log);
+            else
+            {
+                Writer writer=_writer;
+                if (writer==null)
+                    return;
+                synchronized(writer)
+                {
+                    writer.write(log);
+                    writer.flush();
+                }
             }
         }
         catch(IOException e)
@@ -457,6 +653,40 @@ public class NCSARequestLog implements RequestLog
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /** Queue a log line for the background thread.
+     * @param line The line as a String, or as bytes of a LogFormat.
+     */
+    private void queue(Object line)
+    {
+        Object[] queue=_queue;
+        synchronized(queue)
+        {
+            if (_queued==queue.length && __BLOCK.equals(_overflowPolicy))
+            {
+                try
+                {
+                    while (_queued==queue.length && _queueThread!=null)
+                        queue.wait();
+                }
+                catch(InterruptedException e)
+                {
+                    LogSupport.ignore(log,e);
+                }
+            }
+            
+            if (_queued==queue.length || _queueThread==null)
+            {
+                _dropped++;
+                return;
+            }
+
+            queue[(_queueHead+_queued)%queue.length]=line;
+            if (_queued++==0)
+                queue.notifyAll();
+        }
+    }
+    
     /* ------------------------------------------------------------ */
     /** Log Extended fields.
      * This method can be extended by a derived class to add extened fields to
@@ -497,5 +727,78 @@ public class NCSARequestLog implements RequestLog
         
 
     }
-}
 
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Background writer of queued log lines.
+     * All the queued lines are taken at once and written with a single
+     * flush.
+     */
+    private class QueueWriter implements Runnable
+    {
+        public void run()
+        {
+            Object[] queue=_queue;
+            Object[] batch=new Object[queue.length];
+            Writer writer=_writer;
+            OutputStream out=_out;
+            Thread thread=Thread.currentThread();
+            while (true)
+            {
+                int lines=0;
+                synchronized(queue)
+                {
+                    try
+                    {
+                        while (_queued==0 && _queueThread==thread)
+                            queue.wait();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        LogSupport.ignore(log,e);
+                    }
+                    
+                    if (_queued==0)
+                    {
+                        if (_queueThread!=thread)
+                            break;
+                        continue;
+                    }
+
+                    while (_queued>0)
+                    {
+                        batch[lines++]=queue[_queueHead];
+                        queue[_queueHead]=null;
+                        _queueHead=(_queueHead+1)%queue.length;
+                        _queued--;
+                    }
+                    queue.notifyAll();
+                }
+
+                try
+                {
+                    synchronized(writer)
+                    {
+                        for (int i=0;i<lines;i++)
+                        {
+                            if (batch[i] instanceof byte[])
+                            {
+                                writer.flush();
+                                out.write((byte[])batch[i]);
+                            }
+                            else
+                                writer.write((String)batch[i]);
+                            batch[i]=null;
+                        }
+                        writer.flush();
+                        out.flush();
+                    }
+                }
+                catch(IOException e)
+                {
+                    log.warn(LogSupport.EXCEPTION,e);
+                }
+            }
+        }
+    }
+}
@@ -16,17 +16,26 @@
 package org.mortbay.http;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
+import org.mortbay.util.ByteArrayOutputStream2;
 import org.mortbay.util.CachedResource;
+import org.mortbay.util.ConcurrentReaderMap;
+import org.mortbay.util.IO;
 import org.mortbay.util.LifeCycle;
+import org.mortbay.util.Loader;
 import org.mortbay.util.LogSupport;
 import org.mortbay.util.Resource;
 import org.mortbay.util.StringUtil;
@@ -46,6 +55,8 @@ public class ResourceCache implements LifeCycle,
     /* ------------------------------------------------------------ */
     private final static Map __dftMimeMap = new HashMap();
     private final static Map __encodings = new HashMap();
+    private static Class __offHeapResource;
+    private final static int __maxNoGzip=4096;
     static
     {
         ResourceBundle mime = ResourceBundle.getBundle("org/mortbay/http/mime");
@@ -62,6 +73,16 @@ public class ResourceCache implements LifeCycle,
             String type = (String)i.nextElement();
             __encodings.put(type,encoding.getString(type));
         }
+
+        try
+        {
+            __offHeapResource=Loader.loadClass(ResourceCache.class,
+                                               "org.mortbay.http.nio.ByteBufferResource");
+        }
+        catch(Throwable e)
+        {
+            LogSupport.ignore(log,e);
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -73,8 +94,12 @@ public class ResourceCache implements LifeCycle,
     
     
     
-    private int _maxCachedFileSize =1*1024;
-    private int _maxCacheSize =1*1024;
+    private int _maxCachedFileSize =256*1024;
+    private int _maxCacheSize =16*1024*1024;
+    private int _maxOffHeapFileSize =64*1024*1024;
+    private int _maxOffHeapCacheSize =0;
+    private int _minMappedFileSize =1024*1024;
+    private String _evictionPolicy="LRU";
 
     /* ------------------------------------------------------------ */
     private Resource _resourceBase;
@@ -85,10 +110,17 @@ public class ResourceCache implements LifeCycle,
     /* ------------------------------------------------------------ */
     private transient boolean _started;
 
-    protected transient Map _cache;
-    protected transient int _cacheSize;
-    protected transient CachedMetaData _mostRecentlyUsed;
-    protected transient CachedMetaData _leastRecentlyUsed;
+    protected transient ConcurrentReaderMap _cache;
+    protected transient ConcurrentReaderMap _noGzip;
+    protected transient Object _cacheLock;
+    protected transient volatile EvictionPolicy _policy;
+    protected transient Tier _heap;
+    protected transient Tier _offHeap;
+    
+    // hits and misses are counted without locking, so are approximate
+    protected transient volatile long _hits;
+    protected transient volatile long _misses;
+    protected transient long _evictions;
 
 
     /* ------------------------------------------------------------ */
@@ -96,7 +128,7 @@ public class ResourceCache implements LifeCycle,
      */
     public ResourceCache()
     {
-        _cache=new HashMap();
+        init();
     }
 
 
@@ -105,7 +137,18 @@ public class ResourceCache implements LifeCycle,
         throws IOException, ClassNotFoundException
     {
         in.defaultReadObject();
-        _cache=new HashMap();
+        init();
+    }
+    
+    /* ------------------------------------------------------------ */
+    private void init()
+    {
+        _cache=new ConcurrentReaderMap();
+        _noGzip=new ConcurrentReaderMap();
+        _cacheLock=new Object();
+        _heap=new Tier();
+        _offHeap=new Tier();
+        _policy=newEvictionPolicy(_evictionPolicy);
     }
     
     /* ------------------------------------------------------------ */
@@ -174,41 +217,240 @@ public class ResourceCache implements LifeCycle,
 
 
     /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum size in bytes of a file that can be cached.
+     */
     public int getMaxCachedFileSize()
     {
         return _maxCachedFileSize;
     }
 
     /* ------------------------------------------------------------ */
+    /**
+     * @param maxCachedFileSize The maximum size in bytes of a file that can be cached.
+     */
     public void setMaxCachedFileSize(int maxCachedFileSize)
     {
         _maxCachedFileSize = maxCachedFileSize;
-        _cache.clear();
+        flushCache();
     }
 
     /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum size in bytes of all cached resources.
+     */
     public int getMaxCacheSize()
     {
         return _maxCacheSize;
     }
 
     /* ------------------------------------------------------------ */
+    /**
+     * @param maxCacheSize The maximum size in bytes of all cached resources.
+     */
     public void setMaxCacheSize(int maxCacheSize)
     {
         _maxCacheSize = maxCacheSize;
-        _cache.clear();
+        flushCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum size in bytes of a file that can be cached
+     * off heap.
+     */
+    public int getMaxOffHeapFileSize()
+    {
+        return _maxOffHeapFileSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxOffHeapFileSize The maximum size in bytes of a file that
+     * can be cached off heap.
+     */
+    public void setMaxOffHeapFileSize(int maxOffHeapFileSize)
+    {
+        _maxOffHeapFileSize = maxOffHeapFileSize;
+        flushCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum size in bytes of all resources cached off heap.
+     */
+    public int getMaxOffHeapCacheSize()
+    {
+        return _maxOffHeapCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the maximum size of the off heap cache.
+     * Resources too large for the heap cache, but no larger than
+     * MaxOffHeapFileSize, are cached outside of the java heap in
+     * memory mapped files or direct buffers, and can be written without
+     * copying to SocketChannelListener connections.  The off heap cache
+     * is not available if the org.mortbay.http.nio package is not.
+     * @param maxOffHeapCacheSize The maximum size in bytes of all resources
+     * cached off heap, or 0 for no off heap cache.
+     */
+    public void setMaxOffHeapCacheSize(int maxOffHeapCacheSize)
+    {
+        _maxOffHeapCacheSize = maxOffHeapCacheSize;
+        flushCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The minimum size in bytes of a file that is memory mapped
+     * by the off heap cache, or -1 if files are not mapped.
+     */
+    public int getMinMappedFileSize()
+    {
+        return _minMappedFileSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the minimum size of a memory mapped file.
+     * Files cached off heap that are at least this size are memory
+     * mapped, while smaller files are read into direct buffers.  Changes
+     * to a mapped file are seen through the mapping before the cache
+     * sees a new modification time, and a mapped file that is truncated
+     * may fault when it is served, so files that are edited in place
+     * should not be mapped.
+     * @param minMappedFileSize The minimum size in bytes of a file that
+     * is memory mapped, or -1 to never map files.
+     */
+    public void setMinMappedFileSize(int minMappedFileSize)
+    {
+        _minMappedFileSize = minMappedFileSize;
+        flushCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The name of the eviction policy.
+     */
+    public String getEvictionPolicy()
+    {
+        return _evictionPolicy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the eviction policy.
+     * The policy decides if a resource is admitted to a full cache in
+     * place of the least recently used resource.
+     * @param policy "LRU" to always admit new resources, "TinyLFU" to
+     * admit new resources only if they have been requested more frequently
+     * than the resource they would replace, or the class name of an
+     * {@link EvictionPolicy} implementation.
+     */
+    public void setEvictionPolicy(String policy)
+    {
+        EvictionPolicy p=newEvictionPolicy(policy);
+        synchronized(_cacheLock)
+        {
+            _evictionPolicy=policy;
+            _policy=p;
+        }
+        flushCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    private EvictionPolicy newEvictionPolicy(String policy)
+    {
+        if (policy==null || "LRU".equalsIgnoreCase(policy))
+            return new LRU();
+        if ("TinyLFU".equalsIgnoreCase(policy) || "LFU".equalsIgnoreCase(policy))
+            return new TinyLFU();
+        try
+        {
+            return (EvictionPolicy)Loader.loadClass(ResourceCache.class,policy).newInstance();
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            throw new IllegalArgumentException(policy);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size in bytes of all cached resources.
+     */
+    public int getCacheSize()
+    {
+        return _heap._size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size in bytes of all resources cached off heap.
+     */
+    public int getOffHeapCacheSize()
+    {
+        return _offHeap._size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of resource requests satisfied from the cache.
+     */
+    public long getCacheHits()
+    {
+        return _hits;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of resource requests not satisfied from the cache.
+     */
+    public long getCacheMisses()
+    {
+        return _misses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of resources evicted from the cache to make
+     * room for other resources.
+     */
+    public long getCacheEvictions()
+    {
+        return _evictions;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reset the hit, miss and eviction counters.
+     */
+    public void resetCacheStats()
+    {
+        synchronized(_cacheLock)
+        {
+            _hits=0;
+            _misses=0;
+            _evictions=0;
+        }
     }
 
     /* ------------------------------------------------------------ */
     public void flushCache()
     {
-        _cache.clear();
+        synchronized(_cacheLock)
+        {
+            _cache.clear();
+            _noGzip.clear();
+            _heap.clear();
+            _offHeap.clear();
+            _policy.clear();
+        }
     }
 
     /* ------------------------------------------------------------ */
     /** Get a resource from the context.
      * Cached Resources are returned if the resource fits within the LRU
-     * cache.  Directories may have CachedResources returned, but the
+     * cache. Resources that fit within the off heap cache are returned
+     * as ByteBufferResources. Directories may have CachedResources returned, but the
      * caller must use the CachedResource.setCachedData method to set the
      * formatted directory content.
      *
@@ -223,64 +465,98 @@ public class ResourceCache implements LifeCycle,
         if (_resourceBase==null)
             return null;
 
-        Resource resource=null;
-
-        // Cache operations
-        synchronized(_cache)
+        // Look for it in the cache without locking
+        boolean caching=
+            _maxCacheSize>0 && _maxCachedFileSize>0 ||
+            _maxOffHeapCacheSize>0 && _maxOffHeapFileSize>0 && __offHeapResource!=null;
+        if (caching)
         {
-            // Look for it in the cache
-            CachedResource cached = (CachedResource)_cache.get(pathInContext);
-            if (cached!=null)
+            _policy.access(pathInContext);
+            CachedMetaData cmd = (CachedMetaData)_cache.get(pathInContext);
+            if (cmd!=null)
             {
-                if(log.isTraceEnabled())log.trace("CACHE HIT: "+cached);
-                CachedMetaData cmd = (CachedMetaData)cached.getAssociate();
-                if (cmd!=null && cmd.isValid())
-                    return cached;
+                if(log.isTraceEnabled())log.trace("CACHE HIT: "+cmd._cached);
+                if (cmd.isValid())
+                {
+                    _hits++;
+                    return cmd._cached;
+                }
+                synchronized(_cacheLock)
+                {
+                    cmd.invalidate();
+                }
             }
+            _misses++;
+        }
 
-            // Make the resource
-            resource=_resourceBase.addPath(_resourceBase.encode(pathInContext));
-            if(log.isTraceEnabled())log.trace("CACHE MISS: "+resource);
-            if (resource==null)
+        // Make the resource
+        Resource resource=_resourceBase.addPath(_resourceBase.encode(pathInContext));
+        if(log.isTraceEnabled())log.trace("CACHE MISS: "+resource);
+        if (resource==null)
+            return null;
+
+        // Check for file aliasing
+        if (resource.getAlias()!=null)
+        {
+            log.warn("Alias request of '"+resource.getAlias()+
+                     "' for '"+resource+"'");
+            return null;
+        }
+
+        // Is it an existing file?
+        long len = resource.length();
+        if (caching && resource.exists())
+        {
+            // Is it badly named?
+            if (!resource.isDirectory() && pathInContext.endsWith("/"))
                 return null;
 
-            
-            // Check for file aliasing
-            if (resource.getAlias()!=null)
+            // Guess directory length.
+            if (resource.isDirectory())
             {
-                log.warn("Alias request of '"+resource.getAlias()+
-                             "' for '"+resource+"'");
-                return null;
+                if (resource.list()!=null)
+                    len=resource.list().length*100;
+                else
+                    len=0;
             }
 
-            // Is it an existing file?
-            long len = resource.length();
-            if (resource.exists())
-            {
-                // Is it badly named?
-                if (!resource.isDirectory() && pathInContext.endsWith("/"))
-                    return null;
+            // Is it cacheable?
+            Tier tier=null;
+            if (len>0 && len<_maxCachedFileSize && len<_maxCacheSize)
+                tier=_heap;
+            else if (len>0 && len<_maxOffHeapFileSize && len<_maxOffHeapCacheSize &&
+                     __offHeapResource!=null && !resource.isDirectory())
+                tier=_offHeap;
 
-                // Guess directory length.
-                if (resource.isDirectory())
+            if (tier!=null)
+            {
+                int max=tier==_heap?_maxCacheSize:_maxOffHeapCacheSize;
+                synchronized(_cacheLock)
                 {
-                    if (resource.list()!=null)
-                        len=resource.list().length*100;
-                    else
-                        len=0;
+                    if (!admit(tier,max,pathInContext,(int)len))
+                        tier=null;
                 }
 
-                // Is it cacheable?
-                if (len>0 && len<_maxCachedFileSize && len<_maxCacheSize)
+                if (tier!=null)
                 {
-                    int needed=_maxCacheSize-(int)len;
-                    while(_cacheSize>needed)
-                        _leastRecentlyUsed.invalidate();
-
-                    cached=resource.cache();
-                    if(log.isTraceEnabled())log.trace("CACHED: "+resource);
-                    new CachedMetaData(cached,pathInContext);
-                    return cached;
+                    // Load the content without the lock
+                    Resource cached=tier==_heap
+                        ?resource.cache()
+                        :newOffHeapResource(resource,
+                                            _minMappedFileSize>=0 && len>=_minMappedFileSize);
+                    synchronized(_cacheLock)
+                    {
+                        // Another thread may have beaten us to it
+                        CachedMetaData cmd = (CachedMetaData)_cache.get(pathInContext);
+                        if (cmd!=null)
+                            return cmd._cached;
+
+                        evict(tier,max-(int)len);
+
+                        if(log.isTraceEnabled())log.trace("CACHED: "+resource);
+                        new CachedMetaData(cached,resource,pathInContext,(int)len,tier);
+                        return cached;
+                    }
                 }
             }
         }
@@ -290,6 +566,118 @@ public class ResourceCache implements LifeCycle,
         return resource;
     }
 
+    /* ------------------------------------------------------------ */
+    /** Get the gzip content encoded variant of a resource.
+     * For a cached resource, the variant is a ".gz" sibling resource or,
+     * for text resources, the compressed content.  It is built on the
+     * first request and held with the cached resource, so it is
+     * invalidated with it.
+     * For other resources, only a ".gz" sibling is looked for.  Failed
+     * lookups are remembered until the resource is modified or the cache
+     * is flushed.
+     * @param pathInContext The path of the resource
+     * @param resource The resource returned by getResource(pathInContext)
+     * @return The gzip encoded resource or null if there is none.
+     * @exception IOException 
+     */
+    public Resource getGzipResource(String pathInContext, Resource resource)
+        throws IOException
+    {
+        Object o=resource.getAssociate();
+        if (o instanceof CachedMetaData && ((CachedMetaData)o)._cached==resource)
+            return ((CachedMetaData)o).getGzipResource();
+
+        long lastModified=resource.lastModified();
+        Long failed=(Long)_noGzip.get(pathInContext);
+        if (failed!=null && failed.longValue()==lastModified)
+            return null;
+
+        Resource gz=getResource(pathInContext+".gz");
+        if (gz!=null && gz.exists() && !gz.isDirectory())
+            return gz;
+
+        if (_noGzip.size()>=__maxNoGzip)
+            _noGzip.clear();
+        _noGzip.put(pathInContext,new Long(lastModified));
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Is content of a mime type worth compressing.
+     * @param type The mime type
+     * @return True for text, javascript and xml types.
+     */
+    public static boolean isCompressible(String type)
+    {
+        if (type==null)
+            return false;
+        type=StringUtil.asciiToLowerCase(type);
+        return type.startsWith("text/") ||
+            type.indexOf("javascript")>=0 ||
+            type.endsWith("xml");
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Is a resource held in the off heap cache tier.
+     * The content of an off heap resource is written directly from its
+     * buffer if it is written to the HttpOutputStream of a channel
+     * connection.
+     * @param resource The resource
+     * @return True if the resource is a ByteBufferResource.
+     */
+    public static boolean isOffHeap(Resource resource)
+    {
+        return __offHeapResource!=null && __offHeapResource.isInstance(resource);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Should a resource be admitted to a cache tier.
+     * Called with the cache lock held.
+     */
+    private boolean admit(Tier tier, int max, String pathInContext, int len)
+    {
+        if (tier._size+len<=max)
+            return true;
+        CachedMetaData victim=tier.victim();
+        return victim==null || _policy.admit(pathInContext,victim._key);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Evict resources from a cache tier until it fits a size.
+     * Called with the cache lock held.
+     */
+    private void evict(Tier tier, int size)
+    {
+        while (tier._size>size && tier._entries.size()>0)
+        {
+            tier.victim().invalidate();
+            _evictions++;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private Resource newOffHeapResource(Resource resource, boolean map)
+        throws IOException
+    {
+        try
+        {
+            return (Resource)__offHeapResource
+                .getConstructor(new Class[]{Resource.class,Boolean.TYPE})
+                .newInstance(new Object[]{resource,map?Boolean.TRUE:Boolean.FALSE});
+        }
+        catch(InvocationTargetException e)
+        {
+            if (e.getTargetException() instanceof IOException)
+                throw (IOException)e.getTargetException();
+            log.warn(LogSupport.EXCEPTION,e.getTargetException());
+            throw new IOException(e.getTargetException().toString());
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            throw new IOException(e.toString());
+        }
+    }
 
     /* ------------------------------------------------------------ */
     public synchronized Map getMimeMap()
@@ -429,7 +817,7 @@ public class ResourceCache implements LifeCycle,
         throws InterruptedException
     {
         _started=false;
-        _cache.clear();
+        flushCache();
     }
 
 
@@ -491,6 +879,41 @@ public class ResourceCache implements LifeCycle,
         {
             return getMimeByExtension(_name);
         }
+
+        /* ------------------------------------------------------------ */
+        /** Get the pre-encoded header block.
+         * Only meta data for cached resources has a header block, as
+         * encoding one for a single response would gain nothing.
+         * @param acceptRanges If true the block includes Accept-Ranges.
+         * @return The encoded Content-Type, Last-Modified and optional
+         * Accept-Ranges header lines, or null.
+         * @see HttpResponse#setHeaderBlock(byte[])
+         */
+        public byte[] getHeaderBlock(boolean acceptRanges)
+        {
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        byte[] encodeHeaderBlock(boolean acceptRanges)
+        {
+            StringBuffer buf=new StringBuffer(128);
+            String mimeType=getMimeType();
+            if (mimeType!=null)
+                buf.append(HttpFields.__ContentType).append(": ").append(mimeType).append("\015\012");
+            buf.append(HttpFields.__LastModified).append(": ").append(getLastModified()).append("\015\012");
+            if (acceptRanges)
+                buf.append(HttpFields.__AcceptRanges).append(": bytes\015\012");
+            try
+            {
+                return buf.toString().getBytes(StringUtil.__ISO_8859_1);
+            }
+            catch(UnsupportedEncodingException e)
+            {
+                LogSupport.ignore(log,e);
+                return null;
+            }
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -501,32 +924,40 @@ public class ResourceCache implements LifeCycle,
         String _encoding;
         String _length;
         String _key;
+        byte[] _headerBlock;
+        byte[] _headerBlockAcceptRanges;
+        int _size;
+        int _index;
+        long _sourceLength;
+        volatile boolean _referenced;
+
+        Resource _cached;
+        Resource _source;
+        Tier _tier;
+        volatile Resource _gzip;
+        volatile boolean _gzipChecked;
 
-        CachedResource _cached;
-        CachedMetaData _prev;
-        CachedMetaData _next;
-
-        CachedMetaData(CachedResource resource, String pathInContext)
+        /* ------------------------------------------------------------ */
+        /** Constructor.
+         * Called with the cache lock held.
+         */
+        CachedMetaData(Resource cached, Resource source, String pathInContext, int size, Tier tier)
         {
-            super(resource);
-            _cached=resource;
+            super(cached);
+            _cached=cached;
+            _source=source;
             _length=super.getLength();
             _lastModified=super.getLastModified();
             _encoding=super.getMimeType();
+            _headerBlock=encodeHeaderBlock(false);
+            _headerBlockAcceptRanges=encodeHeaderBlock(true);
             _key=pathInContext;
+            _size=size;
+            _sourceLength=source.length();
+            _tier=tier;
 
-            _next=_mostRecentlyUsed;
-            _mostRecentlyUsed=this;
-            if (_next!=null)
-                _next._prev=this;
-            _prev=null;
-            if (_leastRecentlyUsed==null)
-                _leastRecentlyUsed=this;
-
-            _cache.put(_key,resource);
-
-            _cacheSize+=_cached.length();
-
+            _cache.put(_key,this);
+            _tier.add(this);
         }
 
         public String getLength()
@@ -544,59 +975,292 @@ public class ResourceCache implements LifeCycle,
             return _encoding;
         }
 
+        public byte[] getHeaderBlock(boolean acceptRanges)
+        {
+            return acceptRanges?_headerBlockAcceptRanges:_headerBlock;
+        }
+
         /* ------------------------------------------------------------ */
         boolean isValid()
             throws IOException
         {
-            if (_cached.isUptoDate())
+            if (_source.exists() &&
+                _source.lastModified()==_cached.lastModified() &&
+                _source.length()==_sourceLength)
             {
-                if (_mostRecentlyUsed!=this)
-                {
-                    CachedMetaData tp = _prev;
-                    CachedMetaData tn = _next;
-
-                    _next=_mostRecentlyUsed;
-                    _mostRecentlyUsed=this;
-                    if (_next!=null)
-                        _next._prev=this;
-                    _prev=null;
-
-                    if (tp!=null)
-                        tp._next=tn;
-                    if (tn!=null)
-                        tn._prev=tp;
-
-                    if (_leastRecentlyUsed==this && tp!=null)
-                        _leastRecentlyUsed=tp;
-                }
+                _referenced=true;
                 return true;
             }
-
-            invalidate();
             return false;
         }
 
-        public void invalidate()
+        /* ------------------------------------------------------------ */
+        /** Get the gzip variant.
+         * Built without the lock on the first call, so concurrent first
+         * calls may each build it.
+         */
+        Resource getGzipResource()
+            throws IOException
         {
-            // Invalidate it
+            if (!_gzipChecked)
+            {
+                byte[] data=null;
+                Resource gz=_resourceBase.addPath(_resourceBase.encode(_key+".gz"));
+                if (gz!=null && gz.getAlias()==null && gz.exists() && !gz.isDirectory())
+                {
+                    ByteArrayOutputStream2 bout=new ByteArrayOutputStream2((int)gz.length());
+                    InputStream in=gz.getInputStream();
+                    try{IO.copy(in,bout);} finally {in.close();}
+                    data=bout.toByteArray();
+                }
+                else if (_cached instanceof CachedResource && isCompressible(_encoding))
+                {
+                    byte[] content=((CachedResource)_cached).getCachedData();
+                    if (content!=null)
+                    {
+                        ByteArrayOutputStream2 bout=new ByteArrayOutputStream2(content.length/2+32);
+                        GZIPOutputStream out=new GZIPOutputStream(bout);
+                        out.write(content);
+                        out.close();
+                        if (bout.size()<content.length)
+                            data=bout.toByteArray();
+                    }
+                }
+
+                if (data!=null)
+                {
+                    _gzip=new CachedResource(_cached,data);
+                    synchronized(_cacheLock)
+                    {
+                        if (_cache.get(_key)==this)
+                        {
+                            _size+=data.length;
+                            _tier._size+=data.length;
+                            evict(_tier,_tier==_heap?_maxCacheSize:_maxOffHeapCacheSize);
+                        }
+                    }
+                }
+                _gzipChecked=true;
+            }
+            return _gzip;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Remove from the cache.
+         * Called with the cache lock held.
+         */
+        void invalidate()
+        {
+            if (_cache.get(_key)!=this)
+                return;
             _cache.remove(_key);
-            _cacheSize=_cacheSize-(int)_cached.length();
+            _tier.remove(this);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A tier of the cache with its own size limit.
+     * The CLOCK approximation of LRU is used, so that a cache hit need
+     * only set a flag rather than reorder a list: the clock hand passes
+     * over recently referenced resources, clearing their flag, until it
+     * finds a resource that has not been referenced since it was last
+     * passed.  Always called with the cache lock held.
+     */
+    private static class Tier
+    {
+        ArrayList _entries=new ArrayList();
+        int _hand;
+        int _size;
+
+        /* ------------------------------------------------------------ */
+        void add(CachedMetaData cmd)
+        {
+            cmd._index=_entries.size();
+            _entries.add(cmd);
+            _size+=cmd._size;
+        }
 
+        /* ------------------------------------------------------------ */
+        void remove(CachedMetaData cmd)
+        {
+            _size-=cmd._size;
 
-            if (_mostRecentlyUsed==this)
-                _mostRecentlyUsed=_next;
-            else
-                _prev._next=_next;
+            // Move the last entry into the removed slot
+            CachedMetaData last=(CachedMetaData)_entries.remove(_entries.size()-1);
+            if (last!=cmd)
+            {
+                _entries.set(cmd._index,last);
+                last._index=cmd._index;
+            }
+        }
 
-            if (_leastRecentlyUsed==this)
-                _leastRecentlyUsed=_prev;
-            else
-                _next._prev=_prev;
+        /* ------------------------------------------------------------ */
+        /** Select the next resource to evict.
+         */
+        CachedMetaData victim()
+        {
+            while (_entries.size()>0)
+            {
+                if (_hand>=_entries.size())
+                    _hand=0;
+                CachedMetaData cmd=(CachedMetaData)_entries.get(_hand);
+                if (!cmd._referenced)
+                    return cmd;
+                cmd._referenced=false;
+                _hand++;
+            }
+            return null;
+        }
 
-            _prev=null;
-            _next=null;
+        /* ------------------------------------------------------------ */
+        void clear()
+        {
+            _entries.clear();
+            _hand=0;
+            _size=0;
         }
     }
-    
 
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Cache eviction policy.
+     * When the cache is full, the policy decides if a resource should
+     * be cached in place of the least recently used resource.
+     */
+    public interface EvictionPolicy
+    {
+        /* ------------------------------------------------------------ */
+        /** Called for every resource lookup.
+         * This method is called without a lock held and must be thread safe.
+         * @param pathInContext The path of the resource
+         */
+        void access(String pathInContext);
+        
+        /* ------------------------------------------------------------ */
+        /** Admit a resource to a full cache.
+         * Called with the cache lock held.
+         * @param candidate The path of the resource to be cached.
+         * @param victim The path of the resource that would be evicted.
+         * @return true if the candidate should replace the victim.
+         */
+        boolean admit(String candidate, String victim);
+        
+        /* ------------------------------------------------------------ */
+        /** Clear any state.
+         * Called with the cache lock held when the cache is flushed.
+         */
+        void clear();
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Least Recently Used eviction.
+     * New resources are always admitted.
+     */
+    public static class LRU implements EvictionPolicy
+    {
+        public void access(String pathInContext)
+        {
+        }
+
+        public boolean admit(String candidate, String victim)
+        {
+            return true;
+        }
+
+        public void clear()
+        {
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** TinyLFU eviction.
+     * The frequency of requests for each path is estimated with a
+     * count-min sketch of 4 bit counters, which are halved after every
+     * sample period so that old requests are forgotten.  A resource is
+     * only admitted to a full cache if it has been requested more
+     * frequently than the resource that it would evict, so that a scan
+     * of rarely requested resources does not flush popular ones.
+     * <p>
+     * Counters are updated without locking, so the estimates are
+     * approximate under contention.
+     */
+    public static class TinyLFU implements EvictionPolicy
+    {
+        private final static int __ROWS=4;
+        private final static int __WIDTH=4096;
+        private final static int __MAX=15;
+        private final static int[] __SEEDS=
+            {0x97cb3127,0xb7aa4e5d,0x3c6ef372,0x5d3a2f1b};
+
+        private byte[] _counters=new byte[__ROWS*__WIDTH];
+        private int _samples;
+
+        /* ------------------------------------------------------------ */
+        private static int index(int row, int hash)
+        {
+            int h=hash*__SEEDS[row];
+            h^=h>>>17;
+            return row*__WIDTH+(h&(__WIDTH-1));
+        }
+
+        /* ------------------------------------------------------------ */
+        public void access(String pathInContext)
+        {
+            int hash=pathInContext.hashCode();
+            for (int r=0;r<__ROWS;r++)
+            {
+                int i=index(r,hash);
+                if (_counters[i]<__MAX)
+                    _counters[i]++;
+            }
+
+            if (++_samples>=__WIDTH*10)
+                age();
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Get the estimated frequency of requests for a path.
+         * @param pathInContext The path
+         * @return The estimated frequency.
+         */
+        public int frequency(String pathInContext)
+        {
+            int hash=pathInContext.hashCode();
+            int f=__MAX;
+            for (int r=0;r<__ROWS;r++)
+            {
+                int c=_counters[index(r,hash)];
+                if (c<f)
+                    f=c;
+            }
+            return f;
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean admit(String candidate, String victim)
+        {
+            return frequency(candidate)>frequency(victim);
+        }
+
+        /* ------------------------------------------------------------ */
+        private synchronized void age()
+        {
+            if (_samples<__WIDTH*10)
+                return;
+            _samples=0;
+            for (int i=0;i<_counters.length;i++)
+                _counters[i]>>=1;
+        }
+
+        /* ------------------------------------------------------------ */
+        public synchronized void clear()
+        {
+            _samples=0;
+            for (int i=0;i<_counters.length;i++)
+                _counters[i]=0;
+        }
+    }
 }
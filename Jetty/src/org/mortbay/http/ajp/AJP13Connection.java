@@ -30,6 +30,7 @@ import org.mortbay.log.LogFactory;
 import org.mortbay.http.HttpConnection;
 import org.mortbay.http.HttpContext;
 import org.mortbay.http.HttpFields;
+import org.mortbay.http.HttpListener;
 import org.mortbay.http.HttpMessage;
 import org.mortbay.http.HttpRequest;
 import org.mortbay.http.HttpResponse;
@@ -47,7 +48,7 @@ public class AJP13Connection extends HttpConnection
 {
     private static Log log=LogFactory.getLog(AJP13Connection.class);
 
-    private AJP13Listener _listener;
+    private HttpListener _listener;
     private AJP13InputStream _ajpIn;
     private AJP13OutputStream _ajpOut;
     private String _remoteHost;
@@ -59,7 +60,22 @@ public class AJP13Connection extends HttpConnection
     /* ------------------------------------------------------------ */
     public AJP13Connection(AJP13Listener listener, InputStream in, OutputStream out, Socket socket, int bufferSize) throws IOException
     {
-        super(listener,null,new AJP13InputStream(in,out,bufferSize),out,socket);
+        this((HttpListener)listener,in,out,(Object)socket,bufferSize);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Constructor for connections from listeners other than AJP13Listener.
+     * 
+     * @param listener
+     *            The listener, which is called to customize requests.
+     * @param connection
+     *            The underlying connection object, eg a Socket or a
+     *            SocketChannel.
+     */
+    public AJP13Connection(HttpListener listener, InputStream in, OutputStream out, Object connection, int bufferSize) throws IOException
+    {
+        super(listener,null,new AJP13InputStream(in,out,bufferSize),out,connection);
 
         LineInput lin=(LineInput)getInputStream().getInputStream();
         _ajpIn=(AJP13InputStream)lin.getInputStream();
@@ -224,16 +240,13 @@ public class AJP13Connection extends HttpConnection
                     // Check keep alive
                     _keepAlive=request.getDotVersion()>=1;
 
-                    // Headers
+                    // Headers, with values decoded only when asked for
+                    HttpFields fields=request.getHeader();
                     int h=packet.getInt();
                     for (int i=0; i<h; i++)
-                    {
-                        String hdr=packet.getHeader();
-                        String val=packet.getString();
-                        request.addField(hdr,val);
-                        if (!_keepAlive&&hdr.equalsIgnoreCase(HttpFields.__Connection)&&val.equalsIgnoreCase(HttpFields.__KeepAlive))
-                            _keepAlive=true;
-                    }
+                        packet.getHeader(fields);
+                    if (!_keepAlive)
+                        _keepAlive=HttpFields.__KeepAlive.equalsIgnoreCase(fields.get(HttpFields.__Connection));
 
                     // Handler other attributes
                     byte attr=packet.getByte();
@@ -24,6 +24,7 @@ import org.mortbay.log.LogFactory;
 import org.mortbay.http.BufferedOutputStream;
 import org.mortbay.http.HttpMessage;
 import org.mortbay.http.HttpResponse;
+import org.mortbay.util.GatheringOutputStream;
 import org.mortbay.util.LogSupport;
 
 /**
@@ -42,6 +43,7 @@ public class AJP13OutputStream extends BufferedOutputStream
     private boolean _completed;
     private boolean _persistent=true;
     private AJP13ResponsePacket _ajpResponse;
+    private boolean _headerPending;
 
     /* ------------------------------------------------------------ */
     AJP13OutputStream(OutputStream out, int bufferSize)
@@ -89,9 +91,43 @@ public class AJP13OutputStream extends BufferedOutputStream
             _ajpResponse.setInt(mark,nh);
         _ajpResponse.setDataSize();
 
-        write(_ajpResponse);
+        // If the stream can gather, the headers are written with the
+        // first packet that follows them.
+        if (_out instanceof GatheringOutputStream)
+            _headerPending=true;
+        else
+        {
+            write(_ajpResponse);
+            _ajpResponse.resetData();
+        }
+    }
 
-        _ajpResponse.resetData();
+    /* ------------------------------------------------------------ */
+    /**
+     * Write a packet after any pending headers, with a single gathering
+     * write if headers are pending.
+     */
+    private void writePacket(byte[] buf, int offset, int length) throws IOException
+    {
+        if (_headerPending)
+        {
+            _headerPending=false;
+            ((GatheringOutputStream)_out).write(_ajpResponse.getBuffer(),0,_ajpResponse.getMark(),buf,offset,length);
+            _ajpResponse.resetData();
+        }
+        else
+            _out.write(buf,offset,length);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void writePendingHeader() throws IOException
+    {
+        if (_headerPending)
+        {
+            _headerPending=false;
+            write(_ajpResponse);
+            _ajpResponse.resetData();
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -103,6 +139,10 @@ public class AJP13OutputStream extends BufferedOutputStream
     /* ------------------------------------------------------------ */
     public void flush() throws IOException
     {
+        // Pending headers are written with any content or END_RESPONSE,
+        // otherwise they are written before the output is flushed.
+        if (size()==0 && !(_complete&&!_completed))
+            writePendingHeader();
         super.flush();
         if (_complete&&!_completed)
         {
@@ -112,9 +152,11 @@ public class AJP13OutputStream extends BufferedOutputStream
             _packet.addByte(AJP13ResponsePacket.__END_RESPONSE);
             _packet.addBoolean(_persistent);
             _packet.setDataSize();
-            write(_packet);
+            writePacket(_packet.getBuffer(),0,_packet.getMark());
             _packet.resetData();
         }
+        if (_out!=null)
+            _out.flush();
     }
 
     /* ------------------------------------------------------------ */
@@ -129,6 +171,9 @@ public class AJP13OutputStream extends BufferedOutputStream
     {
         _complete=false;
         _completed=false;
+        _headerPending=false;
+        if (_ajpResponse!=null)
+            _ajpResponse.resetData();
         super.resetStream();
     }
 
@@ -182,9 +227,16 @@ public class AJP13OutputStream extends BufferedOutputStream
         int sz=size();
 
         if (sz<=AJP13ResponsePacket.__MAX_BUF)
-            super.writeTo(out);
+        {
+            if (_headerPending && out==_out)
+                writePacket(_buf,preReserve(),sz);
+            else
+                super.writeTo(out);
+        }
         else
         {
+            if (out==_out)
+                writePendingHeader();
             int offset=preReserve();
             int data=sz-AJP13ResponsePacket.__DATA_HDR;
 
@@ -23,6 +23,7 @@ import java.util.HashMap;
 
 import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
+import org.mortbay.http.HttpFields;
 import org.mortbay.util.ByteArrayISO8859Writer;
 import org.mortbay.util.ByteArrayPool;
 import org.mortbay.util.LogSupport;
@@ -52,6 +53,9 @@ public abstract class AJP13Packet
 
     public String[] __header;
 
+    /** HttpFields keys of the coded header names, if decoded by the packet */
+    protected Object[] __headerKey;
+
     protected HashMap __headerMap=new HashMap();
 
     /**
@@ -290,6 +294,74 @@ public abstract class AJP13Packet
         return getString();
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Get a header and add it to HttpFields. A coded header name is added
+     * with the field key of the name and other names are looked up from
+     * the bytes of the packet. The bytes of the value are added to the
+     * fields, which only create a String for the value if it is asked for.
+     * A header with a null name or value is skipped, as is a header that
+     * does not fit in the packet.
+     * 
+     * @param fields
+     *            The fields to add the header to.
+     */
+    public void getHeader(HttpFields fields)
+    {
+        try
+        {
+            Object key=null;
+            int name=-1;
+            int nameLen=0;
+            checkData(2);
+            if ((0xFF&_buf[_pos])==0xA0)
+            {
+                int code=0xFF&_buf[_pos+1];
+                if (__headerKey!=null && code<__headerKey.length)
+                    key=__headerKey[code];
+                if (key==null)
+                    key=HttpFields.getFieldKey(getHeader());
+                else
+                    _pos+=2;
+            }
+            else
+            {
+                nameLen=getInt();
+                if (nameLen!=0xFFFF)
+                {
+                    checkData(nameLen+1);
+                    name=_pos;
+                    _pos+=nameLen+1;
+                }
+            }
+
+            checkData(2);
+            int len=getInt();
+            if (len==0xFFFF)
+                return;
+            checkData(len+1);
+            int value=_pos;
+            _pos+=len+1;
+
+            if (key!=null)
+                fields.add(key,_buf,value,len);
+            else if (name>=0)
+                fields.add(_buf,name,nameLen,_buf,value,len);
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            // Bad request!!!
+            LogSupport.ignore(log,e);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void checkData(int len)
+    {
+        if (_pos+len>_bytes)
+            throw new IndexOutOfBoundsException(_pos+"+"+len+">"+_bytes);
+    }
+
     /* ------------------------------------------------------------ */
     public void addByte(byte b)
     {
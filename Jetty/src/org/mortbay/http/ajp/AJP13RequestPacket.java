@@ -15,6 +15,8 @@
 
 package org.mortbay.http.ajp;
 
+import org.mortbay.http.HttpFields;
+
 /**
  * AJP13RequestPacket used by AJP13InputStream
  * 
@@ -29,6 +31,13 @@ public class AJP13RequestPacket extends AJP13Packet
     { "ERROR", "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "connection", "content-type", "content-length", "cookie",
             "cookie2", "host", "pragma", "referer", "user-agent" };
 
+    private static Object[] __RequestHeaderKey=new Object[__RequestHeader.length];
+    static
+    {
+        for (int i=1; i<__RequestHeader.length; i++)
+            __RequestHeaderKey[i]=HttpFields.getFieldKey(__RequestHeader[i]);
+    }
+
     /**
      * @param buffer
      * @param len
@@ -60,6 +69,7 @@ public class AJP13RequestPacket extends AJP13Packet
     public void populateHeaders()
     {
         __header=__RequestHeader;
+        __headerKey=__RequestHeaderKey;
         for (int i=1; i<__RequestHeader.length; i++)
             __headerMap.put(__RequestHeader[i],new Integer(0xA000+i));
     }
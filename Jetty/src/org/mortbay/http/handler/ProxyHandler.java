@@ -19,16 +19,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.SocketChannel;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
+import org.mortbay.http.HttpClient;
 import org.mortbay.http.HttpConnection;
 import org.mortbay.http.HttpException;
 import org.mortbay.http.HttpFields;
@@ -36,6 +39,8 @@ import org.mortbay.http.HttpMessage;
 import org.mortbay.http.HttpRequest;
 import org.mortbay.http.HttpResponse;
 import org.mortbay.http.HttpTunnel;
+import org.mortbay.http.nio.ChannelTunnel;
+import org.mortbay.http.nio.TunnelSelector;
 import org.mortbay.util.IO;
 import org.mortbay.util.InetAddrPort;
 import org.mortbay.util.LineInput;
@@ -45,10 +50,14 @@ import org.mortbay.util.URI;
 
 /* ------------------------------------------------------------ */
 /**
- * Proxy request handler. A HTTP/1.1 Proxy. This implementation uses the JVMs URL implementation to
- * make proxy requests.
+ * Proxy request handler. A HTTP/1.1 Proxy. Plain HTTP requests are made with a pooled
+ * {@link HttpClient}, so that upstream connections are kept alive and reused. Other schemes use
+ * the JVMs URL implementation to make proxy requests, as do plain HTTP requests of a derived
+ * handler that overrides {@link #customizeConnection(String,String,HttpRequest,URLConnection)}.
  * <P>
- * The HttpTunnel mechanism is also used to implement the CONNECT method.
+ * The HttpTunnel mechanism is also used to implement the CONNECT method. If the connection was
+ * received by a SocketChannelListener, a {@link ChannelTunnel} is used, so that the tunnel is
+ * handled by the threads of a {@link TunnelSelector} rather than by two threads of its own.
  * 
  * @version $Id$
  * @author Greg Wilkins (gregw)
@@ -63,6 +72,11 @@ public class ProxyHandler extends AbstractHttpHandler
     protected int _tunnelTimeoutMs = 250;
     private boolean _anonymous=false;
     private transient boolean _chained=false;
+    private HttpClient _httpClient;
+    private transient boolean _startedHttpClient;
+    private transient boolean _customizesConnection;
+    private TunnelSelector _tunnelSelector;
+    private transient boolean _startedTunnelSelector;
 
     
     /* ------------------------------------------------------------ */
@@ -131,9 +145,88 @@ public class ProxyHandler extends AbstractHttpHandler
     public void start() throws Exception
     {
         _chained=System.getProperty("http.proxyHost")!=null;
+        _customizesConnection=overridesCustomizeConnection();
+        if (_httpClient==null)
+            _httpClient=new HttpClient();
+        _startedHttpClient=!_httpClient.isStarted();
+        if (_startedHttpClient)
+            _httpClient.start();
+        if (_tunnelSelector==null)
+            _tunnelSelector=new TunnelSelector();
+        _startedTunnelSelector=!_tunnelSelector.isStarted();
+        if (_startedTunnelSelector)
+            _tunnelSelector.start();
         super.start();
     }
 
+    /* ------------------------------------------------------------ */
+    /* 
+     */
+    public void stop() throws InterruptedException
+    {
+        super.stop();
+        if (_startedHttpClient)
+            _httpClient.stop();
+        _startedHttpClient=false;
+        if (_startedTunnelSelector)
+            _tunnelSelector.stop();
+        _startedTunnelSelector=false;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Get the client used to make plain HTTP proxy requests. The client is created by start if
+     * one has not been set, and can be configured before or after the handler is started.
+     * 
+     * @return The HttpClient or null if not set and the handler has not been started.
+     */
+    public HttpClient getHttpClient()
+    {
+        return _httpClient;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the client used to make plain HTTP proxy requests. A client may be shared by several
+     * handlers, in which case it is only started and stopped by a handler if it was not already
+     * started.
+     * 
+     * @param httpClient The HttpClient.
+     */
+    public void setHttpClient(HttpClient httpClient)
+    {
+        if (isStarted())
+            throw new IllegalStateException("Started");
+        _httpClient = httpClient;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Get the selector used for CONNECT tunnels received by a SocketChannelListener. The selector
+     * is created by start if one has not been set.
+     * 
+     * @return The TunnelSelector or null if not set and the handler has not been started.
+     */
+    public TunnelSelector getTunnelSelector()
+    {
+        return _tunnelSelector;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the selector used for CONNECT tunnels received by a SocketChannelListener. A selector may
+     * be shared by several handlers, in which case it is only started and stopped by a handler if
+     * it was not already started.
+     * 
+     * @param tunnelSelector The TunnelSelector.
+     */
+    public void setTunnelSelector(TunnelSelector tunnelSelector)
+    {
+        if (isStarted())
+            throw new IllegalStateException("Started");
+        _tunnelSelector = tunnelSelector;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Get proxy host white list.
@@ -249,6 +342,12 @@ public class ProxyHandler extends AbstractHttpHandler
             if (log.isDebugEnabled())
                 log.debug("PROXY URL=" + url);
 
+            if (!_customizesConnection && HttpMessage.__SCHEME.equalsIgnoreCase(url.getProtocol()))
+            {
+                handleHttp(pathInContext, pathParams, request, response, url);
+                return;
+            }
+
             URLConnection connection = url.openConnection();
             connection.setAllowUserInteraction(false);
 
@@ -377,7 +476,7 @@ public class ProxyHandler extends AbstractHttpHandler
             // Handled
             request.setHandled(true);
             if (proxy_in != null)
-                IO.copy(proxy_in, response.getOutputStream());
+                IO.relay(proxy_in, response.getOutputStream(), -1);
 
         }
         catch (Exception e)
@@ -389,6 +488,115 @@ public class ProxyHandler extends AbstractHttpHandler
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Proxy a plain HTTP request. The request is sent upstream with the HttpClient, so that the
+     * upstream connection may be reused, or to the chained proxy given by the http.proxyHost and
+     * http.proxyPort system properties. The request and response bodies are relayed as they are
+     * received, so neither is held in memory. Not called if a derived handler overrides the
+     * URLConnection customizeConnection method.
+     */
+    protected void handleHttp(String pathInContext, String pathParams, HttpRequest request, HttpResponse response, URL url) throws HttpException, IOException
+    {
+        String host = url.getHost();
+        int port = url.getPort() < 0 ? 80 : url.getPort();
+        String uri = url.getFile();
+        if (uri == null || uri.length() == 0)
+            uri = "/";
+        if (_chained)
+        {
+            host = System.getProperty("http.proxyHost");
+            port = Integer.getInteger("http.proxyPort", 80).intValue();
+            uri = url.toString();
+        }
+
+        // check connection header
+        String connectionHdr = request.getField(HttpFields.__Connection);
+        if (connectionHdr != null && (connectionHdr.equalsIgnoreCase(HttpFields.__KeepAlive) || connectionHdr.equalsIgnoreCase(HttpFields.__Close)))
+            connectionHdr = null;
+
+        // copy headers
+        HttpFields fields = new HttpFields();
+        boolean xForwardedFor = false;
+        Enumeration enm = request.getFieldNames();
+        while (enm.hasMoreElements())
+        {
+            String hdr = (String) enm.nextElement();
+
+            if (_DontProxyHeaders.containsKey(hdr) || !_chained && _ProxyAuthHeaders.containsKey(hdr))
+                continue;
+            if (connectionHdr != null && connectionHdr.indexOf(hdr) >= 0)
+                continue;
+
+            Enumeration vals = request.getFieldValues(hdr);
+            while (vals.hasMoreElements())
+            {
+                String val = (String) vals.nextElement();
+                if (val != null)
+                {
+                    fields.add(hdr, val);
+                    xForwardedFor |= HttpFields.__XForwardedFor.equalsIgnoreCase(hdr);
+                }
+            }
+        }
+
+        // Proxy headers
+        if (!_anonymous)
+            fields.put("Via", "1.1 (jetty)");
+        if (!xForwardedFor)
+            fields.add(HttpFields.__XForwardedFor, request.getRemoteAddr());
+
+        // customize request
+        customizeRequest(pathInContext, pathParams, request, fields);
+
+        InputStream in = null;
+        if (request.getContentLength() > 0 || request.getField(HttpFields.__TransferEncoding) != null)
+            in = request.getInputStream();
+
+        HttpClient.Response proxy_response = _httpClient.send(request.getMethod(), host, port, uri, fields, in);
+        try
+        {
+            response.setStatus(proxy_response.getStatus());
+            if (proxy_response.getReason() != null)
+                response.setReason(proxy_response.getReason());
+
+            // clear response defaults.
+            response.removeField(HttpFields.__Date);
+            response.removeField(HttpFields.__Server);
+
+            // set response headers
+            HttpFields proxy_fields = proxy_response.getFields();
+            String proxyConnectionHdr = proxy_fields.get(HttpFields.__Connection);
+            enm = proxy_fields.getFieldNames();
+            while (enm.hasMoreElements())
+            {
+                String hdr = (String) enm.nextElement();
+                if (_DontProxyHeaders.containsKey(hdr) || !_chained && _ProxyAuthHeaders.containsKey(hdr))
+                    continue;
+                if (proxyConnectionHdr != null && proxyConnectionHdr.indexOf(hdr) >= 0)
+                    continue;
+
+                Enumeration vals = proxy_fields.getValues(hdr);
+                while (vals.hasMoreElements())
+                {
+                    String val = (String) vals.nextElement();
+                    if (val != null)
+                        response.addField(hdr, val);
+                }
+            }
+            if (!_anonymous)
+                response.setField("Via", "1.1 (jetty)");
+
+            // Handled
+            request.setHandled(true);
+            IO.relay(proxy_response.getInputStream(), response.getOutputStream(), -1);
+        }
+        finally
+        {
+            proxy_response.close();
+        }
+    }
+
     /* ------------------------------------------------------------ */
     public void handleConnect(String pathInContext, String pathParams, HttpRequest request, HttpResponse response) throws HttpException, IOException
     {
@@ -417,6 +625,11 @@ public class ProxyHandler extends AbstractHttpHandler
                     Socket s = (Socket) maybesocket;
                     timeoutMs = s.getSoTimeout();
                 }
+                else if (maybesocket instanceof SocketChannel)
+                {
+                    SocketChannel c = (SocketChannel) maybesocket;
+                    timeoutMs = c.socket().getSoTimeout();
+                }
                 
                 
                 // Create the tunnel
@@ -461,7 +674,21 @@ public class ProxyHandler extends AbstractHttpHandler
             InputStream in=null;
             
             String chained_proxy_host=System.getProperty("http.proxyHost");
-            if (chained_proxy_host==null)
+            if (chained_proxy_host==null && request.getHttpConnection().getConnection() instanceof SocketChannel)
+            {
+                SocketChannel channel=SocketChannel.open(new InetSocketAddress(iaddr, port));
+                try
+                {
+                    channel.socket().setTcpNoDelay(true);
+                    return new ChannelTunnel(channel,_tunnelSelector);
+                }
+                catch(IOException e)
+                {
+                    channel.close();
+                    throw e;
+                }
+            }
+            else if (chained_proxy_host==null)
             {
                 socket= new Socket(iaddr, port);
                 socket.setSoTimeout(timeoutMS);
@@ -550,11 +777,47 @@ public class ProxyHandler extends AbstractHttpHandler
     /* ------------------------------------------------------------ */
     /**
      * Customize proxy URL connection. Method to allow derived handlers to customize the connection.
+     * If this method is overridden, plain HTTP requests are also made with a URLConnection rather
+     * than with the HttpClient, so that they are customized as before. Derived handlers that only
+     * set header fields should override
+     * {@link #customizeRequest(String,String,HttpRequest,HttpFields)} instead, so that upstream
+     * connections are reused.
      */
     protected void customizeConnection(String pathInContext, String pathParams, HttpRequest request, URLConnection connection) throws IOException
     {
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Customize proxy request. Method to allow derived handlers to customize the header fields of
+     * plain HTTP requests sent with the HttpClient.
+     */
+    protected void customizeRequest(String pathInContext, String pathParams, HttpRequest request, HttpFields fields) throws IOException
+    {
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if a derived handler overrides the URLConnection customizeConnection method.
+     */
+    private boolean overridesCustomizeConnection()
+    {
+        Class[] args = new Class[]{String.class, String.class, HttpRequest.class, URLConnection.class};
+        for (Class c = getClass(); c != ProxyHandler.class; c = c.getSuperclass())
+        {
+            try
+            {
+                c.getDeclaredMethod("customizeConnection", args);
+                return true;
+            }
+            catch (NoSuchMethodException e)
+            {
+                LogSupport.ignore(log, e);
+            }
+        }
+        return false;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Is URL Proxied. Method to allow derived handlers to select which URIs are proxied and to
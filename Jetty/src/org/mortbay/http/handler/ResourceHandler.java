@@ -25,12 +25,14 @@ import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
 import org.mortbay.http.HttpException;
 import org.mortbay.http.HttpFields;
+import org.mortbay.http.HttpOutputStream;
 import org.mortbay.http.HttpRequest;
 import org.mortbay.http.HttpResponse;
 import org.mortbay.http.InclusiveByteRange;
 import org.mortbay.http.MultiPartResponse;
 import org.mortbay.http.ResourceCache;
 import org.mortbay.util.CachedResource;
+import org.mortbay.util.FileResource;
 import org.mortbay.util.IO;
 import org.mortbay.util.LogSupport;
 import org.mortbay.util.Resource;
@@ -188,7 +190,9 @@ public class ResourceHandler extends AbstractHttpHandler
     /** Set minimum content length for GZIP encoding.
      * @param minGzipLength If set to a positive integer, then static content
      * larger than this will be served as gzip content encoded
-     * if a matching resource is found ending with ".gz"
+     * if a matching resource is found ending with ".gz", or if it is
+     * cached text that can be compressed.
+     * @see ResourceCache#getGzipResource(String,Resource)
      */
     public void setMinGzipLength(int minGzipLength)
     {
@@ -575,8 +579,8 @@ public class ResourceHandler extends AbstractHttpHandler
     {
         ResourceCache.ResourceMetaData metaData =
             (ResourceCache.ResourceMetaData)resource.getAssociate();
+        boolean acceptRanges=_acceptRanges && response.getHttpRequest().getDotVersion()>0;
 
-        response.setContentType(metaData.getMimeType());
         if (count != -1)
         {
             if (count==resource.length())
@@ -585,9 +589,21 @@ public class ResourceHandler extends AbstractHttpHandler
                 response.setContentLength((int)count);
         }
 
+        // Use the pre-encoded fields of cached meta data if nothing
+        // has already set the content type
+        byte[] block=metaData.getHeaderBlock(acceptRanges);
+        if (block!=null &&
+            response.getContentType()==null &&
+            response.getCharacterEncoding()==null)
+        {
+            response.setHeaderBlock(block);
+            return;
+        }
+        
+        response.setContentType(metaData.getMimeType());
         response.setField(HttpFields.__LastModified,metaData.getLastModified());
         
-        if (_acceptRanges && response.getHttpRequest().getDotVersion()>0)
+        if (acceptRanges)
             response.setField(HttpFields.__AcceptRanges,"bytes");
     }
 
@@ -615,10 +631,11 @@ public class ResourceHandler extends AbstractHttpHandler
             {
                 String accept=request.getField(HttpFields.__AcceptEncoding);
                 if (accept!=null && resLength>_minGzipLength &&
+                    accept.indexOf("gzip")>=0 &&
                     !pathInContext.endsWith(".gz"))
                 {
-                    Resource gz = getHttpContext().getResource(pathInContext+".gz");
-                    if (gz.exists() && accept.indexOf("gzip")>=0)
+                    Resource gz = getHttpContext().getGzipResource(pathInContext,resource);
+                    if (gz!=null)
                     {
                         if(log.isDebugEnabled())log.debug("gzip="+gz);
                         response.setField(HttpFields.__ContentEncoding,"gzip");
@@ -631,7 +648,7 @@ public class ResourceHandler extends AbstractHttpHandler
             
             request.setHandled(true);
             OutputStream out = response.getOutputStream();
-            data.writeTo(out,0,resLength);
+            writeTo(out,data,0,resLength);
             return;
         }
             
@@ -673,9 +690,9 @@ public class ResourceHandler extends AbstractHttpHandler
             response.setField(HttpFields.__ContentRange, 
                               singleSatisfiableRange.toHeaderRangeString(resLength));
             OutputStream out = response.getOutputStream();
-            resource.writeTo(out,
-                             singleSatisfiableRange.getFirst(resLength), 
-                             singleLength);
+            writeTo(out,resource,
+                    singleSatisfiableRange.getFirst(resLength), 
+                    singleLength);
             request.setHandled(true);
             return;
         }
@@ -750,6 +767,26 @@ public class ResourceHandler extends AbstractHttpHandler
     }
 
 
+    /* ------------------------------------------------------------ */
+    /** Write resource content.
+     * The content of a FileResource is transferred directly from the
+     * file if the connection supports it (eg SocketChannelListener), 
+     * otherwise the content is copied with Resource.writeTo.
+     */
+    private void writeTo(OutputStream out,
+                         Resource resource,
+                         long start,
+                         long count)
+        throws IOException
+    {
+        if (resource instanceof FileResource &&
+            out instanceof HttpOutputStream &&
+            count<=Integer.MAX_VALUE &&
+            ((HttpOutputStream)out).write(resource.getFile(),start,(int)count))
+            return;
+        resource.writeTo(out,start,count);
+    }
+    
     /* ------------------------------------------------------------------- */
     void sendDirectory(HttpRequest request,
                        HttpResponse response,
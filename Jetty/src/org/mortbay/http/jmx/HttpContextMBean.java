@@ -73,8 +73,19 @@ public class HttpContextMBean extends LifeCycleMBean
         defineAttribute("resourceBase");
         defineAttribute("maxCachedFileSize");
         defineAttribute("maxCacheSize");
+        defineAttribute("maxOffHeapFileSize");
+        defineAttribute("maxOffHeapCacheSize");
+        defineAttribute("minMappedFileSize");
+        defineAttribute("evictionPolicy");
+        defineAttribute("cacheSize",READ_ONLY);
+        defineAttribute("offHeapCacheSize",READ_ONLY);
+        defineAttribute("cacheHits",READ_ONLY);
+        defineAttribute("cacheMisses",READ_ONLY);
+        defineAttribute("cacheEvictions",READ_ONLY);
         defineOperation("flushCache",
                         IMPACT_ACTION);
+        defineOperation("resetCacheStats",
+                        IMPACT_ACTION);
         defineOperation("getResource",
                         new String[] {STRING},
                         IMPACT_ACTION);
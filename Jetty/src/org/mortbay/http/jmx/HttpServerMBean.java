@@ -27,6 +27,7 @@ import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
 import org.mortbay.http.HttpServer;
 import org.mortbay.http.Version;
+import org.mortbay.util.BufferPool;
 import org.mortbay.util.ComponentEvent;
 import org.mortbay.util.ComponentListener;
 import org.mortbay.util.LogSupport;
@@ -94,6 +95,7 @@ public class HttpServerMBean extends LifeCycleMBean
         defineAttribute("contexts",READ_ONLY);
         defineAttribute("version",READ_ONLY,ON_MBEAN);
         defineAttribute("components",READ_ONLY,ON_MBEAN);
+        defineAttribute("bufferPools",READ_ONLY,ON_MBEAN);
         defineAttribute("requestLog");
         
         defineAttribute("trace");
@@ -132,6 +134,9 @@ public class HttpServerMBean extends LifeCycleMBean
         defineAttribute("requestsDurationAve");
         defineAttribute("requestsDurationMin");
         defineAttribute("requestsDurationMax");
+        defineAttribute("requestsDurationP50");
+        defineAttribute("requestsDurationP99");
+        defineAttribute("requestsDurationP999");
         
         defineOperation("stop",new String[]{"java.lang.Boolean.TYPE"},IMPACT_ACTION);
         defineOperation("save",new String[]{"java.lang.String"},IMPACT_ACTION);
@@ -183,6 +188,16 @@ public class HttpServerMBean extends LifeCycleMBean
     }
     
     
+    /* ------------------------------------------------------------ */
+    public String[] getBufferPools()
+    {
+        BufferPool[] pools=BufferPool.getPools();
+        String[] s=new String[pools.length];
+        for (int i=0;i<s.length;i++)
+            s[i]=pools[i].toString();
+        return s;
+    }
+    
     /* ------------------------------------------------------------ */
     public ObjectName[] getComponents()
     {
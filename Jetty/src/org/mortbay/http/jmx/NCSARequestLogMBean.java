@@ -47,6 +47,11 @@ public class NCSARequestLogMBean extends LifeCycleMBean
         defineAttribute("extended");
         defineAttribute("logCookies");
         defineAttribute("logLatency");
+        defineAttribute("logFormat");
         defineAttribute("append");
+        defineAttribute("queueSize");
+        defineAttribute("overflowPolicy");
+        defineAttribute("queued");
+        defineAttribute("dropped");
     }
 }
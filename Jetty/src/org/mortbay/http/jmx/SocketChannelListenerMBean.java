@@ -48,5 +48,8 @@ public class SocketChannelListenerMBean extends ThreadPoolMBean
         defineAttribute("lowOnResources");
         defineAttribute("outOfResources");
         defineAttribute("defaultScheme");
+        defineAttribute("selectorThreads");
+        defineAttribute("selectorLoads",READ_ONLY);
+        defineAttribute("connections",READ_ONLY);
     }
 }
@@ -0,0 +1,1135 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.http.HttpConnection;
+import org.mortbay.http.HttpHandler;
+import org.mortbay.http.HttpListener;
+import org.mortbay.http.HttpMessage;
+import org.mortbay.http.HttpRequest;
+import org.mortbay.http.HttpServer;
+import org.mortbay.http.ajp.AJP13Connection;
+import org.mortbay.http.ajp.AJP13Packet;
+import org.mortbay.util.LazyList;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.ThreadPool;
+import org.mortbay.util.TimingWheel;
+
+/* ------------------------------------------------------------------------------- */
+/** NIO AJP 1.3 Protocol Listener.
+ * A listener for the connections of the mod_jk and mod_jk2 modules, like
+ * {@link org.mortbay.http.ajp.AJP13Listener}, that does not hold a thread
+ * for each connection.  The persistent connections from the web server
+ * are read by selector threads while they are idle between requests, and
+ * a thread from the pool is dispatched only once a complete AJP13 packet
+ * has been received.  The dispatched thread handles the request with an
+ * {@link AJP13Connection}, and returns the connection to its selector
+ * thread once no more input is buffered.
+ * <p>
+ * By default a single selector thread both accepts new connections and
+ * reads from idle connections.  If more than one selector thread is
+ * configured with {@link #setSelectorThreads(int)}, then a dedicated
+ * acceptor thread accepts connections and hands each to the selector
+ * thread with the fewest connections.
+ * <p>
+ * Connections that are idle on a selector thread, either between
+ * requests or while a packet is being received, are closed once they
+ * have been idle for longer than the MaxIdleTimeMs.  While the listener
+ * is out of threads, idle connections are not read until a thread is
+ * free.  A MaxIdleTimeMs of 0 or less means that connections do not
+ * time out.
+ *
+ * @version $Revision$
+ * @author Greg Wilkins (gregw)
+ */
+public class AJP13ChannelListener extends ThreadPool implements HttpListener
+{
+    private static Log log= LogFactory.getLog(AJP13ChannelListener.class);
+
+    private final static long __TICK_MS=500;
+
+    private InetSocketAddress _address;
+    private int _bufferSize= 8192;
+    private int _bufferReserve= 512;
+    private int _selectors=1;
+    private String _integralScheme=HttpMessage.__SSL_SCHEME;
+    private String _confidentialScheme=HttpMessage.__SSL_SCHEME;
+    private int _integralPort=0;
+    private int _confidentialPort=0;
+    private boolean _identifyListener=false;
+    private String[] _remoteServers;
+    private HttpHandler _handler;
+
+    private transient HttpServer _server;
+
+    private transient ServerSocketChannel _acceptChannel;
+    private transient SelectorThread _acceptorThread;
+    private transient SelectorThread[] _selectorThreads;
+    private transient int _nextSelector;
+    private transient boolean _isLow=false;
+    private transient boolean _isOut=false;
+    private transient long _warned=0;
+
+    /* ------------------------------------------------------------------------------- */
+    /** Constructor.
+     */
+    public AJP13ChannelListener()
+    {
+        super();
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public void setHttpServer(HttpServer server)
+    {
+        _server=server;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public HttpServer getHttpServer()
+    {
+        return _server;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public void setHost(String host) throws UnknownHostException
+    {
+        _address = new InetSocketAddress(host, _address == null ? 0 : _address.getPort());
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public String getHost()
+    {
+        if (_address == null || _address.getAddress() == null)
+            return null;
+        return _address.getHostName();
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public void setPort(int port)
+    {
+        if (_address == null || _address.getHostName() == null)
+            _address= new InetSocketAddress(port);
+        else
+            _address= new InetSocketAddress(_address.getHostName(), port);
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public int getPort()
+    {
+        if (_address == null)
+            return 0;
+        return _address.getPort();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The size of the buffers, which should hold a complete
+     * AJP13 packet.
+     */
+    public void setBufferSize(int size)
+    {
+        _bufferSize= size;
+        if (_bufferSize>AJP13Packet.__MAX_BUF)
+            log.warn("AJP Data buffer > "+AJP13Packet.__MAX_BUF+": "+size);
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public int getBufferSize()
+    {
+        return _bufferSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setBufferReserve(int size)
+    {
+        _bufferReserve= size;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public int getBufferReserve()
+    {
+        return _bufferReserve;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean getIdentifyListener()
+    {
+        return _identifyListener;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param identifyListener If true, the listener name is added to all
+     * requests as the org.mortbay.http.HttListener attribute
+     */
+    public void setIdentifyListener(boolean identifyListener)
+    {
+        _identifyListener=identifyListener;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return Array of accepted remote server hostnames or IPs.
+     */
+    public String[] getRemoteServers()
+    {
+        return _remoteServers;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set accepted remote servers. The AJP13 protocol is not secure and
+     * contains no authentication. If remote servers are set, then this
+     * listener will only accept connections from hosts with matching
+     * addresses or hostnames.
+     * @param servers Array of accepted remote server hostnames or IPs
+     */
+    public void setRemoteServers(String[] servers)
+    {
+        _remoteServers=servers;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public String getDefaultScheme()
+    {
+        return HttpMessage.__SCHEME;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** Customize the request from connection.
+     * This method extracts the channel from the connection and calls the
+     * customizeRequest(SocketChannel,HttpRequest) method.
+     */
+    public void customizeRequest(HttpConnection connection, HttpRequest request)
+    {
+        if (_identifyListener)
+            request.setAttribute(HttpListener.ATTRIBUTE,getName());
+
+        SocketChannel channel=(SocketChannel)(connection.getConnection());
+        customizeRequest(channel,request);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Customize request from channel.
+     * Derived listeners may specialize this method to customize the
+     * request with attributes of the channel used.
+     */
+    protected void customizeRequest(SocketChannel channel, HttpRequest request)
+    {
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public void persistConnection(HttpConnection connection)
+    {
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public boolean isLowOnResources()
+    {
+        boolean low = (getMaxThreads()-getThreads()+getIdleThreads())<getMinThreads();
+
+        if (low && !_isLow)
+        {
+            log.info("LOW ON THREADS (("+
+                      getMaxThreads()+"-"+
+                      getThreads()+"+"+
+                      getIdleThreads()+")<"+
+                      getMinThreads()+") on "+ this);
+            _warned=System.currentTimeMillis();
+            _isLow=true;
+        }
+        else if (!low && _isLow)
+        {
+            if (System.currentTimeMillis()-_warned > 1000)
+            {
+                _isOut=false;
+                _isLow=false;
+            }
+        }
+        return low;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public boolean isOutOfResources()
+    {
+        boolean out =
+            getThreads()==getMaxThreads() &&
+            getIdleThreads()==0;
+
+        if (out && !_isOut)
+        {
+            log.warn("OUT OF THREADS: "+this);
+            _warned=System.currentTimeMillis();
+            _isLow=true;
+            _isOut=true;
+        }
+
+        return out;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isIntegral(HttpConnection connection)
+    {
+        return ((AJP13Connection)connection).isSSL();
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isConfidential(HttpConnection connection)
+    {
+        return ((AJP13Connection)connection).isSSL();
+    }
+
+    /* ------------------------------------------------------------ */
+    public String getIntegralScheme()
+    {
+        return _integralScheme;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setIntegralScheme(String integralScheme)
+    {
+        _integralScheme=integralScheme;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getIntegralPort()
+    {
+        return _integralPort;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setIntegralPort(int integralPort)
+    {
+        _integralPort=integralPort;
+    }
+
+    /* ------------------------------------------------------------ */
+    public String getConfidentialScheme()
+    {
+        return _confidentialScheme;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setConfidentialScheme(String confidentialScheme)
+    {
+        _confidentialScheme=confidentialScheme;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getConfidentialPort()
+    {
+        return _confidentialPort;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setConfidentialPort(int confidentialPort)
+    {
+        _confidentialPort=confidentialPort;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the number of selector threads.
+     * If more than one selector thread is used, a separate acceptor
+     * thread is started to accept new connections.
+     * @param selectors The number of threads that select on connections.
+     */
+    public void setSelectorThreads(int selectors)
+    {
+        if (isStarted())
+            throw new IllegalStateException("Started");
+        _selectors= selectors<1?1:selectors;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of threads that select on connections.
+     */
+    public int getSelectorThreads()
+    {
+        return _selectors;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of connections registered with all selector threads.
+     */
+    public int getConnections()
+    {
+        SelectorThread[] selectors=_selectorThreads;
+        int connections=0;
+        for (int i=0;selectors!=null && i<selectors.length;i++)
+            connections+=selectors[i]._connections;
+        return connections;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setHttpHandler(HttpHandler handler)
+    {
+        _handler= handler;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public HttpHandler getHttpHandler()
+    {
+        return _handler;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void start() throws Exception
+    {
+        if (isStarted())
+            throw new IllegalStateException("Started");
+
+        // Create a new server socket and set to non blocking mode
+        _acceptChannel= ServerSocketChannel.open();
+        _acceptChannel.configureBlocking(false);
+
+        // Bind the server socket to the local host and port
+        _acceptChannel.socket().bind(_address);
+
+        // Read the address back from the server socket to fix issues
+        // with listeners on anonymous ports
+        _address= (InetSocketAddress)_acceptChannel.socket().getLocalSocketAddress();
+
+        // create the selector threads
+        _selectorThreads= new SelectorThread[_selectors];
+        for (int i=0;i<_selectors;i++)
+            _selectorThreads[i]= new SelectorThread(getName()+"-selector-"+i);
+
+        // Register accepts on the server socket with the only selector
+        // or with a dedicated acceptor.
+        if (_selectors==1)
+            _acceptorThread= _selectorThreads[0];
+        else
+            _acceptorThread= new SelectorThread(getName()+"-acceptor");
+        _acceptorThread._acceptor= true;
+        _acceptChannel.register(_acceptorThread._selector, SelectionKey.OP_ACCEPT);
+
+        // Start selector threads
+        for (int i=0;i<_selectors;i++)
+            _selectorThreads[i].start();
+        if (_selectors>1)
+            _acceptorThread.start();
+
+        // Start the thread Pool
+        super.start();
+        log.info("Started AJP13ChannelListener on " + getHost()+":"+getPort());
+        log.info("NOTICE: AJP13 is not a secure protocol. Please protect the port "+getHost()+":"+getPort());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void stop() throws InterruptedException
+    {
+        SelectorThread acceptor=_acceptorThread;
+        if (acceptor != null)
+            acceptor.doStop();
+        SelectorThread[] selectors=_selectorThreads;
+        for (int i=0;selectors!=null && i<selectors.length;i++)
+            selectors[i].doStop();
+        _acceptorThread=null;
+        _selectorThreads=null;
+
+        super.stop();
+        log.info("Stopped AJP13ChannelListener on " + getHost()+":"+getPort());
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Check that a connection is from an accepted remote server.
+     */
+    private boolean isRemoteServer(Socket socket)
+    {
+        if (_remoteServers==null || _remoteServers.length==0)
+            return true;
+
+        InetAddress inetAddress=socket.getInetAddress();
+        String hostAddr=inetAddress.getHostAddress();
+        String hostName=inetAddress.getHostName();
+        for (int i=0; i<_remoteServers.length; i++)
+        {
+            if (hostName.equals(_remoteServers[i])||hostAddr.equals(_remoteServers[i]))
+                return true;
+        }
+        log.warn("AJP13 Connection from un-approved host: "+inetAddress);
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Select the selector thread for a new connection.
+     * The selector thread with the fewest connections is chosen, with
+     * ties broken round robin. Only called by the acceptor thread.
+     * @return The selector thread or null if the listener is stopping.
+     */
+    private SelectorThread nextSelectorThread()
+    {
+        SelectorThread[] selectors=_selectorThreads;
+        if (selectors==null)
+            return null;
+        int n=selectors.length;
+        if (++_nextSelector>=n)
+            _nextSelector=0;
+        SelectorThread selector=selectors[_nextSelector];
+        for (int i=1;i<n;i++)
+        {
+            SelectorThread s=selectors[(_nextSelector+i)%n];
+            if (s._connections<selector._connections)
+                selector=s;
+        }
+        return selector;
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private class SelectorThread extends Thread
+    {
+        Selector _selector;
+        boolean _acceptor= false;
+        boolean _running= false;
+        Object _pending;
+        Object _deferred;
+        volatile int _connections;
+        TimingWheel _timeouts=new TimingWheel(__TICK_MS,System.currentTimeMillis());
+
+        /* ------------------------------------------------------------ */
+        SelectorThread(String name)
+            throws IOException
+        {
+            super(name);
+            _selector= Selector.open();
+        }
+
+        /* ------------------------------------------------------------ */
+        public void run()
+        {
+            try
+            {
+                _running= true;
+                while (_running)
+                {
+                    SelectionKey key= null;
+                    try
+                    {
+                        registerPending();
+                        _selector.select(_timeouts.size()>0||_deferred!=null?__TICK_MS:0);
+                        Iterator iter= _selector.selectedKeys().iterator();
+
+                        while (iter.hasNext())
+                        {
+                            key= (SelectionKey)iter.next();
+                            if (key.isValid() && key.isAcceptable())
+                                doAccept(key);
+                            if (key.isValid() && key.isReadable())
+                                doRead(key);
+                            key= null;
+                            iter.remove();
+                        }
+
+                        expire();
+                        resumeDeferred();
+                    }
+                    catch (CancelledKeyException e)
+                    {
+                        // The key of a connection closed by a handling thread
+                        LogSupport.ignore(log, e);
+                        _selector.selectedKeys().clear();
+                    }
+                    catch (Exception e)
+                    {
+                        if (_running)
+                            log.warn("selector", e);
+                        if (key != null)
+                            key.cancel();
+                    }
+                }
+            }
+            finally
+            {
+                log.info("Stopping " + this.getName());
+
+                try
+                {
+                    if (_acceptor && _acceptChannel != null)
+                    {
+                        _acceptChannel.close();
+                        _acceptChannel= null;
+                    }
+                }
+                catch (IOException e)
+                {
+                    LogSupport.ignore(log, e);
+                }
+
+                synchronized (this)
+                {
+                    for (int i=LazyList.size(_pending);i-->0;)
+                    {
+                        try
+                        {
+                            ((SocketChannel)LazyList.get(_pending,i)).close();
+                        }
+                        catch (IOException e)
+                        {
+                            LogSupport.ignore(log, e);
+                        }
+                    }
+                    _pending= null;
+
+                    if (_selector != null)
+                    {
+                        Iterator iter=_selector.keys().iterator();
+                        while (iter.hasNext())
+                        {
+                            SelectionKey key=(SelectionKey)iter.next();
+                            try
+                            {
+                                key.channel().close();
+                            }
+                            catch (IOException e)
+                            {
+                                LogSupport.ignore(log, e);
+                            }
+                        }
+
+                        try
+                        {
+                            _selector.close();
+                        }
+                        catch (IOException e)
+                        {
+                            LogSupport.ignore(log, e);
+                        }
+                    }
+                    _selector= null;
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        void doAccept(SelectionKey key)
+            throws IOException, InterruptedException
+        {
+            if (isLowOnResources())
+                return;
+
+            ServerSocketChannel server = (ServerSocketChannel) key.channel();
+            SocketChannel channel = server.accept();
+            if (channel==null)
+                return;
+
+            Socket socket=channel.socket();
+            if (!isRemoteServer(socket))
+            {
+                channel.close();
+                return;
+            }
+
+            channel.configureBlocking(false);
+            try
+            {
+                socket.setTcpNoDelay(true);
+            }
+            catch (Exception e)
+            {
+                LogSupport.ignore(log, e);
+            }
+
+            SelectorThread selector= nextSelectorThread();
+            if (selector==null)
+                channel.close();
+            else if (selector==this)
+            {
+                synchronized (this)
+                {
+                    _connections++;
+                }
+                register(channel);
+            }
+            else
+                selector.dispatch(channel);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Dispatch a channel to this selector thread.
+         * The channel is queued and registered by this thread, as
+         * registering with a selector blocks while it is selecting.
+         */
+        void dispatch(SocketChannel channel)
+            throws IOException
+        {
+            synchronized (this)
+            {
+                if (_selector==null)
+                {
+                    channel.close();
+                    return;
+                }
+                _pending= LazyList.add(_pending,channel);
+                _connections++;
+                _selector.wakeup();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private void registerPending()
+            throws IOException
+        {
+            Object pending;
+            synchronized (this)
+            {
+                pending=_pending;
+                _pending=null;
+            }
+            for (int i=0;i<LazyList.size(pending);i++)
+            {
+                SocketChannel channel=(SocketChannel)LazyList.get(pending,i);
+                try
+                {
+                    register(channel);
+                }
+                catch(IOException e)
+                {
+                    log.warn(e.toString());
+                    log.debug(e);
+                    deregister();
+                    channel.close();
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private void register(SocketChannel channel)
+            throws IOException
+        {
+            SelectionKey readKey = channel.register(_selector, SelectionKey.OP_READ);
+            Connection connection=new Connection(channel,readKey,AJP13ChannelListener.this,this);
+            readKey.attach(connection);
+
+            long now=System.currentTimeMillis();
+            connection._idleSince=now;
+            if (getMaxIdleTimeMs()>0)
+                _timeouts.schedule(connection._timeout,now+getMaxIdleTimeMs());
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Check the connections whose timeouts have expired.
+         */
+        private void expire()
+        {
+            long now=System.currentTimeMillis();
+            Object expired=_timeouts.expire(now);
+            for (int i=LazyList.size(expired);i-->0;)
+            {
+                TimingWheel.Timeout timeout=(TimingWheel.Timeout)LazyList.get(expired,i);
+                Connection connection=(Connection)timeout.getObject();
+                try
+                {
+                    connection.expired(now);
+                }
+                catch(IOException e)
+                {
+                    LogSupport.ignore(log,e);
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Read the connections deferred while out of resources.
+         */
+        private void resumeDeferred()
+        {
+            if (_deferred==null || isOutOfResources())
+                return;
+            for (int i=LazyList.size(_deferred);i-->0;)
+            {
+                SelectionKey key=(SelectionKey)LazyList.get(_deferred,i);
+                if (key.isValid())
+                    key.interestOps(SelectionKey.OP_READ);
+            }
+            _deferred=null;
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized void deregister()
+        {
+            _connections--;
+        }
+
+        /* ------------------------------------------------------------ */
+        void doRead(SelectionKey key)
+            throws IOException, InterruptedException
+        {
+            Connection connection = (Connection)key.attachment();
+            if (connection._idle && isOutOfResources())
+            {
+                // Don't read idle connections until a thread is free,
+                // but leave them to expire if none becomes free.
+                key.interestOps(0);
+                _deferred=LazyList.add(_deferred,key);
+                return;
+            }
+            if (connection.fill())
+                AJP13ChannelListener.this.run(connection);
+        }
+
+        /* ------------------------------------------------------------ */
+        void doStop()
+        {
+            _running=false;
+            synchronized (this)
+            {
+                if (_selector!=null)
+                    _selector.wakeup();
+            }
+            Thread.yield();
+        }
+    }
+
+
+    /* ------------------------------------------------------------------------------- */
+    /* ------------------------------------------------------------------------------- */
+    /* ------------------------------------------------------------------------------- */
+    private static class Connection
+      extends AJP13Connection
+      implements Runnable
+    {
+        boolean _idle=true;
+        SocketChannel _channel;
+        SelectionKey _key;
+        ChainedByteBufferInputStream _in;
+        SocketChannelOutputStream _out;
+        AJP13ChannelListener _listener;
+        SelectorThread _selectorThread;
+        ByteBuffer _packet;
+        long _idleSince;
+        TimingWheel.Timeout _timeout=new TimingWheel.Timeout(this);
+
+        private static final char[] __TE="transfer-encoding".toCharArray();
+
+        /* ------------------------------------------------------------------------------- */
+        Connection(SocketChannel channel,SelectionKey key, AJP13ChannelListener listener, SelectorThread selectorThread)
+            throws IOException
+        {
+            this(new ChainedByteBufferInputStream(listener.getBufferSize()),
+                 new SocketChannelOutputStream(channel,listener.getBufferSize()),
+                 channel,key,listener,selectorThread);
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        private Connection(ChainedByteBufferInputStream in, SocketChannelOutputStream out, SocketChannel channel,SelectionKey key, AJP13ChannelListener listener, SelectorThread selectorThread)
+            throws IOException
+        {
+            super(listener,in,out,channel,listener.getBufferSize());
+            _channel=channel;
+            _key=key;
+            _listener=listener;
+            _selectorThread=selectorThread;
+            _in=in;
+            _out=out;
+            _in.setTimeout(listener.getMaxIdleTimeMs()>0?listener.getMaxIdleTimeMs():Integer.MAX_VALUE);
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /** Fill the connection from the channel.
+         * Called by the selector thread when the channel is readable.
+         * While the connection is idle, bytes are accumulated in the
+         * packet buffer until a complete AJP13 packet has been received, so
+         * that a thread is not dispatched to wait for the rest of it. If
+         * the packet does not fit in the buffer, the connection is
+         * dispatched anyway and the rest of the packet is read by the
+         * handling thread.  Once dispatched, bytes are passed to the
+         * handling thread as they are read.
+         * @return True if the connection should be dispatched to a thread.
+         */
+        synchronized boolean fill()
+            throws IOException
+        {
+            if (_in==null)
+                return false;
+            if (!_idle)
+            {
+                ByteBuffer buf=_in.getBuffer();
+                if (_channel.read(buf)<0)
+                {
+                    _in.recycle(buf);
+                    close();
+                }
+                else
+                {
+                    buf.flip();
+                    _in.write(buf);
+                }
+                return false;
+            }
+
+            if (_packet==null)
+                _packet=_in.getBuffer();
+            if (_channel.read(_packet)<0)
+            {
+                _in.recycle(_packet);
+                _packet=null;
+                close();
+                return false;
+            }
+
+            // Wait for the rest of the packet and, if the packet is a
+            // forward request with content, for the first body chunk that
+            // the web server sends after it without being asked.
+            if (_packet.hasRemaining())
+            {
+                int length=packetLength(0);
+                if (length<0)
+                    return false;
+                if (_packet.get(AJP13Packet.__HDR_SIZE)==AJP13Packet.__FORWARD_REQUEST &&
+                    hasContent(length) && packetLength(length)<0)
+                    return false;
+            }
+
+            // dispatch the packet to the input stream
+            _packet.flip();
+            _in.write(_packet);
+            _packet=null;
+            _idle=false;
+            return true;
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /** The length of a packet in the packet buffer.
+         * @param offset The offset of the packet in the buffer.
+         * @return The length of the packet including its header, or -1 if
+         * the packet has not been completely received.
+         */
+        private int packetLength(int offset)
+        {
+            int bytes=_packet.position()-offset;
+            if (bytes<AJP13Packet.__HDR_SIZE)
+                return -1;
+            int length=AJP13Packet.__HDR_SIZE+getInt(offset+2);
+            return bytes<length?-1:length;
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /** Check if a forward request has content.
+         * The headers are scanned, without decoding, for a non zero
+         * content-length or for a transfer-encoding.  The lengths in the
+         * packet are not trusted, so a malformed packet is dispatched
+         * without waiting for content.
+         * @param end The end of the forward request packet in the buffer.
+         */
+        private boolean hasContent(int end)
+        {
+            // skip type, method, protocol, uri, addr, host, name, port and ssl
+            int p=AJP13Packet.__HDR_SIZE+2;
+            for (int i=0;i<5;i++)
+                p=skipString(p,end);
+            p=Math.min(p+3,end);
+            int headers=getInt(p,end);
+            p+=2;
+
+            for (int h=0;h<headers && p<end;h++)
+            {
+                int code=getInt(p,end);
+                if (code<0)
+                    break;
+                if ((code&0xFF00)==0xA000)
+                {
+                    p+=2;
+                    if (code==0xA008)
+                    {
+                        // content-length, which is not "0"
+                        int len=getInt(p,end);
+                        return len>0 && len!=0xFFFF && p+2+len<=end &&
+                            !(len==1 && _packet.get(p+2)=='0');
+                    }
+                }
+                else
+                {
+                    if (code==__TE.length && p+2+code<=end)
+                    {
+                        int i=0;
+                        while (i<code && Character.toLowerCase((char)_packet.get(p+2+i))==__TE[i])
+                            i++;
+                        if (i==code)
+                            return true;
+                    }
+                    p=skipString(p,end);
+                }
+                p=skipString(p,end);
+            }
+            return false;
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /**
+         * @return The integer at p, or -1 if it is not before end.
+         */
+        private int getInt(int p, int end)
+        {
+            if (p<0 || p+2>end)
+                return -1;
+            return getInt(p);
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        private int getInt(int p)
+        {
+            return ((_packet.get(p)&0xFF)<<8)|(_packet.get(p+1)&0xFF);
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /**
+         * @return The position after the string at p, clamped to end.
+         */
+        private int skipString(int p, int end)
+        {
+            int len=getInt(p,end);
+            if (len<0)
+                return end;
+            p=len==0xFFFF?p+2:p+3+len;
+            return p>end?end:p;
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /** Return the connection to the selector if no input is buffered.
+         * Any bytes already buffered are handled by the current thread, even
+         * if they are not yet a complete packet.
+         * @return True if the connection is now idle.
+         */
+        private synchronized boolean idle()
+            throws IOException
+        {
+            if (_in==null || _in.available()>0)
+                return false;
+            _idle=true;
+            _idleSince=System.currentTimeMillis();
+            return true;
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /** Check the idle time.
+         * Called by the selector thread when the timeout expires.  The
+         * timeout is not rescheduled each time the connection goes idle,
+         * so it is rescheduled here if the connection is being handled
+         * or has not yet been idle for the maximum idle time. A partial
+         * packet, or a forward request waiting for its body, does not
+         * count as activity.
+         */
+        synchronized void expired(long now)
+            throws IOException
+        {
+            if (_in==null || _selectorThread==null)
+                return;
+            long expiry=(_idle?_idleSince:now)+_listener.getMaxIdleTimeMs();
+            if (expiry>now)
+                _selectorThread._timeouts.schedule(_timeout,expiry);
+            else
+            {
+                if (log.isDebugEnabled())log.debug("Idle "+_channel);
+                close();
+            }
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        public void run()
+        {
+            try
+            {
+                associateThread();
+                while (_listener!=null && _listener.isStarted())
+                {
+                    if (!handleNext())
+                    {
+                        destroy();
+                        break;
+                    }
+                    recycle();
+                    if (idle())
+                        break;
+                }
+            }
+            catch(IOException e)
+            {
+                log.warn(e.toString());
+                log.debug(e);
+                destroy();
+            }
+            finally
+            {
+                disassociateThread();
+            }
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        public synchronized void close()
+            throws IOException
+        {
+            if (_selectorThread!=null)
+            {
+                _selectorThread._timeouts.cancel(_timeout);
+                _selectorThread.deregister();
+                _selectorThread=null;
+            }
+            if (_in!=null)
+                _in.close();
+            if (_channel==null || !_channel.isOpen())
+                return;
+            _key.cancel();
+            _channel.close();
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        public void destroy()
+        {
+            try
+            {
+                close();
+            }
+            catch (IOException e)
+            {
+                LogSupport.ignore(log,e);
+            }
+            super.destroy();
+            synchronized (this)
+            {
+                if (_in!=null)
+                    _in.destroy();
+                _in=null;
+                if (_out!=null)
+                    _out.destroy();
+                _out=null;
+                _channel=null;
+                _key=null;
+                _listener=null;
+                _packet=null;
+            }
+        }
+    }
+}
@@ -26,8 +26,10 @@ import org.mortbay.log.LogFactory;
 import org.mortbay.util.LazyList;
 
 /* ------------------------------------------------------------------------------- */
-/** 
- * 
+/** Synchronized ByteBuffer InputStream.
+ * An InputStream fed with ByteBuffers, that uses wait/notify between 
+ * the writing and reading threads.
+ * @see ChainedByteBufferInputStream
  * @version $Revision$
  * @author gregw
  */
@@ -82,14 +84,17 @@ public class ByteBufferInputStream extends InputStream
     }
 
     /* ------------------------------------------------------------------------------- */
-    /*
+    /** Available bytes.
+     * Unlike the read methods, this method does not wait for content.
+     * @return The number of bytes that can be read without blocking.
      * @see java.io.InputStream#available()
      */
     public synchronized int available() throws IOException
     {
-        if (!waitForContent())
-            return -1;
-         return _buffer.remaining();
+        int available=_buffer==null?0:_buffer.remaining();
+        for (int i=LazyList.size(_buffers);i-->0;)
+            available+=((ByteBuffer)LazyList.get(_buffers,i)).remaining();
+        return available;
     }
 
     /* ------------------------------------------------------------------------------- */
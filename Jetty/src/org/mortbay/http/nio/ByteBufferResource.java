@@ -0,0 +1,350 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import org.mortbay.http.HttpOutputStream;
+import org.mortbay.util.ByteArrayPool;
+import org.mortbay.util.Resource;
+
+/* ------------------------------------------------------------ */
+/** ByteBuffer cached resource.
+ * This resource caches the contents of another resource outside of
+ * the java heap.  The content of a file may be memory mapped, while
+ * the content of other resources is read into a direct buffer.
+ * <p>
+ * The length of a mapped file is checked before its content is
+ * written, and a fault accessing the mapping is thrown as an
+ * IOException, as the file may be truncated while it is mapped.
+ * <p>
+ * Content written to a HttpOutputStream of a SocketChannelListener
+ * connection is written directly from the buffer to the channel.
+ * Otherwise it is copied to the stream.
+ * <p>
+ * The buffer is released when the resource is garbage collected.
+ *
+ * @see org.mortbay.http.ResourceCache
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class ByteBufferResource extends Resource
+{
+    Resource _resource;
+    long _lastModified;
+    ByteBuffer _buffer;
+    File _mapped;
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * The content of a file is memory mapped.
+     * @param resource The resource to cache.
+     * @exception IOException
+     */
+    public ByteBufferResource(Resource resource)
+        throws IOException
+    {
+        this(resource,true);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * @param resource The resource to cache.
+     * @param map If true, the content of a file is memory mapped rather
+     * than read into a direct buffer.
+     * @exception IOException
+     */
+    public ByteBufferResource(Resource resource, boolean map)
+        throws IOException
+    {
+        _resource=resource;
+        _lastModified=resource.lastModified();
+
+        File file=map?resource.getFile():null;
+        if (file!=null)
+        {
+            FileInputStream in=new FileInputStream(file);
+            try
+            {
+                FileChannel channel=in.getChannel();
+                _buffer=channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+                _mapped=file;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        else
+        {
+            ByteBuffer buffer=ByteBuffer.allocateDirect((int)resource.length());
+            InputStream in=resource.getInputStream();
+            try
+            {
+                ReadableByteChannel channel=Channels.newChannel(in);
+                while (buffer.hasRemaining() && channel.read(buffer)>=0);
+            }
+            finally
+            {
+                in.close();
+            }
+            buffer.flip();
+            _buffer=buffer;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A read only view of the cached content.
+     */
+    public ByteBuffer getBuffer()
+    {
+        return _buffer.asReadOnlyBuffer();
+    }
+
+    /* ------------------------------------------------------------ */
+    public void release()
+    {
+        _resource.release();
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean exists()
+    {
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isDirectory()
+    {
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    public long lastModified()
+    {
+        return _lastModified;
+    }
+
+    /* ------------------------------------------------------------ */
+    public long length()
+    {
+        return _buffer.limit();
+    }
+
+    /* ------------------------------------------------------------ */
+    public URL getURL()
+    {
+        return _resource.getURL();
+    }
+
+    /* ------------------------------------------------------------ */
+    public File getFile()
+        throws IOException
+    {
+        return _resource.getFile();
+    }
+
+    /* ------------------------------------------------------------ */
+    public String getName()
+    {
+        return _resource.getName();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Returns an input stream to the cached content.
+     */
+    public InputStream getInputStream()
+        throws IOException
+    {
+        final ByteBuffer buffer=_buffer.duplicate();
+        return new InputStream()
+            {
+                public int read()
+                {
+                    if (!buffer.hasRemaining())
+                        return -1;
+                    return buffer.get()&0xff;
+                }
+
+                public int read(byte[] b, int offset, int length)
+                {
+                    if (!buffer.hasRemaining())
+                        return -1;
+                    if (length>buffer.remaining())
+                        length=buffer.remaining();
+                    buffer.get(b,offset,length);
+                    return length;
+                }
+
+                public long skip(long n)
+                {
+                    if (n>buffer.remaining())
+                        n=buffer.remaining();
+                    buffer.position(buffer.position()+(int)n);
+                    return n;
+                }
+
+                public int available()
+                {
+                    return buffer.remaining();
+                }
+            };
+    }
+
+    /* ------------------------------------------------------------ */
+    public OutputStream getOutputStream()
+        throws IOException, SecurityException
+    {
+        return _resource.getOutputStream();
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean delete()
+        throws SecurityException
+    {
+        return _resource.delete();
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean renameTo(Resource dest)
+        throws SecurityException
+    {
+        return _resource.renameTo(dest);
+    }
+
+    /* ------------------------------------------------------------ */
+    public String[] list()
+    {
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    public Resource addPath(String path)
+        throws IOException,MalformedURLException
+    {
+        return _resource.addPath(path);
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        return _resource.toString();
+    }
+
+    /* ------------------------------------------------------------ */
+    public int hashCode()
+    {
+        return _resource.hashCode();
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean equals(Object o)
+    {
+        return _resource.equals(o);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the content is a memory mapped file.
+     */
+    public boolean isMapped()
+    {
+        return _mapped!=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void writeTo(OutputStream out, long start, long count)
+        throws IOException
+    {
+        if (count<0)
+            count=_buffer.limit()-start;
+
+        if (_mapped==null)
+        {
+            write(out,start,count);
+            return;
+        }
+        
+        if (_mapped.length()<start+count)
+            throw new IOException("Truncated "+_resource);
+        try
+        {
+            write(out,start,count);
+        }
+        catch(InternalError e)
+        {
+            throw new IOException("Mapping fault "+_resource+": "+e);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void write(OutputStream out, long start, long count)
+        throws IOException
+    {
+        ByteBuffer buffer=_buffer.duplicate();
+        buffer.position((int)start);
+        buffer.limit((int)(start+count));
+
+        // Write directly to channel based connections
+        if (out instanceof HttpOutputStream)
+        {
+            HttpOutputStream hout=(HttpOutputStream)out;
+            if (hout.getOutputStream() instanceof SocketChannelOutputStream)
+            {
+                int length=hout.prepareDirectOutput((int)count);
+                if (length>=0)
+                {
+                    if (length>0)
+                    {
+                        buffer.limit(buffer.position()+length);
+                        ((SocketChannelOutputStream)hout.getOutputStream()).write(buffer);
+                    }
+                    return;
+                }
+            }
+        }
+
+        // Copy to other streams
+        byte[] bytes=ByteArrayPool.getByteArray(8192);
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                int length=buffer.remaining();
+                if (length>bytes.length)
+                    length=bytes.length;
+                buffer.get(bytes,0,length);
+                out.write(bytes,0,length);
+            }
+        }
+        finally
+        {
+            ByteArrayPool.returnByteArray(bytes);
+        }
+    }
+}
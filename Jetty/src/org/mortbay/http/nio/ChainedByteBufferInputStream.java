@@ -0,0 +1,334 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+
+/* ------------------------------------------------------------------------------- */
+/** Single producer, single consumer ByteBuffer InputStream.
+ * An InputStream fed with ByteBuffers by a single producer thread
+ * (normally a selector thread) and read by a single consumer thread.
+ * <p>
+ * The buffers are passed from producer to consumer on a linked chain
+ * whose links are volatile, so that neither write(ByteBuffer) nor the
+ * read methods take a lock unless the consumer has run out of content
+ * and must wait.  Consumed buffers are passed back to the producer on
+ * a second chain, to be reused by getBuffer().
+ * <p>
+ * The write, getBuffer and recycle methods must only be called by the
+ * producer thread and the read, skip and available methods must only
+ * be called by the consumer thread. The close method may be called by
+ * any thread.
+ *
+ * @see ByteBufferInputStream
+ * @version $Revision$
+ * @author gregw
+ */
+public class ChainedByteBufferInputStream extends InputStream
+{
+    private static Log log= LogFactory.getLog(ChainedByteBufferInputStream.class);
+
+    long _timeout=30000;
+    int _bufferSize;
+    volatile boolean _closed=false;
+    volatile boolean _waiting=false;
+    Object _lock=new Object();
+
+    // Consumer state
+    Link _head=new Link(null);
+    ByteBuffer _buffer;
+    Link _recycleTail;
+
+    // Producer state
+    Link _tail=_head;
+    Link _recycleHead=new Link(null);
+    ByteBuffer _spare;
+
+    /* ------------------------------------------------------------------------------- */
+    /** Constructor.
+     */
+    public ChainedByteBufferInputStream(int bufferSize)
+    {
+        super();
+        _bufferSize=bufferSize;
+        _recycleTail=_recycleHead;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** getSoTimeout.
+     * @return
+     */
+    public long getTimeout()
+    {
+        return _timeout;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** setSoTimeout.
+     * @param l
+     */
+    public void setTimeout(long l)
+    {
+        _timeout= l;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /*
+     * @see java.io.InputStream#read()
+     */
+    public int read() throws IOException
+    {
+        if (!waitForContent())
+            return -1;
+        return _buffer.get()&0xff;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** Available bytes.
+     * This method does not wait for content.
+     * @return The number of bytes that can be read without blocking.
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException
+    {
+        int available=_buffer==null?0:_buffer.remaining();
+        for (Link link=_head._next;link!=null;link=link._next)
+        {
+            ByteBuffer buffer=link._buffer;
+            if (buffer!=null)
+                available+=buffer.remaining();
+        }
+        return available;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /*
+     * @see java.io.InputStream#close()
+     */
+    public void close() throws IOException
+    {
+        _closed=true;
+        synchronized(_lock)
+        {
+            _lock.notifyAll();
+        }
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /*
+     * @see java.io.InputStream#markSupported()
+     */
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /*
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] buf, int offset, int length)
+        throws IOException
+    {
+        if (length==0)
+            return 0;
+        if (!waitForContent())
+            return -1;
+
+        if (length>_buffer.remaining())
+            length=_buffer.remaining();
+
+        _buffer.get(buf, offset, length);
+        return length;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /*
+     * @see java.io.InputStream#read(byte[])
+     */
+    public int read(byte[] buf) throws IOException
+    {
+        return read(buf,0,buf.length);
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(long length) throws IOException
+    {
+        if (!waitForContent())
+            return 0;
+        if (length>_buffer.remaining())
+            length=_buffer.remaining();
+        _buffer.position((int)(_buffer.position()+length));
+        return length;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** Write a buffer to the stream.
+     * Called only by the producer thread.  The buffer is passed to the
+     * consumer and must not be modified by the caller.
+     * @param buffer The buffer, flipped ready to be read.
+     */
+    public void write(ByteBuffer buffer)
+    {
+        if (!buffer.hasRemaining())
+        {
+            recycle(buffer);
+            return;
+        }
+
+        Link link=new Link(buffer);
+        _tail._next=link;
+        _tail=link;
+
+        if (_waiting)
+        {
+            synchronized(_lock)
+            {
+                _lock.notify();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** Wait for content.
+     * Called only by the consumer thread.  A lock is only taken if no
+     * content is available.
+     * @return True if content is available, false if the stream is closed.
+     */
+    private boolean waitForContent()
+        throws InterruptedIOException
+    {
+        if (_buffer!=null)
+        {
+            if (_buffer.hasRemaining())
+                return true;
+
+            // pass the buffer back to the producer
+            Link link=new Link(_buffer);
+            _recycleTail._next=link;
+            _recycleTail=link;
+            _buffer=null;
+        }
+
+        if (_closed)
+            return false;
+
+        Link next=_head._next;
+        if (next==null)
+        {
+            synchronized(_lock)
+            {
+                _waiting=true;
+                try
+                {
+                    long end=System.currentTimeMillis()+_timeout;
+                    long wait=_timeout;
+                    while((next=_head._next)==null && !_closed && wait>0)
+                    {
+                        _lock.wait(wait);
+                        wait=end-System.currentTimeMillis();
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    log.debug(e);
+                    throw new InterruptedIOException(e.toString());
+                }
+                finally
+                {
+                    _waiting=false;
+                }
+            }
+
+            if (_closed)
+                return false;
+            if (next==null)
+                throw new SocketTimeoutException();
+        }
+
+        _head=next;
+        _buffer=next._buffer;
+        next._buffer=null;
+        return true;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** Get a buffer to write to this InputStream.
+     * Called only by the producer thread.
+     * The buffer wll either be a new direct buffer or a recycled buffer.
+     */
+    public ByteBuffer getBuffer()
+    {
+        ByteBuffer buf=_spare;
+        if (buf!=null)
+            _spare=null;
+        else
+        {
+            Link next=_recycleHead._next;
+            if (next!=null)
+            {
+                _recycleHead=next;
+                buf=next._buffer;
+                next._buffer=null;
+            }
+            else
+                return ByteBuffer.allocateDirect(_bufferSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** Recycle a buffer that was not written to the stream.
+     * Called only by the producer thread.
+     */
+    public void recycle(ByteBuffer buf)
+    {
+        _spare=buf;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    public void destroy()
+    {
+        _buffer=null;
+        _spare=null;
+        _head=_tail=new Link(null);
+        _recycleHead=_recycleTail=new Link(null);
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /* ------------------------------------------------------------------------------- */
+    private static class Link
+    {
+        ByteBuffer _buffer;
+        volatile Link _next;
+
+        Link(ByteBuffer buffer)
+        {
+            _buffer=buffer;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.http.HttpTunnel;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.TimingWheel;
+
+/* ------------------------------------------------------------ */
+/** Channel Tunnel.
+ * A {@link HttpTunnel} to a SocketChannel.  If the tunnelled
+ * connection was received by a {@link SocketChannelListener}, the
+ * listener hands the client channel to the tunnel and the bytes are
+ * copied between the two channels by a {@link TunnelSelector} thread,
+ * using a pooled direct buffer for each direction, so that no thread
+ * is held while the tunnel is open.  Otherwise the tunnel is handled by
+ * {@link HttpTunnel#handle(java.io.InputStream,java.io.OutputStream)}
+ * with blocking streams.
+ * <p>
+ * The end of input in one direction is passed on by shutting down the
+ * output of the other channel, and the tunnel is closed once both
+ * directions have ended, if either channel fails or if no bytes are
+ * transferred for the timeout of the tunnel.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class ChannelTunnel extends HttpTunnel
+{
+    private static Log log = LogFactory.getLog(ChannelTunnel.class);
+
+    /* ------------------------------------------------------------ */
+    private TunnelSelector _tunnelSelector;
+    private SocketChannel _server;
+    private SocketChannel _client;
+    private byte[] _buffered;
+
+    // Used only by the selector thread
+    private TunnelSelector.SelectorThread _thread;
+    private SelectionKey _clientKey;
+    private SelectionKey _serverKey;
+    private Flow _inFlow;
+    private Flow _outFlow;
+    private TimingWheel.Timeout _timeout;
+    private long _lastActivity;
+    private boolean _closed;
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * @param server A connected blocking channel to the server.
+     * @param tunnelSelector The selector used if the client channel is
+     * dispatched.
+     * @exception IOException
+     */
+    public ChannelTunnel(SocketChannel server, TunnelSelector tunnelSelector)
+        throws IOException
+    {
+        super(server.socket(),null,null);
+        _server=server;
+        _tunnelSelector=tunnelSelector;
+    }
+
+    /* ------------------------------------------------------------ */
+    public SocketChannel getServerChannel()
+    {
+        return _server;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Dispatch the tunnel to the selector.
+     * @param client The client channel, which is in non blocking mode
+     * and not otherwise used once dispatched.
+     * @param buffered Bytes already received from the client, or null.
+     * @exception IOException
+     */
+    public void dispatch(SocketChannel client, byte[] buffered)
+        throws IOException
+    {
+        _client=client;
+        _buffered=buffered;
+        _tunnelSelector.dispatch(this);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Register the channels with a selector thread.
+     * Called by the selector thread.
+     */
+    void register(TunnelSelector.SelectorThread thread, long now)
+        throws IOException
+    {
+        _thread=thread;
+        _lastActivity=now;
+        int size=_tunnelSelector.getBufferSize();
+        if (_buffered!=null && _buffered.length>size)
+            size=_buffered.length;
+        _inFlow=new Flow(_client,_server,DirectBufferPool.getBuffer(size),true);
+        _outFlow=new Flow(_server,_client,DirectBufferPool.getBuffer(_tunnelSelector.getBufferSize()),false);
+        if (_buffered!=null)
+            _inFlow._buffer.put(_buffered);
+        _buffered=null;
+
+        _server.configureBlocking(false);
+        _client.configureBlocking(false);
+        _clientKey=_client.register(thread._selector,0,this);
+        _serverKey=_server.register(thread._selector,0,this);
+
+        _timeout=new TimingWheel.Timeout(this);
+        if (getTimeoutMs()>0)
+            thread._timeouts.schedule(_timeout,now+getTimeoutMs());
+
+        selected(now);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Copy bytes in both directions and update the interest sets.
+     * Called by the selector thread when either channel is selected.
+     */
+    void selected(long now)
+        throws IOException
+    {
+        if (_closed)
+            return;
+        if (_inFlow.flow() | _outFlow.flow())
+            _lastActivity=now;
+
+        if (_inFlow._shutdown && _outFlow._shutdown)
+        {
+            close();
+            return;
+        }
+
+        _clientKey.interestOps((_inFlow.wantRead()?SelectionKey.OP_READ:0)|
+                               (_outFlow.wantWrite()?SelectionKey.OP_WRITE:0));
+        _serverKey.interestOps((_outFlow.wantRead()?SelectionKey.OP_READ:0)|
+                               (_inFlow.wantWrite()?SelectionKey.OP_WRITE:0));
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Check the idle time.
+     * Called by the selector thread when the timeout expires.  As the
+     * timeout is not rescheduled for every transfer, it is rescheduled
+     * here if there has been activity since it was scheduled.
+     */
+    void expired(long now)
+    {
+        if (_closed)
+            return;
+        long expiry=_lastActivity+getTimeoutMs();
+        if (expiry>now)
+            _thread._timeouts.schedule(_timeout,expiry);
+        else
+        {
+            if (log.isDebugEnabled())log.debug("Idle "+this);
+            close();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Close the tunnel.
+     */
+    void close()
+    {
+        if (_closed)
+            return;
+        _closed=true;
+
+        try{_client.close();}
+        catch(IOException e){LogSupport.ignore(log,e);}
+        try{_server.close();}
+        catch(IOException e){LogSupport.ignore(log,e);}
+
+        if (_thread!=null)
+        {
+            if (_timeout!=null)
+                _thread._timeouts.cancel(_timeout);
+            _thread.deregister();
+            _thread=null;
+        }
+        if (_inFlow!=null)
+        {
+            DirectBufferPool.returnBuffer(_inFlow._buffer);
+            _inFlow._buffer=null;
+        }
+        if (_outFlow!=null)
+        {
+            DirectBufferPool.returnBuffer(_outFlow._buffer);
+            _outFlow._buffer=null;
+        }
+        if (log.isDebugEnabled())log.debug("Closed "+this);
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        return "ChannelTunnel@"+Integer.toHexString(hashCode())+" "+
+            _client+"<->"+_server+" in="+_bytesIn+" out="+_bytesOut;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** One direction of the tunnel.
+     * The buffer is kept ready for reading from the channel, with the
+     * bytes not yet written between 0 and the position.
+     */
+    private class Flow
+    {
+        SocketChannel _from;
+        SocketChannel _to;
+        ByteBuffer _buffer;
+        boolean _fromClient;
+        boolean _eof;
+        boolean _shutdown;
+
+        /* ------------------------------------------------------------ */
+        Flow(SocketChannel from, SocketChannel to, ByteBuffer buffer, boolean fromClient)
+        {
+            _from=from;
+            _to=to;
+            _buffer=buffer;
+            _fromClient=fromClient;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Copy as many bytes as can be read and written without blocking.
+         * @return True if any bytes were transferred.
+         */
+        boolean flow()
+            throws IOException
+        {
+            boolean progress=false;
+            while (true)
+            {
+                int read=0;
+                if (!_eof && _buffer.hasRemaining())
+                {
+                    read=_from.read(_buffer);
+                    if (read<0)
+                    {
+                        _eof=true;
+                        read=0;
+                    }
+                }
+
+                int written=0;
+                if (_buffer.position()>0)
+                {
+                    _buffer.flip();
+                    written=_to.write(_buffer);
+                    _buffer.compact();
+                    if (written>0)
+                    {
+                        if (_fromClient)
+                        {
+                            _bytesIn+=written;
+                            _tunnelSelector._bytesIn.add(written);
+                        }
+                        else
+                        {
+                            _bytesOut+=written;
+                            _tunnelSelector._bytesOut.add(written);
+                        }
+                    }
+                }
+
+                if (read==0 && written==0)
+                    break;
+                progress=true;
+            }
+
+            if (_eof && _buffer.position()==0 && !_shutdown)
+            {
+                _shutdown=true;
+                _to.socket().shutdownOutput();
+            }
+            return progress;
+        }
+
+        /* ------------------------------------------------------------ */
+        boolean wantRead()
+        {
+            return !_eof && _buffer.hasRemaining();
+        }
+
+        /* ------------------------------------------------------------ */
+        boolean wantWrite()
+        {
+            return _buffer.position()>0;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.nio.ByteBuffer;
+
+import org.mortbay.util.BufferPool;
+
+/* ------------------------------------------------------------ */
+/** Direct ByteBuffer Pool.
+ * A {@link BufferPool} of direct ByteBuffers, which are expensive to
+ * allocate and are only released by the garbage collector.  The
+ * number of buffers of each size cached per thread and held in the
+ * shared depot are set by the
+ * org.mortbay.http.nio.DirectBufferPool.pool_size and
+ * org.mortbay.http.nio.DirectBufferPool.depot_size system properties.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class DirectBufferPool extends BufferPool
+{
+    public static final int __POOL_SIZE=
+        Integer.getInteger("org.mortbay.http.nio.DirectBufferPool.pool_size",1).intValue();
+    public static final int __DEPOT_SIZE=
+        Integer.getInteger("org.mortbay.http.nio.DirectBufferPool.depot_size",64).intValue();
+
+    private static final DirectBufferPool __pool=new DirectBufferPool();
+
+    /* ------------------------------------------------------------ */
+    private DirectBufferPool()
+    {
+        super("DirectBufferPool",__POOL_SIZE,__DEPOT_SIZE);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The pool of direct buffers.
+     */
+    public static DirectBufferPool getPool()
+    {
+        return __pool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get a cleared direct buffer.
+     * @param size The capacity of the buffer.
+     * @return A pooled or new direct buffer.
+     */
+    public static ByteBuffer getBuffer(int size)
+    {
+        ByteBuffer buffer=(ByteBuffer)__pool.acquire(size,false);
+        buffer.clear();
+        return buffer;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Return a buffer to the pool.
+     * The buffer must not be used once it is returned.
+     * @param buffer The buffer, which may be null.
+     */
+    public static void returnBuffer(ByteBuffer buffer)
+    {
+        if (buffer!=null && buffer.isDirect())
+            __pool.release(buffer);
+    }
+
+    /* ------------------------------------------------------------ */
+    protected Object newBuffer(int capacity)
+    {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /* ------------------------------------------------------------ */
+    protected int capacity(Object buffer)
+    {
+        return ((ByteBuffer)buffer).capacity();
+    }
+}
@@ -0,0 +1,213 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.nio.ByteBuffer;
+
+/* ------------------------------------------------------------------------------- */
+/** Incremental HTTP header scanner.
+ * A resumable state machine that is fed the bytes of a request as they
+ * arrive on a non-blocking connection and detects the end of the request
+ * line and header block, so that a thread need only be dispatched to
+ * parse and handle a request once it can do so without blocking.
+ * <p>
+ * Leading whitespace and blank lines before a request line are ignored,
+ * as are the bytes after the end of the header, which may be content or
+ * a pipelined request.  Both CRLF and bare LF line terminators are
+ * accepted, as they are by {@link org.mortbay.util.LineInput}.
+ * <p>
+ * A request line with fewer than three space separated words has no
+ * protocol version, so it is an HTTP/0.9 request without a header
+ * and the end of the request line is the end of the header.
+ * <p>
+ * This class is not synchronized.
+ *
+ * @version $Revision$
+ * @author gregw
+ */
+public class HttpHeaderScanner
+{
+    /* ------------------------------------------------------------------------------- */
+    public final static int
+        __START=0,      // Skipping whitespace before the request line
+        __LINE=1,       // Within a line
+        __CR=2,         // CR seen at end of a line
+        __EOL=3,        // End of a line seen
+        __EOL_CR=4,     // CR seen at start of a line
+        __END=5;        // End of the header seen
+
+    private final static byte CR=(byte)'\015';
+    private final static byte LF=(byte)'\012';
+
+    private int _state=__START;
+    private int _start=-1;
+    private int _length;
+    private boolean _requestLine;
+    private boolean _space;
+    private int _words;
+
+    /* ------------------------------------------------------------------------------- */
+    /** Scan bytes from a buffer.
+     * The bytes between offset and the limit of the buffer are scanned,
+     * without changing the position of the buffer.  Scanning stops when
+     * the end of the header is found.
+     * @param buffer The buffer to scan
+     * @param offset The index of the first byte to scan
+     * @return True if the end of the header has been seen.
+     */
+    public boolean scan(ByteBuffer buffer, int offset)
+    {
+        int limit=buffer.limit();
+        for (int i=offset;i<limit && _state!=__END;i++)
+        {
+            byte b=buffer.get(i);
+
+            if (_state==__START)
+            {
+                if (b>' ')
+                {
+                    _start=i;
+                    _state=__LINE;
+                    _length++;
+                    _requestLine=true;
+                    _space=false;
+                    _words=1;
+                }
+                continue;
+            }
+            _length++;
+
+            switch(_state)
+            {
+              case __LINE:
+                  if (b==CR)
+                      _state=__CR;
+                  else if (b==LF)
+                      _state=eol();
+                  else if (_requestLine)
+                  {
+                      if (b==' ')
+                          _space=true;
+                      else if (_space)
+                      {
+                          _space=false;
+                          _words++;
+                      }
+                  }
+                  break;
+
+              case __CR:
+                  if (b==LF)
+                      _state=eol();
+                  else if (b==CR)
+                      _state=__END;
+                  else
+                      _state=__LINE;
+                  break;
+
+              case __EOL:
+                  if (b==CR)
+                      _state=__EOL_CR;
+                  else if (b==LF)
+                      _state=__END;
+                  else
+                      _state=__LINE;
+                  break;
+
+              case __EOL_CR:
+                  if (b==LF || b==CR)
+                      _state=__END;
+                  else
+                      _state=__LINE;
+                  break;
+            }
+        }
+        return _state==__END;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @return The state after the end of a line.
+     */
+    private int eol()
+    {
+        if (_requestLine)
+        {
+            _requestLine=false;
+            if (_words<3)
+                return __END;
+        }
+        return __EOL;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @return The current state of the scanner.
+     */
+    public int getState()
+    {
+        return _state;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @return True if the request line has been started.
+     */
+    public boolean isStarted()
+    {
+        return _state!=__START;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @return True if the end of the header has been seen.
+     */
+    public boolean isComplete()
+    {
+        return _state==__END;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @return The buffer index of the first byte of the request line
+     * or -1 if it has not been seen.
+     */
+    public int getStart()
+    {
+        return _start;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @return The number of header bytes scanned since the start of the
+     * request line.
+     */
+    public int getLength()
+    {
+        return _length;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** Reset the scanner for a new request.
+     */
+    public void reset()
+    {
+        _state=__START;
+        _start=-1;
+        _length=0;
+        _requestLine=false;
+    }
+}
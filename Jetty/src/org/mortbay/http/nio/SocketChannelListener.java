@@ -20,6 +20,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -34,12 +35,25 @@ import org.mortbay.http.HttpListener;
 import org.mortbay.http.HttpMessage;
 import org.mortbay.http.HttpRequest;
 import org.mortbay.http.HttpServer;
+import org.mortbay.util.LazyList;
 import org.mortbay.util.LineInput;
 import org.mortbay.util.LogSupport;
 import org.mortbay.util.ThreadPool;
+import org.mortbay.util.TimingWheel;
 
 /* ------------------------------------------------------------------------------- */
 /**  EXPERIMENTAL NIO listener!
+ * <p>
+ * By default a single selector thread both accepts new connections and
+ * reads from idle connections.  If more than one selector thread is
+ * configured with {@link #setSelectorThreads(int)}, then a dedicated
+ * acceptor thread accepts connections and hands each to the selector
+ * thread with the fewest connections, so that idle connection reads
+ * may be spread over several CPUs.
+ * <p>
+ * Connections that are idle on a selector thread, either between
+ * requests or while a request header is being received, are closed
+ * once they have been idle for longer than the maximum idle time.
  * 
  * @version $Revision$
  * @author gregw
@@ -48,18 +62,22 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
 {
     private static Log log= LogFactory.getLog(SocketChannelListener.class);
     
+    private final static long __TICK_MS=500;
+    
     private InetSocketAddress _address;
     private int _bufferSize= 4096;
     private int _bufferReserve= 512;
     private int _sslPort;
     private int _lingerTimeSecs=5;
+    private int _selectors=1;
     private HttpHandler _handler;
     
     private transient HttpServer _server;
 
     private transient ServerSocketChannel _acceptChannel;
-    private transient Selector _selector;
-    private transient SelectorThread _selectorThread;
+    private transient SelectorThread _acceptorThread;
+    private transient SelectorThread[] _selectorThreads;
+    private transient int _nextSelector;
     private transient boolean _isLow=false;
     private transient boolean _isOut=false;
     private transient long _warned=0;
@@ -332,6 +350,57 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
         return _lingerTimeSecs;
     }
     
+    /* ------------------------------------------------------------ */
+    /** Set the number of selector threads.
+     * If more than one selector thread is used, a separate acceptor
+     * thread is started to accept new connections.
+     * @param selectors The number of threads that select on connections.
+     */
+    public void setSelectorThreads(int selectors)
+    {
+        if (isStarted())
+            throw new IllegalStateException("Started");
+        _selectors= selectors<1?1:selectors;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return The number of threads that select on connections.
+     */
+    public int getSelectorThreads()
+    {
+        return _selectors;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the load of the selector threads.
+     * @return The number of connections registered with each selector
+     * thread, or null if the listener is not started.
+     */
+    public int[] getSelectorLoads()
+    {
+        SelectorThread[] selectors=_selectorThreads;
+        if (selectors==null)
+            return null;
+        int[] loads=new int[selectors.length];
+        for (int i=0;i<selectors.length;i++)
+            loads[i]=selectors[i]._connections;
+        return loads;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return The number of connections registered with all selector threads.
+     */
+    public int getConnections()
+    {
+        SelectorThread[] selectors=_selectorThreads;
+        int connections=0;
+        for (int i=0;selectors!=null && i<selectors.length;i++)
+            connections+=selectors[i]._connections;
+        return connections;
+    }
+    
     /* ------------------------------------------------------------ */
     public void setHttpHandler(HttpHandler handler)
     {
@@ -365,15 +434,25 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
         // with listeners on anonymous ports
         _address= (InetSocketAddress)_acceptChannel.socket().getLocalSocketAddress();
 
-        // create a selector;
-        _selector= Selector.open();
+        // create the selector threads
+        _selectorThreads= new SelectorThread[_selectors];
+        for (int i=0;i<_selectors;i++)
+            _selectorThreads[i]= new SelectorThread(getName()+"-selector-"+i);
 
-        // Register accepts on the server socket with the selector.
-        _acceptChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        // Register accepts on the server socket with the only selector
+        // or with a dedicated acceptor.
+        if (_selectors==1)
+            _acceptorThread= _selectorThreads[0];
+        else
+            _acceptorThread= new SelectorThread(getName()+"-acceptor");
+        _acceptorThread._acceptor= true;
+        _acceptChannel.register(_acceptorThread._selector, SelectionKey.OP_ACCEPT);
 
-        // Start selector thread
-        _selectorThread= new SelectorThread();
-        _selectorThread.start();
+        // Start selector threads
+        for (int i=0;i<_selectors;i++)
+            _selectorThreads[i].start();
+        if (_selectors>1)
+            _acceptorThread.start();
 
         // Start the thread Pool
         super.start();
@@ -384,21 +463,64 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
     /* ------------------------------------------------------------ */
     public void stop() throws InterruptedException
     {
-        if (_selectorThread != null)
-            _selectorThread.doStop();
+        SelectorThread acceptor=_acceptorThread;
+        if (acceptor != null)
+            acceptor.doStop();
+        SelectorThread[] selectors=_selectorThreads;
+        for (int i=0;selectors!=null && i<selectors.length;i++)
+            selectors[i].doStop();
+        _acceptorThread=null;
+        _selectorThreads=null;
             
         super.stop();
         log.info("Stopped SocketChannelListener on " + getHost()+":"+getPort());
     }
 
+    /* ------------------------------------------------------------ */
+    /** Select the selector thread for a new connection.
+     * The selector thread with the fewest connections is chosen, with
+     * ties broken round robin. Only called by the acceptor thread.
+     * @return The selector thread or null if the listener is stopping.
+     */
+    private SelectorThread nextSelectorThread()
+    {
+        SelectorThread[] selectors=_selectorThreads;
+        if (selectors==null)
+            return null;
+        int n=selectors.length;
+        if (++_nextSelector>=n)
+            _nextSelector=0;
+        SelectorThread selector=selectors[_nextSelector];
+        for (int i=1;i<n;i++)
+        {
+            SelectorThread s=selectors[(_nextSelector+i)%n];
+            if (s._connections<selector._connections)
+                selector=s;
+        }
+        return selector;
+    }
+
 
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     private class SelectorThread extends Thread
     {
+        Selector _selector;
+        boolean _acceptor= false;
         boolean _running= false;
+        Object _pending;
+        volatile int _connections;
+        TimingWheel _timeouts=new TimingWheel(__TICK_MS,System.currentTimeMillis());
 
+        /* ------------------------------------------------------------ */
+        SelectorThread(String name)
+            throws IOException
+        {
+            super(name);
+            _selector= Selector.open();
+        }
+        
         /* ------------------------------------------------------------ */
         public void run()
         {
@@ -411,26 +533,43 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
                     SelectionKey key= null;
                     try
                     {
-                        _selector.select();
+                        registerPending();
+                        _selector.select(_timeouts.size()>0?__TICK_MS:0);
                         Iterator iter= _selector.selectedKeys().iterator();
 
                         while (iter.hasNext())
                         {
                             key= (SelectionKey)iter.next();
-                            if (key.isAcceptable())
+                            if (key.isValid() && key.isAcceptable())
                                 doAccept(key);
-                            if (key.isReadable())
+                            if (key.isValid() && key.isReadable())
                                 doRead(key);
                             key= null;
                             iter.remove();
                         }
+                        
+                        expire();
+                    }
+                    catch (CancelledKeyException e)
+                    {
+                        // The key of a tunnelled connection was cancelled
+                        LogSupport.ignore(log, e);
+                        _selector.selectedKeys().clear();
                     }
                     catch (Exception e)
                     {
                         if (_running)
                             log.warn("selector", e);
                         if (key != null)
-                            key.cancel();
+                        {
+                            if (key.attachment() instanceof Connection)
+                            {
+                                try{((Connection)key.attachment()).close();}
+                                catch(IOException e2){LogSupport.ignore(log,e2);}
+                            }
+                            else
+                                key.cancel();
+                        }
                     }
                 }
             }
@@ -440,26 +579,43 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
 
                 try
                 {
-                    if (_acceptChannel != null)
+                    if (_acceptor && _acceptChannel != null)
+                    {
                         _acceptChannel.close();
+                        _acceptChannel= null;
+                    }
                 }
                 catch (IOException e)
                 {
                     LogSupport.ignore(log, e);
                 }
-                try
-                {
-                    if (_selector != null)
-                        _selector.close();
-                }
-                catch (IOException e)
+                
+                synchronized (this)
                 {
-                    LogSupport.ignore(log, e);
+                    for (int i=LazyList.size(_pending);i-->0;)
+                    {
+                        try
+                        {
+                            ((SocketChannel)LazyList.get(_pending,i)).close();
+                        }
+                        catch (IOException e)
+                        {
+                            LogSupport.ignore(log, e);
+                        }
+                    }
+                    _pending= null;
+                    
+                    try
+                    {
+                        if (_selector != null)
+                            _selector.close();
+                    }
+                    catch (IOException e)
+                    {
+                        LogSupport.ignore(log, e);
+                    }
+                    _selector= null;
                 }
-
-                _selector= null;
-                _acceptChannel= null;
-                _selectorThread= null;
             }
         }
 
@@ -472,8 +628,9 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
                 
             ServerSocketChannel server = (ServerSocketChannel) key.channel();
             SocketChannel channel = server.accept();
+            if (channel==null)
+                return;
             channel.configureBlocking(false);
-            SelectionKey readKey = channel.register(_selector, SelectionKey.OP_READ);
             
             Socket socket=channel.socket();
             try
@@ -490,35 +647,132 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
                 LogSupport.ignore(log, e);
             }
 
-            Connection connection=new Connection(channel,readKey, SocketChannelListener.this);
+            SelectorThread selector= nextSelectorThread();
+            if (selector==null)
+                channel.close();
+            else if (selector==this)
+            {
+                synchronized (this)
+                {
+                    _connections++;
+                }
+                register(channel);
+            }
+            else
+                selector.dispatch(channel);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Dispatch a channel to this selector thread.
+         * The channel is queued and registered by this thread, as 
+         * registering with a selector blocks while it is selecting.
+         */
+        void dispatch(SocketChannel channel)
+            throws IOException
+        {
+            synchronized (this)
+            {
+                if (_selector==null)
+                {
+                    channel.close();
+                    return;
+                }
+                _pending= LazyList.add(_pending,channel);
+                _connections++;
+                _selector.wakeup();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private void registerPending()
+            throws IOException
+        {
+            Object pending;
+            synchronized (this)
+            {
+                pending=_pending;
+                _pending=null;
+            }
+            for (int i=0;i<LazyList.size(pending);i++)
+            {
+                SocketChannel channel=(SocketChannel)LazyList.get(pending,i);
+                try
+                {
+                    register(channel);
+                }
+                catch(IOException e)
+                {
+                    log.warn(e.toString());
+                    log.debug(e);
+                    deregister();
+                    channel.close();
+                }
+            }
+        }
+        
+        /* ------------------------------------------------------------ */
+        private void register(SocketChannel channel)
+            throws IOException
+        {
+            SelectionKey readKey = channel.register(_selector, SelectionKey.OP_READ);
+            Connection connection=new Connection(channel,readKey,SocketChannelListener.this,this);
             readKey.attach(connection);
+            
+            long now=System.currentTimeMillis();
+            connection._idleSince=now;
+            if (getMaxIdleTimeMs()>0)
+                _timeouts.schedule(connection._timeout,now+getMaxIdleTimeMs());
         }
 
+        /* ------------------------------------------------------------ */
+        /** Check the connections whose timeouts have expired.
+         */
+        private void expire()
+        {
+            long now=System.currentTimeMillis();
+            Object expired=_timeouts.expire(now);
+            for (int i=LazyList.size(expired);i-->0;)
+            {
+                TimingWheel.Timeout timeout=(TimingWheel.Timeout)LazyList.get(expired,i);
+                Connection connection=(Connection)timeout.getObject();
+                try
+                {
+                    connection.expired(now);
+                }
+                catch(IOException e)
+                {
+                    LogSupport.ignore(log,e);
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized void deregister()
+        {
+            _connections--;
+        }
+        
         /* ------------------------------------------------------------ */
         void doRead(SelectionKey key) 
-            throws IOException
+            throws IOException, InterruptedException
         {
             Connection connection = (Connection)key.attachment();
             if (connection._idle && isOutOfResources())
                 // Don't handle idle connections if out of resources.
                 return;
-            ByteBuffer buf= connection._in.getBuffer();
-            int count = ((SocketChannel)key.channel()).read(buf);
-            if (count<0)
-            {
-                connection.close();
-            }
-            else 
-            {
-                buf.flip();
-                connection.write(buf);
-            }
+            if (connection.fill())
+                SocketChannelListener.this.run(connection);
         }   
 
+        /* ------------------------------------------------------------ */
         void doStop()
         {
             _running=false;
-            _selector.wakeup();
+            synchronized (this)
+            {
+                if (_selector!=null)
+                    _selector.wakeup();
+            }
             Thread.yield();
         }
     }
@@ -534,66 +788,138 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
         boolean _idle=true;
         SocketChannel _channel;
         SelectionKey _key;
-        ByteBufferInputStream _in;
+        ChainedByteBufferInputStream _in;
         SocketChannelOutputStream _out;
         SocketChannelListener _listener;
+        SelectorThread _selectorThread;
+        HttpHeaderScanner _scanner=new HttpHeaderScanner();
+        ByteBuffer _header;
+        boolean _tunnelled;
+        boolean _closed;
+        long _idleSince;
+        TimingWheel.Timeout _timeout=new TimingWheel.Timeout(this);
         
-        Connection(SocketChannel channel,SelectionKey key, SocketChannelListener listener)
+        Connection(SocketChannel channel,SelectionKey key, SocketChannelListener listener, SelectorThread selectorThread)
         {
             super(listener,
                          channel.socket().getInetAddress(),
-                         new ByteBufferInputStream(listener.getBufferSize()),
+                         new ChainedByteBufferInputStream(listener.getBufferSize()),
                          new SocketChannelOutputStream(channel,listener.getBufferSize()),
                          channel);
             _channel=channel;
             _key=key;
             _listener=listener;
-            _in=(ByteBufferInputStream) ((LineInput)(getInputStream().getInputStream())).getInputStream();
+            _selectorThread=selectorThread;
+            _in=(ChainedByteBufferInputStream) ((LineInput)(getInputStream().getInputStream())).getInputStream();
             _out=(SocketChannelOutputStream)(getOutputStream().getOutputStream());
             _in.setTimeout(listener.getMaxIdleTimeMs());
         }
         
 
         /* ------------------------------------------------------------------------------- */
-        void write(ByteBuffer buf)
+        /** Fill the connection from the channel.
+         * Called by the selector thread when the channel is readable. 
+         * While the connection is idle, bytes are accumulated in the 
+         * header buffer until the scanner has seen a complete request
+         * header, so that a thread is not dispatched to wait for slow 
+         * clients. If the header does not fit in the buffer, the
+         * connection is dispatched anyway and the rest of the header
+         * is read by the handling thread.
+         * @return True if the connection should be dispatched to a thread.
+         */
+        synchronized boolean fill()
+            throws IOException
         {
+            if (_tunnelled || _closed)
+                return false;
             if (!_idle)
-                _in.write(buf);
-            else
             {
-                boolean written=false;
-                
-                // Is there any actual content there?
-                for (int i=buf.position();i<buf.limit();i++)
+                ByteBuffer buf=_in.getBuffer();
+                if (_channel.read(buf)<0)
                 {
-                    byte b = buf.get(i);
-                    
-                    if (b>' ')
-                    {
-                        buf.position(i);
-                    
-                        try
-                        {
-                            written=true;
-                            _in.write(buf);
-                            _listener.run(this);
-                            _idle=false;
-                        }
-                        catch(InterruptedException e)
-                        {
-                            LogSupport.ignore(log, e);
-                        }
-                        finally
-                        {
-                            i=buf.limit();
-                        }
-                    }
+                    _in.recycle(buf);
+                    close();
                 }
-                
-                if (!written)
+                else
                 {
-                    _in.recycle(buf);
+                    buf.flip();
+                    _in.write(buf);
                 }
+                return false;
+            }
+            
+            if (_header==null)
+                _header=_in.getBuffer();
+            int offset=_header.position();
+            if (_channel.read(_header)<0)
+            {
+                close();
+                return false;
+            }
+            
+            _header.flip();
+            _scanner.scan(_header,offset);
+            if (!_scanner.isStarted())
+            {
+                // Only whitespace so far, so discard it.
+                _header.clear();
+                return false;
+            }
+            
+            if (!_scanner.isComplete() && _header.limit()<_header.capacity())
+            {
+                // Wait for more of the header
+                _header.position(_header.limit());
+                _header.limit(_header.capacity());
+                return false;
+            }
+
+            // dispatch the header to the input stream 
+            _header.position(_scanner.getStart());
+            _in.write(_header);
+            _header=null;
+            _scanner.reset();
+            _idle=false;
+            return true;
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /** Return the connection to the selector if no input is buffered. 
+         * Any bytes already buffered are handled by the current thread, even 
+         * if they are not yet a complete request.
+         * @return True if the connection is now idle.
+         */
+        private synchronized boolean idle()
+            throws IOException
+        {
+            if (_in==null || ((LineInput)getInputStream().getInputStream()).available()>0)
+                return false;
+            _idle=true;
+            _idleSince=System.currentTimeMillis();
+            return true;
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /** Check the idle time.
+         * Called by the selector thread when the timeout expires.  The
+         * timeout is not rescheduled each time the connection goes idle,
+         * so it is rescheduled here if the connection is being handled
+         * or has not yet been idle for the maximum idle time. A partial
+         * request header does not count as activity, so that a client
+         * cannot hold a connection by sending its header slowly.
+         */
+        synchronized void expired(long now)
+            throws IOException
+        {
+            if (_closed || _tunnelled || _selectorThread==null)
+                return;
+            long expiry=(_idle?_idleSince:now)+_listener.getMaxIdleTimeMs();
+            if (expiry>now)
+                _selectorThread._timeouts.schedule(_timeout,expiry);
+            else
+            {
+                if (log.isDebugEnabled())log.debug("Idle "+_channel);
+                close();
             }
         }
         
@@ -605,12 +931,21 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
             try
             {
                 associateThread();
-                while (_in!=null && _in.available()>0 && _listener.isStarted())
+                while (_listener!=null && _listener.isStarted())
                 {
-                    if (handleNext())
-                        recycle();
-                    else
+                    if (!handleNext())
+                    {
                         destroy();
+                        break;
+                    }
+                    recycle();
+                    if (getHttpTunnel() instanceof ChannelTunnel)
+                    {
+                        tunnel((ChannelTunnel)getHttpTunnel());
+                        break;
+                    }
+                    if (idle())
+                        break;
                 }
             }
             catch(IOException e)
@@ -621,29 +956,113 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
             }
             finally
             {
-                _idle=true;
                 disassociateThread();
             }
         }
 
         /* ------------------------------------------------------------------------------- */
+        /** Hand the channel over to a tunnel.
+         * The channel is removed from the selector thread and dispatched to
+         * the tunnel together with any input already buffered, so that the
+         * bytes are copied by the tunnel selector rather than by this thread.
+         */
+        private void tunnel(ChannelTunnel tunnel)
+            throws IOException
+        {
+            SocketChannel channel;
+            synchronized(this)
+            {
+                _tunnelled=true;
+                _key.cancel();
+                deregister();
+                channel=_channel;
+            }
+            
+            // Take any input that has been read but not handled
+            LineInput in=(LineInput)getInputStream().getInputStream();
+            byte[] buffered=null;
+            int available=in.available();
+            if (available>0)
+            {
+                buffered=new byte[available];
+                int len=0;
+                while (len<available)
+                {
+                    int n=in.read(buffered,len,available-len);
+                    if (n<=0)
+                        break;
+                    len+=n;
+                }
+                if (len<available)
+                {
+                    byte[] b=new byte[len];
+                    System.arraycopy(buffered,0,b,0,len);
+                    buffered=b;
+                }
+            }
+            
+            if(log.isDebugEnabled())log.debug("Dispatch "+tunnel);
+            try
+            {
+                _out.destroy();
+                destroy();
+                tunnel.dispatch(channel,buffered);
+            }
+            catch(IOException e)
+            {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /* ------------------------------------------------------------------------------- */
+        /** Close the connection.
+         * The connection is deregistered from its selector thread the first
+         * time it is closed, whichever of the selector thread, the handling
+         * thread or a tunnel closes it, and later calls do nothing. 
+         */
         public synchronized void close()
             throws IOException
-         {
-                 _out.close();
-                 _in.close();
-                 if (!_channel.isOpen())
-                    return;
-                 _key.cancel();
-                 _channel.socket().shutdownOutput();
-                 _channel.close();
-                 _channel.socket().close();
-                 super.close();
-                 _channel.close();
-         }
+        {
+            deregister();
+            if (_closed)
+                return;
+            _closed=true;
+            
+            try
+            {
+                if (_out!=null)
+                    _out.close();
+                if (_in!=null)
+                    _in.close();
+                if (!_tunnelled && _channel!=null && _channel.isOpen())
+                {
+                    if (_key!=null)
+                        _key.cancel();
+                    _channel.socket().shutdownOutput();
+                    super.close();
+                }
+            }
+            finally
+            {
+                if (!_tunnelled && _channel!=null)
+                    _channel.close();
+            }
+        }
+         
+        /* ------------------------------------------------------------------------------- */
+        private void deregister()
+        {
+            if (_selectorThread!=null)
+            {
+                _selectorThread._timeouts.cancel(_timeout);
+                _selectorThread.deregister();
+                _selectorThread=null;
+            }
+        }
          
         /* ------------------------------------------------------------------------------- */
-        public void destroy()
+        public synchronized void destroy()
         {
             super.destroy();
             if (_in!=null)
@@ -655,6 +1074,7 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
             _channel=null;
             _key=null;
             _listener=null;
+            _header=null;
         }
         
     }
@@ -15,15 +15,20 @@
  
 package org.mortbay.http.nio;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
 import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
+import org.mortbay.util.FileTransferOutputStream;
+import org.mortbay.util.GatheringOutputStream;
 import org.mortbay.util.LogSupport;
 
 /* ------------------------------------------------------------------------------- */
@@ -31,15 +36,21 @@ import org.mortbay.util.LogSupport;
  * Blocking output stream on non-blocking SocketChannel.  Makes the 
  * assumption that writes will rarely need to block.
  * All writes flush to the channel, and no additional buffering is done.
+ * Header and content written together are flushed with a single
+ * gathering write, without being copied to the direct buffer.
+ * File content is transferred to the channel with FileChannel.transferTo.
  * @version $Revision$
  * @author gregw
  */
-public class SocketChannelOutputStream extends OutputStream
+public class SocketChannelOutputStream 
+    extends OutputStream
+    implements GatheringOutputStream, FileTransferOutputStream
 {
     private static Log log= LogFactory.getLog(SocketChannelOutputStream.class);
     
     ByteBuffer _buffer;
     ByteBuffer _flush;
+    ByteBuffer[] _gather=new ByteBuffer[2];
     SocketChannel _channel;
     Selector _selector;
     
@@ -51,7 +62,7 @@ public class SocketChannelOutputStream extends OutputStream
                                                                              int bufferSize)
     {
         _channel=channel;
-        _buffer=ByteBuffer.allocateDirect(bufferSize);
+        _buffer=DirectBufferPool.getBuffer(bufferSize);
     }
 
     /* ------------------------------------------------------------------------------- */
@@ -74,7 +85,8 @@ public class SocketChannelOutputStream extends OutputStream
      */
     public void close() throws IOException
     {
-        _channel.close();
+        if (_channel!=null)
+            _channel.close();
     }
 
     /* ------------------------------------------------------------------------------- */
@@ -123,33 +135,113 @@ public class SocketChannelOutputStream extends OutputStream
 
 
     /* ------------------------------------------------------------------------------- */
-    private void flushBuffer() throws IOException
+    /** Write a ByteBuffer.
+     * The bytes between the position and limit of the buffer are written
+     * directly to the channel. The position of the buffer is updated.
+     * @param buffer The buffer to write.
+     */
+    public void write(ByteBuffer buffer) throws IOException
     {
-        while (_flush.hasRemaining())
+        _flush=buffer;
+        try
         {
-            int len=_channel.write(_flush);
-            if (len<0)
-                throw new IOException("EOF");
-            if (len==0)
+            flushBuffer();
+        }
+        finally
+        {
+            _flush=null;
+        }
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /*
+     * @see org.mortbay.util.GatheringOutputStream#write(byte[], int, int, byte[], int, int)
+     */
+    public void write(byte[] header, int headerOffset, int headerLength,
+                      byte[] content, int contentOffset, int contentLength)
+        throws IOException
+    {
+        _gather[0]=ByteBuffer.wrap(header,headerOffset,headerLength);
+        _gather[1]=ByteBuffer.wrap(content,contentOffset,contentLength);
+        try
+        {
+            while (_gather[0].hasRemaining() || _gather[1].hasRemaining())
             {
-                // write channel full.  Try letting other threads have a go.
-                Thread.yield();
-                len=_channel.write(_flush);
+                long len=_channel.write(_gather);
                 if (len<0)
                     throw new IOException("EOF");
                 if (len==0)
-                {
-                    // still full.  need to  block until it is writable.
-                    if (_selector==null)
-                     {
-                            _selector=Selector.open();
-                            _channel.register(_selector,SelectionKey.OP_WRITE);
-                     }
+                    waitForWritable();
+            }
+        }
+        finally
+        {
+            _gather[0]=null;
+            _gather[1]=null;
+        }
+    }
 
-                     _selector.select();
+    /* ------------------------------------------------------------------------------- */
+    /*
+     * @see org.mortbay.util.FileTransferOutputStream#transferFrom(java.io.File, long, long)
+     */
+    public void transferFrom(File file, long position, long count)
+        throws IOException
+    {
+        FileInputStream in=new FileInputStream(file);
+        try
+        {
+            FileChannel fc=in.getChannel();
+            while (count>0)
+            {
+                long len=fc.transferTo(position,count,_channel);
+                if (len==0)
+                {
+                    if (position>=fc.size())
+                        throw new IOException("EOF");
+                    waitForWritable();
                 }
+                position+=len;
+                count-=len;
             }
         }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    private void flushBuffer() throws IOException
+    {
+        while (_flush.hasRemaining())
+        {
+            int len=_channel.write(_flush);
+            if (len<0)
+                throw new IOException("EOF");
+            if (len==0)
+                waitForWritable();
+        }
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /** Wait for the channel to be writable.
+     * Called after a write of zero bytes.
+     */
+    private void waitForWritable() throws IOException
+    {
+        // write channel full.  Try letting other threads have a go.
+        Thread.yield();
+        
+        // need to block until it is writable.
+        if (_selector==null)
+        {
+            _selector=Selector.open();
+            _channel.register(_selector,SelectionKey.OP_WRITE);
+        }
+        
+        _selector.select();
+        _selector.selectedKeys().clear();
     }
 
     /* ------------------------------------------------------------------------------- */
@@ -160,9 +252,10 @@ public class SocketChannelOutputStream extends OutputStream
             try{_selector.close();}
             catch(IOException e){ LogSupport.ignore(log,e);}
             _selector=null;
-            _buffer=null;
-            _flush=null;
-            _channel=null;
         }
+        _flush=null;
+        _channel=null;
+        DirectBufferPool.returnBuffer(_buffer);
+        _buffer=null;
     }
 }
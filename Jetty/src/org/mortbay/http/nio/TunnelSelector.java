@@ -0,0 +1,391 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.util.LazyList;
+import org.mortbay.util.LifeCycle;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.StripedCounter;
+import org.mortbay.util.TimingWheel;
+
+/* ------------------------------------------------------------ */
+/** Tunnel Selector.
+ * A small set of selector threads that copy bytes between the
+ * channels of {@link ChannelTunnel}s, so that an open tunnel does not
+ * hold any threads.  Each tunnel is handled by the selector thread
+ * with the fewest tunnels when it is dispatched.
+ * <p>
+ * Idle tunnels are found with a {@link TimingWheel} per selector
+ * thread and closed.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class TunnelSelector implements LifeCycle
+{
+    private static Log log = LogFactory.getLog(TunnelSelector.class);
+
+    final static long __TICK_MS=500;
+
+    /* ------------------------------------------------------------ */
+    private int _selectorThreads=1;
+    private int _bufferSize=8192;
+    private String _name="TunnelSelector";
+
+    private transient volatile SelectorThread[] _threads;
+    private transient int _next;
+    transient StripedCounter _bytesIn=new StripedCounter();
+    transient StripedCounter _bytesOut=new StripedCounter();
+    transient StripedCounter _tunnelsTotal=new StripedCounter();
+
+    /* ------------------------------------------------------------ */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setName(String name)
+    {
+        _name=name;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of threads that select on tunnel channels.
+     */
+    public int getSelectorThreads()
+    {
+        return _selectorThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param threads The number of threads that select on tunnel channels.
+     */
+    public void setSelectorThreads(int threads)
+    {
+        if (isStarted())
+            throw new IllegalStateException("Started");
+        _selectorThreads=threads<1?1:threads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size of the direct buffers used for each direction
+     * of a tunnel.
+     */
+    public int getBufferSize()
+    {
+        return _bufferSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The size of the direct buffers used for each direction
+     * of a tunnel.
+     */
+    public void setBufferSize(int size)
+    {
+        _bufferSize=size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of open tunnels.
+     */
+    public int getTunnels()
+    {
+        SelectorThread[] threads=_threads;
+        int tunnels=0;
+        for (int i=0;threads!=null && i<threads.length;i++)
+            tunnels+=threads[i]._tunnels;
+        return tunnels;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of tunnels dispatched since start.
+     */
+    public long getTunnelsTotal()
+    {
+        return _tunnelsTotal.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes received from clients and sent to
+     * servers since start.
+     */
+    public long getBytesIn()
+    {
+        return _bytesIn.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes received from servers and sent to
+     * clients since start.
+     */
+    public long getBytesOut()
+    {
+        return _bytesOut.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isStarted()
+    {
+        return _threads!=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    public synchronized void start()
+        throws Exception
+    {
+        if (isStarted())
+            throw new IllegalStateException("Started");
+        _bytesIn.reset();
+        _bytesOut.reset();
+        _tunnelsTotal.reset();
+        SelectorThread[] threads=new SelectorThread[_selectorThreads];
+        for (int i=0;i<threads.length;i++)
+            threads[i]=new SelectorThread(_name+"-"+i);
+        for (int i=0;i<threads.length;i++)
+            threads[i].start();
+        _threads=threads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Stop the selector threads and close all tunnels.
+     */
+    public void stop()
+        throws InterruptedException
+    {
+        SelectorThread[] threads;
+        synchronized(this)
+        {
+            threads=_threads;
+            _threads=null;
+        }
+        for (int i=0;threads!=null && i<threads.length;i++)
+            threads[i].doStop();
+        for (int i=0;threads!=null && i<threads.length;i++)
+            threads[i].join();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Dispatch a tunnel to a selector thread.
+     * @param tunnel The tunnel, whose client channel has been set.
+     * @exception IOException If the selector is not started.
+     */
+    void dispatch(ChannelTunnel tunnel)
+        throws IOException
+    {
+        SelectorThread selector=null;
+        synchronized(this)
+        {
+            SelectorThread[] threads=_threads;
+            if (threads==null)
+                throw new IOException("Not started");
+            int n=threads.length;
+            if (++_next>=n)
+                _next=0;
+            selector=threads[_next];
+            for (int i=1;i<n;i++)
+            {
+                SelectorThread s=threads[(_next+i)%n];
+                if (s._tunnels<selector._tunnels)
+                    selector=s;
+            }
+        }
+        selector.dispatch(tunnel);
+        _tunnelsTotal.increment();
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    class SelectorThread extends Thread
+    {
+        Selector _selector;
+        TimingWheel _timeouts=new TimingWheel(__TICK_MS,System.currentTimeMillis());
+        Object _pending;
+        volatile boolean _running=true;
+        volatile int _tunnels;
+
+        /* ------------------------------------------------------------ */
+        SelectorThread(String name)
+            throws IOException
+        {
+            super(name);
+            setDaemon(true);
+            _selector=Selector.open();
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized void dispatch(ChannelTunnel tunnel)
+            throws IOException
+        {
+            if (_selector==null)
+                throw new IOException("Stopped");
+            _pending=LazyList.add(_pending,tunnel);
+            _tunnels++;
+            _selector.wakeup();
+        }
+
+        /* ------------------------------------------------------------ */
+        public void run()
+        {
+            try
+            {
+                while (_running)
+                {
+                    registerPending();
+                    _selector.select(_timeouts.size()>0?__TICK_MS:0);
+                    long now=System.currentTimeMillis();
+
+                    Iterator iter=_selector.selectedKeys().iterator();
+                    while (iter.hasNext())
+                    {
+                        SelectionKey key=(SelectionKey)iter.next();
+                        iter.remove();
+                        ChannelTunnel tunnel=(ChannelTunnel)key.attachment();
+                        try
+                        {
+                            if (key.isValid())
+                                tunnel.selected(now);
+                        }
+                        catch(IOException e)
+                        {
+                            LogSupport.ignore(log,e);
+                            tunnel.close();
+                        }
+                        catch(CancelledKeyException e)
+                        {
+                            LogSupport.ignore(log,e);
+                            tunnel.close();
+                        }
+                        catch(RuntimeException e)
+                        {
+                            log.warn(LogSupport.EXCEPTION,e);
+                            tunnel.close();
+                        }
+                    }
+
+                    Object expired=_timeouts.expire(now);
+                    for (int i=LazyList.size(expired);i-->0;)
+                    {
+                        TimingWheel.Timeout timeout=(TimingWheel.Timeout)LazyList.get(expired,i);
+                        ChannelTunnel tunnel=(ChannelTunnel)timeout.getObject();
+                        try
+                        {
+                            tunnel.expired(now);
+                        }
+                        catch(RuntimeException e)
+                        {
+                            log.warn(LogSupport.EXCEPTION,e);
+                            tunnel.close();
+                        }
+                    }
+                }
+            }
+            catch(Exception e)
+            {
+                if (_running)
+                    log.warn(LogSupport.EXCEPTION,e);
+            }
+            finally
+            {
+                Object pending;
+                synchronized(this)
+                {
+                    pending=_pending;
+                    _pending=null;
+                    for (int i=LazyList.size(pending);i-->0;)
+                        ((ChannelTunnel)LazyList.get(pending,i)).close();
+
+                    Iterator iter=_selector.keys().iterator();
+                    while (iter.hasNext())
+                    {
+                        SelectionKey key=(SelectionKey)iter.next();
+                        ChannelTunnel tunnel=(ChannelTunnel)key.attachment();
+                        if (tunnel!=null)
+                            tunnel.close();
+                    }
+
+                    try{_selector.close();}
+                    catch(IOException e){LogSupport.ignore(log,e);}
+                    _selector=null;
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private void registerPending()
+        {
+            Object pending;
+            synchronized(this)
+            {
+                pending=_pending;
+                _pending=null;
+            }
+            long now=System.currentTimeMillis();
+            for (int i=0;i<LazyList.size(pending);i++)
+            {
+                ChannelTunnel tunnel=(ChannelTunnel)LazyList.get(pending,i);
+                try
+                {
+                    tunnel.register(this,now);
+                }
+                catch(IOException e)
+                {
+                    log.warn(e.toString());
+                    log.debug(e);
+                    tunnel.close();
+                }
+                catch(RuntimeException e)
+                {
+                    log.warn(LogSupport.EXCEPTION,e);
+                    tunnel.close();
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized void deregister()
+        {
+            _tunnels--;
+        }
+
+        /* ------------------------------------------------------------ */
+        void doStop()
+        {
+            _running=false;
+            synchronized(this)
+            {
+                if (_selector!=null)
+                    _selector.wakeup();
+            }
+        }
+    }
+}
@@ -21,7 +21,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.EventListener;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -41,9 +40,11 @@ import javax.servlet.http.HttpSessionListener;
 import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
 import org.mortbay.http.HttpOnlyCookie;
+import org.mortbay.util.ConcurrentReaderMap;
 import org.mortbay.util.LazyList;
 import org.mortbay.util.LogSupport;
 import org.mortbay.util.MultiMap;
+import org.mortbay.util.TimingWheel;
 
 
 /* ------------------------------------------------------------ */
@@ -59,6 +60,13 @@ import org.mortbay.util.MultiMap;
  * org.mortbay.jetty.servlet.AbstractSessionManager.23Notifications is set to
  * true, the 2.3 servlet spec notification style will be used.
  * <p>
+ * Sessions are held in a ConcurrentReaderMap, so that looking up a
+ * session does not lock.  Each session with a max inactive interval has
+ * a timeout on a TimingWheel, so that the scavenger only visits the
+ * sessions whose timeouts are due, rather than all sessions.  Accessing
+ * a session does not move its timeout: when the timeout is due, a
+ * session that has been accessed since is scheduled again.
+ * <p>
  * @version $Id$
  * @author Greg Wilkins (gregw)
  */
@@ -69,6 +77,7 @@ public abstract class AbstractSessionManager implements SessionManager
     /* ------------------------------------------------------------ */
     public final static int __distantFuture = 60*60*24*7*52*20;
     private final static String __NEW_SESSION_ID="org.mortbay.jetty.newSessionId";
+    private final static int __TICK_MS=1000;
 
     /* ------------------------------------------------------------ */
     /* global Map of ID to session */
@@ -94,6 +103,7 @@ public abstract class AbstractSessionManager implements SessionManager
     protected boolean _invalidateGlobal=true;
     
     private transient SessionScavenger _scavenger = null;
+    private transient TimingWheel _timeouts;
     
     /* ------------------------------------------------------------ */
     public AbstractSessionManager()
@@ -247,10 +257,7 @@ public abstract class AbstractSessionManager implements SessionManager
     /* ------------------------------------------------------------ */
     public HttpSession getHttpSession(String id)
     {
-        synchronized(this)
-        {
-            return (HttpSession)_sessions.get(id);
-        }
+        return (HttpSession)_sessions.get(id);
     }
     
     /* ------------------------------------------------------------ */
@@ -258,16 +265,16 @@ public abstract class AbstractSessionManager implements SessionManager
     {
         Session session = newSession(request);
         session.setMaxInactiveInterval(_dftMaxIdleSecs);
+        // The creating request uses the session until it is complete
+        session._requests++;
         synchronized(__allSessions)
         {
-            synchronized(this)
-            {
-              _sessions.put(session.getId(),session);
-              __allSessions.add(session.getId(), session);
-              if (_sessions.size() > this._maxSessions)
-                  this._maxSessions = _sessions.size ();
-            }
+            _sessions.put(session.getId(),session);
+            __allSessions.add(session.getId(), session);
+            if (_sessions.size() > this._maxSessions)
+                this._maxSessions = _sessions.size ();
         }
+        session.scheduleTimeout();
         
         HttpSessionEvent event=new HttpSessionEvent(session);
         
@@ -493,7 +500,9 @@ public abstract class AbstractSessionManager implements SessionManager
         }
         
         if (_sessions==null)
-            _sessions=new HashMap();
+            _sessions=new ConcurrentReaderMap();
+        if (_timeouts==null)
+            _timeouts=new TimingWheel(__TICK_MS,System.currentTimeMillis());
         
         // Start the session scavenger if we haven't already
         if (_scavenger == null)
@@ -541,40 +550,40 @@ public abstract class AbstractSessionManager implements SessionManager
                 thread.setContextClassLoader(loader);
             
             long now = System.currentTimeMillis();
+            TimingWheel timeouts=_timeouts;
+            if (timeouts==null)
+                return;
             
-            // Since Hashtable enumeration is not safe over deletes,
-            // we build a list of stale sessions, then go back and invalidate them
-            Object stale=null;
-            
-
-            synchronized(AbstractSessionManager.this)
-            {
-                // For each session
-                for (Iterator i = _sessions.values().iterator(); i.hasNext(); )
-                {
-                    Session session = (Session)i.next();
-                    long idleTime = session._maxIdleMs;
-                    if (idleTime > 0 && session._accessed + idleTime < now) {
-                        // Found a stale session, add it to the list
-                        stale=LazyList.add(stale,session);
-                    }
-                }
-            }
-            
-            // Remove the stale sessions
-            for (int i = LazyList.size(stale); i-->0;)
+            // Take the due timeouts and invalidate the sessions that
+            // have not been accessed since they were scheduled.
+            Object due=timeouts.expire(now);
+            for (int i=0;i<LazyList.size(due);i++)
             {
-                // check it has not been accessed in the meantime
-                Session session=(Session)LazyList.get(stale,i);
+                TimingWheel.Timeout timeout=(TimingWheel.Timeout)LazyList.get(due,i);
+                Session session=(Session)timeout.getObject();
                 long idleTime = session._maxIdleMs;
-                if (idleTime > 0 && session._accessed + idleTime < System.currentTimeMillis())    
+                if (!session.isValid() || idleTime<=0)
+                    continue;
+                
+                if (session._accessed + idleTime < now)
                 {
-                    session.invalidate();
+                    try
+                    {
+                        session.invalidate();
+                    }
+                    catch(IllegalStateException e)
+                    {
+                        LogSupport.ignore(log,e);
+                    }
                     int nbsess = this._sessions.size();
                     if (nbsess < this._minSessions)
                         this._minSessions = nbsess;
                 }
+                else
+                    session.scheduleTimeout();
             }
+            
+            scavengeIdle(now);
         }
         finally
         {
@@ -583,6 +592,18 @@ public abstract class AbstractSessionManager implements SessionManager
     }
 
 
+    /* ------------------------------------------------------------ */
+    /** Scavenge idle sessions.
+     * Called by the SessionScavenger thread, with the context
+     * classloader of the handler, after timed out sessions have been
+     * invalidated.  Derived managers may override this to manage
+     * sessions that are idle but have not timed out.
+     * @param now The time of the scavenge.
+     */
+    protected void scavengeIdle(long now)
+    {
+    }
+
     /* ------------------------------------------------------------ */
     public Random getRandom()
     {
@@ -651,6 +672,8 @@ public abstract class AbstractSessionManager implements SessionManager
         long _accessed=_created;
         long _maxIdleMs = _dftMaxIdleSecs*1000;
         String _id;
+        TimingWheel.Timeout _timeout=new TimingWheel.Timeout(this);
+        int _requests=0;
         
         /* ------------------------------------------------------------- */
         protected Session(HttpServletRequest request)
@@ -664,10 +687,40 @@ public abstract class AbstractSessionManager implements SessionManager
         protected abstract Map newAttributeMap();
         
         /* ------------------------------------------------------------ */
+        /** Access the session for a request.
+         * Each access must be balanced by a call to complete when the
+         * request is complete.
+         */
         public void access()
         {
             _newSession=false;
             _accessed=System.currentTimeMillis();
+            synchronized(this)
+            {
+                _requests++;
+            }
+        }
+        
+        /* ------------------------------------------------------------ */
+        /** Complete a request.
+         * Called when a request that accessed or created the session is
+         * complete, so that the session can be passivated or otherwise
+         * managed once no requests are using it.
+         */
+        public synchronized void complete()
+        {
+            if (_requests>0)
+                _requests--;
+        }
+        
+        /* ------------------------------------------------------------ */
+        /**
+         * @return True if a request that accessed or created the session
+         * is not complete.
+         */
+        public synchronized boolean isActive()
+        {
+            return _requests>0;
         }
         
         /* ------------------------------------------------------------ */
@@ -676,6 +729,21 @@ public abstract class AbstractSessionManager implements SessionManager
             return !_invalid;
         }
         
+        /* ------------------------------------------------------------ */
+        /** Schedule the timeout of the session for when it will have
+         * been idle for the max inactive interval, if it has one.
+         */
+        void scheduleTimeout()
+        {
+            TimingWheel timeouts=_timeouts;
+            if (timeouts==null)
+                return;
+            if (_maxIdleMs>0 && !_invalid)
+                timeouts.schedule(_timeout,_accessed+_maxIdleMs);
+            else
+                timeouts.cancel(_timeout);
+        }
+        
         /* ------------------------------------------------------------ */
         public ServletContext getServletContext()
         {
@@ -729,6 +797,7 @@ public abstract class AbstractSessionManager implements SessionManager
             _maxIdleMs = (long)secs * 1000;
             if (_maxIdleMs>0 && (_maxIdleMs/10)<_scavengePeriodMs)
                 AbstractSessionManager.this.setScavengePeriod((secs+9)/10);
+            scheduleTimeout();
         }
         
         /* ------------------------------------------------------------- */
@@ -782,6 +851,9 @@ public abstract class AbstractSessionManager implements SessionManager
                     {
                         _invalid=true;
                         _sessions.remove(getId());
+                        TimingWheel timeouts=_timeouts;
+                        if (timeouts!=null)
+                            timeouts.cancel(_timeout);
                         __allSessions.removeValue(getId(), this);
                         
                         if (isInvalidateGlobal())
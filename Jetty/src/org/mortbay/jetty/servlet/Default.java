@@ -33,12 +33,14 @@ import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
 import org.mortbay.http.HttpContext;
 import org.mortbay.http.HttpFields;
+import org.mortbay.http.HttpOutputStream;
 import org.mortbay.http.HttpRequest;
 import org.mortbay.http.HttpResponse;
 import org.mortbay.http.InclusiveByteRange;
 import org.mortbay.http.MultiPartResponse;
 import org.mortbay.http.ResourceCache;
 import org.mortbay.util.CachedResource;
+import org.mortbay.util.FileResource;
 import org.mortbay.util.IO;
 import org.mortbay.util.LogSupport;
 import org.mortbay.util.Resource;
@@ -183,6 +185,22 @@ public class Default extends HttpServlet
         return r;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Get the gzip encoded variant of a resource.
+     * 
+     * @param pathInContext
+     * @param resource
+     * @return The gzip encoded resource or null
+     */
+    protected Resource getGzipResource(String pathInContext, Resource resource) throws IOException
+    {
+        if (_resourceBase == null)
+            return _httpContext.getGzipResource(pathInContext, resource);
+        Resource gz = _resourceBase.addPath(pathInContext + ".gz");
+        return gz.exists() ? gz : null;
+    }
+
     /* ------------------------------------------------------------ */
     protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
     {
@@ -561,10 +579,10 @@ public class Default extends HttpServlet
                 if (_minGzipLength > 0)
                 {
                     String accept = request.getHeader(HttpFields.__AcceptEncoding);
-                    if (accept != null && resLength > _minGzipLength && !pathInContext.endsWith(".gz"))
+                    if (accept != null && resLength > _minGzipLength && accept.indexOf("gzip") >= 0 && !pathInContext.endsWith(".gz"))
                     {
-                        Resource gz = getResource(pathInContext + ".gz");
-                        if (gz.exists() && accept.indexOf("gzip") >= 0 && request.getAttribute(Dispatcher.__INCLUDE_REQUEST_URI) == null)
+                        Resource gz = getGzipResource(pathInContext, resource);
+                        if (gz != null)
                         {
                             response.setHeader(HttpFields.__ContentEncoding, "gzip");
                             data = gz;
@@ -575,7 +593,7 @@ public class Default extends HttpServlet
                 writeHeaders(response, resource, resLength);
             }
 
-            data.writeTo(out, 0, resLength);
+            writeTo(out, data, 0, resLength);
             return;
         }
 
@@ -601,7 +619,7 @@ public class Default extends HttpServlet
             writeHeaders(response, resource, singleLength);
             response.setStatus(HttpResponse.__206_Partial_Content);
             response.setHeader(HttpFields.__ContentRange, singleSatisfiableRange.toHeaderRangeString(resLength));
-            resource.writeTo(out, singleSatisfiableRange.getFirst(resLength), singleLength);
+            writeTo(out, resource, singleSatisfiableRange.getFirst(resLength), singleLength);
             return;
         }
 
@@ -666,12 +684,39 @@ public class Default extends HttpServlet
         return;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Write resource content. The content of a FileResource is transferred directly from the
+     * file and the content of an off heap cached resource is written directly from its buffer
+     * if the connection supports it, otherwise the content is copied with Resource.writeTo.
+     */
+    private void writeTo(OutputStream out, Resource resource, long start, long count) throws IOException
+    {
+        if (out instanceof ServletOut && count <= Integer.MAX_VALUE)
+        {
+            OutputStream httpOut = ((ServletOut) out)._out;
+            if (httpOut instanceof HttpOutputStream)
+            {
+                if (resource instanceof FileResource
+                        && ((HttpOutputStream) httpOut).write(resource.getFile(), start, (int) count))
+                    return;
+
+                // An off heap resource writes directly to the HttpOutputStream
+                if (ResourceCache.isOffHeap(resource))
+                {
+                    resource.writeTo(httpOut, start, count);
+                    return;
+                }
+            }
+        }
+        resource.writeTo(out, start, count);
+    }
+
     /* ------------------------------------------------------------ */
     protected void writeHeaders(HttpServletResponse response, Resource resource, long count) throws IOException
     {
         ResourceCache.ResourceMetaData metaData = _httpContext.getResourceMetaData(resource);
 
-        response.setContentType(metaData.getMimeType());
         if (count != -1)
         {
             if (count == resource.length() && response instanceof ServletHttpResponse )
@@ -680,6 +725,24 @@ public class Default extends HttpServlet
                 response.setContentLength((int) count);
         }
 
+        // Use the pre-encoded fields of cached meta data if the response
+        // is not wrapped and nothing has already set the content type.
+        // Not for multipart responses (count==-1), which replace the
+        // content type.
+        if (count != -1 && response instanceof ServletHttpResponse)
+        {
+            HttpResponse httpResponse = ((ServletHttpResponse) response).getHttpResponse();
+            byte[] block = metaData.getHeaderBlock(_acceptRanges);
+            if (block != null &&
+                httpResponse.getContentType() == null &&
+                httpResponse.getCharacterEncoding() == null)
+            {
+                httpResponse.setHeaderBlock(block);
+                return;
+            }
+        }
+
+        response.setContentType(metaData.getMimeType());
         response.setHeader(HttpFields.__LastModified, metaData.getLastModified());
 
         if (_acceptRanges)
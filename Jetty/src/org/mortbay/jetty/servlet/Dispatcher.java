@@ -297,6 +297,9 @@ public class Dispatcher implements RequestDispatcher
         }
         finally
         {
+            // complete a session accessed in the other context
+            request.complete();
+            
             // restore _context
             if (request.crossContext())
                 _servletHandler.getHttpContext()
@@ -344,6 +347,7 @@ public class Dispatcher implements RequestDispatcher
         HashMap _attributes;
         boolean _xContext;
         HttpSession _xSession;
+        HttpSession _xAccessed;
         ServletHttpRequest _servletHttpRequest;
         String _query;
         
@@ -372,11 +376,24 @@ public class Dispatcher implements RequestDispatcher
                 {
                     _xSession=_servletHandler.getHttpSession(session_id);
                     if (_xSession!=null)
+                    {
                         ((SessionManager.Session)_xSession).access(); 
+                        _xAccessed=_xSession;
+                    }
                 }
             }
         }
 
+        /* ------------------------------------------------------------ */
+        /** Complete the session accessed or created in the other context.
+         */
+        void complete()
+        {
+            if (_xAccessed instanceof AbstractSessionManager.Session)
+                ((AbstractSessionManager.Session)_xAccessed).complete();
+            _xAccessed=null;
+        }
+
         /* ------------------------------------------------------------ */
         boolean crossContext()
         {
@@ -659,9 +676,15 @@ public class Dispatcher implements RequestDispatcher
                                 rsid=session.getId();
                         }
                         _xSession=_servletHandler.getHttpSession(rsid);
-                        if (create && _xSession==null)
+                        if (_xSession!=null)
+                        {
+                            ((SessionManager.Session)_xSession).access();
+                            _xAccessed=_xSession;
+                        }
+                        else if (create)
                         {
                             _xSession=_servletHandler.newHttpSession(this);
+                            _xAccessed=_xSession;
                             Cookie cookie = _servletHandler.getSessionManager().getSessionCookie(_xSession, isSecure());
                             if (cookie!=null)
                                 _servletHttpRequest.getHttpRequest().getHttpResponse().addSetCookie(cookie);
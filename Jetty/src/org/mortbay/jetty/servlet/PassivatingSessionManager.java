@@ -0,0 +1,736 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EventListener;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.util.ByteArrayOutputStream2;
+import org.mortbay.util.LazyList;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.TimingWheel;
+
+
+/* ------------------------------------------------------------ */
+/** Passivating Session Manager.
+ * An in-memory SessionManager that passivates idle sessions to a
+ * file, so that the heap only holds the attributes of recently used
+ * sessions.
+ * <p>
+ * A session that has not been accessed for the passivate idle time, or
+ * the least recently accessed sessions if there are more than the max
+ * resident sessions, are passivated by the scavenger thread: the
+ * attributes are serialized and appended to the store file, and only
+ * the id and times of the session stay in the heap.  A session is not
+ * passivated while a request that accessed or created it is being
+ * handled, nor once it is being invalidated.  A passivated
+ * session is activated when it is next accessed or its attributes are
+ * used.  Attributes and listeners that implement
+ * HttpSessionActivationListener are notified before a session is
+ * passivated and after it is activated.  A session with an attribute
+ * that cannot be serialized stays in memory.
+ * <p>
+ * The store is append only.  The space of activated and invalidated
+ * sessions is reclaimed by copying the passivated sessions to a new
+ * file once most of the file is unused.  The store file is a temporary
+ * file, which is deleted when the manager is stopped: sessions are not
+ * kept over a restart.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class PassivatingSessionManager extends AbstractSessionManager
+{
+    private static Log log = LogFactory.getLog(PassivatingSessionManager.class);
+
+    /* ------------------------------------------------------------ */
+    private final static int __TICK_MS=1000;
+    private final static long __MIN_COMPACT_SIZE=1024*1024;
+
+    /* ------------------------------------------------------------ */
+    private int _passivateIdleSecs=300;
+    private int _maxResidentSessions=0;
+    private String _storeDirectory;
+    protected transient ArrayList _sessionActivationListeners=new ArrayList();
+    private transient Store _store;
+    private transient TimingWheel _idle;
+    private transient int _passivations;
+    private transient int _activations;
+
+    /* ------------------------------------------------------------ */
+    public PassivatingSessionManager()
+    {
+        super();
+    }
+
+    /* ------------------------------------------------------------ */
+    public PassivatingSessionManager(Random random)
+    {
+        super(random);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The seconds a session may be idle before it is passivated,
+     * or -1 if sessions are only passivated to keep to the max
+     * resident sessions.
+     */
+    public int getPassivateIdleSecs()
+    {
+        return _passivateIdleSecs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param seconds The seconds a session may be idle before it is
+     * passivated, or -1 if sessions are only passivated to keep to the
+     * max resident sessions.
+     */
+    public void setPassivateIdleSecs(int seconds)
+    {
+        _passivateIdleSecs=seconds;
+        if (seconds>0 && getScavengePeriod()*10>seconds)
+            setScavengePeriod((seconds+9)/10);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of sessions kept in memory before the least
+     * recently accessed are passivated, or 0 for no limit.
+     */
+    public int getMaxResidentSessions()
+    {
+        return _maxResidentSessions;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the max resident sessions.
+     * The limit is applied by the scavenger thread, so it may be
+     * exceeded between scavenges.
+     * @param max The number of sessions kept in memory before the least
+     * recently accessed are passivated, or 0 for no limit.
+     */
+    public void setMaxResidentSessions(int max)
+    {
+        _maxResidentSessions=max;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The directory of the store file, or null for the
+     * temporary directory.
+     */
+    public String getStoreDirectory()
+    {
+        return _storeDirectory;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param directory The directory of the store file, or null for the
+     * temporary directory.  Takes effect when the manager is started.
+     */
+    public void setStoreDirectory(String directory)
+    {
+        _storeDirectory=directory;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of sessions that are passivated.
+     */
+    public int getPassivatedSessions()
+    {
+        Store store=_store;
+        return store==null?0:store.getRecords();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of sessions held in memory.
+     */
+    public int getResidentSessions()
+    {
+        return getSessions()-getPassivatedSessions();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times sessions have been passivated since
+     * the stats were reset.
+     */
+    public int getPassivations()
+    {
+        return _passivations;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times sessions have been activated since
+     * the stats were reset.
+     */
+    public int getActivations()
+    {
+        return _activations;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void resetStats()
+    {
+        super.resetStats();
+        _passivations=0;
+        _activations=0;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void addEventListener(EventListener listener)
+        throws IllegalArgumentException
+    {
+        super.addEventListener(listener);
+        if (listener instanceof HttpSessionActivationListener)
+            _sessionActivationListeners.add(listener);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void removeEventListener(EventListener listener)
+    {
+        super.removeEventListener(listener);
+        if (listener instanceof HttpSessionActivationListener)
+            _sessionActivationListeners.remove(listener);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void start()
+        throws Exception
+    {
+        _store=new Store(_storeDirectory);
+        _idle=new TimingWheel(__TICK_MS,System.currentTimeMillis());
+        super.start();
+    }
+
+    /* ------------------------------------------------------------ */
+    public void stop()
+    {
+        // Invalidating the sessions activates them
+        super.stop();
+        Store store=_store;
+        _store=null;
+        _idle=null;
+        if (store!=null)
+            store.destroy();
+    }
+
+    /* ------------------------------------------------------------ */
+    protected AbstractSessionManager.Session newSession(HttpServletRequest request)
+    {
+        return new Session(request);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Passivate idle sessions.
+     * Sessions idle for the passivate idle time are passivated, then if
+     * there are more resident sessions than the max resident sessions,
+     * the least recently accessed are passivated.
+     */
+    protected void scavengeIdle(long now)
+    {
+        TimingWheel idle=_idle;
+        if (idle==null)
+            return;
+
+        Object due=idle.expire(now);
+        for (int i=0;i<LazyList.size(due);i++)
+        {
+            TimingWheel.Timeout timeout=(TimingWheel.Timeout)LazyList.get(due,i);
+            Session session=(Session)timeout.getObject();
+            if (_passivateIdleSecs>0 && session._accessed+_passivateIdleSecs*1000L<=now)
+                session.passivate();
+            else
+                session.scheduleIdle();
+        }
+
+        if (_maxResidentSessions>0 && getResidentSessions()>_maxResidentSessions)
+        {
+            List resident=new ArrayList();
+            for (Iterator i=_sessions.values().iterator();i.hasNext();)
+            {
+                Session session=(Session)i.next();
+                if (!session._passivated && session.isValid() && !session.isActive())
+                    resident.add(session);
+            }
+            Object[] sessions=resident.toArray();
+            Arrays.sort(sessions,new Comparator()
+                {
+                    public int compare(Object o1, Object o2)
+                    {
+                        long a1=((Session)o1)._accessed;
+                        long a2=((Session)o2)._accessed;
+                        return a1<a2?-1:(a1==a2?0:1);
+                    }
+                });
+            for (int i=0;i<sessions.length-_maxResidentSessions;i++)
+                ((Session)sessions[i]).passivate();
+        }
+
+        compact();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reclaim the space of the store.
+     * If most of the store file is unused, a new store is started and
+     * the passivated sessions are copied to it.
+     */
+    private void compact()
+    {
+        Store old=_store;
+        if (old==null || !old.isWasted())
+            return;
+
+        try
+        {
+            if (log.isDebugEnabled()) log.debug("Compact "+old);
+            _store=new Store(_storeDirectory);
+            for (Iterator i=_sessions.values().iterator();i.hasNext();)
+                ((Session)i.next()).move(old,_store);
+            old.destroy();
+        }
+        catch(IOException e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The store file.
+     * Records are appended and the space of freed records is not reused
+     * until the file is empty.
+     */
+    private static class Store
+    {
+        File _file;
+        RandomAccessFile _raf;
+        long _end;
+        long _live;
+        int _records;
+
+        /* ------------------------------------------------------------ */
+        Store(String directory)
+            throws IOException
+        {
+            _file=File.createTempFile("JettySessions",".dat",
+                                      directory==null?null:new File(directory));
+            _file.deleteOnExit();
+            _raf=new RandomAccessFile(_file,"rw");
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized long write(byte[] bytes, int length)
+            throws IOException
+        {
+            if (_raf==null)
+                throw new IOException("closed");
+            long offset=_end;
+            _raf.seek(offset);
+            _raf.write(bytes,0,length);
+            _end+=length;
+            _live+=length;
+            _records++;
+            return offset;
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized byte[] read(long offset, int length)
+            throws IOException
+        {
+            if (_raf==null)
+                throw new IOException("closed");
+            byte[] bytes=new byte[length];
+            _raf.seek(offset);
+            _raf.readFully(bytes);
+            return bytes;
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized void free(int length)
+        {
+            _live-=length;
+            _records--;
+            if (_records==0 && _raf!=null)
+            {
+                _end=0;
+                _live=0;
+                try{_raf.setLength(0);}
+                catch(IOException e){LogSupport.ignore(log,e);}
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized int getRecords()
+        {
+            return _records;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return True if most of the file is not used by records.
+         */
+        synchronized boolean isWasted()
+        {
+            return _end>__MIN_COMPACT_SIZE && _end>2*_live;
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized void destroy()
+        {
+            try{if (_raf!=null) _raf.close();}
+            catch(IOException e){LogSupport.ignore(log,e);}
+            _raf=null;
+            _file.delete();
+        }
+
+        /* ------------------------------------------------------------ */
+        public synchronized String toString()
+        {
+            return _file+"[records="+_records+",live="+_live+",size="+_end+"]";
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Object input stream that loads classes with the context
+     * classloader, so that attributes of webapp classes can be read.
+     */
+    private static class ClassLoadingObjectInputStream extends ObjectInputStream
+    {
+        /* ------------------------------------------------------------ */
+        ClassLoadingObjectInputStream(InputStream in)
+            throws IOException
+        {
+            super(in);
+        }
+
+        /* ------------------------------------------------------------ */
+        protected Class resolveClass(ObjectStreamClass desc)
+            throws IOException, ClassNotFoundException
+        {
+            ClassLoader loader=Thread.currentThread().getContextClassLoader();
+            if (loader!=null)
+            {
+                try
+                {
+                    return Class.forName(desc.getName(),false,loader);
+                }
+                catch(ClassNotFoundException e)
+                {
+                    LogSupport.ignore(log,e);
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    protected class Session extends AbstractSessionManager.Session
+    {
+        Store _passivatedStore;
+        long _offset;
+        int _length;
+        boolean _passivated;
+        boolean _invalidating;
+        TimingWheel.Timeout _idleTimeout=new TimingWheel.Timeout(this);
+
+        /* ------------------------------------------------------------- */
+        protected Session(HttpServletRequest request)
+        {
+            super(request);
+            _values=newAttributeMap();
+            scheduleIdle();
+        }
+
+        /* ------------------------------------------------------------ */
+        protected Map newAttributeMap()
+        {
+            return new HashMap(3);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Schedule the idle timeout of the session for when it will
+         * have been idle for the passivate idle time.
+         */
+        void scheduleIdle()
+        {
+            TimingWheel idle=_idle;
+            if (idle==null)
+                return;
+            if (_passivateIdleSecs>0 && !_invalid && !_passivated)
+                idle.schedule(_idleTimeout,_accessed+_passivateIdleSecs*1000L);
+            else
+                idle.cancel(_idleTimeout);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Passivate the session.
+         * The attributes are serialized to the store and released. If
+         * they cannot be serialized, the session stays in memory.
+         * A session used by a request is not passivated, as the request
+         * would then change attributes that are replaced by copies
+         * when the session is activated; the idle timeout is scheduled
+         * again when the requests complete.
+         * Only called by the scavenger thread, so that it does not
+         * race with compaction of the store.
+         */
+        synchronized void passivate()
+        {
+            Store store=_store;
+            if (_invalid || _invalidating || _passivated || _requests>0 || store==null)
+                return;
+
+            HttpSessionEvent event=new HttpSessionEvent(this);
+            willPassivate(event);
+            try
+            {
+                ByteArrayOutputStream2 bout=new ByteArrayOutputStream2();
+                ObjectOutputStream out=new ObjectOutputStream(bout);
+                out.writeObject(_values);
+                out.close();
+                _offset=store.write(bout.getBuf(),bout.getCount());
+                _length=bout.getCount();
+                _passivatedStore=store;
+                _passivated=true;
+                _values=null;
+                _passivations++;
+                TimingWheel idle=_idle;
+                if (idle!=null)
+                    idle.cancel(_idleTimeout);
+                if (log.isDebugEnabled()) log.debug("Passivated "+getId()+" "+_length);
+            }
+            catch(IOException e)
+            {
+                // Not serializable, so keep the session in memory.
+                if (log.isDebugEnabled()) log.debug("Could not passivate "+getId(),e);
+                didActivate(event);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Activate the session if it is passivated.
+         */
+        synchronized void activate()
+        {
+            if (!_passivated)
+                return;
+
+            Store store=_passivatedStore;
+            _passivatedStore=null;
+            _passivated=false;
+            try
+            {
+                byte[] bytes=store.read(_offset,_length);
+                ObjectInputStream in=new ClassLoadingObjectInputStream(new ByteArrayInputStream(bytes));
+                _values=(Map)in.readObject();
+                in.close();
+            }
+            catch(Exception e)
+            {
+                log.warn("Could not activate "+getId()+": "+e);
+                LogSupport.ignore(log,e);
+                _values=newAttributeMap();
+            }
+            finally
+            {
+                store.free(_length);
+            }
+            _activations++;
+            if (log.isDebugEnabled()) log.debug("Activated "+getId());
+
+            didActivate(new HttpSessionEvent(this));
+            scheduleIdle();
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Move the passivated attributes to another store.
+         */
+        synchronized void move(Store from, Store to)
+            throws IOException
+        {
+            if (!_passivated || _passivatedStore!=from)
+                return;
+            byte[] bytes=from.read(_offset,_length);
+            _offset=to.write(bytes,_length);
+            _passivatedStore=to;
+            from.free(_length);
+        }
+
+        /* ------------------------------------------------------------ */
+        private void willPassivate(HttpSessionEvent event)
+        {
+            for (Iterator i=_values.values().iterator();i.hasNext();)
+            {
+                Object value=i.next();
+                if (value instanceof HttpSessionActivationListener)
+                    ((HttpSessionActivationListener)value).sessionWillPassivate(event);
+            }
+            for (int i=0;i<_sessionActivationListeners.size();i++)
+                ((HttpSessionActivationListener)_sessionActivationListeners.get(i))
+                    .sessionWillPassivate(event);
+        }
+
+        /* ------------------------------------------------------------ */
+        private void didActivate(HttpSessionEvent event)
+        {
+            for (Iterator i=_values.values().iterator();i.hasNext();)
+            {
+                Object value=i.next();
+                if (value instanceof HttpSessionActivationListener)
+                    ((HttpSessionActivationListener)value).sessionDidActivate(event);
+            }
+            for (int i=0;i<_sessionActivationListeners.size();i++)
+                ((HttpSessionActivationListener)_sessionActivationListeners.get(i))
+                    .sessionDidActivate(event);
+        }
+
+        /* ------------------------------------------------------------ */
+        public void access()
+        {
+            synchronized(this)
+            {
+                activate();
+                super.access();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        public void complete()
+        {
+            synchronized(this)
+            {
+                super.complete();
+                if (_requests==0)
+                    scheduleIdle();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        public synchronized Object getAttribute(String name)
+        {
+            if (!_invalid)
+                activate();
+            return super.getAttribute(name);
+        }
+
+        /* ------------------------------------------------------------ */
+        public synchronized java.util.Enumeration getAttributeNames()
+        {
+            if (!_invalid)
+                activate();
+            return super.getAttributeNames();
+        }
+
+        /* ------------------------------------------------------------ */
+        public synchronized void setAttribute(String name, Object value)
+        {
+            if (!_invalid)
+                activate();
+            super.setAttribute(name,value);
+        }
+
+        /* ------------------------------------------------------------ */
+        public synchronized void removeAttribute(String name)
+        {
+            if (!_invalid)
+                activate();
+            super.removeAttribute(name);
+        }
+
+        /* ------------------------------------------------------------ */
+        public synchronized String[] getValueNames()
+        {
+            if (!_invalid)
+                activate();
+            return super.getValueNames();
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Invalidate the session.
+         * The session is activated so that its attributes are unbound,
+         * and is marked as invalidating, so that it is not passivated
+         * again before it is invalid.  The session lock is not held
+         * over super.invalidate(), which takes the manager locks and
+         * may invalidate other sessions with the same id.
+         */
+        public void invalidate()
+        {
+            synchronized(this)
+            {
+                if (!_invalid)
+                {
+                    _invalidating=true;
+                    activate();
+                }
+            }
+            try
+            {
+                super.invalidate();
+            }
+            finally
+            {
+                TimingWheel idle=_idle;
+                if (idle!=null)
+                    idle.cancel(_idleTimeout);
+                discard();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Free the store record of the session, if it is passivated.
+         */
+        private synchronized void discard()
+        {
+            if (_passivated)
+            {
+                _passivated=false;
+                Store store=_passivatedStore;
+                _passivatedStore=null;
+                if (store!=null)
+                    store.free(_length);
+            }
+        }
+    }
+}
@@ -541,6 +541,7 @@ public class ServletHandler extends Container implements HttpHandler
         }
         
         // Look for the servlet
+        HttpSession session=null;
         Map.Entry servlet=getHolderEntry(pathInContext);
         ServletHolder servletHolder=servlet==null?null:(ServletHolder)servlet.getValue();
         if(log.isDebugEnabled())log.debug("servlet="+servlet);
@@ -558,9 +559,9 @@ public class ServletHandler extends Container implements HttpHandler
             
             // Handle the session ID
             request.setRequestedSessionId(pathParams);
-            HttpSession session=request.getSession(false);
+            session=request.getSession(false);
             if (session!=null)
-                ((SessionManager.Session)session).access();
+                request.access(session);
             if(log.isDebugEnabled())log.debug("session="+session);
             
             // Do that funky filter and servlet thang!
@@ -646,6 +647,11 @@ public class ServletHandler extends Container implements HttpHandler
             {
                 response.complete();
             }
+            
+            // A ServletHttpContext completes the sessions when the
+            // request leaves the context.
+            if (!(getHttpContext() instanceof ServletHttpContext))
+                request.completeSessions();
         }
     }
 
@@ -201,6 +201,32 @@ public class ServletHttpContext extends HttpContext
     }
     
 
+    /* ------------------------------------------------------------ */
+    /** Handle request.
+     * The sessions accessed or created by the request within the
+     * context, including those created by an authenticator before the
+     * ServletHandler is called, are completed when the request leaves
+     * the context.
+     * @see org.mortbay.http.HttpContext#handle(java.lang.String, java.lang.String, org.mortbay.http.HttpRequest, org.mortbay.http.HttpResponse)
+     */
+    public void handle(String pathInContext,
+                       String pathParams,
+                       HttpRequest request,
+                       HttpResponse response)
+        throws HttpException, IOException
+    {
+        try
+        {
+            super.handle(pathInContext,pathParams,request,response);
+        }
+        finally
+        {
+            ServletHttpRequest srequest = (ServletHttpRequest) request.getWrapper();
+            if (srequest!=null)
+                srequest.completeSessions();
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /* 
      * @see org.mortbay.http.HttpContext#enterContextScope(org.mortbay.http.HttpRequest, org.mortbay.http.HttpResponse)
@@ -90,6 +90,7 @@ public class ServletHttpRequest
     private String _pathTranslated=null;
     private String _requestedSessionId=null;
     private HttpSession _session=null;
+    private Object _sessions=null;
     private String _sessionIdState=__SESSIONID_NOT_CHECKED;
     private ServletIn _in =null;
     private BufferedReader _reader=null;
@@ -530,12 +531,40 @@ public class ServletHttpRequest
     HttpSession newSession()
     {
         HttpSession session=_servletHandler.newHttpSession(this);
+        _sessions=LazyList.add(_sessions,session);
         Cookie cookie=_servletHandler.getSessionManager().getSessionCookie(session,isSecure());
         if (cookie!=null)
             _servletHttpResponse.getHttpResponse().addSetCookie(cookie);
         return session;
     }
     
+    /* ------------------------------------------------------------ */
+    /** Access a session for the request.
+     * The session is completed by completeSessions.
+     */
+    void access(HttpSession session)
+    {
+        ((SessionManager.Session)session).access();
+        _sessions=LazyList.add(_sessions,session);
+    }
+    
+    /* ------------------------------------------------------------ */
+    /** Complete the sessions accessed or created by the request.
+     * Called once at the end of the request, as sessions may be created
+     * before the ServletHandler is called (eg by the FormAuthenticator)
+     * and the request is recycled by each ServletHandler it passes.
+     */
+    void completeSessions()
+    {
+        for (int i=0;i<LazyList.size(_sessions);i++)
+        {
+            Object session=LazyList.get(_sessions,i);
+            if (session instanceof AbstractSessionManager.Session)
+                ((AbstractSessionManager.Session)session).complete();
+        }
+        _sessions=null;
+    }
+    
     /* ------------------------------------------------------------ */
     public HttpSession getSession()
     {
@@ -112,6 +112,10 @@ public class WebApplicationContext extends ServletHttpContext implements Externa
         out.writeBoolean(isRedirectNullPath());
         out.writeInt(getMaxCachedFileSize());
         out.writeInt(getMaxCacheSize());
+        out.writeInt(getMaxOffHeapFileSize());
+        out.writeInt(getMaxOffHeapCacheSize());
+        out.writeInt(getMinMappedFileSize());
+        out.writeObject(getEvictionPolicy());
         out.writeBoolean(getStatsOn());
         out.writeObject(getPermissions());
         out.writeBoolean(isClassLoaderJava2Compliant());
@@ -141,6 +145,10 @@ public class WebApplicationContext extends ServletHttpContext implements Externa
         setRedirectNullPath(in.readBoolean());
         setMaxCachedFileSize(in.readInt());
         setMaxCacheSize(in.readInt());
+        setMaxOffHeapFileSize(in.readInt());
+        setMaxOffHeapCacheSize(in.readInt());
+        setMinMappedFileSize(in.readInt());
+        setEvictionPolicy((String)in.readObject());
         setStatsOn(in.readBoolean());
         setPermissions((PermissionCollection)in.readObject());
         setClassLoaderJava2Compliant(in.readBoolean());
@@ -0,0 +1,56 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.servlet.jmx;
+
+import javax.management.MBeanException;
+
+import org.mortbay.jetty.servlet.SessionManager;
+
+
+/* ------------------------------------------------------------ */
+/** 
+ *
+ * @version $Revision$
+ * @author Greg Wilkins (gregw)
+ */
+public class PassivatingSessionManagerMBean extends AbstractSessionManagerMBean
+{
+    /* ------------------------------------------------------------ */
+    public PassivatingSessionManagerMBean()
+        throws MBeanException
+    {}
+    
+    /* ------------------------------------------------------------ */
+    public PassivatingSessionManagerMBean(SessionManager object)
+        throws MBeanException
+    {
+        super(object);
+    }
+    
+    /* ------------------------------------------------------------ */
+    protected void defineManagedResource()
+    {
+        super.defineManagedResource();
+        defineAttribute("passivateIdleSecs"); 
+        defineAttribute("maxResidentSessions"); 
+        defineAttribute("storeDirectory"); 
+        defineAttribute("passivatedSessions"); 
+        defineAttribute("residentSessions"); 
+        defineAttribute("passivations"); 
+        defineAttribute("activations"); 
+    }
+
+}
@@ -34,12 +34,18 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.mortbay.http.HttpClient;
+import org.mortbay.http.HttpFields;
 import org.mortbay.util.IO;
 import org.mortbay.util.InetAddrPort;
 
 
 /**
  * EXPERIMENTAL Proxy servlet.
+ * Plain HTTP requests are made with a pooled {@link HttpClient}, which
+ * is configured with the init parameters maxConnectionsPerAddress,
+ * idleTimeoutMs, connectTimeoutMs, timeoutMs, bufferSize and
+ * pipelineDepth.
  * @author gregw
  *
  */
@@ -62,6 +68,7 @@ public class ProxyServlet implements Servlet
     
     private ServletConfig config;
     private ServletContext context;
+    private HttpClient client;
     
     /* (non-Javadoc)
      * @see javax.servlet.Servlet#init(javax.servlet.ServletConfig)
@@ -70,6 +77,34 @@ public class ProxyServlet implements Servlet
     {
         this.config=config;
         this.context=config.getServletContext();
+
+        client=new HttpClient();
+        String param=config.getInitParameter("maxConnectionsPerAddress");
+        if (param!=null)
+            client.setMaxConnectionsPerAddress(Integer.parseInt(param));
+        param=config.getInitParameter("idleTimeoutMs");
+        if (param!=null)
+            client.setIdleTimeoutMs(Integer.parseInt(param));
+        param=config.getInitParameter("connectTimeoutMs");
+        if (param!=null)
+            client.setConnectTimeoutMs(Integer.parseInt(param));
+        param=config.getInitParameter("timeoutMs");
+        if (param!=null)
+            client.setTimeoutMs(Integer.parseInt(param));
+        param=config.getInitParameter("bufferSize");
+        if (param!=null)
+            client.setBufferSize(Integer.parseInt(param));
+        param=config.getInitParameter("pipelineDepth");
+        if (param!=null)
+            client.setPipelineDepth(Integer.parseInt(param));
+        try
+        {
+            client.start();
+        }
+        catch(Exception e)
+        {
+            throw new ServletException(e);
+        }
     }
 
     /* (non-Javadoc)
@@ -92,6 +127,10 @@ public class ProxyServlet implements Servlet
         {
             handleConnect(request,response);
         }
+        else if ("http".equalsIgnoreCase(request.getScheme()))
+        {
+            handleHttp(request,response);
+        }
         else
         {
             String uri=request.getRequestURI();
@@ -239,12 +278,113 @@ public class ProxyServlet implements Servlet
 
             // Handle
             if (proxy_in!=null)
-                IO.copy(proxy_in,response.getOutputStream());
+                IO.relay(proxy_in,response.getOutputStream(),-1);
             
         }
     }
 
 
+    /* ------------------------------------------------------------ */
+    public void handleHttp(HttpServletRequest request,
+                           HttpServletResponse response)
+        throws IOException
+    {
+        String uri=request.getRequestURI();
+        if (request.getQueryString()!=null)
+            uri+="?"+request.getQueryString();
+        String host=request.getServerName();
+        int port=request.getServerPort();
+
+        context.log("URI="+uri);
+
+        // check connection header
+        String connectionHdr = request.getHeader("Connection");
+        if (connectionHdr!=null)
+        {
+            connectionHdr=connectionHdr.toLowerCase();
+            if (connectionHdr.equals("keep-alive")||
+                connectionHdr.equals("close"))
+                connectionHdr=null;
+        }
+
+        // copy headers
+        HttpFields fields=new HttpFields();
+        boolean xForwardedFor=false;
+        Enumeration enm = request.getHeaderNames();
+        while (enm.hasMoreElements())
+        {
+            String hdr=(String)enm.nextElement();
+            String lhdr=hdr.toLowerCase();
+
+            if (_DontProxyHeaders.contains(lhdr))
+                continue;
+            if (connectionHdr!=null && connectionHdr.indexOf(lhdr)>=0)
+                continue;
+
+            Enumeration vals = request.getHeaders(hdr);
+            while (vals.hasMoreElements())
+            {
+                String val = (String)vals.nextElement();
+                if (val!=null)
+                {
+                    fields.add(hdr,val);
+                    xForwardedFor|="X-Forwarded-For".equalsIgnoreCase(hdr);
+                }
+            }
+        }
+
+        // Proxy headers
+        fields.put("Via","1.1 (jetty)");
+        if (!xForwardedFor)
+            fields.add("X-Forwarded-For",request.getRemoteAddr());
+
+        InputStream in=null;
+        if (request.getContentLength()>0 || request.getHeader("Transfer-Encoding")!=null)
+            in=request.getInputStream();
+
+        HttpClient.Response proxy_response=client.send(request.getMethod(),host,port,uri,fields,in);
+        try
+        {
+            response.setStatus(proxy_response.getStatus());
+            context.log("response = "+proxy_response.getStatus());
+
+            // clear response defaults.
+            response.setHeader("Date",null);
+            response.setHeader("Server",null);
+
+            // set response headers
+            HttpFields proxy_fields=proxy_response.getFields();
+            String proxyConnectionHdr=proxy_fields.get("Connection");
+            if (proxyConnectionHdr!=null)
+                proxyConnectionHdr=proxyConnectionHdr.toLowerCase();
+            enm=proxy_fields.getFieldNames();
+            while (enm.hasMoreElements())
+            {
+                String hdr=(String)enm.nextElement();
+                String lhdr=hdr.toLowerCase();
+                if (_DontProxyHeaders.contains(lhdr))
+                    continue;
+                if (proxyConnectionHdr!=null && proxyConnectionHdr.indexOf(lhdr)>=0)
+                    continue;
+
+                Enumeration vals=proxy_fields.getValues(hdr);
+                while (vals.hasMoreElements())
+                {
+                    String val=(String)vals.nextElement();
+                    if (val!=null)
+                        response.addHeader(hdr,val);
+                }
+            }
+            response.addHeader("Via","1.1 (jetty)");
+
+            IO.relay(proxy_response.getInputStream(),response.getOutputStream(),-1);
+        }
+        finally
+        {
+            proxy_response.close();
+        }
+    }
+
     /* ------------------------------------------------------------ */
     public void handleConnect(HttpServletRequest request,
                               HttpServletResponse response)
@@ -297,6 +437,15 @@ public class ProxyServlet implements Servlet
      */
     public void destroy()
     {
-
+        try
+        {
+            if (client!=null)
+                client.stop();
+        }
+        catch(InterruptedException e)
+        {
+            context.log("destroy",e);
+        }
+        client=null;
     }
 }
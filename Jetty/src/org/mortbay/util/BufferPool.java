@@ -0,0 +1,603 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+
+/* ------------------------------------------------------------ */
+/** Size Classed Buffer Pool.
+ * A pool of buffers with capacities that are powers of 2 from
+ * 2^__MIN_BITS to 2^__MAX_BITS bytes, shared by all threads.
+ * <p>
+ * Each thread has a small cache of buffers for each size class, so
+ * that a thread that gets and returns buffers does not contend with
+ * other threads for them.  Buffers returned to a full cache go to a
+ * depot for the size class, which is shared by all threads, so that a
+ * buffer returned by one thread may be got by another.  The depot is
+ * split over stripes, each with its own lock, selected by thread as
+ * for {@link StripedCounter}.  Buffers returned to a full depot are
+ * left to the garbage collector.
+ * <p>
+ * The buffers of the pool are weakly registered, so that the hits,
+ * misses and outstanding buffers are counted only for buffers that
+ * the pool has handed out.  The registry is split over stripes, each
+ * with its own lock, selected by the identity hash of the buffer, and
+ * one stripe is locked for each get and return of a pooled size
+ * buffer.  A pooled size buffer returned that the pool did not hand
+ * out is registered and pooled, but is not counted as returned, and a
+ * buffer returned twice is pooled only once.
+ * <p>
+ * Virtual threads (Java 21 or later) do not have caches and use the
+ * depot directly, as they are typically short lived and there may be
+ * very many of them, so a cache per thread would seldom be reused
+ * and would strand buffers when the thread ends.
+ * <p>
+ * Buffers of other capacities are allocated and dropped without being
+ * pooled.
+ * <p>
+ * This pool holds byte arrays. Derived pools may hold other buffers
+ * by overriding {@link #newBuffer(int)} and {@link #capacity(Object)}.
+ * Pools are registered when constructed, so that their hit rates and
+ * outstanding buffers may be reported.
+ *
+ * @see ByteArrayPool
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class BufferPool
+{
+    /* ------------------------------------------------------------ */
+    public final static int __MIN_BITS=8;
+    public final static int __MAX_BITS=16;
+    private final static int __CLASSES=__MAX_BITS-__MIN_BITS+1;
+    private final static Object[][] __NO_CACHE=new Object[0][];
+
+    private static Log log = LogFactory.getLog(BufferPool.class);
+    private static Object __pools;
+    private static Method __isVirtual;
+    static
+    {
+        try
+        {
+            __isVirtual=Thread.class.getMethod("isVirtual",new Class[0]);
+        }
+        catch(Exception e)
+        {
+            LogSupport.ignore(log,e);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private String _name;
+    private int _threadCacheSize;
+    private int _depotSize;
+    private Depot[] _depots=new Depot[__CLASSES];
+    private ThreadLocal _caches=new ThreadLocal();
+    private Registry[] _registry=new Registry[StripedCounter.__stripes];
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * @param name The name of the pool.
+     * @param threadCacheSize The number of buffers of each size
+     * cached for each thread.
+     * @param depotSize The number of buffers of each size held in
+     * the shared depot.
+     */
+    public BufferPool(String name, int threadCacheSize, int depotSize)
+    {
+        _name=name;
+        _threadCacheSize=threadCacheSize;
+        _depotSize=depotSize;
+        for (int c=0;c<__CLASSES;c++)
+            _depots[c]=new Depot(depotSize);
+        for (int i=0;i<_registry.length;i++)
+            _registry[i]=new Registry();
+
+        synchronized(BufferPool.class)
+        {
+            __pools=LazyList.add(__pools,this);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The pools that have been constructed.
+     */
+    public static synchronized BufferPool[] getPools()
+    {
+        BufferPool[] pools=new BufferPool[LazyList.size(__pools)];
+        for (int i=0;i<pools.length;i++)
+            pools[i]=(BufferPool)LazyList.get(__pools,i);
+        return pools;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size A buffer size
+     * @return The size class of a buffer of exactly this size, or -1
+     * if the size is not pooled.
+     */
+    static int sizeClass(int size)
+    {
+        if (size<(1<<__MIN_BITS) || size>(1<<__MAX_BITS) || (size&(size-1))!=0)
+            return -1;
+        int c=0;
+        while ((1<<(c+__MIN_BITS))<size)
+            c++;
+        return c;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size A minimum buffer size
+     * @return The smallest size class of buffers not smaller than
+     * size, or -1 if the size is too large to be pooled.
+     */
+    static int sizeClassAtLeast(int size)
+    {
+        if (size>(1<<__MAX_BITS))
+            return -1;
+        int c=0;
+        while ((1<<(c+__MIN_BITS))<size)
+            c++;
+        return c;
+    }
+
+    /* ------------------------------------------------------------ */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getThreadCacheSize()
+    {
+        return _threadCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getDepotSize()
+    {
+        return _depotSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Allocate a new buffer.
+     * @param capacity The capacity of the buffer.
+     * @return A new byte array.
+     */
+    protected Object newBuffer(int capacity)
+    {
+        return new byte[capacity];
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param buffer A buffer of this pool.
+     * @return The capacity of the buffer.
+     */
+    protected int capacity(Object buffer)
+    {
+        return ((byte[])buffer).length;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get a buffer.
+     * @param size The capacity of the buffer.
+     * @param atLeast If true, the buffer may have a larger capacity.
+     * @return A pooled or new buffer.
+     */
+    protected Object acquire(int size, boolean atLeast)
+    {
+        int c=atLeast?sizeClassAtLeast(size):sizeClass(size);
+        if (c<0)
+            return newBuffer(size);
+        Object buffer=null;
+
+        // Try the cache of this thread
+        Object[][] caches=(Object[][])_caches.get();
+        if (caches!=null && caches!=__NO_CACHE)
+        {
+            Object[] cache=caches[c];
+            for (int i=cache.length;i-->0 && buffer==null;)
+            {
+                buffer=cache[i];
+                cache[i]=null;
+            }
+        }
+
+        // Try the shared depot
+        if (buffer==null)
+            buffer=_depots[c].take();
+
+        boolean hit=buffer!=null;
+        if (!hit)
+            buffer=newBuffer(1<<(c+__MIN_BITS));
+
+        int h=hash(buffer);
+        Registry registry=_registry[h&(_registry.length-1)];
+        synchronized(registry)
+        {
+            Entry entry=registry.get(buffer,h);
+            if (entry==null)
+                entry=registry.add(buffer,h);
+            entry._out=true;
+            if (hit)
+                registry._hits++;
+            else
+                registry._misses++;
+            registry._outstanding++;
+        }
+        return buffer;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Return a buffer.
+     * The buffer must not be used by the caller once it is returned.
+     * @param buffer A buffer got from this pool, or null.
+     */
+    protected void release(Object buffer)
+    {
+        if (buffer==null)
+            return;
+        int c=sizeClass(capacity(buffer));
+        if (c<0)
+            return;
+
+        // Count only buffers handed out by the pool
+        int h=hash(buffer);
+        Registry registry=_registry[h&(_registry.length-1)];
+        synchronized(registry)
+        {
+            Entry entry=registry.get(buffer,h);
+            if (entry==null)
+                registry.add(buffer,h);
+            else if (entry._out)
+            {
+                entry._out=false;
+                registry._outstanding--;
+            }
+            else
+                return;
+        }
+
+        // Try the cache of this thread
+        if (_threadCacheSize>0)
+        {
+            Object[][] caches=(Object[][])_caches.get();
+            if (caches==null)
+            {
+                if (isVirtual(Thread.currentThread()))
+                    caches=__NO_CACHE;
+                else
+                {
+                    caches=new Object[__CLASSES][];
+                    for (int i=0;i<__CLASSES;i++)
+                        caches[i]=new Object[_threadCacheSize];
+                }
+                _caches.set(caches);
+            }
+            if (caches!=__NO_CACHE)
+            {
+                Object[] cache=caches[c];
+                for (int i=0;i<cache.length;i++)
+                {
+                    if (cache[i]==null)
+                    {
+                        cache[i]=buffer;
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Put it in the shared depot
+        _depots[c].put(buffer);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param buffer A buffer
+     * @return The spread identity hash of the buffer.
+     */
+    private static int hash(Object buffer)
+    {
+        int h=System.identityHashCode(buffer);
+        h^=(h>>>16);
+        h^=(h>>>8);
+        return h;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @param thread A thread
+     * @return True if the thread is a virtual thread.
+     */
+    private static boolean isVirtual(Thread thread)
+    {
+        if (__isVirtual==null)
+            return false;
+        try
+        {
+            return Boolean.TRUE.equals(__isVirtual.invoke(thread,new Object[0]));
+        }
+        catch(Exception e)
+        {
+            LogSupport.ignore(log,e);
+            return false;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of buffers got from the pool.
+     */
+    public long getHits()
+    {
+        long hits=0;
+        for (int i=0;i<_registry.length;i++)
+        {
+            synchronized(_registry[i])
+            {
+                hits+=_registry[i]._hits;
+            }
+        }
+        return hits;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of pooled size buffers that were allocated
+     * because the pool was empty.
+     */
+    public long getMisses()
+    {
+        long misses=0;
+        for (int i=0;i<_registry.length;i++)
+        {
+            synchronized(_registry[i])
+            {
+                misses+=_registry[i]._misses;
+            }
+        }
+        return misses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The percentage of pooled size buffers got from the pool.
+     */
+    public int getHitRate()
+    {
+        long hits=getHits();
+        long total=hits+getMisses();
+        return total==0?0:(int)(hits*100/total);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of pooled size buffers got and not returned.
+     */
+    public long getOutstanding()
+    {
+        long outstanding=0;
+        for (int i=0;i<_registry.length;i++)
+        {
+            synchronized(_registry[i])
+            {
+                outstanding+=_registry[i]._outstanding;
+            }
+        }
+        return outstanding;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reset the hit and miss counts.
+     */
+    public void resetStats()
+    {
+        for (int i=0;i<_registry.length;i++)
+        {
+            synchronized(_registry[i])
+            {
+                _registry[i]._hits=0;
+                _registry[i]._misses=0;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        return _name+
+            "[hits="+getHits()+
+            ",misses="+getMisses()+
+            ",hitRate="+getHitRate()+
+            "%,outstanding="+getOutstanding()+"]";
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The shared buffers of a size class.
+     */
+    private static class Depot
+    {
+        Stripe[] _stripes;
+
+        Depot(int size)
+        {
+            _stripes=new Stripe[StripedCounter.__stripes];
+            int stripeSize=(size+_stripes.length-1)/_stripes.length;
+            for (int i=0;i<_stripes.length;i++)
+                _stripes[i]=new Stripe(stripeSize);
+        }
+
+        Object take()
+        {
+            int s=StripedCounter.stripe(_stripes.length);
+            for (int i=0;i<_stripes.length;i++)
+            {
+                Stripe stripe=_stripes[(s+i)&(_stripes.length-1)];
+                if (stripe._size>0)
+                {
+                    synchronized(stripe)
+                    {
+                        if (stripe._size>0)
+                        {
+                            Object buffer=stripe._buffers[--stripe._size];
+                            stripe._buffers[stripe._size]=null;
+                            return buffer;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        void put(Object buffer)
+        {
+            int s=StripedCounter.stripe(_stripes.length);
+            for (int i=0;i<_stripes.length;i++)
+            {
+                Stripe stripe=_stripes[(s+i)&(_stripes.length-1)];
+                synchronized(stripe)
+                {
+                    if (stripe._size<stripe._buffers.length)
+                    {
+                        stripe._buffers[stripe._size++]=buffer;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A stripe of the registry of pool buffers.
+     * A hash table of weak references to the buffers, with the counts
+     * of the gets and returns of those buffers.  Entries of collected
+     * buffers are removed when the stripe is next used.
+     */
+    private static class Registry
+    {
+        Entry[] _table=new Entry[16];
+        int _size;
+        ReferenceQueue _queue=new ReferenceQueue();
+        long _hits;
+        long _misses;
+        long _outstanding;
+        // Padding to keep stripes on separate cache lines
+        long _p1,_p2,_p3,_p4;
+
+        Entry get(Object buffer, int hash)
+        {
+            expunge();
+            for (Entry e=_table[index(hash,_table.length)];e!=null;e=e._next)
+                if (e.get()==buffer)
+                    return e;
+            return null;
+        }
+
+        Entry add(Object buffer, int hash)
+        {
+            if (_size>=_table.length*3/4)
+            {
+                Entry[] table=new Entry[_table.length*2];
+                for (int i=0;i<_table.length;i++)
+                {
+                    Entry e=_table[i];
+                    while (e!=null)
+                    {
+                        Entry next=e._next;
+                        int j=index(e._hash,table.length);
+                        e._next=table[j];
+                        table[j]=e;
+                        e=next;
+                    }
+                }
+                _table=table;
+            }
+            Entry entry=new Entry(buffer,hash,_queue);
+            int i=index(hash,_table.length);
+            entry._next=_table[i];
+            _table[i]=entry;
+            _size++;
+            return entry;
+        }
+
+        void expunge()
+        {
+            Entry entry;
+            while ((entry=(Entry)_queue.poll())!=null)
+            {
+                int i=index(entry._hash,_table.length);
+                Entry prev=null;
+                for (Entry e=_table[i];e!=null;prev=e,e=e._next)
+                {
+                    if (e==entry)
+                    {
+                        if (prev==null)
+                            _table[i]=e._next;
+                        else
+                            prev._next=e._next;
+                        _size--;
+                        break;
+                    }
+                }
+            }
+        }
+
+        static int index(int hash, int length)
+        {
+            // The low bits select the stripe
+            return (hash>>>6)&(length-1);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static class Entry extends WeakReference
+    {
+        int _hash;
+        boolean _out;
+        Entry _next;
+
+        Entry(Object buffer, int hash, ReferenceQueue queue)
+        {
+            super(buffer,queue);
+            _hash=hash;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static class Stripe
+    {
+        Object[] _buffers;
+        volatile int _size;
+        // Padding to keep stripes on separate cache lines
+        long _p1,_p2,_p3,_p4,_p5,_p6,_p7;
+
+        Stripe(int size)
+        {
+            _buffers=new Object[size];
+        }
+    }
+}
@@ -194,6 +194,20 @@ public class ByteArrayISO8859Writer extends Writer
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /** Write bytes that are already ISO-8859-1 encoded.
+     * @param b The bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes
+     */
+    public void write(byte[] b,int offset, int length)
+        throws IOException
+    {
+        ensureSpareCapacity(length);
+        System.arraycopy(b,offset,_buf,_size,length);
+        _size+=length;
+    }
+
     /* ------------------------------------------------------------ */
     private void writeEncoded(char[] ca,int offset, int length)
         throws IOException
@@ -18,7 +18,12 @@ package org.mortbay.util;
 
 /* ------------------------------------------------------------ */
 /** Byte Array Pool
- * Simple pool for recycling byte arrays of a fixed size.
+ * Static access to a {@link BufferPool} of byte arrays shared by all
+ * threads.  Byte arrays of sizes that are powers of 2 from 256 to 64k
+ * are pooled.  The number of arrays of each size cached per thread and
+ * held in the shared depot are set by the
+ * org.mortbay.util.ByteArrayPool.pool_size and
+ * org.mortbay.util.ByteArrayPool.depot_size system properties.
  *
  * @version $Id$
  * @author Greg Wilkins (gregw)
@@ -26,11 +31,31 @@ package org.mortbay.util;
 public class ByteArrayPool
 {
     public static final int __POOL_SIZE=
-        Integer.getInteger("org.mortbay.util.ByteArrayPool.pool_size",8).intValue();
-    
+        Integer.getInteger("org.mortbay.util.ByteArrayPool.pool_size",2).intValue();
+    public static final int __DEPOT_SIZE=
+        Integer.getInteger("org.mortbay.util.ByteArrayPool.depot_size",64).intValue();
+
+    private static final BufferPool __pool=new BufferPool("ByteArrayPool",__POOL_SIZE,__DEPOT_SIZE);
+
+    /**
+     * @deprecated Not used. Byte arrays are pooled by {@link #getPool()}.
+     */
     public static final ThreadLocal __pools=new BAThreadLocal();
+    
+    /**
+     * @deprecated Not used. Byte arrays are pooled by {@link #getPool()}.
+     */
     public static int __slot;
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The BufferPool of byte arrays.
+     */
+    public static BufferPool getPool()
+    {
+        return __pool;
+    }
+    
     /* ------------------------------------------------------------ */
     /** Get a byte array from the pool of known size.
      * @param size Size of the byte array.
@@ -38,65 +63,27 @@ public class ByteArrayPool
      */
     public static byte[] getByteArray(int size)
     {
-        byte[][] pool = (byte[][])__pools.get();
-        boolean full=true;
-        for (int i=pool.length;i-->0;)
-        {
-            if (pool[i]!=null && pool[i].length==size)
-            {
-                byte[]b = pool[i];
-                pool[i]=null;
-                return b;
-            }
-            else
-                full=false;
-        }
-
-        if (full)
-            for (int i=pool.length;i-->0;)
-                pool[i]=null;
-        
-        return new byte[size];
+        return (byte[])__pool.acquire(size,false);
     }
 
     /* ------------------------------------------------------------ */
+    /** Get a byte array from the pool of at least a size.
+     * @param minSize Minimum size of the byte array.
+     * @return Byte array of at least minSize.
+     */
     public static byte[] getByteArrayAtLeast(int minSize)
     {
-        byte[][] pool = (byte[][])__pools.get();
-        for (int i=pool.length;i-->0;)
-        {
-            if (pool[i]!=null && pool[i].length>=minSize)
-            {
-                byte[]b = pool[i];
-                pool[i]=null;
-                return b;
-            }
-        }
-        
-        return new byte[minSize];
+        return (byte[])__pool.acquire(minSize,true);
     }
 
-
     /* ------------------------------------------------------------ */
+    /** Return a byte array to the pool.
+     * The array must not be used once it is returned.
+     * @param b The byte array, which may be null.
+     */
     public static void returnByteArray(final byte[] b)
     {
-        if (b==null)
-            return;
-        
-        byte[][] pool = (byte[][])__pools.get();
-        for (int i=pool.length;i-->0;)
-        {
-            if (pool[i]==null)
-            {
-                pool[i]=b;
-                return;
-            }
-        }
-
-        // slot.
-        int s = __slot++;
-        if (s<0)s=-s;
-        pool[s%pool.length]=b;
+        __pool.release(b);
     }
 
     
@@ -35,7 +35,7 @@ import java.net.URL;
 public class CachedResource extends Resource
 {
     Resource _resource;
-    long _lastModified;
+    volatile long _lastModified;
     byte[] _buf ;
     String[] _list;
     
@@ -48,7 +48,21 @@ public class CachedResource extends Resource
     }
 
     /* ------------------------------------------------------------ */
-    public synchronized boolean isUptoDate()
+    /** Constructor.
+     * Cache an encoded representation of a resource, such as compressed
+     * content.
+     * @param resource The resource.
+     * @param data The encoded content of the resource.
+     */
+    public CachedResource(Resource resource, byte[] data)
+    {
+        _resource=resource;
+        _lastModified=resource.lastModified();
+        _buf=data;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isUptoDate()
         throws IOException
     {
         return _resource!=null && _resource.exists() &&
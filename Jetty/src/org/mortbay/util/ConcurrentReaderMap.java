@@ -0,0 +1,301 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* ------------------------------------------------------------ */
+/** Concurrent Reader Map.
+ * A hash table for read mostly data, where get does not take a lock.
+ * <p>
+ * The chains of the table are immutable, so that a reader always sees
+ * a consistent chain.  Put, remove and resize take a lock and replace
+ * the chain head (copying the entries before a removed entry), and
+ * the table is published through a volatile field.  A get concurrent
+ * with a put or remove will see either the old or the new value.
+ * <p>
+ * Null keys and values are not supported.  The views of the map
+ * are snapshots, which do not change with the map and may not be
+ * modified.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class ConcurrentReaderMap extends AbstractMap
+{
+    /* ------------------------------------------------------------ */
+    private volatile Entry[] _table;
+    private volatile int _size;
+    private Object _lock=new Object();
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     */
+    public ConcurrentReaderMap()
+    {
+        this(32);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * @param capacity Initial capacity
+     */
+    public ConcurrentReaderMap(int capacity)
+    {
+        int c=16;
+        while (c<capacity)
+            c<<=1;
+        _table=new Entry[c];
+    }
+
+    /* ------------------------------------------------------------ */
+    private static int hash(Object key)
+    {
+        int h=key.hashCode();
+        h+=~(h<<9);
+        h^=(h>>>14);
+        h+=(h<<4);
+        h^=(h>>>10);
+        return h;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get a value.
+     * This method does not lock.
+     * @param key The key
+     * @return The value or null.
+     */
+    public Object get(Object key)
+    {
+        if (key==null)
+            return null;
+        int hash=hash(key);
+        Entry[] table=_table;
+        for (Entry e=table[hash&(table.length-1)];e!=null;e=e._next)
+        {
+            if (e._hash==hash && (e._key==key || e._key.equals(key)))
+                return e._value;
+        }
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * This method does not lock.
+     */
+    public boolean containsKey(Object key)
+    {
+        return get(key)!=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Put a value.
+     * @param key The key
+     * @param value The value
+     * @return The previous value or null.
+     */
+    public Object put(Object key, Object value)
+    {
+        if (key==null || value==null)
+            throw new NullPointerException();
+
+        synchronized(_lock)
+        {
+            Object old=remove(key);
+            Entry[] table=_table;
+            if (_size>=table.length*3/4)
+                table=resize(table);
+            int hash=hash(key);
+            int i=hash&(table.length-1);
+            table[i]=new Entry(hash,key,value,table[i]);
+            _size++;
+            _table=table;
+            return old;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Remove a value.
+     * @param key The key
+     * @return The removed value or null.
+     */
+    public Object remove(Object key)
+    {
+        if (key==null)
+            return null;
+        synchronized(_lock)
+        {
+            int hash=hash(key);
+            Entry[] table=_table;
+            int i=hash&(table.length-1);
+            Entry head=table[i];
+            for (Entry e=head;e!=null;e=e._next)
+            {
+                if (e._hash==hash && (e._key==key || e._key.equals(key)))
+                {
+                    // copy the entries before the removed entry
+                    Entry chain=e._next;
+                    for (Entry p=head;p!=e;p=p._next)
+                        chain=new Entry(p._hash,p._key,p._value,chain);
+                    table[i]=chain;
+                    _size--;
+                    _table=table;
+                    return e._value;
+                }
+            }
+            return null;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Remove all values.
+     */
+    public void clear()
+    {
+        synchronized(_lock)
+        {
+            _table=new Entry[_table.length];
+            _size=0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of entries in the map.
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A snapshot of the values in the map.
+     */
+    public Collection values()
+    {
+        Entry[] table=_table;
+        ArrayList values=new ArrayList(table.length);
+        for (int i=0;i<table.length;i++)
+            for (Entry e=table[i];e!=null;e=e._next)
+                values.add(e._value);
+        return values;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A snapshot of the entries in the map.
+     */
+    public Set entrySet()
+    {
+        Entry[] table=_table;
+        final List entries=new ArrayList(table.length);
+        for (int i=0;i<table.length;i++)
+            for (Entry e=table[i];e!=null;e=e._next)
+                entries.add(e);
+        return new AbstractSet()
+        {
+            public Iterator iterator()
+            {
+                final Iterator i=entries.iterator();
+                return new Iterator()
+                {
+                    public boolean hasNext() {return i.hasNext();}
+                    public Object next() {return i.next();}
+                    public void remove() {throw new UnsupportedOperationException();}
+                };
+            }
+            public int size()
+            {
+                return entries.size();
+            }
+        };
+    }
+
+    /* ------------------------------------------------------------ */
+    private Entry[] resize(Entry[] table)
+    {
+        Entry[] resized=new Entry[table.length*2];
+        int mask=resized.length-1;
+        for (int i=0;i<table.length;i++)
+        {
+            for (Entry e=table[i];e!=null;e=e._next)
+            {
+                int j=e._hash&mask;
+                resized[j]=new Entry(e._hash,e._key,e._value,resized[j]);
+            }
+        }
+        return resized;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Entry implements Map.Entry
+    {
+        final int _hash;
+        final Object _key;
+        final Object _value;
+        final Entry _next;
+
+        Entry(int hash, Object key, Object value, Entry next)
+        {
+            _hash=hash;
+            _key=key;
+            _value=value;
+            _next=next;
+        }
+
+        public Object getKey()
+        {
+            return _key;
+        }
+
+        public Object getValue()
+        {
+            return _value;
+        }
+
+        public Object setValue(Object value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry e=(Map.Entry)o;
+            return _key.equals(e.getKey()) && _value.equals(e.getValue());
+        }
+
+        public int hashCode()
+        {
+            return _key.hashCode()^_value.hashCode();
+        }
+
+        public String toString()
+        {
+            return _key+"="+_value;
+        }
+    }
+}
@@ -36,6 +36,13 @@ import java.util.TimeZone;
  * If consecutive calls are frequently very different, then this
  * may be a little slower than a normal DateFormat.
  *
+ * The formatted second is held in an immutable Tick, which is
+ * published via a volatile reference, so that the many threads
+ * formatting the current second do not lock.  When the second rolls
+ * over, one thread formats the new Tick while holding the lock.
+ * The Tick also holds the ISO-8859-1 bytes of the formatted date, so
+ * that it may be written without encoding.
+ *
  * @version $Id$
  * @author Kent Johnson <KJohnson@transparent.com>
  * @author Greg Wilkins (gregw)
@@ -62,6 +69,7 @@ public class DateCache
     private long _lastMinutes = -1;
     private long _lastSeconds = -1;
     private String _lastResult = null;
+    private volatile Tick _tick;
 
     private Locale _locale	= null;
     private DateFormatSymbols	_dfs	= null;
@@ -108,7 +116,7 @@ public class DateCache
     /** Set the timezone.
      * @param tz TimeZone
      */
-    public void setTimeZone(TimeZone tz)
+    public synchronized void setTimeZone(TimeZone tz)
     {
         setTzFormatString(tz);        
         if( _locale != null ) 
@@ -130,6 +138,7 @@ public class DateCache
         _minFormat.setTimeZone(tz);
         _lastSeconds=-1;
         _lastMinutes=-1;        
+        _tick=null;
     }
 
     /* ------------------------------------------------------------ */
@@ -215,7 +224,7 @@ public class DateCache
      * @param inDate 
      * @return Formatted date
      */
-    public synchronized String format(Date inDate)
+    public String format(Date inDate)
     {
         return format(inDate.getTime());
     }
@@ -225,10 +234,60 @@ public class DateCache
      * @param inDate 
      * @return Formatted date
      */
-    public synchronized String format(long inDate)
+    public String format(long inDate)
+    {
+        Tick tick=_tick;
+        if (tick!=null && tick._seconds==inDate/1000)
+            return _millis?tick.format(inDate):tick._string;
+        return formatTick(inDate);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Format a date as ISO-8859-1 bytes.
+     * @param inDate 
+     * @return Formatted date, which may be shared and must not be
+     * changed.
+     */
+    public byte[] formatBytes(long inDate)
+    {
+        if (!_millis)
+        {
+            long seconds=inDate/1000;
+            Tick tick=_tick;
+            if (tick==null || tick._seconds!=seconds)
+            {
+                formatTick(inDate);
+                tick=_tick;
+            }
+            if (tick!=null && tick._seconds==seconds)
+                return tick._bytes;
+        }
+        return toBytes(format(inDate));
+    }
+    
+    /* ------------------------------------------------------------ */
+    private static byte[] toBytes(String s)
+    {
+        byte[] bytes=new byte[s.length()];
+        for (int i=0;i<bytes.length;i++)
+            bytes[i]=(byte)s.charAt(i);
+        return bytes;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /** Format a date that is not in the current Tick.
+     * @param inDate 
+     * @return Formatted date
+     */
+    private synchronized String formatTick(long inDate)
     {
         long seconds = inDate / 1000;
 
+        // Has another thread made the tick?
+        Tick tick=_tick;
+        if (tick!=null && tick._seconds==seconds)
+            return _millis?tick.format(inDate):tick._string;
+
         // Is it not suitable to cache?
         if (seconds<_lastSeconds ||
             _lastSeconds>0 && seconds>_lastSeconds+__hitWindow)
@@ -276,29 +335,13 @@ public class DateCache
 
         // Always format if we get here
         _lastSeconds = seconds;
-        StringBuffer sb=new StringBuffer(_secFormatString.length());
-        synchronized(sb)
-        {
-            sb.append(_secFormatString0);
-            int s=(int)(seconds%60);
-            if (s<10)
-                sb.append('0');
-            sb.append(s);
-            if (_millis)
-            {
-                long millis = inDate%1000;
-                if (millis<10)
-                    sb.append(".00");
-                else if (millis<100)
-                    sb.append(".0");
-                else
-                    sb.append('.');
-                sb.append(millis);
-            }
-            sb.append(_secFormatString1);
-            _lastResult=sb.toString();
-        }
-                
+        String secFormatString0=_secFormatString0;
+        if (seconds%60<10)
+            secFormatString0+='0';
+        secFormatString0+=seconds%60;
+        tick=new Tick(seconds,secFormatString0,_secFormatString1,_millis);
+        _tick=tick;
+        _lastResult=_millis?tick.format(inDate):tick._string;
         return _lastResult;
     }
 
@@ -326,4 +369,49 @@ public class DateCache
         return _formatString;
     } 
     
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** An immutable formatted second.
+     */
+    private static class Tick
+    {
+        final long _seconds;
+        final String _prefix;
+        final String _suffix;
+        final String _string;
+        final byte[] _bytes;
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param seconds The second since the epoch
+         * @param prefix The format up to and including the seconds
+         * @param suffix The format after the seconds or milliseconds
+         * @param millis True if milliseconds are formatted
+         */
+        Tick(long seconds, String prefix, String suffix, boolean millis)
+        {
+            _seconds=seconds;
+            _prefix=prefix;
+            _suffix=suffix;
+            _string=millis?null:(prefix+suffix);
+            _bytes=millis?null:toBytes(_string);
+        }
+
+        /* ------------------------------------------------------------ */
+        String format(long inDate)
+        {
+            StringBuffer sb=new StringBuffer(_prefix.length()+4+_suffix.length());
+            sb.append(_prefix);
+            long millis = inDate%1000;
+            if (millis<10)
+                sb.append(".00");
+            else if (millis<100)
+                sb.append(".0");
+            else
+                sb.append('.');
+            sb.append(millis);
+            sb.append(_suffix);
+            return sb.toString();
+        }
+    }
 }
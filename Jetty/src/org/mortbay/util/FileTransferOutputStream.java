@@ -0,0 +1,42 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.util;
+
+import java.io.File;
+import java.io.IOException;
+
+/* ------------------------------------------------------------ */
+/** File Transfer OutputStream.
+ * Implemented by OutputStreams that can write the content of a file
+ * directly from the file system, so that the content need not be
+ * copied through a buffer before being written.
+ *
+ * @see org.mortbay.http.HttpOutputStream#write(File,long,int)
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public interface FileTransferOutputStream
+{
+    /* ------------------------------------------------------------ */
+    /** Write a range of a file.
+     * The method does not return until all bytes of the range are written.
+     * @param file The file to write
+     * @param position The position within the file of the first byte
+     * @param count The number of bytes to write
+     */
+    void transferFrom(File file, long position, long count)
+        throws IOException;
+}
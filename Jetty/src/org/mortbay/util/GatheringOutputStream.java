@@ -0,0 +1,45 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.util;
+
+import java.io.IOException;
+
+/* ------------------------------------------------------------ */
+/** Gathering OutputStream.
+ * Implemented by OutputStreams that can write two separate byte
+ * ranges with a single operation, so that a header and content
+ * need not be copied into a single buffer before being written.
+ *
+ * @see org.mortbay.http.BufferedOutputStream
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public interface GatheringOutputStream
+{
+    /* ------------------------------------------------------------ */
+    /** Write two byte ranges.
+     * The method does not return until all bytes of both ranges are written.
+     * @param header The first byte range, normally a header
+     * @param headerOffset The offset of the first range
+     * @param headerLength The length of the first range
+     * @param content The second byte range, normally content
+     * @param contentOffset The offset of the second range
+     * @param contentLength The length of the second range
+     */
+    void write(byte[] header, int headerOffset, int headerLength,
+               byte[] content, int contentOffset, int contentLength)
+        throws IOException;
+}
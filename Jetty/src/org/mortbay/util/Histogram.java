@@ -0,0 +1,277 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.util;
+
+/* ------------------------------------------------------------ */
+/** Striped Histogram.
+ * A histogram of non negative values (eg durations in milliseconds)
+ * recorded by many threads, from which percentiles may be estimated.
+ * <p>
+ * Values less than 32 are counted exactly.  Larger values are counted
+ * in log-linear buckets, 16 buckets for each power of 2, so that a
+ * percentile is accurate to within 1/16 of its value. Values of 2^32
+ * or more are counted in the last bucket.  The count, total, minimum
+ * and maximum are exact.
+ * <p>
+ * Like {@link StripedCounter}, the histogram is split over stripes
+ * selected by thread, so that concurrent recording threads seldom
+ * contend.  Reading a percentile merges the stripes.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class Histogram
+{
+    /* ------------------------------------------------------------ */
+    private final static int __SUB_BITS=4;
+    private final static int __SUB=1<<__SUB_BITS;
+    private final static int __MAX_BIT=31;
+    private final static int __BUCKETS=(__MAX_BIT-__SUB_BITS+2)*__SUB;
+
+    /* ------------------------------------------------------------ */
+    private Stripe[] _stripes;
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     */
+    public Histogram()
+    {
+        _stripes=new Stripe[StripedCounter.__stripes];
+        for (int i=0;i<_stripes.length;i++)
+            _stripes[i]=new Stripe();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param value A value
+     * @return The index of the bucket counting the value.
+     */
+    static int bucket(long value)
+    {
+        if (value<2*__SUB)
+            return value<0?0:(int)value;
+
+        int bit=0;
+        for (long v=value;v>1;v>>>=1)
+            bit++;
+        if (bit>__MAX_BIT)
+            return __BUCKETS-1;
+
+        int shift=bit-__SUB_BITS;
+        return (shift+1)*__SUB+(int)(value>>shift)-__SUB;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param bucket The index of a bucket
+     * @return The largest value counted by the bucket.
+     */
+    static long bucketMax(int bucket)
+    {
+        if (bucket<2*__SUB)
+            return bucket;
+        if (bucket==__BUCKETS-1)
+            return Long.MAX_VALUE;
+        int shift=bucket/__SUB-1;
+        long sub=bucket%__SUB+__SUB;
+        return ((sub+1)<<shift)-1;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Record a value.
+     * @param value The value.
+     */
+    public void record(long value)
+    {
+        int bucket=bucket(value);
+        Stripe s=_stripes[StripedCounter.stripe(_stripes.length)];
+        synchronized(s)
+        {
+            s._counts[bucket]++;
+            s._count++;
+            s._total+=value;
+            if (s._count==1 || value<s._min)
+                s._min=value;
+            if (value>s._max)
+                s._max=value;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount()
+    {
+        long count=0;
+        for (int i=0;i<_stripes.length;i++)
+            count+=_stripes[i]._count;
+        return count;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The sum of the values recorded.
+     */
+    public long getTotal()
+    {
+        long total=0;
+        for (int i=0;i<_stripes.length;i++)
+            total+=_stripes[i]._total;
+        return total;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The mean of the values recorded or 0 if none.
+     */
+    public long getMean()
+    {
+        long count=0;
+        long total=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            Stripe s=_stripes[i];
+            synchronized(s)
+            {
+                count+=s._count;
+                total+=s._total;
+            }
+        }
+        return count==0?0:(total/count);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The minimum value recorded or 0 if none.
+     */
+    public long getMin()
+    {
+        long min=-1;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            Stripe s=_stripes[i];
+            synchronized(s)
+            {
+                if (s._count>0 && (min<0 || s._min<min))
+                    min=s._min;
+            }
+        }
+        return min<0?0:min;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum value recorded or 0 if none.
+     */
+    public long getMax()
+    {
+        long max=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            long m=_stripes[i]._max;
+            if (m>max)
+                max=m;
+        }
+        return max;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Estimate a percentile.
+     * @param percentile The percentile, between 0.0 and 100.0
+     * @return The smallest value (to within 1/16) that is not less than
+     * the given percentage of the values recorded, or 0 if none.
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] counts=new long[__BUCKETS];
+        long count=0;
+        long max=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            Stripe s=_stripes[i];
+            synchronized(s)
+            {
+                for (int b=0;b<__BUCKETS;b++)
+                    counts[b]+=s._counts[b];
+                count+=s._count;
+                if (s._max>max)
+                    max=s._max;
+            }
+        }
+        if (count==0)
+            return 0;
+
+        long rank=(long)Math.ceil(count*percentile/100.0);
+        if (rank<1)
+            rank=1;
+        long seen=0;
+        for (int b=0;b<__BUCKETS;b++)
+        {
+            seen+=counts[b];
+            if (seen>=rank)
+            {
+                long value=bucketMax(b);
+                return value>max?max:value;
+            }
+        }
+        return max;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reset the histogram.
+     */
+    public void reset()
+    {
+        for (int i=0;i<_stripes.length;i++)
+        {
+            Stripe s=_stripes[i];
+            synchronized(s)
+            {
+                for (int b=0;b<__BUCKETS;b++)
+                    s._counts[b]=0;
+                s._count=0;
+                s._total=0;
+                s._min=0;
+                s._max=0;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        return "count="+getCount()+
+            ",min="+getMin()+
+            ",mean="+getMean()+
+            ",p50="+getPercentile(50)+
+            ",p99="+getPercentile(99)+
+            ",max="+getMax();
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Stripe
+    {
+        long[] _counts=new long[__BUCKETS];
+        volatile long _count;
+        volatile long _total;
+        long _min;
+        volatile long _max;
+        // Padding to keep stripes on separate cache lines
+        long _p1,_p2,_p3,_p4,_p5,_p6,_p7;
+    }
+}
@@ -173,7 +173,47 @@ public class IO extends ThreadPool
                 out.write(buffer,0,len);
             }
         }
-    }  
+    }
+
+    /* ------------------------------------------------------------------- */
+    /** Relay Stream in to Stream out for byteCount bytes or until EOF.
+     * Unlike copy, out is flushed whenever in has no more bytes
+     * available without blocking, so that bytes are passed on as soon
+     * as they are received rather than when a buffer is filled.  At
+     * most one pooled buffer of bytes is held, so a slow reader of out
+     * holds back the reading of in.
+     * @param byteCount The number of bytes to relay, or -1 for EOF.
+     * @return The number of bytes relayed.
+     */
+    public static long relay(InputStream in,
+                             OutputStream out,
+                             long byteCount)
+         throws IOException
+    {
+        byte[] buffer=ByteArrayPool.getByteArray(bufferSize);
+        try
+        {
+            long relayed=0;
+            while (byteCount<0 || relayed<byteCount)
+            {
+                int len=bufferSize;
+                if (byteCount>=0 && byteCount-relayed<len)
+                    len=(int)(byteCount-relayed);
+                len=in.read(buffer,0,len);
+                if (len<0)
+                    break;
+                out.write(buffer,0,len);
+                relayed+=len;
+                if (in.available()<=0)
+                    out.flush();
+            }
+            return relayed;
+        }
+        finally
+        {
+            ByteArrayPool.returnByteArray(buffer);
+        }
+    }
 
     /* ------------------------------------------------------------------- */
     /** Copy Reader to Writer for byteCount bytes or until EOF or exception.
@@ -46,6 +46,10 @@ import org.mortbay.log.LogFactory;
  * Line input uses the mark/reset mechanism, so any marks set
  * prior to a readLine call are lost.
  *
+ * This class is not synchronized, as an instance is read by one
+ * thread at a time, and a thread blocked reading while holding a
+ * monitor would pin the carrier of a virtual thread.
+ *
  * @version $Id$
  * @author Greg Wilkins (gregw)
  */
@@ -64,6 +68,7 @@ public class LineInput extends FilterInputStream
     private int _byteLimit=-1;
     private boolean _newByteLimit;
     private LineBuffer _lineBuffer;
+    private ByteLineBuffer _byteLineBuffer=new ByteLineBuffer();
     private String _encoding;
     private boolean _eof=false;
     private boolean _lastCr=false;
@@ -182,7 +187,7 @@ public class LineInput extends FilterInputStream
      * @return The line as a String or null for EOF.
      * @exception IOException 
      */
-    public synchronized String readLine()
+    public String readLine()
         throws IOException
     {
         int len=fillLine(_buf.length);
@@ -329,7 +334,32 @@ public class LineInput extends FilterInputStream
     }
     
     /* ------------------------------------------------------------ */
-    public synchronized int read() throws IOException
+    /** Read a Line ended by CR, LF or CRLF as bytes.
+     * The bytes of the line are neither copied nor converted to
+     * characters. The shared ByteLineBuffer instance refers to the
+     * internal buffer of the LineInput, so it is reused between calls
+     * and its content is only valid until the next read.
+     * @return ByteLineBuffer instance or null for EOF.
+     * @exception IOException 
+     */
+    public ByteLineBuffer readByteLineBuffer()
+        throws IOException
+    {
+        int len=fillLine(_buf.length);
+
+        if (len<0)
+            return null;
+        
+        _byteLineBuffer.buffer=_buf;
+        _byteLineBuffer.offset=len==0?0:_mark;
+        _byteLineBuffer.size=len;
+        _mark=-1;
+
+        return _byteLineBuffer;
+    }
+    
+    /* ------------------------------------------------------------ */
+    public int read() throws IOException
     {
         int b;
         if (_pos >=_avail)
@@ -344,7 +374,7 @@ public class LineInput extends FilterInputStream
  
  
     /* ------------------------------------------------------------ */
-    public synchronized int read(byte b[], int off, int len) throws IOException
+    public int read(byte b[], int off, int len) throws IOException
     {
         int avail=_avail-_pos;
         if (avail <=0)
@@ -388,7 +418,7 @@ public class LineInput extends FilterInputStream
 
 
     /* ------------------------------------------------------------ */
-    public synchronized int available()
+    public int available()
         throws IOException
     {
         int in_stream=in.available();
@@ -704,6 +734,23 @@ public class LineInput extends FilterInputStream
         public String toString(){return new String(buffer,0,size);}
     }
 
+    /* ------------------------------------------------------------ */
+    /** Reusable ByteLineBuffer.
+     * A view of a line within the buffer of a LineInput.
+     */
+    public static class ByteLineBuffer
+    {
+        public byte[] buffer;
+        public int offset;
+        public int size;
+
+        public String toString()
+        {
+            try{return new String(buffer,offset,size,StringUtil.__ISO_8859_1);}
+            catch(UnsupportedEncodingException e){return new String(buffer,offset,size);}
+        }
+    }
+
     /* ------------------------------------------------------------ */
     public void destroy()
     {
@@ -711,6 +758,7 @@ public class LineInput extends FilterInputStream
         _byteBuffer=null;
         _reader=null;
         _lineBuffer=null;
+        _byteLineBuffer=null;
         _encoding=null;
     }
 
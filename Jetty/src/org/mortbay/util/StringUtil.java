@@ -285,6 +285,19 @@ public class StringUtil
         return true;
     }
 
+    /* ------------------------------------------------------------ */
+    /** Compare a String with ISO-8859-1 encoded bytes.
+     */
+    public static boolean equals(String s,byte[] buf, int offset, int length)
+    {
+        if (s.length()!=length)
+            return false;
+        for (int i=0;i<length;i++)
+            if ((0xff&buf[offset+i])!=s.charAt(i))
+                return false;
+        return true;
+    }
+
     /* ------------------------------------------------------------ */
     public static String noCRLF(String s)
     {
@@ -0,0 +1,218 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.util;
+
+/* ------------------------------------------------------------ */
+/** Striped Counter.
+ * A counter for statistics that are updated by many threads and read
+ * rarely.  The count is split over a number of stripes, each with its
+ * own lock, and a thread updates the stripe selected by its identity
+ * hash, so that concurrent updates seldom contend for a lock or a
+ * cache line.  The value is the sum of the stripes, which are read
+ * without locking.
+ * <p>
+ * A value read while the counter is being updated may not include
+ * the concurrent updates.
+ * <p>
+ * A counter constructed to track its extremes also records the
+ * maximum and minimum of its value since it was reset.  The stripes
+ * are summed after an increase to check the maximum and after a
+ * decrease to check the minimum, and a lock is taken only when the sum
+ * passes the watermark.  As the stripes are summed without locking, an
+ * extreme may include updates made concurrently with the update that
+ * set it.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class StripedCounter
+{
+    /* ------------------------------------------------------------ */
+    /** The default number of stripes.
+     * The smallest power of 2 not less than twice the number of
+     * processors, limited to 64.
+     */
+    public final static int __stripes;
+    static
+    {
+        int n=2*Runtime.getRuntime().availableProcessors();
+        int s=1;
+        while (s<n && s<64)
+            s<<=1;
+        __stripes=s;
+    }
+
+    /* ------------------------------------------------------------ */
+    private Stripe[] _stripes;
+    private boolean _extremes;
+    private volatile long _max;
+    private volatile long _min;
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * The extremes of the counter are not tracked.
+     */
+    public StripedCounter()
+    {
+        this(false);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * @param extremes If true, the maximum and minimum of the counter
+     * are tracked.
+     */
+    public StripedCounter(boolean extremes)
+    {
+        _extremes=extremes;
+        _stripes=new Stripe[__stripes];
+        for (int i=0;i<_stripes.length;i++)
+            _stripes[i]=new Stripe();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the stripe index for the current thread.
+     * @param stripes The number of stripes, a power of 2.
+     * @return An index less than stripes.
+     */
+    static int stripe(int stripes)
+    {
+        int h=System.identityHashCode(Thread.currentThread());
+        h^=(h>>>16);
+        h^=(h>>>8);
+        return h&(stripes-1);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Add to the counter.
+     * @param delta The amount to add, which may be negative.
+     */
+    public void add(long delta)
+    {
+        Stripe s=_stripes[stripe(_stripes.length)];
+        synchronized(s)
+        {
+            s._value+=delta;
+        }
+
+        if (_extremes)
+        {
+            if (delta>0)
+            {
+                long value=get();
+                if (value>_max)
+                {
+                    synchronized(this)
+                    {
+                        if (value>_max)
+                            _max=value;
+                    }
+                }
+            }
+            else if (delta<0)
+            {
+                long value=get();
+                if (value<_min)
+                {
+                    synchronized(this)
+                    {
+                        if (value<_min)
+                            _min=value;
+                    }
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public void increment()
+    {
+        add(1);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void decrement()
+    {
+        add(-1);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The sum of the stripes.
+     */
+    public long get()
+    {
+        long value=0;
+        for (int i=0;i<_stripes.length;i++)
+            value+=_stripes[i]._value;
+        return value;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum value of the counter since reset, or 0 if
+     * the extremes are not tracked.
+     */
+    public long getMax()
+    {
+        return _max;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The minimum value of the counter since reset, or 0 if
+     * the extremes are not tracked.
+     */
+    public long getMin()
+    {
+        return _min;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reset the counter, its maximum and its minimum to zero.
+     */
+    public void reset()
+    {
+        for (int i=0;i<_stripes.length;i++)
+        {
+            Stripe s=_stripes[i];
+            synchronized(s)
+            {
+                s._value=0;
+            }
+        }
+        synchronized(this)
+        {
+            _max=0;
+            _min=0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        return Long.toString(get());
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Stripe
+    {
+        volatile long _value;
+        // Padding to keep stripes on separate cache lines
+        long _p1,_p2,_p3,_p4,_p5,_p6,_p7;
+    }
+}
@@ -15,6 +15,9 @@
 package org.mortbay.util;
 
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedList;
 
 import org.apache.commons.logging.Log;
 import org.mortbay.log.LogFactory;
@@ -27,9 +30,26 @@ import org.mortbay.log.LogFactory;
  * If the maximum pool size is reached, jobs wait for a free thread. 
  * Idle threads timeout and terminate until the minimum number of threads are running.
  * <p>
- * This implementation uses the run(Object) method to place a job on a queue, which is read by the
- * getJob(timeout) method. Derived implementations may specialize getJob(timeout) to obtain jobs
- * from other sources without queing overheads.
+ * If maxQueued is set to a positive value before the pool is started, then jobs that arrive
+ * when there is no free thread are placed on a bounded queue instead of the caller waiting
+ * for a thread. A thread that finishes a job takes the next queued job before returning to the
+ * pool. When the queue is full, the rejection policy determines what happens to the job:
+ * <ul>
+ * <li>BLOCK - the caller waits up to maxIdleTimeMs for space on the queue (the default).
+ * <li>DISCARD - the job is discarded with stopJob.
+ * <li>DISCARD_OLDEST - the oldest queued job is discarded with stopJob.
+ * <li>CALLER_RUNS - the job is handled by the calling thread.
+ * </ul>
+ * Queued jobs are only taken by threads finishing jobs of the same ThreadPool, so pools that
+ * share a named Pool each drain their own queue.
+ * <p>
+ * If virtualThreads is set and the JVM supports virtual threads (Java 21 or later), each job
+ * is run on a new virtual thread instead of a pooled thread.  The maxThreads limit then acts
+ * as a semaphore on the number of concurrent jobs: the caller of run(Object) waits up to
+ * maxIdleTimeMs for a job to finish if the limit is reached.  getThreads() is the number of
+ * running jobs and getIdleThreads() is 0, so that low and out of resources calculations based
+ * on them measure the spare capacity of the semaphore.  The minThreads, maxQueued and thread
+ * priority settings are not used. On JVMs without virtual threads, pooled threads are used.
  * 
  * @version $Id$
  * @author Juancarlo A�ez <juancarlo@modelistica.com>
@@ -41,11 +61,22 @@ public class ThreadPool implements LifeCycle,Serializable
     static private int __pool=0;
     public static final String __DAEMON="org.mortbay.util.ThreadPool.daemon";
     public static final String __PRIORITY="org.mortbay.util.ThreadPool.priority";
+    public static final String __BLOCK="BLOCK";
+    public static final String __DISCARD="DISCARD";
+    public static final String __DISCARD_OLDEST="DISCARD_OLDEST";
+    public static final String __CALLER_RUNS="CALLER_RUNS";
     
     /* ------------------------------------------------------------------- */
     private Pool _pool;
     private Object _join="";
+    private int _maxQueued;
+    private String _rejectionPolicy=__BLOCK;
     private transient boolean _started;
+    private transient LinkedList _queue;
+    private boolean _virtualThreads;
+    private transient Object _threadFactory;
+    private transient Method _newThread;
+    private transient HashMap _virtualJobs; // running virtual thread -> job
 
     /* ------------------------------------------------------------------- */
     /*
@@ -172,6 +203,14 @@ public class ThreadPool implements LifeCycle,Serializable
      */
     public int getThreads()
     {
+        HashMap jobs=_virtualJobs;
+        if(jobs!=null)
+        {
+            synchronized(jobs)
+            {
+                return jobs.size();
+            }
+        }
         return _pool.size();
     }
 
@@ -184,6 +223,8 @@ public class ThreadPool implements LifeCycle,Serializable
      */
     public int getIdleThreads()
     {
+        if(_virtualJobs!=null)
+            return 0;
         return _pool.available();
     }
 
@@ -288,6 +329,106 @@ public class ThreadPool implements LifeCycle,Serializable
         _pool.setAttribute(__PRIORITY,new Integer(priority));
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of queued jobs or 0 if jobs wait for a thread.
+     */
+    public int getMaxQueued()
+    {
+        return _maxQueued;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the maximum number of queued jobs.
+     * 
+     * @param maxQueued The maximum number of jobs queued while waiting for a thread. If 0 (the
+     *                  default) the caller of run(Object) waits for a thread.
+     * @exception IllegalStateException If the pool is started.
+     */
+    public void setMaxQueued(int maxQueued)
+    {
+        if(isStarted())
+            throw new IllegalStateException("started");
+        _maxQueued=maxQueued;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of jobs queued waiting for a thread.
+     */
+    public int getQueueSize()
+    {
+        LinkedList queue=_queue;
+        if(queue==null)
+            return 0;
+        synchronized(queue)
+        {
+            return queue.size();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if jobs are run on virtual threads when the JVM supports them.
+     */
+    public boolean getVirtualThreads()
+    {
+        return _virtualThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the pool is started and running jobs on virtual threads.
+     */
+    public boolean isVirtual()
+    {
+        return _virtualJobs!=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set virtual thread mode.
+     * 
+     * @param virtualThreads If true, jobs are run on virtual threads when the JVM supports them.
+     * @exception IllegalStateException If the pool is started.
+     */
+    public void setVirtualThreads(boolean virtualThreads)
+    {
+        if(isStarted())
+            throw new IllegalStateException("started");
+        _virtualThreads=virtualThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The policy applied to jobs that arrive when the queue is full.
+     */
+    public String getRejectionPolicy()
+    {
+        return _rejectionPolicy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the rejection policy.
+     * 
+     * @param policy One of BLOCK, DISCARD, DISCARD_OLDEST or CALLER_RUNS.
+     */
+    public void setRejectionPolicy(String policy)
+    {
+        if(__BLOCK.equalsIgnoreCase(policy))
+            _rejectionPolicy=__BLOCK;
+        else if(__DISCARD.equalsIgnoreCase(policy))
+            _rejectionPolicy=__DISCARD;
+        else if(__DISCARD_OLDEST.equalsIgnoreCase(policy))
+            _rejectionPolicy=__DISCARD_OLDEST;
+        else if(__CALLER_RUNS.equalsIgnoreCase(policy))
+            _rejectionPolicy=__CALLER_RUNS;
+        else
+            throw new IllegalArgumentException("Unknown rejection policy: "+policy);
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Set Max Read Time.
@@ -305,10 +446,49 @@ public class ThreadPool implements LifeCycle,Serializable
      */
     public void start() throws Exception
     {
+        _queue=_maxQueued>0?new LinkedList():null;
+        _virtualJobs=null;
+        if(_virtualThreads)
+        {
+            newVirtualThreadFactory();
+            if(_threadFactory!=null)
+            {
+                _virtualJobs=new HashMap();
+                _started=true;
+                return;
+            }
+            log.warn("Virtual threads not supported. Using pooled threads for "+getName());
+        }
         _started=true;
         _pool.start();
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Create a virtual thread factory. The factory is created by reflection, as virtual
+     * threads are not available to the JVMs this class is built for.
+     */
+    private void newVirtualThreadFactory()
+    {
+        _threadFactory=null;
+        _newThread=null;
+        try
+        {
+            Class builderClass=Class.forName("java.lang.Thread$Builder");
+            Object builder=Thread.class.getMethod("ofVirtual",new Class[0]).invoke(null,new Object[0]);
+            builder=builderClass.getMethod("name",new Class[]{String.class,Long.TYPE})
+                .invoke(builder,new Object[]{getName()+"-",new Long(0)});
+            Object factory=builderClass.getMethod("factory",new Class[0]).invoke(builder,new Object[0]);
+            _newThread=Class.forName("java.util.concurrent.ThreadFactory")
+                .getMethod("newThread",new Class[]{Runnable.class});
+            _threadFactory=factory;
+        }
+        catch(Exception e)
+        {
+            LogSupport.ignore(log,e);
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Stop the ThreadPool. New jobs are no longer accepted,idle threads are interrupted and
@@ -319,7 +499,39 @@ public class ThreadPool implements LifeCycle,Serializable
     public void stop() throws InterruptedException
     {
         _started=false;
-        _pool.stop();
+
+        // Discard queued jobs
+        LinkedList queue=_queue;
+        if(queue!=null)
+        {
+            Object[] jobs;
+            synchronized(queue)
+            {
+                jobs=queue.toArray();
+                queue.clear();
+                queue.notifyAll();
+            }
+            for(int i=0;i<jobs.length;i++)
+                stopJob(null,jobs[i]);
+        }
+
+        // Stop running virtual thread jobs
+        HashMap virtualJobs=_virtualJobs;
+        if(virtualJobs!=null)
+        {
+            Object[] threads;
+            Object[] jobs;
+            synchronized(virtualJobs)
+            {
+                threads=virtualJobs.keySet().toArray();
+                jobs=virtualJobs.values().toArray();
+                virtualJobs.notifyAll();
+            }
+            for(int i=0;i<jobs.length;i++)
+                stopJob((Thread)threads[i],jobs[i]);
+        }
+        else
+            _pool.stop();
         synchronized(_join)
         {
             _join.notifyAll();
@@ -365,7 +577,64 @@ public class ThreadPool implements LifeCycle,Serializable
             return;
         try
         {
-            PoolThread thread=(PoolThread)_pool.get(getMaxIdleTimeMs());
+            HashMap virtualJobs=_virtualJobs;
+            if(virtualJobs!=null)
+            {
+                runVirtual(virtualJobs,job);
+                return;
+            }
+
+            PoolThread thread=null;
+            LinkedList queue=_queue;
+            if(queue!=null)
+            {
+                boolean callerRuns=false;
+                synchronized(queue)
+                {
+                    // Take a free thread or queue the job.  Done with the
+                    // queue locked, so that a thread cannot return to the
+                    // pool after this job is queued.
+                    thread=(PoolThread)_pool.get(0);
+                    long end=0;
+                    while(thread==null&&_started&&queue.size()>=_maxQueued&&__BLOCK.equals(_rejectionPolicy))
+                    {
+                        long now=System.currentTimeMillis();
+                        if(end==0)
+                            end=now+getMaxIdleTimeMs();
+                        if(now>=end)
+                            break;
+                        queue.wait(end-now);
+                        thread=(PoolThread)_pool.get(0);
+                    }
+
+                    if(thread==null&&_started)
+                    {
+                        if(queue.size()<_maxQueued)
+                        {
+                            queue.addLast(job);
+                            return;
+                        }
+                        
+                        if(__DISCARD_OLDEST.equals(_rejectionPolicy))
+                        {
+                            Object oldest=queue.removeFirst();
+                            queue.addLast(job);
+                            job=oldest;
+                        }
+                        else if(__CALLER_RUNS.equals(_rejectionPolicy))
+                            callerRuns=true;
+                    }
+                }
+
+                if(callerRuns)
+                {
+                    handle(job);
+                    return;
+                }
+            }
+            else
+                thread=(PoolThread)_pool.get(getMaxIdleTimeMs());
+            
             if(thread!=null)
                 thread.run(this,job);
             else
@@ -384,6 +653,96 @@ public class ThreadPool implements LifeCycle,Serializable
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Run a job on a virtual thread. Waits up to maxIdleTimeMs for the number of running jobs
+     * to fall below maxThreads.
+     */
+    private void runVirtual(final HashMap jobs,final Object job) throws Exception
+    {
+        Thread thread=null;
+        synchronized(jobs)
+        {
+            long end=0;
+            while(_started&&jobs.size()>=getMaxThreads())
+            {
+                long now=System.currentTimeMillis();
+                if(end==0)
+                    end=now+getMaxIdleTimeMs();
+                if(now>=end)
+                    break;
+                jobs.wait(end-now);
+            }
+
+            if(_started&&jobs.size()<getMaxThreads())
+            {
+                Runnable runnable=new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            handle(job);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            LogSupport.ignore(log,e);
+                        }
+                        finally
+                        {
+                            synchronized(jobs)
+                            {
+                                jobs.remove(Thread.currentThread());
+                                jobs.notify();
+                            }
+                        }
+                    }
+                };
+                thread=(Thread)_newThread.invoke(_threadFactory,new Object[]{runnable});
+                jobs.put(thread,job);
+            }
+        }
+
+        if(thread!=null)
+            thread.start();
+        else
+        {
+            log.warn("No thread for "+job);
+            stopJob(null,job);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Get the next queued job. Called by a thread that has finished a job for this pool. If
+     * there is no queued job, the thread is returned to the pool with the queue locked, so that
+     * run(Object) cannot queue a job that no thread will take.
+     * 
+     * @param thread The thread that finished a job.
+     * @return The next job or null if the thread was returned to the pool.
+     */
+    Object nextJob(PoolThread thread) throws InterruptedException
+    {
+        LinkedList queue=_queue;
+        synchronized(queue)
+        {
+            if(queue.size()>0)
+            {
+                if(queue.size()>=_maxQueued)
+                    queue.notifyAll();
+                return queue.removeFirst();
+            }
+            if(thread._pool!=null)
+            {
+                // Mark the thread returned first, as put may return it
+                // and then throw.
+                thread._returned=true;
+                thread._pool.put(thread);
+            }
+            return null;
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Handle a job. Called by the allocated thread to handle a job. If the job is a Runnable, it's
@@ -427,6 +786,7 @@ public class ThreadPool implements LifeCycle,Serializable
         Object _job;
         ThreadPool _runPool;
         Object _run;
+        boolean _returned;
         int _id;
         String _name;
 
@@ -531,7 +891,30 @@ public class ThreadPool implements LifeCycle,Serializable
                     
                     // handle outside of sync
                     if(run!=null && runPool!=null)
+                    {
                         runPool.handle(run);
+
+                        // Handle queued jobs before returning to the pool
+                        if(runPool._queue!=null)
+                        {
+                            synchronized(this)
+                            {
+                                _run=null;
+                            }
+                            while((run=runPool.nextJob(this))!=null)
+                            {
+                                synchronized(this)
+                                {
+                                    _run=run;
+                                }
+                                runPool.handle(run);
+                                synchronized(this)
+                                {
+                                    _run=null;
+                                }
+                            }
+                        }
+                    }
                     else if (run==null && _pool!=null)
                         _pool.shrink();
                 }
@@ -543,9 +926,10 @@ public class ThreadPool implements LifeCycle,Serializable
                 {
                     synchronized(this)
                     {
-                        boolean got=run!=null;
+                        boolean got=run!=null && !_returned;
                         run=_run=null;
                         runPool=_runPool=null;
+                        _returned=false;
                         try
                         {
                             if(got&&_pool!=null)
@@ -0,0 +1,270 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.util;
+
+/* ------------------------------------------------------------ */
+/** Hierarchical Timing Wheel.
+ * An index of timeouts by expiry time, from which the expired timeouts
+ * can be taken at a cost proportional to their number rather than to
+ * the number of timeouts scheduled.
+ * <p>
+ * Time is divided into ticks.  The wheel has __LEVELS levels each of
+ * __SLOTS slots, where a slot of level n covers __SLOTS^n ticks.  A
+ * timeout is linked into the slot of the lowest level that covers its
+ * expiry tick, and is moved down a level when the wheel turns to the
+ * slot holding it.  Timeouts beyond the range of the wheel wait in an
+ * overflow list, which is linked again each time the top level wraps.
+ * Scheduling and
+ * cancelling a timeout takes constant time.
+ * <p>
+ * Expiry is accurate to a tick: a timeout is expired by the first call
+ * to {@link #expire(long)} with a time in or after its expiry tick.
+ * <p>
+ * The wheel is synchronized on itself.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class TimingWheel
+{
+    /* ------------------------------------------------------------ */
+    private final static int __BITS=6;
+    private final static int __SLOTS=1<<__BITS;
+    private final static int __MASK=__SLOTS-1;
+    private final static int __LEVELS=4;
+
+    /* ------------------------------------------------------------ */
+    private long _tickMs;
+    private long _tick;
+    private int _size;
+    private Timeout[][] _slots;
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * @param tickMs The duration of a tick in milliseconds.
+     * @param now The current time in milliseconds.
+     */
+    public TimingWheel(long tickMs, long now)
+    {
+        if (tickMs<=0)
+            throw new IllegalArgumentException("tickMs="+tickMs);
+        _tickMs=tickMs;
+        _tick=now/tickMs;
+
+        // The extra level is the overflow list
+        _slots=new Timeout[__LEVELS+1][];
+        for (int level=0;level<__LEVELS;level++)
+            _slots[level]=new Timeout[__SLOTS];
+        _slots[__LEVELS]=new Timeout[1];
+    }
+
+    /* ------------------------------------------------------------ */
+    public long getTickMs()
+    {
+        return _tickMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of timeouts scheduled.
+     */
+    public synchronized int size()
+    {
+        return _size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Schedule a timeout.
+     * If the timeout is already scheduled, it is rescheduled.
+     * @param timeout The timeout
+     * @param expiry The time in milliseconds at which the timeout expires.
+     */
+    public synchronized void schedule(Timeout timeout, long expiry)
+    {
+        if (timeout._wheel!=null)
+            timeout._wheel.unlink(timeout);
+        timeout._expiry=expiry;
+        timeout._wheel=this;
+        _size++;
+        link(timeout);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Cancel a timeout.
+     * @param timeout The timeout, which need not be scheduled.
+     */
+    public synchronized void cancel(Timeout timeout)
+    {
+        if (timeout._wheel==this)
+            unlink(timeout);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Take the expired timeouts.
+     * The wheel is turned to the tick of the given time and the
+     * timeouts that expire in or before that tick are removed from the
+     * wheel.
+     * @param now The current time in milliseconds.
+     * @return A LazyList of the expired Timeouts.
+     */
+    public synchronized Object expire(long now)
+    {
+        long tick=now/_tickMs;
+
+        // Expire anything due in the current tick (eg scheduled in the past)
+        Object expired=take(0,(int)(_tick&__MASK),null);
+
+        while (_tick<tick)
+        {
+            if (_size==0)
+            {
+                _tick=tick;
+                break;
+            }
+            _tick++;
+
+            // cascade higher levels as the lower levels wrap
+            for (int level=1;level<=__LEVELS;level++)
+            {
+                if ((_tick&((1L<<(__BITS*level))-1))!=0)
+                    break;
+                int slot=level==__LEVELS?0:(int)((_tick>>>(__BITS*level))&__MASK);
+                Timeout t=_slots[level][slot];
+                _slots[level][slot]=null;
+                while (t!=null)
+                {
+                    Timeout next=t._next;
+                    t._next=null;
+                    t._prev=null;
+                    link(t);
+                    t=next;
+                }
+            }
+
+            expired=take(0,(int)(_tick&__MASK),expired);
+        }
+        return expired;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Take the timeouts in a slot.
+     */
+    private Object take(int level, int slot, Object expired)
+    {
+        Timeout t=_slots[level][slot];
+        _slots[level][slot]=null;
+        while (t!=null)
+        {
+            Timeout next=t._next;
+            t._next=null;
+            t._prev=null;
+            t._wheel=null;
+            _size--;
+            expired=LazyList.add(expired,t);
+            t=next;
+        }
+        return expired;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Link a timeout into the slot that covers its expiry.
+     * The level is the lowest at which the expiry tick and the current
+     * tick differ only in the slot, so that the slot is reached before
+     * the expiry.  A timeout beyond the range of the wheel is linked in
+     * the overflow list.
+     */
+    private void link(Timeout timeout)
+    {
+        long tick=timeout._expiry/_tickMs;
+        if (tick<_tick)
+            tick=_tick;
+
+        int level=0;
+        while (level<__LEVELS && (tick>>>(__BITS*(level+1)))!=(_tick>>>(__BITS*(level+1))))
+            level++;
+        int slot=level==__LEVELS?0:(int)((tick>>>(__BITS*level))&__MASK);
+
+        timeout._level=level;
+        timeout._slot=slot;
+        Timeout head=_slots[level][slot];
+        timeout._next=head;
+        timeout._prev=null;
+        if (head!=null)
+            head._prev=timeout;
+        _slots[level][slot]=timeout;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void unlink(Timeout timeout)
+    {
+        if (timeout._prev==null)
+            _slots[timeout._level][timeout._slot]=timeout._next;
+        else
+            timeout._prev._next=timeout._next;
+        if (timeout._next!=null)
+            timeout._next._prev=timeout._prev;
+        timeout._next=null;
+        timeout._prev=null;
+        timeout._wheel=null;
+        _size--;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A timeout that may be scheduled on a wheel.
+     */
+    public static class Timeout
+    {
+        private Object _object;
+        private TimingWheel _wheel;
+        private Timeout _next;
+        private Timeout _prev;
+        private long _expiry;
+        private int _level;
+        private int _slot;
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param object The object that times out.
+         */
+        public Timeout(Object object)
+        {
+            _object=object;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object getObject()
+        {
+            return _object;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The time at which the timeout was last scheduled to
+         * expire.
+         */
+        public long getExpiry()
+        {
+            return _expiry;
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean isScheduled()
+        {
+            return _wheel!=null;
+        }
+    }
+}
@@ -55,5 +55,9 @@ public class ThreadPoolMBean extends LifeCycleMBean
         defineAttribute("maxThreads");
         defineAttribute("maxIdleTimeMs");
         defineAttribute("threadsPriority");
+        defineAttribute("maxQueued");
+        defineAttribute("queueSize");
+        defineAttribute("rejectionPolicy");
+        defineAttribute("virtualThreads");
     }    
 }
@@ -0,0 +1,145 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http;
+
+import java.io.InputStream;
+import java.util.Enumeration;
+
+import org.mortbay.util.LineInput;
+import org.mortbay.util.StringUtil;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of request header parsing.
+ * Typical browser request headers are read repeatedly into a reused
+ * HttpFields, as a HttpConnection would. The lazy run asks for only
+ * the few fields a server usually reads, while the eager run asks for
+ * every value, as the char based parser used to create them all.  The
+ * decode run only converts the header lines to chars, which the char
+ * based parser did before parsing.
+ * <p>
+ * Usage: java org.mortbay.http.HttpFieldsBenchmark [requests]
+ *
+ * @version $Id$
+ * @author gregw
+ */
+public class HttpFieldsBenchmark
+{
+    final static byte[] __request=
+        ("Host: localhost:8080\015\012"+
+         "User-Agent: Mozilla/5.0 (X11; U; Linux i686; en-US; rv:1.7.5) Gecko/20041107 Firefox/1.0\015\012"+
+         "Accept: text/xml,application/xml,application/xhtml+xml,text/html;q=0.9,text/plain;q=0.8,image/png,*/*;q=0.5\015\012"+
+         "Accept-Language: en-us,en;q=0.5\015\012"+
+         "Accept-Encoding: gzip,deflate\015\012"+
+         "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.7\015\012"+
+         "Keep-Alive: 300\015\012"+
+         "Connection: keep-alive\015\012"+
+         "Referer: http://localhost:8080/context/index.html\015\012"+
+         "Cookie: JSESSIONID=1x9f3k2m8q7zt; theme=blue\015\012"+
+         "If-Modified-Since: Fri, 31 Dec 2004 23:59:59 GMT\015\012"+
+         "\015\012").getBytes();
+
+    /* ------------------------------------------------------------ */
+    /** An endless stream of requests.
+     */
+    static class Requests extends InputStream
+    {
+        int _p;
+
+        public int read()
+        {
+            int b=__request[_p++];
+            if (_p==__request.length)
+                _p=0;
+            return b;
+        }
+
+        public int read(byte[] b,int off,int len)
+        {
+            int l=__request.length-_p;
+            if (l>len)
+                l=len;
+            System.arraycopy(__request,_p,b,off,l);
+            _p+=l;
+            if (_p==__request.length)
+                _p=0;
+            return l;
+        }
+
+        public int available()
+        {
+            return __request.length-_p;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    static long fields(int requests, boolean eager)
+        throws Exception
+    {
+        LineInput in=new LineInput(new Requests(),4096,StringUtil.__ISO_8859_1);
+        HttpFields fields=new HttpFields();
+        long start=System.currentTimeMillis();
+        for (int r=0;r<requests;r++)
+        {
+            fields.clear();
+            fields.read(in);
+            if (eager)
+            {
+                Enumeration e=fields.getFieldNames();
+                while (e.hasMoreElements())
+                    fields.get((String)e.nextElement());
+            }
+            else
+            {
+                fields.get(HttpFields.__Host);
+                fields.get(HttpFields.__Connection);
+                fields.get(HttpFields.__IfModifiedSince);
+            }
+        }
+        return System.currentTimeMillis()-start;
+    }
+
+    /* ------------------------------------------------------------ */
+    static long decode(int requests)
+        throws Exception
+    {
+        LineInput in=new LineInput(new Requests(),4096,StringUtil.__ISO_8859_1);
+        long start=System.currentTimeMillis();
+        for (int r=0;r<requests;r++)
+        {
+            LineInput.LineBuffer line;
+            while ((line=in.readLineBuffer())!=null && line.size>0);
+        }
+        return System.currentTimeMillis()-start;
+    }
+
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args)
+        throws Exception
+    {
+        int requests=args.length>0?Integer.parseInt(args[0]):1000000;
+
+        for (int i=0;i<5;i++)
+        {
+            long lazy=fields(requests,false);
+            long eager=fields(requests,true);
+            long decode=decode(requests);
+            System.err.println(requests+" requests: "+
+                               "lazy="+lazy+"ms "+
+                               "eager="+eager+"ms "+
+                               "decode="+decode+"ms");
+        }
+    }
+}
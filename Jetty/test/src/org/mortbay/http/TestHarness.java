@@ -16,19 +16,33 @@
 package org.mortbay.http;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilePermission;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.mortbay.http.ajp.TestAJP13;
+import org.mortbay.http.nio.ByteBufferResource;
+import org.mortbay.http.nio.HttpHeaderScanner;
+import org.mortbay.http.nio.TestAJP13ChannelListener;
+import org.mortbay.http.nio.TestSocketChannelListener;
+import org.mortbay.jetty.servlet.TestPassivatingSessionManager;
+import org.mortbay.util.CachedResource;
+import org.mortbay.util.IO;
 import org.mortbay.util.LineInput;
 import org.mortbay.util.LogSupport;
+import org.mortbay.util.Resource;
+import org.mortbay.util.StringUtil;
 import org.mortbay.util.TestCase;
 
 /* ------------------------------------------------------------ */
@@ -130,6 +144,20 @@ public class TestHarness
                              "567890abcdef","2 Read to EOF");
             test.checkEquals(cin.read(buf),-1,"2 Read EOF");
             test.checkEquals(cin.read(buf),-1,"2 Read EOF again");
+
+            // Only chunk content is available
+            cin = new HttpInputStream(new ByteArrayInputStream
+                ("3\015\012abc\015\0122\015\012de\015\0120\015\012\015\012".getBytes()));
+            cin.setChunking();
+            test.checkEquals(cin.available(),0,"available before chunk");
+            test.check(cin.getInputStream().available()>0,"raw available before chunk");
+            test.checkEquals(cin.read(),'a',"available read");
+            test.checkEquals(cin.available(),2,"available limited to chunk");
+            test.checkEquals(cin.read(buf),2,"available read chunk");
+            test.checkEquals(cin.available(),0,"available between chunks");
+            test.checkEquals(cin.read(buf),2,"available read next chunk");
+            test.checkEquals(new String(buf,0,2),"de","available next chunk");
+            test.checkEquals(cin.read(buf),-1,"available EOF");
             
             
             // Bad EOF in chunking;
@@ -181,6 +209,69 @@ public class TestHarness
         }
     }
     
+    /* -------------------------------------------------------------- */
+    public static void formContentTest()
+    {
+        TestCase test = new TestCase("org.mortbay.http.HttpRequest");
+        int max=HttpRequest.__maxFormContentSize;
+        try
+        {
+            HttpRequest.__maxFormContentSize=10;
+
+            // A form exactly at the limit is accepted
+            HttpRequest request=getFormRequest("Content-Length: 10\015\012",
+                                               "a=12345678");
+            test.checkEquals(request.getParameter("a"),"12345678","form at limit");
+            request=getFormRequest("Transfer-Encoding: chunked\015\012",
+                                   "a\015\012a=12345678\015\0120\015\012\015\012");
+            test.checkEquals(request.getParameter("a"),"12345678","chunked form at limit");
+
+            // A chunked form over the limit is not truncated
+            request=getFormRequest("Transfer-Encoding: chunked\015\012",
+                                   "a\015\012a=12345678\015\0121\015\0129\015\0120\015\012\015\012");
+            try
+            {
+                request.getParameter("a");
+                test.check(false,"chunked form too large");
+            }
+            catch(IllegalStateException e)
+            {
+                test.checkEquals(e.getMessage(),"Form too large","chunked form too large");
+            }
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            test.check(false,e.toString());
+        }
+        finally
+        {
+            HttpRequest.__maxFormContentSize=max;
+        }
+    }
+
+    /* -------------------------------------------------------------- */
+    private static HttpRequest getFormRequest(String length, String content)
+        throws IOException
+    {
+        ByteArrayInputStream in = new ByteArrayInputStream
+            (("POST /form HTTP/1.1\015\012"+
+              "Host: localhost\015\012"+
+              "Content-Type: application/x-www-form-urlencoded\015\012"+
+              length+
+              "\015\012"+
+              content).getBytes());
+        HttpConnection connection = new HttpConnection(null,null,in,new ByteArrayOutputStream(),null);
+        HttpRequest request = connection.getRequest();
+        HttpInputStream cin = connection.getInputStream();
+        request.readHeader((LineInput)cin.getInputStream());
+        if (request.getContentLength()>=0)
+            cin.setContentLength(request.getContentLength());
+        else
+            cin.setChunking();
+        return request;
+    }
+    
     /* -------------------------------------------------------------- */
     public static void chunkOutTest()
         throws Exception
@@ -449,6 +540,45 @@ public class TestHarness
             t.check(params.containsKey("p3"),"p3");
             t.checkEquals(params.get("p4"),"v4=;","p4=v4=;");
 
+            // reuse fields for another request
+            StringBuffer big=new StringBuffer();
+            for (int i=0;i<100;i++)
+                big.append("0123456789");
+            String h4 =
+                "Content-Type: xyz" + CRLF +
+                "I1: 42" + CRLF +
+                "Connection: close" + CRLF +
+                "Big: "+big + CRLF +
+                "U1: \u00e9t\u00e9" + CRLF +
+                CRLF;
+            f.clear();
+            f.read(new LineInput(new ByteArrayInputStream(h4.getBytes(StringUtil.__ISO_8859_1))));
+            t.checkEquals(f.get(HttpFields.__ContentType),"xyz","reuse same");
+            t.checkEquals(f.get("I1"),"42","reuse changed");
+            t.check(f.get(HttpFields.__Connection)==HttpFields.__Close,"known value");
+            t.checkEquals(f.get("Big"),big.toString(),"large value");
+            t.checkEquals(f.get("U1"),"\u00e9t\u00e9","ISO-8859-1 value");
+            t.checkEquals(f.get("L1"),null,"cleared");
+
+            // more names than are cached and indexed
+            HttpFields many = new HttpFields();
+            StringBuffer manyHeader=new StringBuffer();
+            for (int i=0;i<200;i++)
+            {
+                many.add("X-Many-"+i,"v"+i);
+                manyHeader.append("X-Many-"+i+": v"+i+CRLF);
+            }
+            many.add("X-Many-199","w");
+            manyHeader.append("X-Many-199: w"+CRLF+CRLF);
+            t.checkEquals(many.get("x-MANY-7"),"v7","indexed name");
+            t.checkEquals(many.get("x-MANY-190"),"v190","unindexed name");
+            e=many.getValues("X-Many-199");
+            t.checkEquals(e.nextElement(),"v199","unindexed values");
+            t.checkEquals(e.nextElement(),"w","unindexed values");
+            t.checkEquals(many.toString(),manyHeader.toString(),"many order");
+            many.remove("X-MANY-190");
+            t.check(!many.containsKey("X-Many-190"),"unindexed remove");
+
 
             
 
@@ -460,6 +590,227 @@ public class TestHarness
         }
     }
 
+    /* --------------------------------------------------------------- */
+    public static void httpHeaderScanner()
+    {
+        TestCase t = new TestCase("org.mortbay.http.nio.HttpHeaderScanner");
+        HttpHeaderScanner scanner = new HttpHeaderScanner();
+
+        ByteBuffer buf=ByteBuffer.wrap(("\015\012 GET / HTTP/1.1"+CRLF+
+                                        "Host: localhost"+CRLF+
+                                        CRLF+
+                                        "content").getBytes());
+        t.check(scanner.scan(buf,0),"complete");
+        t.checkEquals(scanner.getStart(),3,"start");
+        t.checkEquals(scanner.getLength(),35,"length");
+        t.checkEquals(buf.position(),0,"position");
+
+        scanner.reset();
+        t.check(!scanner.isStarted(),"reset");
+        buf=ByteBuffer.wrap(("GET / HTTP/1.1"+CRLF+
+                             "Host: localhost"+CRLF+
+                             CRLF).getBytes());
+        for (int i=1;i<buf.capacity();i++)
+        {
+            buf.limit(i);
+            t.check(!scanner.scan(buf,i-1),"partial "+i);
+        }
+        buf.limit(buf.capacity());
+        t.check(scanner.scan(buf,buf.capacity()-1),"resumed");
+        
+        scanner.reset();
+        buf=ByteBuffer.wrap("GET / HTTP/1.0\012Host: localhost\012\012".getBytes());
+        t.check(scanner.scan(buf,0),"LF");
+        
+        scanner.reset();
+        buf=ByteBuffer.wrap("GET / HTTP/1.0\015\015".getBytes());
+        t.check(scanner.scan(buf,0),"CR");
+        
+        scanner.reset();
+        buf=ByteBuffer.wrap("GET / HTTP/1.0\015\012Host: x\015\012".getBytes());
+        t.check(!scanner.scan(buf,0),"incomplete");
+        t.checkEquals(scanner.getState(),HttpHeaderScanner.__EOL,"EOL");
+        
+        scanner.reset();
+        buf=ByteBuffer.wrap("GET /\015\012content".getBytes());
+        t.check(scanner.scan(buf,0),"HTTP/0.9");
+        t.checkEquals(scanner.getLength(),7,"HTTP/0.9 length");
+        
+        scanner.reset();
+        buf=ByteBuffer.wrap("GET  /  HTTP/1.0 \015\012".getBytes());
+        t.check(!scanner.scan(buf,0),"spaces");
+    }
+    
+    /* ------------------------------------------------------------ */
+    public static void resourceCache()
+    {
+        TestCase t = new TestCase("org.mortbay.http.ResourceCache");
+        try
+        {
+            File dir=File.createTempFile("cache",".test");
+            dir.delete();
+            dir.mkdir();
+            dir.deleteOnExit();
+            byte[] data=new byte[100];
+            for (int i=0;i<8;i++)
+            {
+                File file=new File(dir,"f"+i+".txt");
+                file.deleteOnExit();
+                FileOutputStream out=new FileOutputStream(file);
+                out.write(data);
+                out.close();
+            }
+
+            ResourceCache cache=new ResourceCache();
+            cache.setResourceBase(dir.getCanonicalPath());
+            cache.setMaxCachedFileSize(1000);
+            cache.setMaxCacheSize(350);
+
+            // LRU
+            t.check(cache.getResource("/f0.txt") instanceof CachedResource,"cached");
+            t.check(cache.getResource("/f0.txt") instanceof CachedResource,"hit");
+            t.checkEquals(cache.getCacheHits(),1,"hits");
+            t.checkEquals(cache.getCacheMisses(),1,"misses");
+            cache.getResource("/f1.txt");
+            cache.getResource("/f2.txt");
+            t.checkEquals(cache.getCacheSize(),300,"size");
+            cache.getResource("/f0.txt");
+            cache.getResource("/f3.txt");
+            t.checkEquals(cache.getCacheSize(),300,"size after eviction");
+            t.checkEquals(cache.getCacheEvictions(),1,"evicted");
+            t.checkEquals(cache.getCacheHits(),2,"referenced");
+            cache.getResource("/f0.txt");
+            t.checkEquals(cache.getCacheHits(),3,"referenced not evicted");
+            
+            // TinyLFU
+            cache.setEvictionPolicy("TinyLFU");
+            cache.resetCacheStats();
+            t.checkEquals(cache.getCacheSize(),0,"flushed");
+            for (int i=0;i<3;i++)
+            {
+                cache.getResource("/f0.txt");
+                cache.getResource("/f1.txt");
+                cache.getResource("/f2.txt");
+            }
+            t.checkEquals(cache.getCacheHits(),6,"frequent hits");
+            for (int i=3;i<8;i++)
+                t.check(!(cache.getResource("/f"+i+".txt") instanceof CachedResource),
+                        "scan not admitted "+i);
+            t.checkEquals(cache.getCacheEvictions(),0,"scan not evicted");
+            for (int i=0;i<3;i++)
+                t.check(cache.getResource("/f"+i+".txt") instanceof CachedResource,
+                        "frequent retained "+i);
+            for (int i=0;i<4;i++)
+                cache.getResource("/f7.txt");
+            t.check(cache.getResource("/f7.txt") instanceof CachedResource,
+                    "frequent admitted");
+            t.checkEquals(cache.getCacheEvictions(),1,"frequent evicted");
+
+            // Off heap
+            cache.setEvictionPolicy("LRU");
+            cache.setMaxCachedFileSize(50);
+            cache.setMaxOffHeapFileSize(1000);
+            cache.setMaxOffHeapCacheSize(250);
+            Resource r=cache.getResource("/f0.txt");
+            t.check(r instanceof ByteBufferResource,"off heap");
+            t.check(ResourceCache.isOffHeap(r),"isOffHeap");
+            t.check(!ResourceCache.isOffHeap(Resource.newResource(new File(dir,"f0.txt").toURL())),
+                    "file not off heap");
+            t.checkEquals(cache.getOffHeapCacheSize(),100,"off heap size");
+            t.checkEquals(cache.getCacheSize(),0,"heap size");
+            ByteArrayOutputStream bout=new ByteArrayOutputStream();
+            r.writeTo(bout,10,50);
+            t.checkEquals(bout.size(),50,"off heap writeTo");
+            t.check(cache.getResource("/f0.txt")==r,"off heap hit");
+            cache.getResource("/f1.txt");
+            cache.getResource("/f2.txt");
+            t.checkEquals(cache.getOffHeapCacheSize(),200,"off heap evicted");
+            t.check(!((ByteBufferResource)r).isMapped(),"small not mapped");
+            cache.setMinMappedFileSize(0);
+            r=cache.getResource("/f0.txt");
+            t.check(((ByteBufferResource)r).isMapped(),"mapped");
+            File f0=new File(dir,"f0.txt");
+            long lastModified=f0.lastModified();
+            RandomAccessFile raf=new RandomAccessFile(f0,"rw");
+            raf.setLength(50);
+            raf.close();
+            f0.setLastModified(lastModified);
+            try
+            {
+                r.writeTo(new ByteArrayOutputStream(),0,-1);
+                t.check(false,"truncated");
+            }
+            catch(IOException e)
+            {
+                t.checkContains(e.getMessage(),"Truncated","truncated");
+            }
+            t.check(cache.getResource("/f0.txt")!=r,"length invalidates");
+            t.checkEquals(cache.getResource("/f0.txt").length(),50,"reloaded");
+            cache.setMinMappedFileSize(-1);
+            t.check(!((ByteBufferResource)cache.getResource("/f1.txt")).isMapped(),
+                    "mapping off");
+
+            // gzip
+            File text=new File(dir,"text.txt");
+            text.deleteOnExit();
+            FileOutputStream out=new FileOutputStream(text);
+            for (int i=0;i<100;i++)
+                out.write("compress me please ".getBytes());
+            out.close();
+            cache.setMaxCachedFileSize(10000);
+            cache.setMaxCacheSize(10000);
+            r=cache.getResource("/text.txt");
+            Resource gz=cache.getGzipResource("/text.txt",r);
+            t.check(gz!=null && gz.length()<r.length(),"gzip compressed");
+            t.check(cache.getGzipResource("/text.txt",r)==gz,"gzip cached");
+            t.checkEquals(cache.getCacheSize(),r.length()+gz.length(),"gzip size");
+            t.checkEquals(IO.toString(new GZIPInputStream(gz.getInputStream())),
+                          IO.toString(r.getInputStream()),"gzip content");
+            cache.setMaxCacheSize((int)r.length()+100);
+            cache.resetCacheStats();
+            cache.getResource("/f1.txt");
+            r=cache.getResource("/text.txt");
+            t.checkEquals(cache.getCacheSize(),r.length()+100,"gzip full");
+            cache.getGzipResource("/text.txt",r);
+            t.check(cache.getCacheSize()<=r.length()+100,"gzip evicted "+cache.getCacheSize());
+            t.checkEquals(cache.getCacheEvictions(),1,"gzip evictions");
+            cache.setMaxCacheSize(10000);
+            File image=new File(dir,"image.gif");
+            image.deleteOnExit();
+            out=new FileOutputStream(image);
+            out.write(data);
+            out.close();
+            r=cache.getResource("/image.gif");
+            t.checkEquals(cache.getGzipResource("/image.gif",r),null,"no gzip");
+            File imagegz=new File(dir,"image.gif.gz");
+            imagegz.deleteOnExit();
+            out=new FileOutputStream(imagegz);
+            out.write(data,0,10);
+            out.close();
+            t.checkEquals(cache.getGzipResource("/image.gif",r),null,"no gzip cached");
+            cache.flushCache();
+            r=cache.getResource("/image.gif");
+            t.checkEquals(cache.getGzipResource("/image.gif",r).length(),10,"gzip file");
+
+            // pre-encoded headers
+            ResourceCache.ResourceMetaData md=cache.getResourceMetaData(r);
+            String block=new String(md.getHeaderBlock(false),StringUtil.__ISO_8859_1);
+            t.checkEquals(block,
+                          "Content-Type: image/gif\015\012"+
+                          "Last-Modified: "+md.getLastModified()+"\015\012",
+                          "header block");
+            block=new String(md.getHeaderBlock(true),StringUtil.__ISO_8859_1);
+            t.check(block.endsWith("\015\012Accept-Ranges: bytes\015\012"),"accept ranges block");
+            t.checkEquals(cache.getResourceMetaData(Resource.newResource(image.toURL())).getHeaderBlock(false),
+                          null,"no uncached block");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+    }
+    
     /* --------------------------------------------------------------- */
     public static void pathMap()
     {
@@ -616,12 +967,22 @@ public class TestHarness
         try
         {
             chunkInTest();
+            formContentTest();
             chunkOutTest();
             chunkingOSTest();
             httpFields();
+            httpHeaderScanner();
+            resourceCache();
             pathMap();
             
             TestRFC2616.test();
+            TestRequestLog.test();
+            TestHttpClient.test();
+            TestSocketChannelListener.test();
+            TestSocketChannelListener.testConnect();
+            TestAJP13ChannelListener.test();
+            TestAJP13.test();
+            TestPassivatingSessionManager.test();
         }
         catch(Throwable e)
         {
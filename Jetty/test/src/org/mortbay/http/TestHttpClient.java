@@ -0,0 +1,229 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLConnection;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.http.handler.AbstractHttpHandler;
+import org.mortbay.http.handler.ProxyHandler;
+import org.mortbay.log.LogFactory;
+import org.mortbay.util.IO;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.TestCase;
+
+/* ------------------------------------------------------------ */
+/** Test the HttpClient against a local HttpServer.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class TestHttpClient
+{
+    private static Log log = LogFactory.getLog(TestHttpClient.class);
+
+    /* ------------------------------------------------------------ */
+    public static void test()
+    {
+        TestCase t = new TestCase("org.mortbay.http.HttpClient");
+        HttpServer server=new HttpServer();
+        SocketListener listener=new SocketListener();
+        HttpClient client=new HttpClient();
+        try
+        {
+            listener.setPort(0);
+            listener.setMaxIdleTimeMs(500);
+            server.addListener(listener);
+            server.getContext("/").addHandler(new EchoHandler());
+            server.start();
+            int port=listener.getServerSocket().getLocalPort();
+
+            client.setIdleTimeoutMs(30000);
+            client.start();
+
+            // Requests reuse a persistent connection
+            for (int i=0;i<3;i++)
+            {
+                HttpClient.Response response=client.send(HttpRequest.__GET,"localhost",port,
+                                                         "/hello/"+i,new HttpFields(),null);
+                t.checkEquals(response.getStatus(),200,"keep-alive status "+i);
+                t.checkEquals(IO.toString(response.getInputStream()),"Hello /hello/"+i,"keep-alive content "+i);
+            }
+            t.checkEquals(client.getRequests(),3,"keep-alive requests");
+            t.checkEquals(client.getConnectionsOpened(),1,"keep-alive connections");
+            t.checkEquals(client.getIdleConnections(),1,"keep-alive idle");
+
+            // Content is sent with a length or chunked
+            HttpFields fields=new HttpFields();
+            fields.put(HttpFields.__ContentLength,"5");
+            HttpClient.Response response=client.send(HttpRequest.__POST,"localhost",port,"/echo",fields,
+                                                     new ByteArrayInputStream("12345".getBytes()));
+            t.checkEquals(IO.toString(response.getInputStream()),"12345","content length");
+            response=client.send(HttpRequest.__POST,"localhost",port,"/echo",new HttpFields(),
+                                 new ByteArrayInputStream("chunked content".getBytes()));
+            t.checkEquals(IO.toString(response.getInputStream()),"chunked content","chunked");
+            t.checkEquals(client.getConnectionsOpened(),1,"content connections");
+
+            // An idempotent request on a connection closed by the server is retried
+            Thread.sleep(1500);
+            response=client.send(HttpRequest.__GET,"localhost",port,"/hello/stale",new HttpFields(),null);
+            t.checkEquals(response.getStatus(),200,"stale retried status");
+            t.checkEquals(IO.toString(response.getInputStream()),"Hello /hello/stale","stale retried content");
+            t.checkEquals(client.getConnectionsOpened(),2,"stale retried connections");
+
+            // A request with content is not retried
+            Thread.sleep(1500);
+            try
+            {
+                fields=new HttpFields();
+                fields.put(HttpFields.__ContentLength,"5");
+                response=client.send(HttpRequest.__POST,"localhost",port,"/echo",fields,
+                                     new ByteArrayInputStream("12345".getBytes()));
+                IO.toString(response.getInputStream());
+                t.check(false,"stale not retried");
+            }
+            catch(IOException e)
+            {
+                LogSupport.ignore(log,e);
+                t.check(true,"stale not retried");
+            }
+            t.checkEquals(client.getConnectionsOpened(),2,"stale not retried connections");
+
+            // Error responses are returned and the connection is reused
+            response=client.send(HttpRequest.__GET,"localhost",port,"/missing",new HttpFields(),null);
+            t.checkEquals(response.getStatus(),404,"not found status");
+            IO.toString(response.getInputStream());
+            response=client.send(HttpRequest.__GET,"localhost",port,"/error",new HttpFields(),null);
+            t.checkEquals(response.getStatus(),500,"error status");
+            t.checkEquals(response.getReason(),"Internal Server Error","error reason");
+            IO.toString(response.getInputStream());
+            t.checkEquals(client.getConnectionsOpened(),3,"errors connections");
+
+            // A connection that cannot be opened is an IOException
+            ServerSocket closed=new ServerSocket(0);
+            int closed_port=closed.getLocalPort();
+            closed.close();
+            try
+            {
+                client.send(HttpRequest.__GET,"localhost",closed_port,"/",new HttpFields(),null);
+                t.check(false,"connect refused");
+            }
+            catch(IOException e)
+            {
+                LogSupport.ignore(log,e);
+                t.check(true,"connect refused");
+            }
+
+            testProxy(t,port);
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+        finally
+        {
+            try{client.stop();}
+            catch(InterruptedException e){LogSupport.ignore(log,e);}
+            try{server.stop();}
+            catch(InterruptedException e){LogSupport.ignore(log,e);}
+        }
+        t.checkEquals(client.getConnections(),0,"connections closed");
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Proxy plain HTTP requests with the HttpClient of a ProxyHandler,
+     * or with a URLConnection if customizeConnection is overridden.
+     */
+    static void testProxy(TestCase t, int port)
+        throws Exception
+    {
+        final boolean[] customized=new boolean[1];
+        ProxyHandler[] proxies=
+        {
+            new ProxyHandler(),
+            new ProxyHandler()
+            {
+                protected void customizeConnection(String pathInContext,
+                                                   String pathParams,
+                                                   HttpRequest request,
+                                                   URLConnection connection)
+                {
+                    customized[0]=true;
+                }
+            }
+        };
+
+        for (int i=0;i<proxies.length;i++)
+        {
+            HttpServer server=new HttpServer();
+            SocketListener listener=new SocketListener();
+            try
+            {
+                listener.setPort(0);
+                server.addListener(listener);
+                server.getContext("/").addHandler(proxies[i]);
+                server.start();
+
+                Socket socket=new Socket("localhost",listener.getServerSocket().getLocalPort());
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(("GET http://localhost:"+port+"/hello/proxy HTTP/1.0\015\012"+
+                                                "\015\012").getBytes());
+                String response=IO.toString(socket.getInputStream());
+                socket.close();
+                t.checkContains(response,"HTTP/1.1 200","proxy status "+i);
+                t.checkContains(response,"Hello /hello/proxy","proxy content "+i);
+            }
+            finally
+            {
+                server.stop();
+            }
+        }
+        t.checkEquals(proxies[0].getHttpClient().getRequests(),1,"proxied by client");
+        t.checkEquals(proxies[1].getHttpClient().getRequests(),0,"customized not by client");
+        t.check(customized[0],"connection customized");
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class EchoHandler extends AbstractHttpHandler
+    {
+        public void handle(String pathInContext,
+                           String pathParams,
+                           HttpRequest request,
+                           HttpResponse response)
+            throws HttpException, IOException
+        {
+            if (pathInContext.startsWith("/error"))
+                throw new HttpException(500,"Test Error");
+            if (!pathInContext.startsWith("/hello") && !pathInContext.startsWith("/echo"))
+                return;
+
+            response.setContentType("text/plain");
+            OutputStream out=response.getOutputStream();
+            if (pathInContext.startsWith("/echo"))
+                IO.copy(request.getInputStream(),out);
+            else
+                out.write(("Hello "+pathInContext).getBytes());
+            request.setHandled(true);
+        }
+    }
+}
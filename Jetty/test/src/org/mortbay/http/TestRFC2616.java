@@ -20,6 +20,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.net.ServerSocket;
 import java.net.URL;
@@ -794,6 +795,62 @@ public class TestRFC2616
                                    "HTTP/1.1 100 Continue","8.2.3 expect 100")+1;
             offset=t.checkContains(response,offset,
                                    "HTTP/1.1 200","8.2.3 expect 100")+1;
+
+            // Expect with chunked body
+            offset=0;
+            response=listener.getResponses("GET /R1 HTTP/1.1\n"+
+                                           "Host: localhost\n"+
+                                           "Expect: 100-continue\n"+
+                                           "Content-Type: text/plain\n"+
+                                           "Transfer-Encoding: chunked\n"+
+                                           "Connection: close\n"+
+                                           "\n"+
+                                           "8\n"+
+                                           "123456\015\012\n"+
+                                           "0\n\n");
+            if(log.isDebugEnabled())log.debug("RESPONSE: "+response);
+            offset=t.checkContains(response,offset,
+                                   "HTTP/1.1 200 OK","8.2.3 expect with chunked body")+1;
+            t.checkEquals(response.indexOf("HTTP/1.1 100"),-1,
+                          "8.2.3 expect with chunked body");
+
+            // RFC2068 continues
+            Field continues=HttpConnection.class.getDeclaredField("__2068_Continues");
+            continues.setAccessible(true);
+            boolean rfc2068=continues.getBoolean(null);
+            try
+            {
+                continues.setBoolean(null,true);
+                offset=0;
+                response=listener.getResponses("POST /R1 HTTP/1.1\n"+
+                                               "Host: localhost\n"+
+                                               "Content-Type: text/plain\n"+
+                                               "Transfer-Encoding: chunked\n"+
+                                               "Connection: close\n"+
+                                               "\n"+
+                                               "8\n"+
+                                               "123456\015\012\n"+
+                                               "0\n\n");
+                if(log.isDebugEnabled())log.debug("RESPONSE: "+response);
+                offset=t.checkContains(response,offset,
+                                       "HTTP/1.1 200 OK","8.2.3 2068 with chunked body")+1;
+                t.checkEquals(response.indexOf("HTTP/1.1 100"),-1,
+                              "8.2.3 2068 with chunked body");
+
+                offset=0;
+                response=listener.getResponses("POST /R1 HTTP/1.1\n"+
+                                               "Host: localhost\n"+
+                                               "Content-Type: text/plain\n"+
+                                               "Content-Length: 8\n"+
+                                               "\n");
+                if(log.isDebugEnabled())log.debug("RESPONSE: "+response);
+                offset=t.checkContains(response,offset,
+                                       "HTTP/1.1 100 Continue","8.2.3 2068 100")+1;
+            }
+            finally
+            {
+                continues.setBoolean(null,rfc2068);
+            }
             
         }
         catch(Exception e)
@@ -0,0 +1,220 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.util.DateCache;
+import org.mortbay.util.IO;
+import org.mortbay.util.LineInput;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.StringUtil;
+import org.mortbay.util.TestCase;
+
+/* ------------------------------------------------------------ */
+/** Test the NCSARequestLog.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class TestRequestLog
+{
+    private static Log log = LogFactory.getLog(TestRequestLog.class);
+
+    /* ------------------------------------------------------------ */
+    public static void test()
+    {
+        testQueue();
+        testFormat();
+    }
+
+    /* ------------------------------------------------------------ */
+    public static void testQueue()
+    {
+        TestCase t = new TestCase("org.mortbay.http.NCSARequestLog");
+        File file=null;
+        try
+        {
+            file=File.createTempFile("request",".log");
+            file.deleteOnExit();
+
+            String[] formats={null,LogFormat.__COMMON};
+            for (int f=0;f<formats.length;f++)
+            {
+                String name=formats[f]==null?"NCSA":"LogFormat";
+                NCSARequestLog requestLog=new NCSARequestLog(file.getCanonicalPath());
+                requestLog.setAppend(false);
+                requestLog.setQueueSize(8);
+                requestLog.setLogFormat(formats[f]);
+                requestLog.start();
+
+                int n=200;
+                for (int i=0;i<n;i++)
+                {
+                    HttpRequest request=getRequest("GET /path/"+i+" HTTP/1.0\015\012\015\012");
+                    HttpResponse response=request.getHttpResponse();
+                    response.setStatus(200);
+                    requestLog.log(request,response,i);
+                }
+                requestLog.stop();
+
+                FileInputStream in=new FileInputStream(file);
+                String content=IO.toString(in);
+                in.close();
+                int lines=0;
+                for (int i=content.indexOf('\n');i>=0;i=content.indexOf('\n',i+1))
+                    lines++;
+                t.checkEquals(lines,n,"queued lines "+name);
+                t.checkEquals(requestLog.getDropped(),0,"no dropped "+name);
+                t.checkContains(content,"\"GET /path/0 HTTP/1.0\" 200","first line "+name);
+                t.checkContains(content,"\"GET /path/"+(n-1)+" HTTP/1.0\" 200 "+(n-1),"last line "+name);
+            }
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+        finally
+        {
+            if (file!=null)
+                file.delete();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public static void testFormat()
+    {
+        TestCase t = new TestCase("org.mortbay.http.LogFormat");
+        try
+        {
+            HttpRequest request=getRequest(
+                "GET /path/to%20x?a=b HTTP/1.1\015\012"+
+                "Host: example.com:8080\015\012"+
+                "Referer: http://referer/\015\012"+
+                "User-Agent: agent \"q\"\015\012"+
+                "Cookie: name=value\015\012"+
+                "X-Forwarded-For: 10.0.0.1\015\012"+
+                "X-Name: caf\351\015\012"+
+                "\015\012");
+            request.setAuthUser("fred");
+            HttpResponse response=request.getHttpResponse();
+            response.setStatus(404);
+            response.setField("Content-Type","text/plain");
+
+            t.checkEquals(format("%a %h %l %u",request,response,0),
+                          "127.0.0.1 127.0.0.1 - fred","%a %h %l %u");
+            LogFormat proxied=new LogFormat("%a %h");
+            proxied.setPreferProxiedForAddress(true);
+            t.checkEquals(format(proxied,request,response,0),
+                          "10.0.0.1 10.0.0.1","%a %h proxied");
+            t.checkEquals(format("%r",request,response,0),
+                          "GET /path/to%20x?a=b HTTP/1.1","%r");
+            t.checkEquals(format("%m %U %q %H",request,response,0),
+                          "GET /path/to x ?a=b HTTP/1.1","%m %U %q %H");
+            t.checkEquals(format("%v %p",request,response,0),
+                          "example.com 8080","%v %p");
+            t.checkEquals(format("%s %b %B",request,response,0),
+                          "404 - 0","%s %b %B no content");
+            t.checkEquals(format("%s %b %B",request,response,1234),
+                          "404 1234 1234","%s %b %B");
+            t.checkEquals(format("%{Referer}i %{Content-Type}o %{name}C %{missing}i %{other}C",request,response,0),
+                          "http://referer/ text/plain value - -","%i %o %C");
+            t.checkEquals(format("100%% %%s",request,response,0),
+                          "100% %s","%%");
+            t.checkEquals(format("\"%{User-Agent}i\" %{X-Name}i",request,response,0),
+                          "\"agent \\\"q\\\"\" caf\\xc3\\xa9","escaped");
+            t.checkEquals(format("{\"agent\":\"%{User-Agent}i\",\"name\":\"%{X-Name}i\"}",request,response,0),
+                          "{\"agent\":\"agent \\\"q\\\"\",\"name\":\"caf\\u00e9\"}","JSON escaped");
+
+            request.setTimeStamp(0);
+            t.checkEquals(format("%t",request,response,0),"[0]","%t no date cache");
+            LogFormat time=new LogFormat("%t");
+            DateCache dateCache=new DateCache("yyyy-MM-dd HH:mm:ss");
+            dateCache.setTimeZoneID("GMT");
+            time.setDateCache(dateCache);
+            t.checkEquals(format(time,request,response,0),"[1970-01-01 00:00:00]","%t");
+
+            request.setTimeStamp(System.currentTimeMillis()-2500);
+            String[] latency=format("%T %{s}T %{ms}T %D %{us}T",request,response,0).split(" ");
+            t.checkEquals(latency.length,5,"latency");
+            t.checkEquals(latency[0],"2","%T");
+            t.checkEquals(latency[1],"2","%{s}T");
+            long ms=Long.parseLong(latency[2]);
+            t.check(ms>=2500 && ms<2900,"%{ms}T "+ms);
+            long us=Long.parseLong(latency[3]);
+            t.check(us>=2500000 && us<2900000,"%D "+us);
+            t.check(Long.parseLong(latency[4])>=us,"%{us}T");
+
+            request.setTimeStamp(0);
+            t.checkEquals(format(LogFormat.__COMBINED,request,response,10),
+                          "127.0.0.1 - fred [0] \"GET /path/to%20x?a=b HTTP/1.1\" 404 10 \"http://referer/\" \"agent \\\"q\\\"\"",
+                          "combined");
+
+            String[] bad={"%Z","%{x}T","%{Name}","%{Name"};
+            for (int i=0;i<bad.length;i++)
+            {
+                try
+                {
+                    new LogFormat(bad[i]);
+                    t.check(false,"bad directive "+bad[i]);
+                }
+                catch(IllegalArgumentException e)
+                {
+                    t.check(true,"bad directive "+bad[i]);
+                }
+            }
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    static String format(String format,HttpRequest request,HttpResponse response,int length)
+    {
+        return format(new LogFormat(format),request,response,length);
+    }
+
+    /* ------------------------------------------------------------ */
+    static String format(LogFormat format,HttpRequest request,HttpResponse response,int length)
+    {
+        String line=format.format(request,response,length).toString();
+        if (!line.endsWith(StringUtil.__LINE_SEPARATOR))
+            return "No EOL: "+line;
+        return line.substring(0,line.length()-StringUtil.__LINE_SEPARATOR.length());
+    }
+
+    /* ------------------------------------------------------------ */
+    static HttpRequest getRequest(String data)
+        throws IOException
+    {
+        ByteArrayInputStream in = new ByteArrayInputStream(data.getBytes(StringUtil.__ISO_8859_1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpConnection connection = new HttpConnection(null,null,in,out,null);
+        HttpRequest request = connection.getRequest();
+        request.readHeader((LineInput)(connection.getInputStream()).getInputStream());
+        return request;
+    }
+}
@@ -0,0 +1,264 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.ajp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.http.HttpFields;
+import org.mortbay.http.HttpResponse;
+import org.mortbay.util.GatheringOutputStream;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.TestCase;
+
+/* ------------------------------------------------------------ */
+/** Test the AJP13 packet header decoding and response output.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class TestAJP13
+{
+    private static Log log = LogFactory.getLog(TestAJP13.class);
+
+    /* ------------------------------------------------------------ */
+    public static void test()
+    {
+        testHeaders();
+        testOutput();
+    }
+
+    /* ------------------------------------------------------------ */
+    public static void testHeaders()
+    {
+        TestCase t = new TestCase("org.mortbay.http.ajp.AJP13Packet");
+        try
+        {
+            ByteArrayOutputStream bout=new ByteArrayOutputStream();
+            DataOutputStream out=new DataOutputStream(bout);
+            out.writeShort(0xA00B);
+            string(out,"localhost");
+            string(out,"X-Test");
+            string(out,"abc");
+            out.writeShort(0xA00E);
+            out.writeShort(0xFFFF);
+            string(out,"X-Null");
+            out.writeShort(0xFFFF);
+            out.writeShort(0xA0FF);
+            string(out,"unknown code");
+            string(out,"X-Last");
+            string(out,"last");
+            AJP13RequestPacket packet=packet(bout.toByteArray());
+
+            HttpFields fields=new HttpFields();
+            for (int i=0;i<5;i++)
+                packet.getHeader(fields);
+            t.checkEquals(fields.get(HttpFields.__Host),"localhost","coded");
+            t.checkEquals(fields.get("X-Test"),"abc","uncoded");
+            t.checkEquals(fields.get(HttpFields.__UserAgent),null,"coded null value");
+            t.check(!fields.containsKey(HttpFields.__UserAgent),"coded null value skipped");
+            t.check(!fields.containsKey("X-Null"),"uncoded null value skipped");
+            t.checkEquals(fields.size(),2,"fields");
+
+            // Lengths past the end of the packet are not read
+            bout.reset();
+            string(out,"X-Test");
+            out.writeShort(10);
+            out.writeBytes("short");
+            packet=packet(bout.toByteArray());
+            fields=new HttpFields();
+            packet.getHeader(fields);
+            t.checkEquals(fields.size(),0,"value too long");
+
+            bout.reset();
+            out.writeShort(10);
+            out.writeBytes("short");
+            packet=packet(bout.toByteArray());
+            packet.getHeader(fields);
+            t.checkEquals(fields.size(),0,"name too long");
+
+            bout.reset();
+            out.writeByte(0xA0);
+            packet=packet(bout.toByteArray());
+            packet.getHeader(fields);
+            t.checkEquals(fields.size(),0,"truncated code");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public static void testOutput()
+    {
+        TestCase t = new TestCase("org.mortbay.http.ajp.AJP13OutputStream");
+        try
+        {
+            // Headers are gathered with the first body chunk
+            Gatherer gatherer=new Gatherer();
+            AJP13OutputStream out=new AJP13OutputStream(gatherer,1024);
+            out.writeHeader(response());
+            t.checkEquals(gatherer.size(),0,"header pending");
+            out.write("hello".getBytes());
+            out.flush();
+            t.checkEquals(gatherer._gathers,1,"header and body gathered");
+            t.checkEquals(gatherer._flushes,1,"header and body flushed");
+            byte[] headers=headers();
+            byte[] chunk={'A','B',0,9,AJP13Packet.__SEND_BODY_CHUNK,0,5,'h','e','l','l','o',0};
+            t.checkEquals(gatherer.toString(),string(headers)+string(chunk),"header and body");
+            out.close();
+            t.checkEquals(gatherer._gathers,1,"end not gathered");
+            t.checkEquals(gatherer.toString(),string(headers)+string(chunk)+string(end()),"end");
+
+            // Headers are gathered with END_RESPONSE if there is no body
+            gatherer=new Gatherer();
+            out=new AJP13OutputStream(gatherer,1024);
+            out.writeHeader(response());
+            out.close();
+            t.checkEquals(gatherer._gathers,1,"header and end gathered");
+            t.checkEquals(gatherer.toString(),string(headers)+string(end()),"header and end");
+
+            // Headers are written by a flush without a body
+            gatherer=new Gatherer();
+            out=new AJP13OutputStream(gatherer,1024);
+            out.writeHeader(response());
+            out.flush();
+            t.checkEquals(gatherer._gathers,0,"header not gathered");
+            t.checkEquals(gatherer._flushes,1,"header flushed");
+            t.checkEquals(gatherer.toString(),string(headers),"header");
+            out.write("hello".getBytes());
+            out.close();
+            t.checkEquals(gatherer.toString(),string(headers)+string(chunk)+string(end()),"body after header");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    static HttpResponse response()
+    {
+        HttpResponse response=new HttpResponse();
+        response.setStatus(200);
+        response.setReason("OK");
+        response.setField("X-Test","abc");
+        return response;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** The SEND_HEADERS packet of the test response.
+     */
+    static byte[] headers()
+        throws IOException
+    {
+        ByteArrayOutputStream bout=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(bout);
+        out.writeByte(AJP13Packet.__SEND_HEADERS);
+        out.writeShort(200);
+        string(out,"OK");
+        out.writeShort(1);
+        string(out,"X-Test");
+        string(out,"abc");
+        byte[] data=bout.toByteArray();
+        bout.reset();
+        out.writeByte('A');
+        out.writeByte('B');
+        out.writeShort(data.length);
+        out.write(data);
+        return bout.toByteArray();
+    }
+
+    /* ------------------------------------------------------------ */
+    static byte[] end()
+    {
+        return new byte[]{'A','B',0,2,AJP13Packet.__END_RESPONSE,1};
+    }
+
+    /* ------------------------------------------------------------ */
+    /** A request packet read from data.
+     */
+    static AJP13RequestPacket packet(byte[] data)
+        throws IOException
+    {
+        ByteArrayOutputStream bout=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(bout);
+        out.writeShort(0x1234);
+        out.writeShort(data.length);
+        out.write(data);
+        AJP13RequestPacket packet=new AJP13RequestPacket(1024);
+        packet.read(new ByteArrayInputStream(bout.toByteArray()));
+        return packet;
+    }
+
+    /* ------------------------------------------------------------ */
+    static void string(DataOutputStream out, String s)
+        throws IOException
+    {
+        out.writeShort(s.length());
+        out.writeBytes(s);
+        out.writeByte(0);
+    }
+
+    /* ------------------------------------------------------------ */
+    static String string(byte[] b)
+        throws IOException
+    {
+        return new String(b,"ISO-8859-1");
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A GatheringOutputStream that counts gathering writes and flushes.
+     */
+    static class Gatherer extends ByteArrayOutputStream implements GatheringOutputStream
+    {
+        int _gathers;
+        int _flushes;
+
+        public void write(byte[] header, int headerOffset, int headerLength,
+                          byte[] content, int contentOffset, int contentLength)
+        {
+            _gathers++;
+            write(header,headerOffset,headerLength);
+            write(content,contentOffset,contentLength);
+        }
+
+        public void flush()
+        {
+            _flushes++;
+        }
+
+        public String toString()
+        {
+            try
+            {
+                return string(toByteArray());
+            }
+            catch(IOException e)
+            {
+                return e.toString();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.mortbay.util.LineInput;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of selector to worker ByteBuffer handoff.
+ * A producer thread plays the part of a selector thread, writing
+ * buffers of pipelined requests, while a consumer thread reads the
+ * request lines through a LineInput, as a HttpConnection would.
+ * <p>
+ * Usage: java org.mortbay.http.nio.ByteBufferInputStreamBenchmark [requests] [bufferSize]
+ *
+ * @version $Id$
+ * @author gregw
+ */
+public class ByteBufferInputStreamBenchmark
+{
+    final static byte[] __request=
+        ("GET /context/path/file.html HTTP/1.1\015\012"+
+         "Host: localhost:8080\015\012"+
+         "User-Agent: Benchmark/1.0\015\012"+
+         "Accept: */*\015\012"+
+         "\015\012").getBytes();
+
+    int _requests;
+    int _bufferSize;
+    volatile long _produced;
+    volatile long _consumed;
+
+    /* ------------------------------------------------------------ */
+    ByteBufferInputStreamBenchmark(int requests, int bufferSize)
+    {
+        _requests=requests;
+        _bufferSize=bufferSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Run the benchmark against a stream.
+     * @param in Either a ByteBufferInputStream or a ChainedByteBufferInputStream
+     * @return The elapsed time in ms.
+     */
+    long run(final InputStream in)
+        throws Exception
+    {
+        _produced=0;
+        _consumed=0;
+
+        Thread producer=new Thread()
+            {
+                public void run()
+                {
+                    int r=0;
+                    int p=0;
+                    while (r<_requests)
+                    {
+                        // Don't let the producer get too far ahead
+                        while (_produced-_consumed>64*_bufferSize)
+                            Thread.yield();
+
+                        ByteBuffer buf=getBuffer(in);
+                        while (buf.hasRemaining() && r<_requests)
+                        {
+                            int len=__request.length-p;
+                            if (len>buf.remaining())
+                                len=buf.remaining();
+                            buf.put(__request,p,len);
+                            p+=len;
+                            if (p==__request.length)
+                            {
+                                p=0;
+                                r++;
+                            }
+                        }
+                        buf.flip();
+                        _produced+=buf.remaining();
+                        write(in,buf);
+                    }
+                }
+            };
+
+        long start=System.currentTimeMillis();
+        producer.start();
+
+        LineInput lin=new LineInput(in,_bufferSize);
+        int requests=0;
+        long consumed=0;
+        while (requests<_requests)
+        {
+            String line=lin.readLine();
+            if (line==null)
+                throw new IllegalStateException("EOF");
+            consumed+=line.length()+2;
+            _consumed=consumed;
+            if (line.length()==0)
+                requests++;
+        }
+        producer.join();
+        return System.currentTimeMillis()-start;
+    }
+
+    /* ------------------------------------------------------------ */
+    static ByteBuffer getBuffer(InputStream in)
+    {
+        if (in instanceof ChainedByteBufferInputStream)
+            return ((ChainedByteBufferInputStream)in).getBuffer();
+        return ((ByteBufferInputStream)in).getBuffer();
+    }
+
+    /* ------------------------------------------------------------ */
+    static void write(InputStream in, ByteBuffer buf)
+    {
+        if (in instanceof ChainedByteBufferInputStream)
+            ((ChainedByteBufferInputStream)in).write(buf);
+        else
+            ((ByteBufferInputStream)in).write(buf);
+    }
+
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args)
+        throws Exception
+    {
+        int requests=args.length>0?Integer.parseInt(args[0]):1000000;
+        int bufferSize=args.length>1?Integer.parseInt(args[1]):4096;
+        ByteBufferInputStreamBenchmark benchmark=
+            new ByteBufferInputStreamBenchmark(requests,bufferSize);
+
+        for (int i=0;i<5;i++)
+        {
+            long sync=benchmark.run(new ByteBufferInputStream(bufferSize));
+            long chained=benchmark.run(new ChainedByteBufferInputStream(bufferSize));
+            System.err.println(requests+" pipelined requests: "+
+                               "ByteBufferInputStream="+sync+"ms "+
+                               "ChainedByteBufferInputStream="+chained+"ms");
+        }
+    }
+}
@@ -0,0 +1,326 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.http.HttpException;
+import org.mortbay.http.HttpRequest;
+import org.mortbay.http.HttpResponse;
+import org.mortbay.http.HttpServer;
+import org.mortbay.http.handler.AbstractHttpHandler;
+import org.mortbay.util.IO;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.TestCase;
+
+/* ------------------------------------------------------------ */
+/** Test the AJP13ChannelListener.
+ * Forward request packets are sent over a socket as mod_jk would.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class TestAJP13ChannelListener
+{
+    private static Log log = LogFactory.getLog(TestAJP13ChannelListener.class);
+
+    /* ------------------------------------------------------------ */
+    public static void test()
+    {
+        TestCase t = new TestCase("org.mortbay.http.nio.AJP13ChannelListener");
+        HttpServer server=new HttpServer();
+        AJP13ChannelListener listener=new AJP13ChannelListener();
+        try
+        {
+            listener.setPort(0);
+            listener.setMaxIdleTimeMs(1000);
+            server.addListener(listener);
+            server.getContext("/").addHandler(new EchoHandler());
+            server.start();
+            int port=listener.getPort();
+
+            // Requests without a body on a persistent connection
+            Socket socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            OutputStream out=socket.getOutputStream();
+            for (int i=0;i<3;i++)
+            {
+                out.write(forward(2,"/get/"+i,null));
+                out.flush();
+                t.checkEquals(response(socket),"200 GET /get/"+i+" x=abc","no body "+i);
+            }
+
+            // A request with a body in the same write
+            out.write(forward(4,"/post",null,"hello world"));
+            out.flush();
+            t.checkEquals(response(socket),"200 POST /post x=abc hello world","body");
+
+            socket.close();
+
+            // A request split within its header, with a body sent later.
+            // A new connection is used, so that the request is received by
+            // the selector rather than by the thread of the last request.
+            socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            out=socket.getOutputStream();
+            byte[] packet=forward(4,"/split",null,"split body");
+            int body=packet.length-bodyChunk("split body").length;
+            out.write(packet,0,5);
+            out.flush();
+            Thread.sleep(200);
+            out.write(packet,5,body-5);
+            out.flush();
+            Thread.sleep(200);
+            out.write(packet,body,packet.length-body);
+            out.flush();
+            t.checkEquals(response(socket),"200 POST /split x=abc split body","split body");
+
+            socket.close();
+
+            // A chunked request body, ended by an empty body chunk
+            socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            out=socket.getOutputStream();
+            out.write(forward(4,"/chunked","chunked","chunked body"));
+            out.flush();
+            t.checkEquals(response(socket),"200 POST /chunked x=abc chunked body","chunked");
+            socket.close();
+
+            // A partial packet is closed by the selector
+            socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(forward(2,"/stalled",null),0,10);
+            checkClosed(t,socket,"stalled packet");
+
+            // A request waiting for its body is closed by the selector
+            socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            packet=forward(4,"/stalled",null,"never sent");
+            socket.getOutputStream().write(packet,0,packet.length-bodyChunk("never sent").length);
+            checkClosed(t,socket,"stalled body");
+
+            // A request with bad string lengths does not stop the selector
+            socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            packet=forward(4,"/bad",null,"bad");
+            for (int i=8;i<packet.length-7;i+=3)
+                packet[i]=(byte)0xFF;
+            socket.getOutputStream().write(packet);
+            try
+            {
+                IO.toString(socket.getInputStream());
+            }
+            catch(IOException e)
+            {
+                LogSupport.ignore(log,e);
+            }
+            socket.close();
+            socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(forward(2,"/after",null));
+            t.checkEquals(response(socket),"200 GET /after x=abc","after bad packet");
+            socket.close();
+
+            // All connections are deregistered
+            for (int i=0;i<20 && listener.getConnections()>0;i++)
+                Thread.sleep(100);
+            t.checkEquals(listener.getConnections(),0,"no connections");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+        finally
+        {
+            try{server.stop();}
+            catch(InterruptedException e){LogSupport.ignore(log,e);}
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    static void checkClosed(TestCase t, Socket socket, String check)
+        throws IOException
+    {
+        long start=System.currentTimeMillis();
+        int b=-2;
+        try
+        {
+            b=socket.getInputStream().read();
+        }
+        catch(InterruptedIOException e)
+        {
+            LogSupport.ignore(log,e);
+        }
+        catch(IOException e)
+        {
+            b=-1;
+        }
+        long idle=System.currentTimeMillis()-start;
+        t.checkEquals(b,-1,check+" closed");
+        t.check(idle>=800 && idle<4000,check+" max idle "+idle);
+        socket.close();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** A forward request packet, followed by a body chunk packet if
+     * there is a body.
+     */
+    static byte[] forward(int method, String uri, String te, String body)
+        throws IOException
+    {
+        ByteArrayOutputStream bout=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(bout);
+        out.writeByte(2);
+        out.writeByte(method);
+        string(out,"HTTP/1.1");
+        string(out,uri);
+        string(out,"127.0.0.1");
+        string(out,"localhost");
+        string(out,"localhost");
+        out.writeShort(80);
+        out.writeByte(0);
+        out.writeShort(body==null?3:4);
+        out.writeShort(0xA00B);
+        string(out,"localhost");
+        string(out,"X-Test");
+        string(out,"abc");
+        out.writeShort(0xA00E);
+        string(out,"test/1.0");
+        if (te!=null)
+        {
+            string(out,"Transfer-Encoding");
+            string(out,te);
+        }
+        else if (body!=null)
+        {
+            out.writeShort(0xA008);
+            string(out,""+body.length());
+        }
+        out.writeByte(0xFF);
+
+        byte[] packet=packet(bout.toByteArray());
+        if (body==null)
+            return packet;
+        bout.reset();
+        bout.write(packet);
+        bout.write(bodyChunk(body));
+        return bout.toByteArray();
+    }
+
+    /* ------------------------------------------------------------ */
+    static byte[] forward(int method, String uri, String body)
+        throws IOException
+    {
+        return forward(method,uri,null,body);
+    }
+
+    /* ------------------------------------------------------------ */
+    static byte[] bodyChunk(String data)
+        throws IOException
+    {
+        ByteArrayOutputStream bout=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(bout);
+        out.writeShort(data.length());
+        out.writeBytes(data);
+        return packet(bout.toByteArray());
+    }
+
+    /* ------------------------------------------------------------ */
+    static byte[] packet(byte[] data)
+        throws IOException
+    {
+        ByteArrayOutputStream bout=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(bout);
+        out.writeShort(0x1234);
+        out.writeShort(data.length);
+        out.write(data);
+        return bout.toByteArray();
+    }
+
+    /* ------------------------------------------------------------ */
+    static void string(DataOutputStream out, String s)
+        throws IOException
+    {
+        out.writeShort(s.length());
+        out.writeBytes(s);
+        out.writeByte(0);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Read the packets of a response.
+     * @return The status and the content.
+     */
+    static String response(Socket socket)
+        throws IOException
+    {
+        DataInputStream in=new DataInputStream(socket.getInputStream());
+        StringBuffer content=new StringBuffer();
+        int status=-1;
+        while (true)
+        {
+            int magic=in.readUnsignedShort();
+            if (magic!=0x4142)
+                throw new IOException("Bad magic "+Integer.toHexString(magic));
+            byte[] data=new byte[in.readUnsignedShort()];
+            in.readFully(data);
+            switch(data[0])
+            {
+              case 3:
+                  content.append(new String(data,3,((data[1]&0xFF)<<8)|(data[2]&0xFF),"ISO-8859-1"));
+                  break;
+              case 4:
+                  status=((data[1]&0xFF)<<8)|(data[2]&0xFF);
+                  break;
+              case 5:
+                  return status+" "+content;
+              case 6:
+                  // All of the body has been sent
+                  socket.getOutputStream().write(packet(new byte[0]));
+                  break;
+              default:
+                  throw new IOException("Bad packet "+data[0]);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class EchoHandler extends AbstractHttpHandler
+    {
+        public void handle(String pathInContext,
+                           String pathParams,
+                           HttpRequest request,
+                           HttpResponse response)
+            throws HttpException, IOException
+        {
+            response.setContentType("text/plain");
+            String content=request.getMethod()+" "+pathInContext+" x="+request.getField("X-Test");
+            if (HttpRequest.__POST.equals(request.getMethod()))
+                content+=" "+IO.toString(request.getInputStream());
+            response.getOutputStream().write(content.getBytes());
+            request.setHandled(true);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.http.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.http.HttpContext;
+import org.mortbay.http.HttpException;
+import org.mortbay.http.HttpRequest;
+import org.mortbay.http.HttpResponse;
+import org.mortbay.http.HttpServer;
+import org.mortbay.http.handler.AbstractHttpHandler;
+import org.mortbay.http.handler.ProxyHandler;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.TestCase;
+
+/* ------------------------------------------------------------ */
+/** Test the SocketChannelListener.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class TestSocketChannelListener
+{
+    private static Log log = LogFactory.getLog(TestSocketChannelListener.class);
+
+    /* ------------------------------------------------------------ */
+    public static void test()
+    {
+        TestCase t = new TestCase("org.mortbay.http.nio.SocketChannelListener");
+        HttpServer server=new HttpServer();
+        SocketChannelListener listener=new SocketChannelListener();
+        try
+        {
+            listener.setPort(0);
+            listener.setMaxIdleTimeMs(1000);
+            server.addListener(listener);
+            HttpContext context=server.getContext("/");
+            context.addHandler(new HelloHandler());
+            server.start();
+            int port=listener.getPort();
+
+            // A header received in several parts
+            Socket socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            OutputStream out=socket.getOutputStream();
+            out.write("GET /split HTTP/1.1\015\012Ho".getBytes());
+            out.flush();
+            Thread.sleep(200);
+            out.write("st: localhost\015\012".getBytes());
+            out.flush();
+            Thread.sleep(200);
+            out.write("Connection: close\015\012\015\012".getBytes());
+            out.flush();
+            String response=read(socket.getInputStream());
+            t.checkContains(response,"HTTP/1.1 200","split header");
+            t.checkContains(response,"Hello /split","split header handled");
+            socket.close();
+
+            // A header that stalls is closed by the selector
+            socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            out=socket.getOutputStream();
+            out.write("GET /stalled HTTP/1.1\015\012Host:".getBytes());
+            out.flush();
+            long start=System.currentTimeMillis();
+            int b=-2;
+            try
+            {
+                b=socket.getInputStream().read();
+            }
+            catch(InterruptedIOException e)
+            {
+                LogSupport.ignore(log,e);
+            }
+            catch(IOException e)
+            {
+                b=-1;
+            }
+            long idle=System.currentTimeMillis()-start;
+            t.checkEquals(b,-1,"stalled header closed");
+            t.check(idle>=800 && idle<4000,"stalled header max idle "+idle);
+            socket.close();
+
+            // A HTTP/0.9 request has no header
+            socket=new Socket("localhost",port);
+            socket.setSoTimeout(5000);
+            out=socket.getOutputStream();
+            out.write("GET /old\015\012".getBytes());
+            out.flush();
+            response=read(socket.getInputStream());
+            t.checkContains(response,"Hello /old","HTTP/0.9 handled");
+            t.checkNotContained(response,"HTTP/1","HTTP/0.9 no status line");
+            socket.close();
+
+            // All connections are deregistered
+            for (int i=0;i<20 && listener.getConnections()>0;i++)
+                Thread.sleep(100);
+            t.checkEquals(listener.getConnections(),0,"no connections");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+        finally
+        {
+            try{server.stop();}
+            catch(InterruptedException e){LogSupport.ignore(log,e);}
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Test a CONNECT tunnel through the TunnelSelector.
+     */
+    public static void testConnect()
+    {
+        TestCase t = new TestCase("org.mortbay.http.nio.TunnelSelector");
+        HttpServer server=new HttpServer();
+        SocketChannelListener listener=new SocketChannelListener();
+        ServerSocket echo=null;
+        try
+        {
+            // An echo server to tunnel to
+            echo=new ServerSocket(0);
+            final ServerSocket echo_socket=echo;
+            final int echo_port=echo.getLocalPort();
+            Thread echoer=new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            Socket socket=echo_socket.accept();
+                            InputStream in=socket.getInputStream();
+                            OutputStream out=socket.getOutputStream();
+                            byte[] buf=new byte[1024];
+                            int len;
+                            while ((len=in.read(buf))>=0)
+                            {
+                                out.write(buf,0,len);
+                                out.flush();
+                            }
+                            socket.close();
+                        }
+                        catch(IOException e)
+                        {
+                            LogSupport.ignore(log,e);
+                        }
+                    }
+                };
+            echoer.setDaemon(true);
+            echoer.start();
+
+            ProxyHandler proxy=new ProxyHandler()
+                {
+                    {
+                        _allowedConnectPorts.add(new Integer(echo_port));
+                    }
+                };
+            listener.setPort(0);
+            listener.setMaxIdleTimeMs(5000);
+            server.addListener(listener);
+            server.getContext("/").addHandler(proxy);
+            server.start();
+
+            Socket socket=new Socket("localhost",listener.getPort());
+            socket.setSoTimeout(5000);
+            OutputStream out=socket.getOutputStream();
+            InputStream in=socket.getInputStream();
+            out.write(("CONNECT localhost:"+echo_port+" HTTP/1.1\015\012"+
+                       "Host: localhost:"+echo_port+"\015\012\015\012").getBytes());
+            out.flush();
+
+            // Read the response head
+            StringBuffer head=new StringBuffer();
+            while (head.length()<4 || !head.toString().endsWith("\015\012\015\012"))
+            {
+                int b=in.read();
+                if (b<0)
+                    break;
+                head.append((char)b);
+            }
+            t.checkContains(head.toString(),"HTTP/1.1 200","CONNECT status");
+
+            // Bytes are copied both ways
+            for (int i=0;i<3;i++)
+            {
+                String data="tunnelled data "+i;
+                out.write(data.getBytes());
+                out.flush();
+                byte[] buf=new byte[data.length()];
+                int len=0;
+                while (len<buf.length)
+                {
+                    int n=in.read(buf,len,buf.length-len);
+                    if (n<0)
+                        break;
+                    len+=n;
+                }
+                t.checkEquals(new String(buf,0,len),data,"tunnelled "+i);
+            }
+            t.checkEquals(proxy.getTunnelSelector().getTunnels(),1,"tunnel open");
+            t.checkEquals(proxy.getTunnelSelector().getTunnelsTotal(),1,"tunnels total");
+
+            // Closing the client closes the tunnel
+            socket.shutdownOutput();
+            t.checkEquals(in.read(),-1,"tunnel EOF");
+            socket.close();
+            for (int i=0;i<20 && proxy.getTunnelSelector().getTunnels()>0;i++)
+                Thread.sleep(100);
+            t.checkEquals(proxy.getTunnelSelector().getTunnels(),0,"tunnel closed");
+            t.check(proxy.getTunnelSelector().getBytesIn()>=3*16,"bytes in");
+            t.check(proxy.getTunnelSelector().getBytesOut()>=3*16,"bytes out");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+        finally
+        {
+            try{server.stop();}
+            catch(InterruptedException e){LogSupport.ignore(log,e);}
+            try{if (echo!=null) echo.close();}
+            catch(IOException e){LogSupport.ignore(log,e);}
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    static String read(InputStream in)
+        throws IOException
+    {
+        ByteArrayOutputStream bout=new ByteArrayOutputStream();
+        byte[] buf=new byte[1024];
+        int len;
+        while ((len=in.read(buf))>=0)
+            bout.write(buf,0,len);
+        return new String(bout.toByteArray(),"ISO-8859-1");
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class HelloHandler extends AbstractHttpHandler
+    {
+        public void handle(String pathInContext,
+                           String pathParams,
+                           HttpRequest request,
+                           HttpResponse response)
+            throws HttpException, IOException
+        {
+            response.setContentType("text/plain");
+            OutputStream out=response.getOutputStream();
+            out.write(("Hello "+pathInContext).getBytes());
+            request.setHandled(true);
+        }
+    }
+}
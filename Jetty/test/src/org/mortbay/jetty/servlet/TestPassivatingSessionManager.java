@@ -0,0 +1,314 @@
+// ========================================================================
+// $Id$
+// Copyright 2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import org.apache.commons.logging.Log;
+import org.mortbay.log.LogFactory;
+import org.mortbay.http.HashUserRealm;
+import org.mortbay.http.HttpServer;
+import org.mortbay.http.SecurityConstraint;
+import org.mortbay.http.SocketListener;
+import org.mortbay.http.handler.SecurityHandler;
+import org.mortbay.util.IO;
+import org.mortbay.util.LogSupport;
+import org.mortbay.util.TestCase;
+
+/* ------------------------------------------------------------ */
+/** Test the PassivatingSessionManager.
+ *
+ * @version $Id$
+ * @author Greg Wilkins (gregw)
+ */
+public class TestPassivatingSessionManager
+{
+    private static Log log = LogFactory.getLog(TestPassivatingSessionManager.class);
+
+    static int __unbound;
+
+    /* ------------------------------------------------------------ */
+    public static void test()
+    {
+        testManager();
+        testFormAuthentication();
+    }
+
+    /* ------------------------------------------------------------ */
+    public static void testManager()
+    {
+        TestCase t = new TestCase("org.mortbay.jetty.servlet.PassivatingSessionManager");
+        PassivatingSessionManager manager=new PassivatingSessionManager();
+        try
+        {
+            Listener listener=new Listener();
+            manager.addEventListener(listener);
+            manager.setPassivateIdleSecs(1);
+            manager.start();
+            HttpServletRequest request=newRequest();
+
+            // Idle sessions are passivated and activated when used
+            PassivatingSessionManager.Session session=
+                (PassivatingSessionManager.Session)manager.newHttpSession(request);
+            List list=new ArrayList();
+            list.add("x");
+            session.setAttribute("a","1");
+            session.setAttribute("list",list);
+            session.complete();
+            manager.scavengeIdle(System.currentTimeMillis()+5000);
+            t.check(session._passivated,"idle passivated");
+            t.check(session._values==null,"idle attributes released");
+            t.checkEquals(manager.getPassivatedSessions(),1,"idle passivated sessions");
+            t.checkEquals(listener._passivated,1,"will passivate");
+            t.checkEquals(session.getAttribute("a"),"1","activated attribute");
+            t.checkEquals(session.getAttribute("list"),list,"activated list");
+            t.check(!session._passivated,"activated");
+            t.checkEquals(manager.getPassivatedSessions(),0,"activated passivated sessions");
+            t.checkEquals(manager.getActivations(),1,"activations");
+            t.checkEquals(listener._activated,1,"did activate");
+
+            // A session in use is not passivated until the request completes
+            session.access();
+            manager.scavengeIdle(System.currentTimeMillis()+5000);
+            t.check(!session._passivated,"active not passivated");
+            session.setAttribute("b","2");
+            session.complete();
+            manager.scavengeIdle(System.currentTimeMillis()+5000);
+            t.check(session._passivated,"completed passivated");
+            t.checkEquals(session.getAttribute("b"),"2","completed attribute kept");
+            session.invalidate();
+
+            // The least recently accessed sessions are passivated
+            manager.setPassivateIdleSecs(-1);
+            manager.setMaxResidentSessions(2);
+            PassivatingSessionManager.Session[] sessions=new PassivatingSessionManager.Session[5];
+            long now=System.currentTimeMillis();
+            for (int i=0;i<sessions.length;i++)
+            {
+                sessions[i]=(PassivatingSessionManager.Session)manager.newHttpSession(request);
+                sessions[i].setAttribute("i",new Integer(i));
+                sessions[i]._accessed=now-10000+i;
+                if (i>0)
+                    sessions[i].complete();
+            }
+            manager.scavengeIdle(now);
+            t.check(!sessions[0]._passivated,"LRU active not passivated");
+            t.check(sessions[1]._passivated,"LRU 1 passivated");
+            t.check(sessions[2]._passivated,"LRU 2 passivated");
+            t.check(!sessions[3]._passivated,"LRU 3 resident");
+            t.check(!sessions[4]._passivated,"LRU 4 resident");
+            t.checkEquals(manager.getPassivatedSessions(),2,"LRU passivated sessions");
+            t.checkEquals(sessions[1].getAttribute("i"),new Integer(1),"LRU activated");
+            for (int i=0;i<sessions.length;i++)
+                sessions[i].invalidate();
+            t.checkEquals(manager.getPassivatedSessions(),0,"LRU invalidated");
+
+            // Invalidating a passivated session unbinds its attributes
+            manager.setPassivateIdleSecs(1);
+            manager.setMaxResidentSessions(0);
+            __unbound=0;
+            session=(PassivatingSessionManager.Session)manager.newHttpSession(request);
+            session.setAttribute("bound",new Bound());
+            session.complete();
+            manager.scavengeIdle(System.currentTimeMillis()+5000);
+            t.check(session._passivated,"bound passivated");
+            session.invalidate();
+            t.checkEquals(__unbound,1,"passivated unbound");
+            t.check(!session.isValid(),"passivated invalid");
+            t.checkEquals(manager.getPassivatedSessions(),0,"passivated invalidated");
+            t.checkEquals(manager.getSessions(),0,"no sessions");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+        finally
+        {
+            manager.stop();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Test that a session created by a FormAuthenticator redirect, before
+     * the ServletHandler is called, is completed with the request.
+     */
+    public static void testFormAuthentication()
+    {
+        TestCase t = new TestCase("org.mortbay.jetty.servlet.FormAuthenticator");
+        HttpServer server=new HttpServer();
+        PassivatingSessionManager manager=new PassivatingSessionManager();
+        try
+        {
+            SocketListener listener=new SocketListener();
+            listener.setPort(0);
+            server.addListener(listener);
+            ServletHttpContext context=new ServletHttpContext();
+            context.setContextPath("/");
+            server.addContext(context);
+            FormAuthenticator authenticator=new FormAuthenticator();
+            authenticator.setLoginPage("/login");
+            context.setAuthenticator(authenticator);
+            context.setRealm(new HashUserRealm("test"));
+            context.addSecurityConstraint("/protected/*",new SecurityConstraint("protected","*"));
+            context.addHandler(new SecurityHandler());
+            manager.setPassivateIdleSecs(1);
+            context.getServletHandler().setSessionManager(manager);
+            context.getServletHandler().addServlet("login","/login",LoginServlet.class.getName());
+            server.start();
+            int port=listener.getPort();
+
+            // The authenticator creates the session and redirects
+            String response=get(port,"/protected/page",null);
+            t.checkContains(response,"HTTP/1.1 302","redirected");
+            t.checkEquals(manager.getSessions(),1,"session created");
+            int i=response.indexOf(SessionManager.__SessionCookie+"=");
+            t.check(i>=0,"session cookie");
+            i+=SessionManager.__SessionCookie.length()+1;
+            int e=i;
+            while (e<response.length() && ";\r\n".indexOf(response.charAt(e))<0)
+                e++;
+            String id=response.substring(i,e);
+            PassivatingSessionManager.Session session=
+                (PassivatingSessionManager.Session)manager.getHttpSession(id);
+            t.check(session!=null,"session found");
+            t.check(!session.isActive(),"redirected session complete");
+            manager.scavengeIdle(System.currentTimeMillis()+5000);
+            t.check(session._passivated,"redirected session passivated");
+
+            // A session accessed by the ServletHandler is completed
+            response=get(port,"/login",id);
+            t.checkContains(response,"login "+id,"session accessed");
+            t.check(!session.isActive(),"accessed session complete");
+            manager.scavengeIdle(System.currentTimeMillis()+5000);
+            t.check(session._passivated,"accessed session passivated");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+        finally
+        {
+            try{server.stop();}
+            catch(InterruptedException e){LogSupport.ignore(log,e);}
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Send a HTTP/1.0 GET request.
+     * @return The response.
+     */
+    static String get(int port, String uri, String id)
+        throws IOException
+    {
+        Socket socket=new Socket("localhost",port);
+        try
+        {
+            socket.setSoTimeout(5000);
+            OutputStream out=socket.getOutputStream();
+            String request="GET "+uri+" HTTP/1.0\r\n";
+            if (id!=null)
+                request+="Cookie: "+SessionManager.__SessionCookie+"="+id+"\r\n";
+            out.write((request+"\r\n").getBytes());
+            out.flush();
+            return IO.toString(socket.getInputStream());
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** A request that only has null attributes.
+     */
+    static HttpServletRequest newRequest()
+    {
+        return (HttpServletRequest)Proxy.newProxyInstance(
+            HttpServletRequest.class.getClassLoader(),
+            new Class[]{HttpServletRequest.class},
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if ("hashCode".equals(method.getName()))
+                        return new Integer(System.identityHashCode(proxy));
+                    return null;
+                }
+            });
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    public static class LoginServlet extends HttpServlet
+    {
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException
+        {
+            response.setContentType("text/plain");
+            response.getWriter().print("login "+request.getSession(true).getId());
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class Listener implements HttpSessionActivationListener
+    {
+        int _passivated;
+        int _activated;
+
+        public void sessionWillPassivate(HttpSessionEvent event)
+        {
+            _passivated++;
+        }
+
+        public void sessionDidActivate(HttpSessionEvent event)
+        {
+            _activated++;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class Bound implements HttpSessionBindingListener, Serializable
+    {
+        public void valueBound(HttpSessionBindingEvent event)
+        {
+        }
+
+        public void valueUnbound(HttpSessionBindingEvent event)
+        {
+            __unbound++;
+        }
+    }
+}
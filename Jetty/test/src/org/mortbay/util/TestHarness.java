@@ -571,6 +571,78 @@ public class TestHarness
         }
     }
     
+    /* ------------------------------------------------------------ */
+    static void testThreadPoolQueue()
+    {
+        TestCase t = new TestCase("org.mortbay.util.ThreadPool queue");
+        
+        try
+        {
+            final Object lock=new Object();
+            final int[] counts=new int[2]; // handled, discarded
+            ThreadPool pool = new ThreadPool()
+                {
+                    protected void handle(Object job)
+                        throws InterruptedException
+                    {
+                        synchronized(lock)
+                        {
+                            lock.wait();
+                            counts[0]++;
+                        }
+                    }
+                    protected void stopJob(Thread thread,Object job)
+                    {
+                        synchronized(lock)
+                        {
+                            counts[1]++;
+                        }
+                    }
+                };
+            pool.setMinThreads(1);
+            pool.setMaxThreads(2);
+            pool.setMaxQueued(2);
+            pool.setRejectionPolicy("discard");
+            t.checkEquals(pool.getRejectionPolicy(),ThreadPool.__DISCARD,"policy");
+            pool.start();
+
+            long start=System.currentTimeMillis();
+            for (int i=0;i<5;i++)
+                pool.run("job"+i);
+            t.check(System.currentTimeMillis()-start<500,"run did not wait");
+            t.checkEquals(pool.getThreads(),2,"threads");
+            t.checkEquals(pool.getQueueSize(),2,"queued");
+            synchronized(lock)
+            {
+                t.checkEquals(counts[1],1,"discarded");
+            }
+
+            // release the jobs until all the queued jobs are handled
+            for (int i=0;i<100 && counts[0]<4;i++)
+            {
+                Thread.sleep(20);
+                synchronized(lock)
+                {
+                    lock.notifyAll();
+                }
+            }
+            synchronized(lock)
+            {
+                t.checkEquals(counts[0],4,"handled");
+            }
+            t.checkEquals(pool.getQueueSize(),0,"drained");
+            for (int i=0;i<50 && pool.getIdleThreads()<2;i++)
+                Thread.sleep(20);
+            t.checkEquals(pool.getIdleThreads(),2,"idle");
+            pool.stop();
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+    }
+    
     /* ------------------------------------------------------------ */
     static void testSingletonList()
     {
@@ -826,6 +898,242 @@ public class TestHarness
         }
     }    
     
+    /* ------------------------------------------------------------ */
+    static void testConcurrentReaderMap()
+    {
+        TestCase t = new TestCase("org.mortbay.util.ConcurrentReaderMap");
+        
+        try
+        {
+            ConcurrentReaderMap map = new ConcurrentReaderMap(4);
+            t.checkEquals(map.get("K0"),null,"empty");
+            t.checkEquals(map.put("K0","V0"),null,"put new");
+            t.checkEquals(map.get("K0"),"V0","get");
+            t.checkEquals(map.put("K0","X0"),"V0","put replace");
+            t.checkEquals(map.get("K0"),"X0","get replaced");
+            t.checkEquals(map.size(),1,"size");
+
+            // enough to force chains and resizes
+            for (int i=1;i<1000;i++)
+                map.put("K"+i,"V"+i);
+            t.checkEquals(map.size(),1000,"size 1000");
+            boolean ok=true;
+            for (int i=1;i<1000;i++)
+                ok&="V".concat(Integer.toString(i)).equals(map.get("K"+i));
+            t.check(ok,"get 1000");
+
+            for (int i=0;i<1000;i+=2)
+                map.remove("K"+i);
+            t.checkEquals(map.size(),500,"size 500");
+            t.checkEquals(map.values().size(),500,"values 500");
+            ok=true;
+            for (int i=0;i<1000;i++)
+                ok&=(i%2==0)?map.get("K"+i)==null:("V"+i).equals(map.get("K"+i));
+            t.check(ok,"get after remove");
+            t.checkEquals(map.remove("K0"),null,"remove missing");
+            
+            map.clear();
+            t.checkEquals(map.size(),0,"clear");
+            t.checkEquals(map.get("K1"),null,"get cleared");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+    }
+    
+    /* ------------------------------------------------------------ */
+    static void testStripedCounter()
+    {
+        TestCase t = new TestCase("org.mortbay.util.StripedCounter");
+        
+        try
+        {
+            final StripedCounter counter = new StripedCounter(true);
+            final Histogram histogram = new Histogram();
+            Thread[] threads = new Thread[8];
+            for (int i=0;i<threads.length;i++)
+            {
+                threads[i]=new Thread()
+                    {
+                        public void run()
+                        {
+                            for (int j=0;j<1000;j++)
+                            {
+                                counter.increment();
+                                histogram.record(j);
+                            }
+                        }
+                    };
+                threads[i].start();
+            }
+            for (int i=0;i<threads.length;i++)
+                threads[i].join();
+            
+            t.checkEquals(counter.get(),8000,"counter");
+            t.checkEquals(counter.getMax(),8000,"max");
+            counter.add(-8001);
+            t.checkEquals(counter.get(),-1,"negative");
+            t.checkEquals(counter.getMin(),-1,"min");
+            counter.reset();
+            t.checkEquals(counter.get(),0,"reset");
+            t.checkEquals(counter.getMax(),0,"max reset");
+            t.checkEquals(counter.getMin(),0,"min reset");
+            counter.add(3);
+            counter.add(-5);
+            counter.increment();
+            t.checkEquals(counter.getMax(),3,"single thread max");
+            t.checkEquals(counter.getMin(),-2,"single thread min");
+
+            // Increased by some threads and decreased by others, as
+            // connections are opened and closed on different threads
+            counter.reset();
+            Runnable up=new Runnable(){public void run(){counter.increment();}};
+            Runnable down=new Runnable(){public void run(){counter.decrement();}};
+            for (int i=0;i<200;i++)
+            {
+                Thread thread=new Thread(up);
+                thread.start();
+                thread.join();
+                thread=new Thread(down);
+                thread.start();
+                thread.join();
+            }
+            t.checkEquals(counter.get(),0,"up and down");
+            t.checkEquals(counter.getMax(),1,"up and down max");
+            t.checkEquals(counter.getMin(),0,"up and down min");
+            StripedCounter untracked=new StripedCounter();
+            untracked.add(5);
+            t.checkEquals(untracked.getMax(),0,"extremes not tracked");
+
+            t.checkEquals(histogram.getCount(),8000,"count");
+            t.checkEquals(histogram.getTotal(),8*999*500,"total");
+            t.checkEquals(histogram.getMean(),499,"mean");
+            t.checkEquals(histogram.getMin(),0,"min");
+            t.checkEquals(histogram.getMax(),999,"max");
+            t.checkEquals(histogram.getPercentile(0),0,"p0");
+            t.checkEquals(histogram.getPercentile(100),999,"p100");
+            long p50=histogram.getPercentile(50);
+            t.check(p50>=499 && p50<=499+499/16,"p50 "+p50);
+            long p99=histogram.getPercentile(99);
+            t.check(p99>=989 && p99<=999,"p99 "+p99);
+
+            histogram.reset();
+            histogram.record(20);
+            t.checkEquals(histogram.getPercentile(99.9),20,"exact");
+            histogram.record(100000);
+            t.checkEquals(histogram.getPercentile(99.9),100000,"large");
+            t.checkEquals(histogram.getMin(),20,"min after reset");
+            histogram.record(Long.MAX_VALUE/2);
+            t.checkEquals(histogram.getPercentile(100),Long.MAX_VALUE/2,"overflow");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+    }
+    
+    /* ------------------------------------------------------------ */
+    static void testBufferPool()
+    {
+        TestCase t = new TestCase("org.mortbay.util.BufferPool");
+        
+        try
+        {
+            final BufferPool pool = new BufferPool("test",1,4);
+            byte[] b1=(byte[])pool.acquire(4096,false);
+            t.checkEquals(b1.length,4096,"exact");
+            t.checkEquals(((byte[])pool.acquire(3000,true)).length,4096,"at least");
+            t.checkEquals(((byte[])pool.acquire(3000,false)).length,3000,"not pooled");
+            t.checkEquals(((byte[])pool.acquire(100000,true)).length,100000,"too large");
+            t.checkEquals(pool.getOutstanding(),2,"outstanding");
+            t.checkEquals(pool.getMisses(),2,"misses");
+            
+            pool.release(b1);
+            t.checkEquals(pool.getOutstanding(),1,"released");
+            t.check(pool.acquire(4096,false)==b1,"thread cache");
+            t.checkEquals(pool.getHits(),1,"hit");
+            
+            // return from another thread
+            final byte[] b2=new byte[2048];
+            final byte[] b3=new byte[2048];
+            Thread thread=new Thread()
+                {
+                    public void run()
+                    {
+                        pool.release(b2);
+                        pool.release(b3);
+                    }
+                };
+            thread.start();
+            thread.join();
+            t.checkEquals(pool.getOutstanding(),2,"foreign not counted");
+            t.check(pool.acquire(2048,false)==b3,"depot");
+            t.checkEquals(pool.getHits(),2,"depot hit");
+            t.checkEquals(pool.getHitRate(),50,"hit rate");
+            t.checkEquals(pool.getOutstanding(),3,"foreign pooled");
+            pool.release(b3);
+            pool.release(b3);
+            t.checkEquals(pool.getOutstanding(),2,"returned twice");
+            t.check(pool.acquire(2048,false)==b3,"returned once");
+            t.check(pool.acquire(2048,false)!=b3,"not pooled twice");
+            BufferPool[] pools=BufferPool.getPools();
+            boolean registered=false;
+            for (int i=0;i<pools.length;i++)
+                registered|=pools[i]==pool;
+            t.check(registered,"registered");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+    }
+    
+    /* ------------------------------------------------------------ */
+    static void testTimingWheel()
+    {
+        TestCase t = new TestCase("org.mortbay.util.TimingWheel");
+        
+        try
+        {
+            long now=1000;
+            TimingWheel wheel = new TimingWheel(10,now);
+            TimingWheel.Timeout soon=new TimingWheel.Timeout("soon");
+            TimingWheel.Timeout later=new TimingWheel.Timeout("later");
+            TimingWheel.Timeout never=new TimingWheel.Timeout("never");
+            TimingWheel.Timeout far=new TimingWheel.Timeout("far");
+            wheel.schedule(soon,now+50);
+            wheel.schedule(later,now+100000);
+            wheel.schedule(never,now+200);
+            wheel.schedule(far,now+10L*(1L<<24)+15);
+            wheel.cancel(never);
+            t.checkEquals(wheel.size(),3,"scheduled");
+            t.check(!never.isScheduled(),"cancelled");
+            
+            t.checkEquals(LazyList.size(wheel.expire(now+49)),0,"not due");
+            Object due=wheel.expire(now+50);
+            t.checkEquals(LazyList.size(due),1,"due");
+            t.check(LazyList.get(due,0)==soon,"soon");
+            t.check(!soon.isScheduled(),"unscheduled");
+            
+            wheel.schedule(later,now+60000);
+            t.checkEquals(LazyList.size(wheel.expire(now+59999)),0,"rescheduled");
+            t.check(LazyList.get(wheel.expire(now+60000),0)==later,"later");
+            
+            t.checkEquals(LazyList.size(wheel.expire(now+10L*(1L<<24))),0,"far not due");
+            t.check(LazyList.get(wheel.expire(now+10L*(1L<<24)+10),0)==far,"far");
+            t.checkEquals(wheel.size(),0,"empty");
+        }
+        catch(Exception e)
+        {
+            log.warn(LogSupport.EXCEPTION,e);
+            t.check(false,e.toString());
+        }
+    }
+    
     /* ------------------------------------------------------------ */
     static void testMultiMap()
     {
@@ -921,6 +1229,11 @@ public class TestHarness
         try
         {
             testStringMap();
+            testConcurrentReaderMap();
+            testStripedCounter();
+            testBufferPool();
+            testTimingWheel();
+            testThreadPoolQueue();
             testSingletonList();
             testLazyList();
             testMultiMap();
@@ -136,6 +136,20 @@ public class Tests extends junit.framework.TestCase
             dc.format(System.currentTimeMillis()+10*60*60);
             String s3=dc.format(System.currentTimeMillis());
             assertTrue(s1==s2 || s2==s3);
+
+            // Test bytes are shared within the second
+            long now=(System.currentTimeMillis()/1000)*1000;
+            byte[] b1=dc.formatBytes(now);
+            byte[] b2=dc.formatBytes(now+999);
+            assertTrue("same bytes",b1==b2);
+            assertEquals("bytes",dc.format(now),new String(b1,"ISO-8859-1"));
+            
+            // Test millis
+            dc = new DateCache("HH:mm:ss.SSS");
+            dc.setTimeZone(TimeZone.getTimeZone("GMT"));
+            assertEquals("millis","00:00:01.007",dc.format(1007));
+            assertEquals("millis","00:00:01.250",dc.format(1250));
+            assertEquals("millis","00:00:02.000",dc.format(2000));
     }
 
 